@@ -30,8 +30,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Map;
 
-import org.panbox.PanboxConstants;
-import org.panbox.core.LimitedHashMap;
 import org.panbox.mobile.android.dropbox.csp.DropboxConnector;
 import org.panbox.mobile.android.dropbox.vfs.DropboxVirtualFile;
 
@@ -108,8 +106,7 @@ public class AndroidObfuscatorIVPool extends AbstractObfuscatorIVPool {
 
 		ArrayList<DropboxVirtualFile> files = dbc.listFiles(ivPath, null);
 
-		LimitedHashMap<String, byte[]> ivs = new LimitedHashMap<String, byte[]>(
-				PanboxConstants.OBFUSCATOR_IV_POOL_SIZE);
+		IVPoolMap ivs = new IVPoolMap();
 
 		cacheDB.beginTransactionNonExclusive();
 		for (DropboxVirtualFile df : files) {
@@ -129,6 +126,9 @@ public class AndroidObfuscatorIVPool extends AbstractObfuscatorIVPool {
 			SQLiteStatement insert = cacheDB.compileStatement(sql);
 
 			for (String fileName : subDirFiles) {
+				if (!ivEntryLengthValid(fileName)) {
+					continue;
+				}
 				Map.Entry<String, byte[]> e = splitFilename(fileName);
 				ivs.put(e.getKey(), e.getValue());
 
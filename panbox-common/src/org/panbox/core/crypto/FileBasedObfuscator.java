@@ -29,17 +29,33 @@ package org.panbox.core.crypto;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
-import org.panbox.PanboxConstants;
-import org.panbox.core.LimitedHashMap;
+import org.panbox.core.Utils;
 
 public class FileBasedObfuscator extends AbstractObfuscatorIVPool {
 
@@ -58,6 +74,116 @@ public class FileBasedObfuscator extends AbstractObfuscatorIVPool {
 	// return instance;
 	// }
 
+	/**
+	 * local cache file of this share's IV pool, or <code>null</code> if the
+	 * IV pool is to be read from the share upon each mount
+	 */
+	private final File cacheFile;
+
+	/**
+	 * IV pool as read from {@link #cacheFile}. {@link #loadedIVs} and
+	 * {@link #addedIVs} hold entries which are not contained in it.
+	 */
+	private volatile IVPoolCacheFile mappedIVPool = null;
+
+	/**
+	 * entries read upon the last (re)load of the IV pool which are not
+	 * contained in {@link #mappedIVPool}. Never modified once published, so
+	 * lookups do not need to hold this instance's monitor.
+	 */
+	private volatile IVPoolMap loadedIVs = new IVPoolMap();
+
+	/**
+	 * entries added since {@link #loadedIVs} has been published, e.g. new IVs,
+	 * single sidecar file lookups and watch events
+	 */
+	private final ConcurrentHashMap<ByteBuffer, byte[]> addedIVs = new ConcurrentHashMap<ByteBuffer, byte[]>();
+
+	/**
+	 * minimum number of entries in {@link #addedIVs} upon which they are
+	 * merged into a new copy of {@link #loadedIVs}
+	 */
+	private final static int MERGE_THRESHOLD = 4096;
+
+	private volatile String sharePath = null;
+
+	/**
+	 * name of the IV pool segment of this device, or <code>null</code> if new
+	 * IVs are always to be stored as sidecar files. See {@link IVPoolSegment}.
+	 */
+	private final String segmentName;
+
+	/**
+	 * number of bytes read so far from each IV pool segment
+	 */
+	private final Map<String, Long> segmentOffsets = new HashMap<String, Long>();
+
+	/**
+	 * indicates if the share uses the packed IV pool format, <code>null</code>
+	 * if not yet determined
+	 */
+	private Boolean packed = null;
+
+	/**
+	 * maximum time in milliseconds new IVs remain queued if written behind
+	 */
+	private final static long WRITE_BEHIND_DELAY = 500;
+
+	/**
+	 * number of queued IVs upon which they are written immediately
+	 */
+	private final static int WRITE_BEHIND_BATCH = 1024;
+
+	/**
+	 * indicates if new IVs are written by a background thread, see
+	 * {@link IVPoolWriter}
+	 */
+	private final boolean writeBehind;
+
+	private IVPoolWriter ivWriter = null;
+
+	public FileBasedObfuscator() {
+		this(null);
+	}
+
+	/**
+	 * @param cacheFile
+	 *            local cache file of the IV pool, see {@link IVPoolCacheFile}
+	 */
+	public FileBasedObfuscator(File cacheFile) {
+		this(cacheFile, null);
+	}
+
+	/**
+	 * @param cacheFile
+	 *            local cache file of the IV pool, see {@link IVPoolCacheFile}
+	 * @param segmentName
+	 *            name of the IV pool segment of this device, used for storing
+	 *            new IVs if the share has been migrated to the packed format
+	 */
+	public FileBasedObfuscator(File cacheFile, String segmentName) {
+		this(cacheFile, segmentName, false);
+	}
+
+	/**
+	 * @param cacheFile
+	 *            local cache file of the IV pool, see {@link IVPoolCacheFile}
+	 * @param segmentName
+	 *            name of the IV pool segment of this device, used for storing
+	 *            new IVs if the share has been migrated to the packed format
+	 * @param writeBehind
+	 *            if set to <code>true</code>, new IVs are written in batches
+	 *            by a background thread. They are visible to this instance
+	 *            immediately, but to other devices only after having been
+	 *            written.
+	 */
+	public FileBasedObfuscator(File cacheFile, String segmentName,
+			boolean writeBehind) {
+		this.cacheFile = cacheFile;
+		this.segmentName = segmentName;
+		this.writeBehind = writeBehind;
+	}
+
 	final FileFilter dirFilter = new FileFilter() {
 
 		@Override
@@ -82,56 +208,734 @@ public class FileBasedObfuscator extends AbstractObfuscatorIVPool {
 		}
 	}
 
+	/**
+	 * indicates if the whole IV pool has been read, so that cache misses can
+	 * be resolved by looking up single sidecar files. Reset if the watcher
+	 * lost events.
+	 */
+	private volatile boolean ivPoolLoaded = false;
+
+	/**
+	 * watches the IV pool subdirectories for sidecar files created or deleted
+	 * by the CSP client or other Panbox instances
+	 */
+	private WatchService watcher = null;
+
+	private Thread watcherThread = null;
+
+	/**
+	 * number of single sidecar file lookups, i.e. cache misses after the IV
+	 * pool has been loaded
+	 */
+	private final AtomicLong probeCount = new AtomicLong();
+
+	/**
+	 * loads the IV pool, unless it already has been loaded. Only (re)loads of
+	 * the IV pool hold this instance's monitor, lookups are served from
+	 * {@link #mappedIVPool}, {@link #loadedIVs} and {@link #addedIVs} without
+	 * locking.
+	 * 
+	 * @param absolutePath
+	 * @param shareName
+	 * @return <code>true</code> if the IV pool has been loaded by this call
+	 */
+	private boolean ensureIVPoolLoaded(String absolutePath, String shareName) {
+		if (ivPoolLoaded) {
+			return false;
+		}
+		synchronized (this) {
+			if (watcher == null) {
+				startWatcher(absolutePath, shareName);
+			}
+			if (ivPoolLoaded) {
+				return false;
+			}
+			this.sharePath = absolutePath;
+			long start = System.nanoTime();
+			loadIVPool(absolutePath, shareName);
+			recordIVPoolLoad(start);
+			getWriter(absolutePath, shareName);
+			return true;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.crypto.AbstractObfuscatorIVPool#fetchIV(java.lang.
+	 * String, java.lang.String, java.lang.String)
+	 */
+	@Override
+	public byte[] fetchIV(String absolutePath, String shareName,
+			String lookupHash) {
+		if (ensureIVPoolLoaded(absolutePath, shareName)) {
+			// initial load, e.g. upon the first directory listing. Any
+			// subsequent changes are tracked by the watcher.
+			return getCachedIV(lookupHash, shareName);
+		}
+
+		// the sidecar file may have been created in the meantime or evicted
+		// from the cache, look it up directly
+		byte[] iv = getCachedIV(lookupHash, shareName);
+		if (iv == null) {
+			iv = probeIV(absolutePath, lookupHash);
+		}
+		return iv;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.crypto.AbstractObfuscatorIVPool#fetchIVs(java.lang.
+	 * String, java.lang.String, java.util.Collection)
+	 */
+	@Override
+	public Map<String, byte[]> fetchIVs(String absolutePath,
+			String shareName, Collection<String> lookupHashes) {
+		ensureIVPoolLoaded(absolutePath, shareName);
+
+		Map<String, byte[]> ret = new HashMap<String, byte[]>();
+		List<String> missing = new ArrayList<String>();
+		for (String lookupHash : lookupHashes) {
+			byte[] iv = getCachedIV(lookupHash, shareName);
+			if (iv != null) {
+				ret.put(lookupHash, iv);
+			} else {
+				missing.add(lookupHash);
+			}
+		}
+
+		if (missing.size() > 1 && readSegments(absolutePath)) {
+			// entries may have been appended to segments
+			for (Iterator<String> it = missing.iterator(); it.hasNext();) {
+				String lookupHash = it.next();
+				byte[] iv = getCachedIV(lookupHash, shareName);
+				if (iv != null) {
+					ret.put(lookupHash, iv);
+					it.remove();
+				}
+			}
+		}
+
+		if (missing.size() == 1) {
+			byte[] iv = probeIV(absolutePath, missing.get(0));
+			if (iv != null) {
+				ret.put(missing.get(0), iv);
+			}
+		} else if (missing.size() > 1) {
+			// re-read each affected subdirectory once instead of looking up
+			// every single sidecar file
+			Set<Character> subdirs = new TreeSet<Character>();
+			for (String lookupHash : missing) {
+				if (lookupHash.length() > 0) {
+					subdirs.add(Character.toUpperCase(lookupHash.charAt(0)));
+				}
+			}
+			IVPoolMap ivs = new IVPoolMap();
+			for (Character c : subdirs) {
+				readSubdir(new File(absolutePath + File.separator
+						+ Obfuscator.IV_POOL_PATH + File.separator + c), ivs);
+			}
+			addIVs(ivs);
+			for (String lookupHash : missing) {
+				byte[] iv = getCachedIV(lookupHash, shareName);
+				if (iv != null) {
+					ret.put(lookupHash, iv);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.AbstractObfuscatorIVPool#getCachedIV(java.lang
+	 * .String, java.lang.String)
+	 */
+	@Override
+	public byte[] getCachedIV(String lookupHash, String shareName) {
+		if (lookupHash.length() != IVPoolMap.HASH_LEN * 2) {
+			return null;
+		}
+		byte[] hash = Utils.hexToBytes(lookupHash);
+		byte[] iv = addedIVs.get(ByteBuffer.wrap(hash));
+		if (iv != null) {
+			return iv.clone();
+		}
+		iv = loadedIVs.get(hash);
+		IVPoolCacheFile mapped = mappedIVPool;
+		if (iv == null && mapped != null) {
+			iv = mapped.get(hash);
+		}
+		return iv;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.AbstractObfuscatorIVPool#putCachedIV(java.lang
+	 * .String, byte[])
+	 */
+	@Override
+	public void putCachedIV(String lookupHash, byte[] iv) {
+		addIV(Utils.hexToBytes(lookupHash), iv);
+	}
+
+	/**
+	 * adds a single entry to {@link #addedIVs}
+	 * 
+	 * @param hash
+	 * @param iv
+	 */
+	private void addIV(byte[] hash, byte[] iv) {
+		if (hash.length != IVPoolMap.HASH_LEN || iv.length != IVPoolMap.IV_LEN) {
+			throw new IllegalArgumentException("Invalid IV pool entry");
+		}
+		addedIVs.put(ByteBuffer.wrap(hash), iv.clone());
+		if (addedIVs.size() >= mergeThreshold()) {
+			mergeAddedIVs();
+		}
+	}
+
+	/**
+	 * adds the given entries, either to {@link #addedIVs} or, if there are
+	 * many of them, to a new copy of {@link #loadedIVs}
+	 * 
+	 * @param ivs
+	 */
+	private void addIVs(IVPoolMap ivs) {
+		if (ivs.size() < MERGE_THRESHOLD) {
+			for (byte[] entry : ivs.toEntryArray()) {
+				addIV(Arrays.copyOf(entry, IVPoolMap.HASH_LEN),
+						Arrays.copyOfRange(entry, IVPoolMap.HASH_LEN,
+								IVPoolMap.HASH_LEN + IVPoolMap.IV_LEN));
+			}
+			return;
+		}
+		synchronized (this) {
+			IVPoolMap merged = new IVPoolMap(loadedIVs.size() + ivs.size(),
+					false);
+			merged.putAll(loadedIVs);
+			merged.putAll(ivs);
+			this.loadedIVs = merged;
+		}
+	}
+
+	private int mergeThreshold() {
+		return Math.max(MERGE_THRESHOLD, loadedIVs.size() / 4);
+	}
+
+	/**
+	 * publishes a new copy of {@link #loadedIVs} containing the entries of
+	 * {@link #addedIVs}. Entries are removed from {@link #addedIVs} only after
+	 * the copy has been published, so concurrent lookups always find them.
+	 */
+	private synchronized void mergeAddedIVs() {
+		if (addedIVs.size() < mergeThreshold()) {
+			// merged by another thread in the meantime
+			return;
+		}
+		Map<ByteBuffer, byte[]> added = new HashMap<ByteBuffer, byte[]>(
+				addedIVs);
+		IVPoolMap merged = new IVPoolMap(loadedIVs.size() + added.size(),
+				false);
+		merged.putAll(loadedIVs);
+		for (Map.Entry<ByteBuffer, byte[]> e : added.entrySet()) {
+			merged.put(e.getKey().array(), e.getValue());
+		}
+		this.loadedIVs = merged;
+		for (Map.Entry<ByteBuffer, byte[]> e : added.entrySet()) {
+			addedIVs.remove(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * @return all entries which are not contained in {@link #mappedIVPool}
+	 */
+	private synchronized IVPoolMap getUnmappedIVs() {
+		IVPoolMap ret = new IVPoolMap(loadedIVs.size() + addedIVs.size(),
+				false);
+		ret.putAll(loadedIVs);
+		for (Map.Entry<ByteBuffer, byte[]> e : addedIVs.entrySet()) {
+			ret.put(e.getKey().array(), e.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * loads the IV pool from the local cache file. Only the IV pool
+	 * subdirectories which have been modified since the cache file has been
+	 * written are read and the cache file is updated accordingly. Without a
+	 * cache file, the whole IV pool is read onto the heap.
+	 * 
+	 * As both lookup hash and IV are derived from the plaintext name, entries
+	 * of deleted sidecar files remaining in the cache cannot yield wrong IVs.
+	 * 
+	 * @param absolutePath
+	 * @param shareName
+	 */
+	private synchronized void loadIVPool(String absolutePath, String shareName) {
+		if (cacheFile == null) {
+			fetchIVPool(absolutePath, shareName);
+			return;
+		}
+
+		File path = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH);
+		IVPoolCacheFile cached = (mappedIVPool != null) ? mappedIVPool
+				: IVPoolCacheFile.open(cacheFile);
+		long[] stamps = new long[IVPoolCacheFile.NUM_SUBDIRS];
+		boolean[] valid = new boolean[IVPoolCacheFile.NUM_SUBDIRS];
+		IVPoolMap ivs = new IVPoolMap();
+		int modified = 0;
+		for (int i = 0; i < IVPoolCacheFile.NUM_SUBDIRS; i++) {
+			File subdir = new File(path, String.valueOf(Utils.hexArray[i]));
+			// take stamp before reading, so that concurrent changes
+			// invalidate it
+			stamps[i] = subdir.lastModified();
+			valid[i] = (cached != null) && (stamps[i] != 0)
+					&& (cached.getStamp(i) == stamps[i]);
+			if (!valid[i]) {
+				modified++;
+				readSubdir(subdir, ivs);
+			}
+		}
+		logger.debug("IV pool cache " + cacheFile + ": " + modified
+				+ " modified subdirectories");
+
+		IVPoolCacheFile mapped = cached;
+		if (modified > 0) {
+			try {
+				IVPoolCacheFile.write(cacheFile, stamps, cached, valid, ivs);
+				IVPoolCacheFile updated = IVPoolCacheFile.open(cacheFile);
+				if (updated != null) {
+					mapped = updated;
+					ivs = null;
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to write IV pool cache " + cacheFile, e);
+			}
+		}
+		this.mappedIVPool = mapped;
+		if (ivs != null) {
+			// keep the entries read on the heap
+			addIVs(ivs);
+		}
+		loadSegments(absolutePath);
+		this.ivPoolLoaded = true;
+	}
+
+	/**
+	 * reads all IV pool segments. Segments are not tracked by the cache file,
+	 * but entries already contained in the cache file are not kept on the
+	 * heap.
+	 * 
+	 * @param absolutePath
+	 */
+	private synchronized void loadSegments(String absolutePath) {
+		segmentOffsets.clear();
+		readSegments(absolutePath);
+	}
+
+	/**
+	 * writes entries which have been added since the IV pool has been loaded
+	 * to the local cache file
+	 */
+	private synchronized void storeIVPool() {
+		if (cacheFile == null || sharePath == null || !ivPoolLoaded) {
+			return;
+		}
+		IVPoolMap ivs = getUnmappedIVs();
+		if (ivs.isEmpty()) {
+			return;
+		}
+		File path = new File(sharePath + File.separator
+				+ Obfuscator.IV_POOL_PATH);
+		long[] stamps = new long[IVPoolCacheFile.NUM_SUBDIRS];
+		boolean[] keep = new boolean[IVPoolCacheFile.NUM_SUBDIRS];
+		for (int i = 0; i < IVPoolCacheFile.NUM_SUBDIRS; i++) {
+			keep[i] = true;
+			if (watcherThread != null) {
+				// all changes have been tracked by the watcher, missed ones
+				// will be looked up on demand
+				stamps[i] = new File(path, String.valueOf(Utils.hexArray[i]))
+						.lastModified();
+			} else if (mappedIVPool != null) {
+				// changes may have been missed, re-read modified
+				// subdirectories upon next load
+				stamps[i] = mappedIVPool.getStamp(i);
+			}
+		}
+		try {
+			IVPoolCacheFile.write(cacheFile, stamps, mappedIVPool, keep, ivs);
+		} catch (IOException e) {
+			logger.warn("Unable to write IV pool cache " + cacheFile, e);
+		}
+	}
+
+	/**
+	 * looks up the sidecar file for the given lookup hash within its IV pool
+	 * subdirectory
+	 * 
+	 * @param absolutePath
+	 * @param lookupHash
+	 * @return the IV or <code>null</code>, if there is no sidecar file
+	 */
+	private byte[] probeIV(String absolutePath, String lookupHash) {
+		probeCount.incrementAndGet();
+		File subdir = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH + File.separator
+				+ Character.toUpperCase(lookupHash.charAt(0)));
+		byte[] ret = null;
+		// lookup hash is hex encoded and does not contain glob meta
+		// characters
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				subdir.toPath(), lookupHash + "*")) {
+			for (Path entry : stream) {
+				String filename = entry.getFileName().toString();
+				Map.Entry<String, byte[]> e;
+				if (!ivEntryLengthValid(filename)) {
+					e = resolveIVConflict(subdir, filename);
+				} else {
+					e = splitFilename(filename);
+				}
+				if (e != null && e.getKey().equals(lookupHash)) {
+					putCachedIV(e.getKey(), e.getValue());
+					ret = e.getValue();
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			logger.error("Error while looking up IV " + lookupHash, e);
+		}
+		if (ret == null && readSegments(absolutePath)) {
+			ret = getCachedIV(lookupHash, null);
+		}
+		return ret;
+	}
+
+	/**
+	 * reads the entries which have been appended to the IV pool segments of
+	 * the given share since they have been read last time
+	 * 
+	 * @param absolutePath
+	 * @return <code>true</code>, if the share uses the packed format
+	 */
+	private synchronized boolean readSegments(String absolutePath) {
+		File path = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH);
+		File[] segments = path.listFiles(IVPoolSegment.SEGMENT_FILTER);
+		if (segments == null || segments.length == 0) {
+			packed = Boolean.FALSE;
+			return false;
+		}
+		packed = Boolean.TRUE;
+		IVPoolMap ivs = new IVPoolMap();
+		for (File segment : segments) {
+			Long offset = segmentOffsets.get(segment.getName());
+			long length = segment.length();
+			if (offset == null || length < offset) {
+				// new or replaced segment
+				offset = Long.valueOf(0);
+			} else if (length == offset) {
+				continue;
+			}
+			try {
+				segmentOffsets.put(segment.getName(), IVPoolSegment.read(
+						segment, offset, ivs, mappedIVPool));
+			} catch (IOException e) {
+				logger.warn("Unable to read IV pool segment " + segment, e);
+			}
+		}
+		addIVs(ivs);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.crypto.AbstractObfuscatorIVPool#storeIV(java.lang.
+	 * String, java.lang.String, byte[])
+	 */
+	@Override
+	public void storeIV(String absolutePath, String lookupHash, byte[] iv)
+			throws IOException {
+		if (writeBehind) {
+			// not holding this instance's monitor, so that the journal
+			// entries of concurrent calls are forced at once
+			getWriter(absolutePath, null).add(Utils.hexToBytes(lookupHash), iv);
+			putCachedIV(lookupHash, iv);
+			return;
+		}
+		synchronized (this) {
+			if (segmentName != null && packed == null) {
+				packed = Boolean.valueOf(IVPoolSegment.isPacked(new File(
+						absolutePath + File.separator
+								+ Obfuscator.IV_POOL_PATH)));
+			}
+			if (segmentName == null || !packed.booleanValue()) {
+				super.storeIV(absolutePath, lookupHash, iv);
+				return;
+			}
+			IVPoolSegment.append(IVPoolSegment.getSegmentFile(new File(
+					absolutePath + File.separator + Obfuscator.IV_POOL_PATH),
+					segmentName), Utils.hexToBytes(lookupHash), iv);
+			putCachedIV(lookupHash, iv);
+		}
+	}
+
+	/**
+	 * @return number of single sidecar file lookups
+	 */
+	public long getProbeCount() {
+		return probeCount.get();
+	}
+
+	/**
+	 * creates the {@link IVPoolWriter} upon first use, which replays any
+	 * entries left in its journal by a previous run
+	 * 
+	 * @param absolutePath
+	 * @param shareName
+	 * @return the writer, or <code>null</code> if IVs are written
+	 *         synchronously
+	 */
+	private synchronized IVPoolWriter getWriter(String absolutePath,
+			String shareName) {
+		if (!writeBehind || ivWriter != null) {
+			return ivWriter;
+		}
+		File path = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH);
+		if (packed == null) {
+			packed = Boolean.valueOf(IVPoolSegment.isPacked(path));
+		}
+		File segment = (segmentName != null && packed.booleanValue()) ? IVPoolSegment
+				.getSegmentFile(path, segmentName) : null;
+		File journal = (cacheFile != null) ? new File(cacheFile.getPath()
+				+ ".journal") : null;
+		ivWriter = new IVPoolWriter(path, (shareName != null) ? shareName
+				: new File(absolutePath).getName(), segment, journal,
+				WRITE_BEHIND_DELAY, WRITE_BEHIND_BATCH);
+		// replayed entries
+		IVPoolMap pending = new IVPoolMap();
+		ivWriter.getPending(pending);
+		addIVs(pending);
+		return ivWriter;
+	}
+
+	/**
+	 * registers the IV pool subdirectories of the given share with a
+	 * {@link WatchService} and starts a daemon thread applying the changes to
+	 * the cache. If the watcher cannot be set up, cache misses are resolved
+	 * by single sidecar file lookups only.
+	 * 
+	 * @param absolutePath
+	 * @param shareName
+	 */
+	private synchronized void startWatcher(String absolutePath,
+			String shareName) {
+		File path = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH);
+		File[] subdirs = path.listFiles(dirFilter);
+		if (subdirs == null) {
+			return;
+		}
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			// segments are located directly within the IV pool
+			path.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			for (int i = 0; i < subdirs.length; i++) {
+				subdirs[i].toPath().register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to watch IV pool " + path
+					+ ", changes will be looked up on demand", e);
+			closeWatcher();
+			return;
+		}
+
+		final WatchService ws = watcher;
+		watcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = ws.take();
+						applyEvents(key);
+						key.reset();
+					}
+				} catch (InterruptedException | ClosedWatchServiceException e) {
+					// closed
+				}
+			}
+		}, "Panbox-IVPoolWatcher-" + shareName);
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	/**
+	 * applies the watch events of the given key to the cache. Entries of
+	 * deleted sidecar files are only removed from {@link #addedIVs}, as
+	 * {@link #loadedIVs} is immutable. Remaining entries cannot yield wrong
+	 * IVs, see {@link #loadIVPool(String, String)}.
+	 * 
+	 * @param key
+	 */
+	private void applyEvents(WatchKey key) {
+		boolean segmentsModified = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events have been lost, re-read IV pool upon next miss
+				logger.debug("IV pool watcher overflow, scheduling re-scan");
+				ivPoolLoaded = false;
+				continue;
+			}
+			String filename = event.context().toString();
+			if (IVPoolSegment.isSegment(filename)) {
+				segmentsModified = true;
+				continue;
+			}
+			// sidecar files with invalid lengths are handled upon lookup
+			if (!ivEntryLengthValid(filename)) {
+				continue;
+			}
+			Map.Entry<String, byte[]> e;
+			try {
+				e = splitFilename(filename);
+			} catch (RuntimeException ex) {
+				logger.warn("Ignoring invalid sidecar file " + filename);
+				continue;
+			}
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				putCachedIV(e.getKey(), e.getValue());
+			} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				ByteBuffer hash = ByteBuffer.wrap(Utils.hexToBytes(e
+						.getKey()));
+				byte[] iv = addedIVs.get(hash);
+				if (iv != null && Arrays.equals(iv, e.getValue())) {
+					addedIVs.remove(hash, iv);
+				}
+			}
+		}
+		String path = sharePath;
+		if (segmentsModified && path != null) {
+			readSegments(path);
+		}
+	}
+
+	private synchronized void closeWatcher() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				logger.warn("Error closing IV pool watcher", e);
+			}
+		}
+		if (watcherThread != null) {
+			watcherThread.interrupt();
+			watcherThread = null;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.crypto.AbstractObfuscatorIVPool#close()
+	 */
+	@Override
+	public synchronized void close() {
+		if (ivWriter != null) {
+			ivWriter.close();
+			ivWriter = null;
+		}
+		storeIVPool();
+		closeWatcher();
+		watcher = null;
+		ivPoolLoaded = false;
+		mappedIVPool = null;
+		segmentOffsets.clear();
+		packed = null;
+	}
+
 	@Override
 	public synchronized void fetchIVPool(String absolutePath, String shareName) {
 		File path = new File(absolutePath + File.separator
 				+ Obfuscator.IV_POOL_PATH);
+		// entries queued for write-behind are not on disk yet. Taken before
+		// reading the IV pool, as they may be written in the meantime.
+		IVPoolMap pending = new IVPoolMap();
+		if (ivWriter != null) {
+			ivWriter.getPending(pending);
+		}
 
 		File[] subdirs = path.listFiles(dirFilter);
+		if (subdirs == null) {
+			logger.error("Unable to list IV pool " + path);
+			return;
+		}
 
 		// String path_ = absolutePath + File.separator +
 		// Obfuscator.IV_POOL_PATH;
 
-		LimitedHashMap<String, byte[]> ivs = new LimitedHashMap<String, byte[]>(
-				PanboxConstants.OBFUSCATOR_IV_POOL_SIZE);
+		IVPoolMap ivs = new IVPoolMap();
 
 		for (int i = 0; i < subdirs.length; i++) {
-			// char csub = Utils.hexArray[i];
-			// Path sub = Paths.get(path_ + File.separator + csub);
+			readSubdir(subdirs[i], ivs);
+		}
+		ivs.putAll(pending);
 
-			DirectoryStream<Path> stream;
-			try {
-				stream = Files.newDirectoryStream(subdirs[i].toPath());
-				// iterate all subdirectories of IVpool
-				for (Path entry : stream) {
-					String filename = entry.getName(entry.getNameCount() - 1)
-							.toString();
-					Map.Entry<String, byte[]> e;
-					// check length, if invalid a conflict may have been flagged
-					// by the CSP
-					if (!ivEntryLengthValid(filename)) {
-						e = resolveIVConflict(subdirs[i], filename);
-					} else {
-						e = splitFilename(filename);
-					}
-					if (e != null) {
-						byte[] old = null;
-						if (((old = ivs.put(e.getKey(), e.getValue())) != null)
-								&& (!Arrays.equals(old, e.getValue()))) {
-							logger.error("Detected duplicate lookup values with differing IVs! No actions taken");
-						}
-					} else {
-						logger.error("Error while reading IV " + filename);
+		// cache it, dropping entries of sidecar files which have been
+		// deleted in the meantime
+		this.loadedIVs = ivs;
+		addedIVs.clear();
+		loadSegments(absolutePath);
+		this.ivPoolLoaded = true;
+	}
+
+	/**
+	 * reads all sidecar files of the given IV pool subdirectory
+	 * 
+	 * @param subdir
+	 * @param ivs
+	 *            map receiving the entries
+	 */
+	private void readSubdir(File subdir, IVPoolMap ivs) {
+		if (!subdir.isDirectory()) {
+			return;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(subdir
+				.toPath())) {
+			for (Path entry : stream) {
+				String filename = entry.getName(entry.getNameCount() - 1)
+						.toString();
+				Map.Entry<String, byte[]> e;
+				// check length, if invalid a conflict may have been flagged
+				// by the CSP
+				if (!ivEntryLengthValid(filename)) {
+					e = resolveIVConflict(subdir, filename);
+				} else {
+					e = splitFilename(filename);
+				}
+				if (e != null) {
+					byte[] old = null;
+					if (((old = ivs.put(e.getKey(), e.getValue())) != null)
+							&& (!Arrays.equals(old, e.getValue()))) {
+						logger.error("Detected duplicate lookup values with differing IVs! No actions taken");
 					}
+				} else {
+					logger.error("Error while reading IV " + filename);
 				}
-				stream.close();
-			} catch (IOException e1) {
-				logger.error("Error while reading IV pool", e1);
 			}
+		} catch (IOException | DirectoryIteratorException e1) {
+			logger.error("Error while reading IV pool", e1);
 		}
-
-		// cache it
-		this.ivPool = ivs;
 	}
 
 	/**
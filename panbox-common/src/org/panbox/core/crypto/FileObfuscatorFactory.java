@@ -26,15 +26,43 @@
  */
 package org.panbox.core.crypto;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.panbox.PanboxConstants;
+import org.panbox.Settings;
+import org.panbox.core.Utils;
 import org.panbox.core.exception.ObfuscationException;
 
 public class FileObfuscatorFactory extends AbstractObfuscatorFactory {
 
+	private static final Logger logger = Logger.getLogger("org.panbox.core");
+
+	/**
+	 * file within the IV pool cache directory storing the name of the IV pool
+	 * segments of this device
+	 */
+	private final static String SEGMENT_NAME_FILE = "segment";
+
 	HashMap<String, Obfuscator> cache = new HashMap<String, Obfuscator>();
 
+	private String segmentName = null;
+
 	public FileObfuscatorFactory() {
 	}
 
@@ -45,16 +73,134 @@ public class FileObfuscatorFactory extends AbstractObfuscatorFactory {
 			return cache.get(sharePath);
 		}
 
-		Obfuscator ob = new Obfuscator(sharePath, new FileBasedObfuscator(), shareName);
+		// write-behind requires a journal, which is kept next to the IV pool
+		// cache file
+		File cacheFile = getIVPoolCacheFile(sharePath);
+		Obfuscator ob = new Obfuscator(sharePath, new FileBasedObfuscator(
+				cacheFile, getSegmentName(), cacheFile != null), shareName);
 
 		cache.put(sharePath, ob);
+		registerStatistics(ob);
 
 		return ob;
 	}
 
+	/**
+	 * @return all current obfuscator instances, e.g. for querying their
+	 *         statistics
+	 */
+	public Collection<Obfuscator> getInstances() {
+		return new ArrayList<Obfuscator>(cache.values());
+	}
+
+	private static ObjectName getStatisticsName(Obfuscator ob)
+			throws JMException {
+		return new ObjectName("org.panbox:type=Obfuscator,share="
+				+ ObjectName.quote(ob.getShareName()));
+	}
+
+	/**
+	 * makes the statistics of the given instance available via JMX
+	 * 
+	 * @param ob
+	 */
+	private void registerStatistics(Obfuscator ob) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getStatisticsName(ob);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(ob.getStatistics(), name);
+		} catch (JMException | RuntimeException e) {
+			logger.warn("Unable to register obfuscator statistics for share "
+					+ ob.getShareName(), e);
+		}
+	}
+
+	private void unregisterStatistics(Obfuscator ob) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getStatisticsName(ob);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException | RuntimeException e) {
+			logger.warn(
+					"Unable to unregister obfuscator statistics for share "
+							+ ob.getShareName(), e);
+		}
+	}
+
+	/**
+	 * @param sharePath
+	 * @return local IV pool cache file for the given share, or
+	 *         <code>null</code> if the settings are unavailable
+	 * @throws ObfuscationException
+	 */
+	private File getIVPoolCacheFile(String sharePath)
+			throws ObfuscationException {
+		try {
+			MessageDigest md = MessageDigest
+					.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
+			String name = Utils.bytesToHex(md.digest(sharePath
+					.getBytes(PanboxConstants.STANDARD_CHARSET)));
+			return new File(Settings.getInstance().getIVPoolCachePath(), name);
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			throw new ObfuscationException(
+					"Unable to determine IV pool cache file", e);
+		} catch (RuntimeException e) {
+			// IV pool works without local cache
+			logger.warn("Unable to load settings, IV pool cache is disabled",
+					e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return name of the IV pool segments of this device, which is generated
+	 *         randomly upon first use, or <code>null</code> if it cannot be
+	 *         stored. In the latter case, new IVs are always stored as
+	 *         sidecar files.
+	 */
+	private String getSegmentName() {
+		if (segmentName != null) {
+			return segmentName;
+		}
+		try {
+			File f = new File(Settings.getInstance().getIVPoolCachePath(),
+					SEGMENT_NAME_FILE);
+			if (f.isFile()) {
+				String name = new String(Files.readAllBytes(f.toPath()),
+						PanboxConstants.STANDARD_CHARSET).trim();
+				if (!name.isEmpty()) {
+					return segmentName = name;
+				}
+			}
+			String name = UUID.randomUUID().toString().replace("-", "");
+			File parent = f.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Unable to create directory " + parent);
+			}
+			Files.write(f.toPath(),
+					name.getBytes(PanboxConstants.STANDARD_CHARSET));
+			return segmentName = name;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Unable to determine IV pool segment name, IVs will "
+					+ "be stored as sidecar files", e);
+			return null;
+		}
+	}
+
 	@Override
 	public boolean removeInstance(String sharePath) throws ObfuscationException {
-		return (cache.remove(sharePath) != null);
+		Obfuscator ob = cache.remove(sharePath);
+		if (ob != null) {
+			unregisterStatistics(ob);
+			ob.close();
+			return true;
+		}
+		return false;
 	}
 
 	@Override
@@ -62,6 +208,8 @@ public class FileObfuscatorFactory extends AbstractObfuscatorFactory {
 		for (Map.Entry<String, Obfuscator> entry : cache.entrySet()) {
 			if (entry.getValue().equals(o)) {
 				cache.remove(entry.getKey());
+				unregisterStatistics(o);
+				o.close();
 				return true;
 			}
 		}
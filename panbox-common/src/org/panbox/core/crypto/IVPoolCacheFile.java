@@ -0,0 +1,322 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local, persistent cache of the IV pool of a share. The file contains all
+ * (lookup hash, IV) pairs sorted by lookup hash and is memory-mapped and
+ * binary-searched upon lookup, so that remounting a share neither requires
+ * reading all sidecar files nor holding all IVs on the heap.
+ *
+ * As the IV pool subdirectories are named after the first hex digit of the
+ * lookup hash, the entries of each subdirectory form a contiguous range of
+ * the file. For each subdirectory, the file stores its modification time at
+ * the time it has been read, so that only modified subdirectories need to be
+ * re-read upon validation.
+ *
+ * File format (big endian): magic, version, hash length, IV length, number
+ * of entries (int each), {@value #NUM_SUBDIRS} subdirectory modification
+ * times (long each), followed by the sorted entries.
+ */
+public class IVPoolCacheFile {
+
+	private final static Logger logger = Logger
+			.getLogger(IVPoolCacheFile.class);
+
+	final static int MAGIC = 0x50424956; // "PBIV"
+
+	final static int VERSION = 1;
+
+	/**
+	 * number of IV pool subdirectories, one per hex digit
+	 */
+	public final static int NUM_SUBDIRS = 16;
+
+	final static int HASH_LEN = IVPoolMap.HASH_LEN;
+
+	final static int IV_LEN = IVPoolMap.IV_LEN;
+
+	final static int ENTRY_LEN = HASH_LEN + IV_LEN;
+
+	private final static int COUNT_OFFSET = 16;
+
+	final static int HEADER_LEN = COUNT_OFFSET + 4 + NUM_SUBDIRS * 8;
+
+	/**
+	 * orders entries by their lookup hash, comparing unsigned bytes
+	 */
+	final static Comparator<byte[]> HASH_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < HASH_LEN; i++) {
+				int c = (a[i] & 0xff) - (b[i] & 0xff);
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		}
+	};
+
+	private final MappedByteBuffer buf;
+
+	private final int count;
+
+	private final long[] stamps = new long[NUM_SUBDIRS];
+
+	private IVPoolCacheFile(MappedByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if (buf.capacity() < HEADER_LEN || buf.getInt(0) != MAGIC
+				|| buf.getInt(4) != VERSION || buf.getInt(8) != HASH_LEN
+				|| buf.getInt(12) != IV_LEN) {
+			throw new IOException("Invalid IV pool cache file header");
+		}
+		this.count = buf.getInt(COUNT_OFFSET);
+		if (count < 0
+				|| (long) HEADER_LEN + (long) count * ENTRY_LEN != buf
+						.capacity()) {
+			throw new IOException("Invalid IV pool cache file length");
+		}
+		for (int i = 0; i < NUM_SUBDIRS; i++) {
+			stamps[i] = buf.getLong(COUNT_OFFSET + 4 + i * 8);
+		}
+	}
+
+	/**
+	 * maps the given cache file
+	 *
+	 * @param f
+	 * @return the cache or <code>null</code>, if the file does not exist or
+	 *         is invalid
+	 */
+	public static IVPoolCacheFile open(File f) {
+		if (!f.isFile()) {
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			// mapping remains valid after the channel has been closed
+			MappedByteBuffer buf = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new IVPoolCacheFile(buf);
+		} catch (IOException e) {
+			logger.warn("Ignoring invalid IV pool cache " + f, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param subdir
+	 *            subdirectory index, i.e. value of its hex digit
+	 * @return modification time of the subdirectory when its entries were
+	 *         read
+	 */
+	public long getStamp(int subdir) {
+		return stamps[subdir];
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param lookupHash
+	 * @return the IV for the given lookup hash or <code>null</code>, if there
+	 *         is none
+	 */
+	public byte[] get(byte[] lookupHash) {
+		if (lookupHash.length != HASH_LEN) {
+			return null;
+		}
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareAt(mid, lookupHash);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				byte[] iv = new byte[IV_LEN];
+				int pos = HEADER_LEN + mid * ENTRY_LEN + HASH_LEN;
+				for (int i = 0; i < IV_LEN; i++) {
+					iv[i] = buf.get(pos + i);
+				}
+				return iv;
+			}
+		}
+		return null;
+	}
+
+	private int compareAt(int index, byte[] lookupHash) {
+		int pos = HEADER_LEN + index * ENTRY_LEN;
+		for (int i = 0; i < HASH_LEN; i++) {
+			int c = (buf.get(pos + i) & 0xff) - (lookupHash[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * reads the entry at the given index
+	 *
+	 * @param index
+	 * @param entry
+	 *            array of length {@link #ENTRY_LEN} receiving lookup hash and
+	 *            IV
+	 */
+	void getEntry(int index, byte[] entry) {
+		int pos = HEADER_LEN + index * ENTRY_LEN;
+		for (int i = 0; i < ENTRY_LEN; i++) {
+			entry[i] = buf.get(pos + i);
+		}
+	}
+
+	/**
+	 * writes a new cache file, replacing any existing one
+	 *
+	 * @param f
+	 *            cache file
+	 * @param stamps
+	 *            modification times of all subdirectories
+	 * @param old
+	 *            previous cache, may be <code>null</code>
+	 * @param keepOld
+	 *            for each subdirectory, indicates if the entries of the
+	 *            previous cache are to be kept
+	 * @param ivs
+	 *            new entries
+	 * @return number of written entries
+	 * @throws IOException
+	 */
+	public static int write(File f, long[] stamps, IVPoolCacheFile old,
+			boolean[] keepOld, IVPoolMap ivs) throws IOException {
+		byte[][] entries = ivs.toEntryArray();
+		int n = entries.length;
+		Arrays.sort(entries, HASH_ORDER);
+
+		File parent = f.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		File tmp = new File(f.getPath() + ".tmp");
+		int written = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(HASH_LEN);
+			out.writeInt(IV_LEN);
+			out.writeInt(0); // number of entries, set below
+			for (int i = 0; i < NUM_SUBDIRS; i++) {
+				out.writeLong(stamps[i]);
+			}
+
+			// merge new entries with those kept from the previous cache. new
+			// entries take precedence.
+			byte[] oldEntry = new byte[ENTRY_LEN];
+			int oldCount = (old == null) ? 0 : old.size();
+			int i = skipOld(old, keepOld, oldCount, 0), j = 0;
+			while (i < oldCount || j < n) {
+				int c;
+				if (i >= oldCount) {
+					c = 1;
+				} else {
+					old.getEntry(i, oldEntry);
+					c = (j >= n) ? -1 : HASH_ORDER.compare(oldEntry, entries[j]);
+				}
+				if (c < 0) {
+					out.write(oldEntry);
+				} else {
+					out.write(entries[j]);
+					j++;
+				}
+				if (c <= 0) {
+					i = skipOld(old, keepOld, oldCount, i + 1);
+				}
+				written++;
+			}
+			out.flush();
+
+			ByteBuffer countBuf = ByteBuffer.allocate(4);
+			countBuf.putInt(written).flip();
+			fos.getChannel().write(countBuf, COUNT_OFFSET);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		try {
+			Files.move(tmp.toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// e.g. on Windows if the previous file still is mapped
+			tmp.delete();
+			throw e;
+		}
+		return written;
+	}
+
+	/**
+	 * @return index of the next entry of the previous cache to be kept,
+	 *         starting at the given index
+	 */
+	private static int skipOld(IVPoolCacheFile old, boolean[] keepOld,
+			int oldCount, int i) {
+		while (i < oldCount
+				&& !keepOld[(old.buf.get(HEADER_LEN + i * ENTRY_LEN) & 0xff) >>> 4]) {
+			i++;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.panbox.core.Utils;
+
+/**
+ * Packed storage format of the IV pool of a share. Instead of one empty
+ * sidecar file per obfuscated name, (lookup hash, IV) pairs are appended to
+ * segment files located directly within the IV pool directory, one per
+ * device, so that the number of files to be synchronized by the CSP does not
+ * grow with the number of names.
+ *
+ * As each device only appends to its own segment, segments of different
+ * devices never conflict. Conflicting copies created by the CSP nonetheless
+ * remain valid segments, as all segments are merged upon reading and entries
+ * are derived deterministically from the plaintext name. Incomplete trailing
+ * entries, e.g. of a segment which has not been synchronized completely, are
+ * ignored.
+ *
+ * A share uses the packed format as soon as its IV pool directory contains a
+ * segment, see {@link #migrate(File, String, boolean)}. Sidecar files remain
+ * readable in any case.
+ *
+ * File format (big endian): magic, version, hash length, IV length (int
+ * each), followed by the appended entries.
+ */
+public class IVPoolSegment {
+
+	private final static Logger logger = Logger.getLogger(IVPoolSegment.class);
+
+	final static int MAGIC = 0x50424953; // "PBIS"
+
+	final static int VERSION = 1;
+
+	final static int HASH_LEN = IVPoolMap.HASH_LEN;
+
+	final static int IV_LEN = IVPoolMap.IV_LEN;
+
+	final static int ENTRY_LEN = HASH_LEN + IV_LEN;
+
+	final static int HEADER_LEN = 16;
+
+	/**
+	 * file name suffix of segments. Conflicting copies created by CSPs may
+	 * carry additional suffixes.
+	 */
+	public final static String SUFFIX = ".ivs";
+
+	/**
+	 * accepts segments including conflicting copies
+	 */
+	public final static FileFilter SEGMENT_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(File pathname) {
+			return isSegment(pathname.getName()) && pathname.isFile();
+		}
+	};
+
+	/**
+	 * @param filename
+	 * @return <code>true</code>, if the given file name denotes a segment or
+	 *         a conflicting copy of a segment
+	 */
+	public static boolean isSegment(String filename) {
+		return filename.contains(SUFFIX);
+	}
+
+	/**
+	 * @param ivPoolDir
+	 *            IV pool directory of a share
+	 * @param segmentName
+	 *            name of the segment of this device
+	 * @return the segment file of this device
+	 */
+	public static File getSegmentFile(File ivPoolDir, String segmentName) {
+		return new File(ivPoolDir, segmentName + SUFFIX);
+	}
+
+	/**
+	 * @param ivPoolDir
+	 *            IV pool directory of a share
+	 * @return <code>true</code>, if the share uses the packed format
+	 */
+	public static boolean isPacked(File ivPoolDir) {
+		File[] segments = ivPoolDir.listFiles(SEGMENT_FILTER);
+		return (segments != null) && (segments.length > 0);
+	}
+
+	/**
+	 * reads the entries of the given segment, starting at the given offset
+	 *
+	 * @param f
+	 *            segment file
+	 * @param offset
+	 *            number of bytes which have been read before, 0 for reading
+	 *            the whole segment
+	 * @param ivs
+	 *            map receiving the entries
+	 * @param known
+	 *            entries already known, which are not added to
+	 *            <code>ivs</code>, may be <code>null</code>
+	 * @return number of bytes read including the given offset, i.e. the
+	 *         offset for reading entries appended later on
+	 * @throws IOException
+	 *             if the segment could not be read or is invalid
+	 */
+	public static long read(File f, long offset, IVPoolMap ivs,
+			IVPoolCacheFile known) throws IOException {
+		try (InputStream fis = new FileInputStream(f)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					fis, 64 * 1024));
+			long pos = offset;
+			if (pos < HEADER_LEN) {
+				try {
+					if (in.readInt() != MAGIC || in.readInt() != VERSION
+							|| in.readInt() != HASH_LEN
+							|| in.readInt() != IV_LEN) {
+						throw new IOException("Invalid IV pool segment header");
+					}
+				} catch (EOFException e) {
+					// header not synchronized completely yet
+					return 0;
+				}
+				pos = HEADER_LEN;
+			} else {
+				skipFully(in, pos);
+			}
+
+			byte[] hash = new byte[HASH_LEN];
+			while (true) {
+				byte[] iv = new byte[IV_LEN];
+				try {
+					in.readFully(hash);
+					in.readFully(iv);
+				} catch (EOFException e) {
+					// incomplete trailing entry is read again next time
+					return pos;
+				}
+				pos += ENTRY_LEN;
+				if (known != null && known.get(hash) != null) {
+					continue;
+				}
+				byte[] old = ivs.put(hash, iv);
+				if (old != null && !Arrays.equals(old, iv)) {
+					logger.error("Detected duplicate lookup values with differing IVs in "
+							+ f + "! No actions taken");
+				}
+			}
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * appends an entry to the given segment, creating the segment if
+	 * necessary
+	 *
+	 * @param f
+	 *            segment file of this device
+	 * @param lookupHash
+	 * @param iv
+	 * @throws IOException
+	 */
+	public static void append(File f, byte[] lookupHash, byte[] iv)
+			throws IOException {
+		append(f, new byte[][] { lookupHash }, new byte[][] { iv }, 1, false);
+	}
+
+	/**
+	 * appends several entries to the given segment, creating the segment if
+	 * necessary
+	 *
+	 * @param f
+	 *            segment file of this device
+	 * @param hashes
+	 * @param ivs
+	 * @param count
+	 *            number of entries to be appended
+	 * @param sync
+	 *            if set to <code>true</code>, the entries are synchronized to
+	 *            the storage device before returning
+	 * @throws IOException
+	 */
+	static void append(File f, byte[][] hashes, byte[][] ivs, int count,
+			boolean sync) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(f, true)) {
+			BufferedOutputStream out = new BufferedOutputStream(fos,
+					64 * 1024);
+			if (fos.getChannel().size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(HASH_LEN)
+						.putInt(IV_LEN);
+				out.write(header.array());
+			}
+			for (int i = 0; i < count; i++) {
+				if (hashes[i].length != HASH_LEN || ivs[i].length != IV_LEN) {
+					throw new IllegalArgumentException(
+							"Invalid IV pool entry length");
+				}
+				out.write(hashes[i]);
+				out.write(ivs[i]);
+			}
+			out.flush();
+			if (sync) {
+				fos.getFD().sync();
+			}
+		}
+	}
+
+	/**
+	 * migrates the sidecar files of the given IV pool to the segment of this
+	 * device. Afterwards, all Panbox instances supporting the packed format
+	 * store new IVs in their segments.
+	 *
+	 * @param ivPoolDir
+	 *            IV pool directory of a share
+	 * @param segmentName
+	 *            name of the segment of this device
+	 * @param deleteSidecars
+	 *            if set to <code>true</code>, migrated sidecar files are
+	 *            deleted. Instances not supporting the packed format will be
+	 *            unable to deobfuscate the corresponding names.
+	 * @return number of migrated entries
+	 * @throws IOException
+	 */
+	public static int migrate(File ivPoolDir, String segmentName,
+			boolean deleteSidecars) throws IOException {
+		if (!ivPoolDir.isDirectory()) {
+			throw new IOException("IV pool " + ivPoolDir + " does not exist");
+		}
+		File segment = getSegmentFile(ivPoolDir, segmentName);
+		int sidecarLen = (HASH_LEN + IV_LEN) * 2;
+		int count = 0;
+		byte[][] hashes = new byte[1024][];
+		byte[][] ivs = new byte[1024][];
+		int n = 0;
+		for (int i = 0; i < Utils.hexArray.length; i++) {
+			File subdir = new File(ivPoolDir, String.valueOf(Utils.hexArray[i]));
+			if (!subdir.isDirectory()) {
+				continue;
+			}
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(subdir
+					.toPath())) {
+				for (Path entry : stream) {
+					String filename = entry.getFileName().toString();
+					if (filename.length() != sidecarLen) {
+						// conflicting sidecar files are resolved upon reading
+						logger.warn("Skipping invalid sidecar file " + entry);
+						continue;
+					}
+					try {
+						hashes[n] = Utils.hexToBytes(filename.substring(0,
+								HASH_LEN * 2));
+						ivs[n] = Utils.hexToBytes(filename
+								.substring(HASH_LEN * 2));
+					} catch (RuntimeException e) {
+						logger.warn("Skipping invalid sidecar file " + entry);
+						continue;
+					}
+					if (++n == hashes.length) {
+						append(segment, hashes, ivs, n, false);
+						count += n;
+						n = 0;
+					}
+				}
+			} catch (DirectoryIteratorException e) {
+				throw e.getCause();
+			}
+		}
+		if (n > 0 || !segment.exists()) {
+			append(segment, hashes, ivs, n, true);
+			count += n;
+		}
+
+		if (deleteSidecars) {
+			// only delete after all entries have been written
+			for (int i = 0; i < Utils.hexArray.length; i++) {
+				File[] sidecars = new File(ivPoolDir,
+						String.valueOf(Utils.hexArray[i])).listFiles();
+				if (sidecars == null) {
+					continue;
+				}
+				for (File sidecar : sidecars) {
+					if (sidecar.getName().length() == sidecarLen
+							&& !sidecar.delete()) {
+						logger.warn("Unable to delete sidecar file "
+								+ sidecar);
+					}
+				}
+			}
+		}
+		logger.info("Migrated " + count + " IV pool entries of " + ivPoolDir
+				+ " to " + segment);
+		return count;
+	}
+
+	/**
+	 * command line tool for migrating a share to the packed format
+	 *
+	 * @param args
+	 *            share path, segment name and optionally
+	 *            <code>--delete</code>
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3
+				|| (args.length == 3 && !args[2].equals("--delete"))) {
+			System.err.println("Usage: IVPoolSegment <share path> "
+					+ "<segment name> [--delete]");
+			System.exit(1);
+		}
+		File ivPoolDir = new File(args[0], Obfuscator.IV_POOL_PATH);
+		try {
+			int n = migrate(ivPoolDir, args[1], args.length == 3);
+			System.out.println("Migrated " + n + " entries to "
+					+ getSegmentFile(ivPoolDir, args[1]));
+		} catch (IOException e) {
+			System.err.println("Migration failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
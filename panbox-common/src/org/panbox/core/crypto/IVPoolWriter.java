@@ -0,0 +1,456 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.panbox.core.Utils;
+
+/**
+ * Write-behind queue for new IV pool entries. Entries are written by a
+ * background thread in batches, either as sidecar files or to the segment of
+ * this device, see {@link IVPoolSegment}, and each batch is synchronized to
+ * the storage device at once.
+ *
+ * Queued entries are appended to a local journal file, which is replayed
+ * upon the next start if the process terminates before they have been
+ * written, and which is truncated as soon as the queue has been emptied. The
+ * journal is forced to the storage device before an entry is reported as
+ * queued, so that it also survives a crash of the operating system. Entries
+ * queued concurrently share a single force.
+ */
+class IVPoolWriter {
+
+	private final static Logger logger = Logger.getLogger(IVPoolWriter.class);
+
+	private final static int ENTRY_LEN = IVPoolMap.HASH_LEN
+			+ IVPoolMap.IV_LEN;
+
+	private final File ivPoolDir;
+
+	private final String shareName;
+
+	private final File segment;
+
+	private final File journalFile;
+
+	private final long delay;
+
+	private final int maxBatch;
+
+	private FileChannel journal = null;
+
+	/**
+	 * number of entries appended to the journal
+	 */
+	private long journaled = 0;
+
+	/**
+	 * number of entries of the journal which have been forced to the storage
+	 * device, guarded by {@link #forceLock}
+	 */
+	private long forced = 0;
+
+	private final Object forceLock = new Object();
+
+	private List<byte[]> pending = new ArrayList<byte[]>();
+
+	/**
+	 * batches being written
+	 */
+	private final List<List<byte[]>> writing = new ArrayList<List<byte[]>>();
+
+	private Thread writerThread = null;
+
+	private boolean closed = false;
+
+	/**
+	 * @param ivPoolDir
+	 *            IV pool directory of the share
+	 * @param shareName
+	 * @param segment
+	 *            segment of this device, or <code>null</code> if entries are
+	 *            to be written as sidecar files
+	 * @param journalFile
+	 *            local journal file, or <code>null</code> if queued entries
+	 *            are lost upon abnormal termination
+	 * @param delay
+	 *            maximum time in milliseconds an entry remains queued
+	 * @param maxBatch
+	 *            number of entries upon which a batch is written immediately
+	 */
+	IVPoolWriter(File ivPoolDir, String shareName, File segment,
+			File journalFile, long delay, int maxBatch) {
+		this.ivPoolDir = ivPoolDir;
+		this.shareName = shareName;
+		this.segment = segment;
+		this.journalFile = journalFile;
+		this.delay = delay;
+		this.maxBatch = maxBatch;
+		replayJournal();
+		if (!pending.isEmpty()) {
+			start();
+		}
+	}
+
+	/**
+	 * reads entries left in the journal by a previous run into the queue
+	 */
+	private void replayJournal() {
+		if (journalFile == null || !journalFile.isFile()) {
+			return;
+		}
+		try (FileChannel fc = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(ENTRY_LEN);
+			while (true) {
+				buf.clear();
+				while (buf.hasRemaining() && fc.read(buf) >= 0) {
+				}
+				if (buf.hasRemaining()) {
+					// incomplete trailing entry
+					break;
+				}
+				pending.add(buf.array().clone());
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read IV pool journal " + journalFile, e);
+		}
+		if (!pending.isEmpty()) {
+			logger.info("Replaying " + pending.size()
+					+ " IV pool entries from journal " + journalFile);
+		}
+	}
+
+	/**
+	 * @param ivs
+	 *            map receiving all entries which have not been written yet,
+	 *            including those of batches currently being written
+	 */
+	synchronized void getPending(IVPoolMap ivs) {
+		for (List<byte[]> batch : writing) {
+			getEntries(batch, ivs);
+		}
+		getEntries(pending, ivs);
+	}
+
+	private static void getEntries(List<byte[]> entries, IVPoolMap ivs) {
+		byte[] hash = new byte[IVPoolMap.HASH_LEN];
+		for (byte[] entry : entries) {
+			System.arraycopy(entry, 0, hash, 0, hash.length);
+			byte[] iv = new byte[IVPoolMap.IV_LEN];
+			System.arraycopy(entry, hash.length, iv, 0, iv.length);
+			ivs.put(hash, iv);
+		}
+	}
+
+	/**
+	 * queues an entry and returns once it has been forced to the journal
+	 *
+	 * @param lookupHash
+	 * @param iv
+	 * @throws IOException
+	 *             if the entry could not be added to the journal
+	 */
+	void add(byte[] lookupHash, byte[] iv) throws IOException {
+		FileChannel fc = null;
+		long seq = 0;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("IV pool writer has been closed");
+			}
+			byte[] entry = new byte[ENTRY_LEN];
+			System.arraycopy(lookupHash, 0, entry, 0, IVPoolMap.HASH_LEN);
+			System.arraycopy(iv, 0, entry, IVPoolMap.HASH_LEN,
+					IVPoolMap.IV_LEN);
+			if (journalFile != null) {
+				if (journal == null) {
+					openJournal();
+				}
+				ByteBuffer buf = ByteBuffer.wrap(entry);
+				while (buf.hasRemaining()) {
+					journal.write(buf);
+				}
+				fc = journal;
+				seq = ++journaled;
+			}
+			pending.add(entry);
+			start();
+			if (pending.size() >= maxBatch) {
+				notifyAll();
+			}
+		}
+		if (fc != null) {
+			forceJournal(fc, seq);
+		}
+	}
+
+	private void openJournal() throws IOException {
+		File parent = journalFile.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		boolean created = !journalFile.exists();
+		journal = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		if (created && parent != null) {
+			// persist the directory entry of the journal
+			forceDirectory(parent);
+		}
+	}
+
+	/**
+	 * forces the journal up to the given entry. Concurrent callers are
+	 * committed as a group: the first one forces all entries appended so far,
+	 * the others return as soon as their entries are covered by a force.
+	 *
+	 * @param fc
+	 *            journal the entry has been appended to
+	 * @param seq
+	 *            number of the entry
+	 * @throws IOException
+	 *             if the journal could not be forced. The entry remains
+	 *             queued.
+	 */
+	private void forceJournal(FileChannel fc, long seq) throws IOException {
+		synchronized (forceLock) {
+			if (forced >= seq) {
+				return;
+			}
+			long upTo;
+			synchronized (this) {
+				upTo = journaled;
+			}
+			try {
+				fc.force(false);
+			} catch (ClosedChannelException e) {
+				// closed by close(), which forces the journal before
+			}
+			forced = upTo;
+		}
+	}
+
+	private static void forceDirectory(File dir) {
+		try (FileChannel fc = FileChannel.open(dir.toPath(),
+				StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+			// directories cannot be synchronized on all platforms
+		}
+	}
+
+	private void start() {
+		if (writerThread != null) {
+			return;
+		}
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						synchronized (IVPoolWriter.this) {
+							while (!closed && pending.isEmpty()) {
+								IVPoolWriter.this.wait();
+							}
+							if (closed) {
+								return;
+							}
+							if (pending.size() < maxBatch) {
+								IVPoolWriter.this.wait(delay);
+							}
+						}
+						if (!writeBatch()) {
+							// retry later
+							Thread.sleep(delay);
+						}
+					}
+				} catch (InterruptedException e) {
+					// closed
+				}
+			}
+		}, "Panbox-IVPoolWriter-" + shareName);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * writes all queued entries
+	 *
+	 * @return <code>false</code>, if the entries could not be written and
+	 *         have been queued again
+	 */
+	private boolean writeBatch() {
+		List<byte[]> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return true;
+			}
+			batch = pending;
+			pending = new ArrayList<byte[]>();
+			writing.add(batch);
+		}
+		boolean success = false;
+		try {
+			if (segment != null) {
+				writeSegment(batch);
+			} else {
+				writeSidecars(batch);
+			}
+			success = true;
+		} catch (IOException e) {
+			logger.error("Unable to write " + batch.size()
+					+ " IV pool entries, retrying", e);
+		}
+		synchronized (this) {
+			writing.remove(batch);
+			if (!success) {
+				batch.addAll(pending);
+				pending = batch;
+			} else if (pending.isEmpty() && writing.isEmpty()) {
+				truncateJournal();
+			}
+			notifyAll();
+		}
+		return success;
+	}
+
+	private void writeSegment(List<byte[]> batch) throws IOException {
+		int n = batch.size();
+		byte[][] hashes = new byte[n][];
+		byte[][] ivs = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			byte[] entry = batch.get(i);
+			hashes[i] = new byte[IVPoolMap.HASH_LEN];
+			ivs[i] = new byte[IVPoolMap.IV_LEN];
+			System.arraycopy(entry, 0, hashes[i], 0, IVPoolMap.HASH_LEN);
+			System.arraycopy(entry, IVPoolMap.HASH_LEN, ivs[i], 0,
+					IVPoolMap.IV_LEN);
+		}
+		IVPoolSegment.append(segment, hashes, ivs, n, true);
+	}
+
+	private void writeSidecars(List<byte[]> batch) throws IOException {
+		Set<File> subdirs = new HashSet<File>();
+		for (byte[] entry : batch) {
+			String name = Utils.bytesToHex(entry);
+			File subdir = new File(ivPoolDir, String.valueOf(Character
+					.toUpperCase(name.charAt(0))));
+			File ivFile = new File(subdir, name);
+			if (!ivFile.createNewFile() && !ivFile.isFile()) {
+				throw new IOException("Unable to create IV sidecar file "
+						+ ivFile);
+			}
+			subdirs.add(subdir);
+		}
+		// persist the directory entries once per subdirectory
+		for (File subdir : subdirs) {
+			forceDirectory(subdir);
+		}
+	}
+
+	private void truncateJournal() {
+		try {
+			if (journal != null) {
+				journal.truncate(0);
+			} else if (journalFile != null && journalFile.exists()) {
+				// replayed entries only
+				Files.delete(journalFile.toPath());
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to truncate IV pool journal " + journalFile, e);
+		}
+	}
+
+	/**
+	 * writes all queued entries and waits until all batches have been
+	 * written
+	 *
+	 * @throws IOException
+	 *             if the entries could not be written
+	 */
+	void flush() throws IOException {
+		if (!writeBatch()) {
+			throw new IOException("Unable to write IV pool entries");
+		}
+		synchronized (this) {
+			while (!writing.isEmpty()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while writing IV pool");
+				}
+			}
+			if (pending.isEmpty()) {
+				truncateJournal();
+			}
+		}
+	}
+
+	/**
+	 * writes all queued entries and stops the background thread. Entries
+	 * which could not be written remain in the journal.
+	 */
+	void close() {
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.error("IV pool entries remain queued in journal "
+					+ journalFile, e);
+		}
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			if (journal != null) {
+				try {
+					// entries which could not be written
+					journal.force(false);
+					journal.close();
+				} catch (IOException e) {
+					logger.warn("Error closing IV pool journal", e);
+				}
+				journal = null;
+			}
+		}
+		if (writerThread != null) {
+			writerThread.interrupt();
+			writerThread = null;
+		}
+	}
+}
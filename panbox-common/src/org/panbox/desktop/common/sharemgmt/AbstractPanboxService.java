@@ -39,16 +39,21 @@ import org.panbox.core.exception.DeviceListException;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.exception.ShareMetaDataException;
 import org.panbox.core.keymgmt.IVolume;
+import org.panbox.core.keymgmt.ShareKey;
 import org.panbox.core.keymgmt.Volume;
 import org.panbox.core.keymgmt.VolumeParams;
 import org.panbox.core.vfs.backend.VirtualVolume;
 import org.panbox.desktop.common.ex.DeviceKeyException;
 import org.panbox.desktop.common.gui.shares.PanboxShare;
+import org.panbox.desktop.common.vfs.backend.ShareKeyRotationJob;
 import org.panbox.desktop.common.vfs.backend.VFSShare;
 
 public abstract class AbstractPanboxService implements IPanboxService {
 
 	private final HashMap<String, IVolume> volumeCache = new HashMap<>();
+	private final HashMap<String, VFSShare> shareCache = new HashMap<>();
+	private final HashMap<String, ShareKeyRotationJob> rotationJobs = new HashMap<>();
+	private final HashMap<String, Thread> rotationThreads = new HashMap<>();
 	static final Logger logger = Logger.getLogger("org.panbox");
 
 	protected abstract void registerShare(VFSShare vfsShare, VolumeParams p);
@@ -79,6 +84,57 @@ public abstract class AbstractPanboxService implements IPanboxService {
 		return volume;
 	}
 
+	/**
+	 * @return latest share key version of the given share, or -1 if it could
+	 *         not be determined
+	 */
+	private static int getLatestShareKeyVersion(VFSShare vfsShare) {
+		try {
+			ShareKey key = vfsShare.getLatestShareKey();
+			return (key == null) ? -1 : key.version;
+		} catch (RuntimeException e) {
+			logger.error("PanboxService : Unable to determine latest share key of share "
+					+ vfsShare.getShareName(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * starts rotating all files of the given share to its latest share key in
+	 * the background. A rotation which is still running for this share is
+	 * stopped first, the new job resumes at its checkpoint.
+	 */
+	private synchronized void startShareKeyRotation(VolumeParams p,
+			VFSShare vfsShare) {
+		stopShareKeyRotation(p);
+		ShareKeyRotationJob job = new ShareKeyRotationJob(vfsShare,
+				ShareKeyRotationJob.getCheckpointFile(p.path));
+		Thread t = new Thread(job, "Panbox-ShareKeyRotation-" + p.shareName);
+		t.setDaemon(true);
+		this.rotationJobs.put(p.path, job);
+		this.rotationThreads.put(p.path, t);
+		logger.info("PanboxService : Starting share key rotation of share "
+				+ p.shareName);
+		t.start();
+	}
+
+	/**
+	 * stops a running rotation of the given share and waits for its files in
+	 * flight to be finished, so the checkpoint is up to date
+	 */
+	private synchronized void stopShareKeyRotation(VolumeParams p) {
+		ShareKeyRotationJob job = this.rotationJobs.remove(p.path);
+		Thread t = this.rotationThreads.remove(p.path);
+		if (job != null) {
+			job.cancel();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	@Override
 	public synchronized PanboxShare reloadShareMetaData(VolumeParams p)
 			throws ShareMetaDataException, RemoteException,
@@ -89,7 +145,15 @@ public abstract class AbstractPanboxService implements IPanboxService {
 			throw new ShareMetaDataException(
 					"Called a method on non existing IVolume!");
 		}
+		VFSShare vfsShare = this.shareCache.get(p.path);
+		int version = (vfsShare == null) ? -1
+				: getLatestShareKeyVersion(vfsShare);
 		volume.reload();
+		if ((vfsShare != null) && (version >= 0)
+				&& (getLatestShareKeyVersion(vfsShare) > version)) {
+			// a new share key has been added, rotate files to it
+			startShareKeyRotation(p, vfsShare);
+		}
 		return PanboxShare.fromVolume(p.shareName, p.path, volume,
 				volume.getOwnerKey(), p.pubSigKey, p.type);
 	}
@@ -112,6 +176,7 @@ public abstract class AbstractPanboxService implements IPanboxService {
 					"No device keys found after creating a share!", e);
 		}
 		registerShare(vfsShare, p);
+		this.shareCache.put(p.path, vfsShare);
 		logger.debug("PanboxService: createShare: Successfully added share to Panbox! Sharename: "
 				+ p.shareName);
 		return PanboxShare.fromVolume(p.shareName, p.path, volume, p.pubSigKey,
@@ -153,9 +218,16 @@ public abstract class AbstractPanboxService implements IPanboxService {
 					"No Obfuscation Key found for device " + p.deviceAlias, e);
 		}
 		registerShare(vfsShare, p);
+		this.shareCache.put(p.path, vfsShare);
 		logger.debug("PanboxService : loadShare : Successfully added share to Panbox! Sharename: "
 				+ p.shareName);
 
+		File checkpoint = ShareKeyRotationJob.getCheckpointFile(p.path);
+		if ((checkpoint != null) && checkpoint.exists()) {
+			// resume a rotation which has been interrupted
+			startShareKeyRotation(p, vfsShare);
+		}
+
 		return PanboxShare.fromVolume(p.shareName, p.path, volume,
 				p.ownerSigKey, p.pubSigKey, p.type, ex);
 	}
@@ -194,6 +266,7 @@ public abstract class AbstractPanboxService implements IPanboxService {
 					"No Obfuscation Key found for device " + p.deviceAlias, e);
 		}
 		registerShare(vfsShare, p);
+		this.shareCache.put(p.path, vfsShare);
 		logger.debug("PanboxService : loadShare : Successfully added share to Panbox! Sharename: "
 				+ p.shareName);
 
@@ -239,11 +312,13 @@ public abstract class AbstractPanboxService implements IPanboxService {
 
 	@Override
 	public synchronized void removeShare(VolumeParams p) throws RemoteException {
+		stopShareKeyRotation(p);
 		boolean removed = unregisterShare(p);
 		if (removed) {
 			logger.debug("PanboxService : removeShare : Successfully removed share from Panbox! Sharename: "
 					+ p.shareName);
 			this.volumeCache.remove(p.path);
+			this.shareCache.remove(p.path);
 		} else {
 			// TODO: Should an Exception be thrown here?
 			logger.error("PanboxService : removeShare : Failed to remove share from Panbox! Sharename: "
@@ -0,0 +1,236 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.desktop.common.vfs;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.panbox.core.StripedLimitedHashMap;
+
+/**
+ * Bounded cache of {@link AbstractFileInfo} instances by virtual path,
+ * including negative entries for paths which do not exist. Entries expire
+ * after a fixed time, so that changes made to the backing storage by other
+ * processes, e.g. the synchronization client, become visible.
+ *
+ * Each invalidation stamps the invalidated paths with the next value of a
+ * generation counter. Results of lookups which started before an invalidation
+ * of their path are not cached, so that a lookup racing with a modification
+ * cannot re-insert stale information. Stamps are kept for a fixed number of
+ * stripes by path hash, so modifications of a path only keep lookups of the
+ * few other paths of its stripe from being cached.
+ */
+public class FileAttributeCache {
+
+	private final static class Entry {
+		/**
+		 * <code>null</code>, if the path does not exist
+		 */
+		final AbstractFileInfo info;
+
+		final long expires;
+
+		Entry(AbstractFileInfo info, long expires) {
+			this.info = info;
+			this.expires = expires;
+		}
+	}
+
+	private final StripedLimitedHashMap<String, Entry> entries;
+
+	private volatile long ttl;
+
+	private volatile long negativeTtl;
+
+	/**
+	 * number of stripes of invalidation stamps, a power of two
+	 */
+	private final static int STAMP_STRIPES = 1024;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * generation of the latest invalidation per stripe of paths, followed by
+	 * the generation of the latest invalidation of all paths
+	 */
+	private final AtomicLongArray stamps = new AtomicLongArray(
+			STAMP_STRIPES + 1);
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached paths
+	 * @param ttl
+	 *            time in milliseconds file information remains valid
+	 * @param negativeTtl
+	 *            time in milliseconds non-existing paths remain cached
+	 */
+	public FileAttributeCache(int maxSize, long ttl, long negativeTtl) {
+		this.entries = new StripedLimitedHashMap<String, Entry>(maxSize);
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * changes the expiry times and discards all entries
+	 *
+	 * @param ttl
+	 *            time in milliseconds file information remains valid
+	 * @param negativeTtl
+	 *            time in milliseconds non-existing paths remain cached
+	 */
+	public void setTimeouts(long ttl, long negativeTtl) {
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		invalidateAll();
+	}
+
+	/**
+	 * @return the current generation, to be passed to
+	 *         {@link #put(String, AbstractFileInfo, long)} or
+	 *         {@link #putNotFound(String, long)} after the lookup. One
+	 *         generation may be used for lookups of several paths, e.g. of
+	 *         the entries of a directory.
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param path
+	 * @return cached file information, or <code>null</code> if there is no
+	 *         valid entry for the given path
+	 * @throws FileNotFoundException
+	 *             if the path has been cached as non-existing
+	 */
+	public AbstractFileInfo get(String path) throws FileNotFoundException {
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires - System.currentTimeMillis() < 0) {
+			entries.remove(path);
+			return null;
+		}
+		if (entry.info == null) {
+			throw new FileNotFoundException("PanboxFS : getFileInfo : " + path
+					+ " does not exist (cached)");
+		}
+		return entry.info;
+	}
+
+	/**
+	 * caches file information, unless the path has been invalidated since the
+	 * given generation
+	 *
+	 * @param path
+	 * @param info
+	 * @param generation
+	 *            generation at the start of the lookup
+	 */
+	public void put(String path, AbstractFileInfo info, long generation) {
+		store(path, info, ttl, generation);
+	}
+
+	/**
+	 * caches the given path as non-existing, unless it has been invalidated
+	 * since the given generation
+	 *
+	 * @param path
+	 * @param generation
+	 *            generation at the start of the lookup
+	 */
+	public void putNotFound(String path, long generation) {
+		store(path, null, negativeTtl, generation);
+	}
+
+	private void store(String path, AbstractFileInfo info, long timeout,
+			long generation) {
+		int stripe = stripeFor(path);
+		if (timeout <= 0 || invalidatedSince(stripe, generation)) {
+			return;
+		}
+		entries.put(path, new Entry(info, System.currentTimeMillis()
+				+ timeout));
+		// an invalidation may have happened in between
+		if (invalidatedSince(stripe, generation)) {
+			entries.remove(path);
+		}
+	}
+
+	private boolean invalidatedSince(int stripe, long generation) {
+		return stamps.get(stripe) > generation
+				|| stamps.get(STAMP_STRIPES) > generation;
+	}
+
+	private static int stripeFor(String path) {
+		// high bits of a multiplicative hash, see StripedLimitedHashMap
+		int h = path.hashCode() * 0x9E3779B9;
+		return h >>> (32 - Integer.numberOfTrailingZeros(STAMP_STRIPES));
+	}
+
+	/**
+	 * stamps the given stripe with the next generation. Stamps never
+	 * decrease, even if concurrent invalidations stamp the same stripe out of
+	 * order.
+	 */
+	private void stamp(int stripe) {
+		long next = generation.incrementAndGet();
+		long current;
+		while ((current = stamps.get(stripe)) < next
+				&& !stamps.compareAndSet(stripe, current, next)) {
+		}
+	}
+
+	/**
+	 * discards the entries of the given paths
+	 *
+	 * @param paths
+	 */
+	public void invalidate(String... paths) {
+		for (String path : paths) {
+			stamp(stripeFor(path));
+			entries.remove(path);
+		}
+	}
+
+	/**
+	 * discards all entries, e.g. after a directory has been renamed or
+	 * removed
+	 */
+	public void invalidateAll() {
+		stamp(STAMP_STRIPES);
+		entries.clear();
+	}
+
+	/**
+	 * @return number of cached paths, including expired ones
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
@@ -29,11 +29,17 @@ package org.panbox.desktop.common.vfs;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.panbox.OS;
+import org.panbox.Settings;
+import org.panbox.core.crypto.io.AuthTagVerifier;
+import org.panbox.core.crypto.io.GCMImplementationSelector;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.vfs.backend.VirtualFile;
+import org.panbox.core.vfs.backend.VirtualFileAttributes;
 import org.panbox.desktop.common.gui.PanboxDesktopGUIConstants;
 import org.panbox.desktop.common.utils.DesktopApi;
 import org.panbox.desktop.common.vfs.backend.IRootVolume;
@@ -65,6 +71,26 @@ public abstract class PanboxFS {
 		} else {
 			this.backingStorage = VirtualRootVolume.getInstance();
 		}
+
+		// file format for new files and local cache for hash tree
+		// authenticated files
+		Settings settings = Settings.getInstance();
+		AuthTagVerifier.setHashTreeEnabled(settings.isHashTreeAuthentication());
+		AuthTagVerifier.setSidecarDirectory(new File(settings
+				.getAuthTagCachePath()));
+
+		// GCM implementation, either configured or selected by calibration
+		try {
+			GCMImplementationSelector.setOverride(settings
+					.getGCMImplementation());
+		} catch (IllegalArgumentException e) {
+			logger.error("PanboxFS : Unknown GCM implementation "
+					+ settings.getGCMImplementation()
+					+ ", using automatic selection");
+		}
+		GCMImplementationSelector.setCalibrationFile(new File(settings
+				.getGCMCalibrationPath()));
+		GCMImplementationSelector.startCalibration();
 	}
 
 	private final boolean _mount(final File mountPoint,
@@ -177,7 +203,7 @@ public abstract class PanboxFS {
 		return "";
 	}
 
-	protected synchronized VirtualFile getVirtualFileForFileName(
+	protected VirtualFile getVirtualFileForFileName(
 			final String fileName, boolean createIV)
 			throws SecretKeyNotFoundException, FileNotFoundException,
 			ObfuscationException {
@@ -218,10 +244,55 @@ public abstract class PanboxFS {
 	 * @return
 	 * @throws IOException
 	 */
-	// @SuppressWarnings("resource")
-	protected synchronized AbstractFileInfo getFileInfo(final String fileName,
+	protected AbstractFileInfo getFileInfo(final String fileName,
 			boolean alreadyObfuscated, boolean outputObfuscated)
 			throws IOException {
+		return getFileInfo(fileName, alreadyObfuscated, outputObfuscated, null);
+	}
+
+	/**
+	 * Discards cached file information, e.g. after shares have been added or
+	 * removed. Does nothing, unless the implementation caches file
+	 * information.
+	 */
+	public void invalidateFileInfo() {
+	}
+
+	/**
+	 * Deobfuscates the paths of the given entries of a directory in one batch,
+	 * see {@link IRootVolume#deobfuscatePaths(VirtualFile, VirtualFile[])}.
+	 * 
+	 * @param directory
+	 * @param files
+	 *            entries of the directory
+	 * @return map of obfuscated to deobfuscated relative paths, which may be
+	 *         passed to
+	 *         {@link #getFileInfo(String, boolean, boolean, String)}. Empty,
+	 *         if batch deobfuscation failed.
+	 */
+	protected Map<String, String> deobfuscateEntries(VirtualFile directory,
+			VirtualFile[] files) {
+		try {
+			return backingStorage.deobfuscatePaths(directory, files);
+		} catch (IOException | ObfuscationException e) {
+			logger.warn("deobfuscateEntries : Batch deobfuscation failed for "
+					+ directory.getFileName() + ", resolving single entries", e);
+			return new HashMap<String, String>();
+		}
+	}
+
+	/**
+	 * see {@link #getFileInfo(String, boolean, boolean)}
+	 * 
+	 * @param deobfuscatedPath
+	 *            deobfuscated path of an already obfuscated fileName, e.g. as
+	 *            resolved by {@link #deobfuscateEntries(VirtualFile, VirtualFile[])}
+	 *            , or <code>null</code> if it needs to be resolved
+	 */
+	// @SuppressWarnings("resource")
+	protected AbstractFileInfo getFileInfo(final String fileName,
+			boolean alreadyObfuscated, boolean outputObfuscated,
+			String deobfuscatedPath) throws IOException {
 		logger.debug("getFileInfo : " + fileName + ", alreadyObfuscated: "
 				+ alreadyObfuscated + ", outputObfuscated:  "
 				+ outputObfuscated);
@@ -235,9 +306,10 @@ public abstract class PanboxFS {
 					+ " failed!");
 		}
 
-		boolean symbolic = backing.isSymbolic();
+		// all attributes are read at once
+		VirtualFileAttributes attributes = backing.getAttributes();
 
-		if (!symbolic && !backing.exists()) {
+		if (attributes == null) {
 			// do NOT close backing file as it may not have been opened at this
 			// point
 			// backing.close();
@@ -245,9 +317,10 @@ public abstract class PanboxFS {
 					"PanboxFS : getFileInfo : Can not get file info for non-existing files!");
 		}
 
-		long createTime = backing.getCreationTime();
-		long lastAccess = backing.getLastAccessTime();
-		long lastWrite = backing.getLastWriteTime();
+		boolean symbolic = attributes.isSymbolic();
+		long createTime = attributes.getCreationTime();
+		long lastAccess = attributes.getLastAccessTime();
+		long lastWrite = attributes.getLastWriteTime();
 
 		AbstractFileInfo ret;
 
@@ -255,7 +328,10 @@ public abstract class PanboxFS {
 		if (fileName.equals("/")) {
 			deobfPath = fileName;
 		} else {
-			if (!outputObfuscated && alreadyObfuscated) {
+			if (!outputObfuscated && alreadyObfuscated
+					&& deobfuscatedPath != null) {
+				deobfPath = deobfuscatedPath;
+			} else if (!outputObfuscated && alreadyObfuscated) {
 
 				try {
 					deobfPath = backingStorage.deobfuscatePath(backing);
@@ -271,7 +347,7 @@ public abstract class PanboxFS {
 			}
 		}
 
-		if (backing.isDirectory()) {
+		if (attributes.isDirectory()) {
 
 			if (!outputObfuscated) {
 				ret = this.vfsAdapter.createFileInfo(deobfPath, true, 0,
@@ -284,7 +360,7 @@ public abstract class PanboxFS {
 						backing.getAttr(), symbolic);
 			}
 		} else {
-			long vlen = backing.length();
+			long vlen = attributes.getLength();
 			if (!outputObfuscated) {
 				ret = this.vfsAdapter.createFileInfo(deobfPath, false, vlen,
 						createTime, lastAccess, lastWrite, backing.getAttr(),
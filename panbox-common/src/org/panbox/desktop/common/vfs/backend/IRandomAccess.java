@@ -80,6 +80,19 @@ public interface IRandomAccess extends Flushable, Closeable {
 	public void initWithShareKey(SecretKey shareKey)
 			throws PanboxEncryptionException, IOException;
 
+	/**
+	 * re-encrypts the file encryption key of an initialized file with the
+	 * given share key, see
+	 * {@link EncRandomAccessFile#reencryptFile(int, SecretKey)}
+	 * 
+	 * @param shareKeyVersion
+	 * @param shareKey
+	 * @throws PanboxEncryptionException
+	 * @throws IOException
+	 */
+	public void reencryptFile(int shareKeyVersion, SecretKey shareKey)
+			throws PanboxEncryptionException, IOException;
+
 	/**
 	 * @param shareKeyVersion
 	 * @param shareKey
@@ -28,6 +28,7 @@ package org.panbox.desktop.common.vfs.backend;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Map;
 
 import javax.crypto.SecretKey;
 
@@ -131,7 +132,36 @@ public interface IRootVolume {
 	public String deobfuscatePath(VirtualFile file)
 			throws FileNotFoundException, ObfuscationException;
 
+	/**
+	 * Deobfuscates the paths of all given entries of a directory in one batch,
+	 * e.g. for a directory listing.
+	 * 
+	 * @param directory
+	 *            VirtualFile instance of the directory
+	 * @param files
+	 *            VirtualFile instances of the directory's entries
+	 * @return map of the entries' relative paths as returned by
+	 *         {@link #getRelativePathForFile(VirtualFile)} to their
+	 *         deobfuscated relative paths. Entries which could not be
+	 *         deobfuscated in a batch are omitted and need to be resolved by
+	 *         {@link #deobfuscatePath(VirtualFile)}.
+	 * @throws FileNotFoundException
+	 * @throws ObfuscationException
+	 */
+	public Map<String, String> deobfuscatePaths(VirtualFile directory,
+			VirtualFile[] files) throws FileNotFoundException,
+			ObfuscationException;
+
 	public String obfuscatePath(String fileName, boolean createivs)
 			throws FileNotFoundException, ObfuscationException;
 
+	/**
+	 * Drops cached obfuscation results for the specified file and any files
+	 * below it, e.g. after it has been deleted or renamed.
+	 * 
+	 * @param fileName
+	 *            Relative path of the file.
+	 */
+	public void invalidatePath(String fileName);
+
 }
\ No newline at end of file
@@ -0,0 +1,530 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.desktop.common.vfs.backend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.panbox.PanboxConstants;
+import org.panbox.Settings;
+import org.panbox.core.Utils;
+import org.panbox.core.crypto.KeyConstants;
+import org.panbox.core.keymgmt.ShareKey;
+import org.panbox.core.vfs.backend.VirtualFile;
+import org.panbox.core.vfs.backend.VirtualVolume;
+import org.panbox.desktop.common.ex.PanboxEncryptionException;
+
+/**
+ * @author palige
+ *
+ *         Rotates all files of a {@link VFSShare} to the latest share key by
+ *         calling {@link IRandomAccess#reencryptFile(int, javax.crypto.SecretKey)}
+ *         for every file whose header still references an older share key
+ *         version. Files are processed by a bounded pool of worker threads
+ *         while the share's backend directory is being traversed, so the job
+ *         never holds more than a small window of files in memory.
+ *
+ *         Files are opened via the share's {@link VirtualVolume}, thus they are
+ *         reference counted together with handles held by a mounted virtual
+ *         filesystem and the rotation can run while the share is in use.
+ *
+ *         Progress is checkpointed to a file: Directories are traversed in a
+ *         deterministic order and the checkpoint stores the relative path of
+ *         the last file up to which all files have been rotated successfully.
+ *         If the job gets interrupted, a subsequent run with the same target
+ *         share key version resumes after this file. Files which failed to
+ *         rotate keep the checkpoint from advancing past them, so they are
+ *         retried on the next run.
+ */
+public class ShareKeyRotationJob implements Runnable {
+
+	private static final Logger logger = Logger.getLogger("org.panbox.core");
+
+	/**
+	 * checkpoint property containing the targeted share key version
+	 */
+	private final static String CHECKPOINT_VERSION = "shareKeyVersion";
+
+	/**
+	 * checkpoint property containing the relative path of the last file up to
+	 * which all files have been processed
+	 */
+	private final static String CHECKPOINT_PATH = "lastPath";
+
+	/**
+	 * number of processed files after which the checkpoint is updated and
+	 * progress is being logged
+	 */
+	public final static int CHECKPOINT_INTERVAL = 256;
+
+	/**
+	 * default number of worker threads
+	 */
+	public final static int DEFAULT_PARALLELISM = Math.max(1, Math.min(4,
+			Runtime.getRuntime().availableProcessors()));
+
+	private final VFSShare share;
+
+	private final File checkpointFile;
+
+	private final int parallelism;
+
+	private volatile boolean cancelled = false;
+
+	private final AtomicLong processed = new AtomicLong();
+
+	private final AtomicLong rotated = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private volatile long startTime;
+
+	/**
+	 * files which have been submitted but not yet been processed successfully,
+	 * indexed by their traversal sequence number
+	 */
+	private final TreeMap<Long, String> pending = new TreeMap<Long, String>();
+
+	/**
+	 * files which have been processed successfully, but may not yet be
+	 * referenced by the checkpoint as files with a lower sequence number are
+	 * still pending
+	 */
+	private final TreeMap<Long, String> completed = new TreeMap<Long, String>();
+
+	private String checkpointPath;
+
+	private int targetVersion;
+
+	/**
+	 * @param share
+	 *            the share to rotate
+	 * @param checkpointFile
+	 *            file to store the job's progress in, may be <code>null</code>
+	 *            if the job should not be resumable
+	 * @param parallelism
+	 *            number of worker threads
+	 */
+	public ShareKeyRotationJob(VFSShare share, File checkpointFile,
+			int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Invalid parallelism "
+					+ parallelism);
+		}
+		this.share = share;
+		this.checkpointFile = checkpointFile;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param share
+	 *            the share to rotate
+	 * @param checkpointFile
+	 *            file to store the job's progress in, may be <code>null</code>
+	 *            if the job should not be resumable
+	 */
+	public ShareKeyRotationJob(VFSShare share, File checkpointFile) {
+		this(share, checkpointFile, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param sharePath
+	 *            backend path of the share
+	 * @return local checkpoint file for rotations of the given share, or
+	 *         <code>null</code> if the settings are unavailable
+	 */
+	public static File getCheckpointFile(String sharePath) {
+		try {
+			MessageDigest md = MessageDigest
+					.getInstance(KeyConstants.DEFAULT_HASH);
+			String name = Utils.bytesToHex(md.digest(sharePath
+					.getBytes(PanboxConstants.STANDARD_CHARSET)));
+			File dir = new File(Settings.getInstance()
+					.getShareKeyRotationPath());
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				logger.warn("ShareKeyRotationJob : Unable to create checkpoint directory "
+						+ dir);
+				return null;
+			}
+			return new File(dir, name);
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException
+				| RuntimeException e) {
+			// rotations can still be run, but will not be resumable
+			logger.warn(
+					"ShareKeyRotationJob : Unable to determine checkpoint file",
+					e);
+			return null;
+		}
+	}
+
+	/**
+	 * stops the traversal of the share. Files which are currently being
+	 * processed are finished and the checkpoint is written, so the job can be
+	 * resumed later on.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return number of files which have been checked so far
+	 */
+	public long getProcessedFiles() {
+		return processed.get();
+	}
+
+	/**
+	 * @return number of files which have been re-encrypted with the latest
+	 *         share key so far
+	 */
+	public long getRotatedFiles() {
+		return rotated.get();
+	}
+
+	/**
+	 * @return number of files which could not be rotated
+	 */
+	public long getFailedFiles() {
+		return failed.get();
+	}
+
+	/**
+	 * @return current throughput in processed files per second
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return (startTime == 0) ? 0 : (processed.get() * 1000d)
+				/ Math.max(1, elapsed);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final ShareKey latest = share.getLatestShareKey();
+		this.targetVersion = latest.version;
+		String resumePath = readCheckpoint();
+		if (resumePath != null) {
+			logger.info("ShareKeyRotationJob : Resuming rotation of share "
+					+ share.getShareName() + " to share key version "
+					+ targetVersion + " after " + resumePath);
+		}
+		this.checkpointPath = resumePath;
+		this.startTime = System.currentTimeMillis();
+
+		final Semaphore window = new Semaphore(2 * parallelism);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Panbox-ShareKeyRotation-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		try {
+			File root = share.getBackend().getRoot().getFile();
+			traverse(root, "", resumePath == null ? null
+					: split(resumePath), latest, executor, window);
+		} catch (InterruptedException e) {
+			logger.warn("ShareKeyRotationJob : Interrupted while rotating share "
+					+ share.getShareName());
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					// wait for in-flight files to finish
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		boolean finished = !cancelled && (failed.get() == 0);
+		if (finished) {
+			deleteCheckpoint();
+		} else {
+			writeCheckpoint();
+		}
+		logger.info("ShareKeyRotationJob : " + (finished ? "Finished" : "Stopped")
+				+ " rotation of share " + share.getShareName()
+				+ " to share key version " + targetVersion + ": "
+				+ processed.get() + " files processed, " + rotated.get()
+				+ " rotated, " + failed.get() + " failed ("
+				+ String.format("%.1f", getThroughput()) + " files/s)");
+	}
+
+	/**
+	 * depth-first traversal of the given directory in lexicographic order of
+	 * its entries, submitting all regular files to the executor
+	 */
+	private void traverse(File dir, String relDir, String[] resumePath,
+			ShareKey latest, ExecutorService executor, Semaphore window)
+			throws InterruptedException {
+		String[] names = dir.list();
+		if (names == null) {
+			logger.warn("ShareKeyRotationJob : Unable to list directory " + dir);
+			return;
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (cancelled) {
+				return;
+			}
+			if (relDir.isEmpty()
+					&& name.equals(PanboxConstants.PANBOX_SHARE_METADATA_DIRECTORY)) {
+				continue;
+			}
+			File f = new File(dir, name);
+			String relPath = relDir + File.separator + name;
+			if (resumePath != null && compare(split(relPath), resumePath) <= 0
+					&& !(f.isDirectory() && isPrefix(split(relPath),
+							resumePath))) {
+				// has already been processed in a previous run
+				continue;
+			}
+			if (f.isDirectory()) {
+				traverse(f, relPath, resumePath, latest, executor, window);
+			} else if (f.isFile()) {
+				window.acquire();
+				executor.execute(new RotationTask(f, relPath, submit(relPath),
+						latest, window));
+			}
+		}
+	}
+
+	private long seq = 0;
+
+	private synchronized long submit(String relPath) {
+		long s = seq++;
+		pending.put(s, relPath);
+		return s;
+	}
+
+	private void done(long s, String relPath, boolean success) {
+		boolean checkpoint;
+		synchronized (this) {
+			if (success) {
+				pending.remove(s);
+				completed.put(s, relPath);
+				// advance checkpoint to the last completed file preceding all
+				// pending files
+				Long limit = pending.isEmpty() ? null : pending.firstKey();
+				Map.Entry<Long, String> last = (limit == null) ? completed
+						.lastEntry() : completed.lowerEntry(limit);
+				if (last != null) {
+					checkpointPath = last.getValue();
+					completed.headMap(last.getKey(), true).clear();
+				}
+			}
+			checkpoint = (processed.incrementAndGet() % CHECKPOINT_INTERVAL) == 0;
+		}
+		if (checkpoint) {
+			writeCheckpoint();
+			logger.info("ShareKeyRotationJob : Share " + share.getShareName()
+					+ ": " + processed.get() + " files processed, "
+					+ rotated.get() + " rotated ("
+					+ String.format("%.1f", getThroughput()) + " files/s)");
+		}
+	}
+
+	/**
+	 * rotates a single file
+	 */
+	private class RotationTask implements Runnable {
+
+		private final File file;
+		private final String relPath;
+		private final long seq;
+		private final ShareKey latest;
+		private final Semaphore window;
+
+		RotationTask(File file, String relPath, long seq, ShareKey latest,
+				Semaphore window) {
+			this.file = file;
+			this.relPath = relPath;
+			this.seq = seq;
+			this.latest = latest;
+			this.window = window;
+		}
+
+		@Override
+		public void run() {
+			boolean success = false;
+			try {
+				VirtualFile vf = share.getBackend().getFile(
+						file.getAbsolutePath());
+				if (!(vf instanceof VirtualRandomAccessFile)) {
+					logger.warn("ShareKeyRotationJob : Skipping unsupported file "
+							+ relPath);
+					success = true;
+					return;
+				}
+				VirtualRandomAccessFile raf = (VirtualRandomAccessFile) vf;
+				raf.open();
+				try {
+					int version = raf.getShareKeyVersion();
+					if (version != latest.version) {
+						raf.initWithShareKey(share.getShareKey(version));
+						raf.reencryptFile(latest.version, latest.key);
+						rotated.incrementAndGet();
+					}
+				} finally {
+					raf.close();
+				}
+				success = true;
+			} catch (IOException | PanboxEncryptionException
+					| RuntimeException e) {
+				failed.incrementAndGet();
+				logger.error("ShareKeyRotationJob : Rotation of file "
+						+ relPath + " failed!", e);
+			} finally {
+				done(seq, relPath, success);
+				window.release();
+			}
+		}
+	}
+
+	private String readCheckpoint() {
+		if (checkpointFile == null || !checkpointFile.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try (InputStream is = new FileInputStream(checkpointFile)) {
+			props.load(is);
+			int version = Integer.parseInt(props
+					.getProperty(CHECKPOINT_VERSION));
+			if (version != targetVersion) {
+				// checkpoint refers to a previous rotation
+				return null;
+			}
+			return props.getProperty(CHECKPOINT_PATH);
+		} catch (IOException | NumberFormatException e) {
+			logger.warn("ShareKeyRotationJob : Ignoring invalid checkpoint file "
+					+ checkpointFile, e);
+			return null;
+		}
+	}
+
+	private synchronized void writeCheckpoint() {
+		if (checkpointFile == null || checkpointPath == null) {
+			return;
+		}
+		Properties props = new Properties();
+		props.setProperty(CHECKPOINT_VERSION, String.valueOf(targetVersion));
+		props.setProperty(CHECKPOINT_PATH, checkpointPath);
+		// write to a temporary file first, so a crash never leaves a
+		// truncated checkpoint behind
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		try (OutputStream os = new FileOutputStream(tmp)) {
+			props.store(os, "Panbox share key rotation of share "
+					+ share.getShareName());
+		} catch (IOException e) {
+			logger.error("ShareKeyRotationJob : Unable to write checkpoint file "
+					+ tmp, e);
+			return;
+		}
+		if (!tmp.renameTo(checkpointFile)
+				&& !(checkpointFile.delete() && tmp.renameTo(checkpointFile))) {
+			logger.error("ShareKeyRotationJob : Unable to replace checkpoint file "
+					+ checkpointFile);
+		}
+	}
+
+	private void deleteCheckpoint() {
+		if (checkpointFile != null && checkpointFile.exists()
+				&& !checkpointFile.delete()) {
+			logger.warn("ShareKeyRotationJob : Unable to delete checkpoint file "
+					+ checkpointFile);
+		}
+	}
+
+	private static String[] split(String relPath) {
+		String p = relPath.startsWith(File.separator) ? relPath.substring(1)
+				: relPath;
+		return p.split(Pattern.quote(File.separator));
+	}
+
+	/**
+	 * compares two relative paths in traversal order, i.e. component-wise
+	 */
+	private static int compare(String[] a, String[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = a[i].compareTo(b[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static boolean isPrefix(String[] prefix, String[] path) {
+		if (prefix.length > path.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (!prefix[i].equals(path[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -31,7 +31,11 @@ import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.crypto.SecretKey;
 
@@ -120,7 +124,7 @@ public class VFSShare {
 	 *            metadata
 	 * @return the SecretKey that can be used to decrypt the file's FEK
 	 */
-	public SecretKey getShareKey(int version) {
+	public synchronized SecretKey getShareKey(int version) {
 		if (version >= this.shareKeyCache.length) {
 			growCache();
 		}
@@ -152,7 +156,7 @@ public class VFSShare {
 	 * 
 	 * @return the SecretKey that can be used to decrypt the file's FEK
 	 */
-	public ShareKey getLatestShareKey() {
+	public synchronized ShareKey getLatestShareKey() {
 		try {
 			EncryptedShareKey key = volume
 					.getLatestEncryptedShareKey(publicDeviceKey);
@@ -270,6 +274,43 @@ public class VFSShare {
 					+ file.getRelativePath();
 	}
 
+	/**
+	 * Deobfuscates the names of the given entries of a directory of this share
+	 * in one batch, see {@link Obfuscator#deObfuscateAll}.
+	 * 
+	 * @param deobfDirPath
+	 *            deobfuscated relative path of the directory
+	 * @param files
+	 *            VirtualFile instances of the directory's entries
+	 * @return map of the entries' relative paths as returned by
+	 *         {@link #getRelativePath(VirtualFile)} to their deobfuscated
+	 *         relative paths. Entries which could not be deobfuscated are
+	 *         omitted.
+	 * @throws ObfuscationException
+	 */
+	public Map<String, String> deobfuscateEntries(String deobfDirPath,
+			VirtualFile[] files) throws ObfuscationException {
+		List<String> paths = new ArrayList<String>(files.length);
+		List<String> names = new ArrayList<String>(files.length);
+		for (VirtualFile f : files) {
+			String path = getRelativePath(f);
+			paths.add(path);
+			names.add(path.substring(path.lastIndexOf(File.separator) + 1));
+		}
+
+		Map<String, String> plain = getObfuscator().deObfuscateAll(names,
+				getObfuscationKey());
+		Map<String, String> ret = new HashMap<String, String>(
+				files.length * 4 / 3 + 1);
+		for (int i = 0; i < paths.size(); i++) {
+			String name = plain.get(names.get(i));
+			if (name != null) {
+				ret.put(paths.get(i), deobfDirPath + File.separator + name);
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Returns a VirtualFile instance for the containing file with the specified
 	 * file path.
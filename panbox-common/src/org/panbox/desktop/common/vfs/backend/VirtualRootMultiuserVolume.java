@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -407,6 +408,31 @@ public class VirtualRootMultiuserVolume implements IRootVolume {
 		return File.separator + s.getShareName() + deobfPath;
 	}
 
+	public synchronized Map<String, String> deobfuscatePaths(
+			VirtualFile directory, VirtualFile[] files)
+			throws FileNotFoundException, ObfuscationException {
+		// root and per-user root directories only contain shares, whose names
+		// are not obfuscated
+		if (directory.equals(rootFile)
+				|| rootFilesPerUser.containsValue(directory)) {
+			return new HashMap<String, String>();
+		}
+		for (VirtualMultiuserRootFile f : rootFilesPerUser.values()) {
+			for (VFSShare share : f.getShares()) {
+				String path = _getRelativePath(share, directory);
+				if (path != null) {
+					String deobfDirPath = path.equals(File.separator
+							+ share.getShareName()) ? path
+							: deobfuscatePath(directory);
+					return share.deobfuscateEntries(deobfDirPath, files);
+				}
+			}
+		}
+		throw new FileNotFoundException(
+				"Could not get the Relative Path for the specified file '"
+						+ directory.getFileName() + "'.");
+	}
+
 	public synchronized String obfuscatePath(String fileName, boolean createivs)
 			throws FileNotFoundException, ObfuscationException {
 		if (fileName.equals(File.separator)) {
@@ -453,6 +479,29 @@ public class VirtualRootMultiuserVolume implements IRootVolume {
 						+ fileName + "'.");
 	}
 
+	public synchronized void invalidatePath(String fileName) {
+		int sidEnd = fileName.indexOf(File.separator, 1);
+		if (sidEnd < 0) {
+			// root or per-user root directory
+			return;
+		}
+		String sid = fileName.substring(1, sidEnd);
+		VirtualMultiuserRootFile f = rootFilesPerUser.get(sid);
+		if (f == null) {
+			return;
+		}
+		String shareFileName = fileName.substring(sidEnd);
+		for (VFSShare s : f.getShares()) {
+			if (s.contains(shareFileName)) {
+				String path = shareFileName.substring(s.getShareName()
+						.length() + 1);
+				s.getObfuscator().invalidatePath(
+						path.isEmpty() ? File.separator : path);
+				return;
+			}
+		}
+	}
+
 	// Fallback methods for old method structes without username authentication
 
 	@Override
@@ -30,8 +30,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
@@ -441,6 +443,36 @@ public class VirtualRootVolume implements IRootVolume {
 		return File.separator + s.getShareName() + deobfPath;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.desktop.common.vfs.backend.IRootVolume#deobfuscatePaths(org
+	 * .panbox.core.vfs.backend.VirtualFile,
+	 * org.panbox.core.vfs.backend.VirtualFile[])
+	 */
+	@Override
+	public Map<String, String> deobfuscatePaths(VirtualFile directory,
+			VirtualFile[] files) throws FileNotFoundException,
+			ObfuscationException {
+		if (directory.equals(rootFile)) {
+			// share names are not obfuscated
+			return new HashMap<String, String>();
+		}
+		for (VFSShare share : shares) {
+			String path = _getRelativePath(share, directory);
+			if (path != null) {
+				String deobfDirPath = path.equals(File.separator
+						+ share.getShareName()) ? path
+						: deobfuscatePath(directory);
+				return share.deobfuscateEntries(deobfDirPath, files);
+			}
+		}
+		throw new FileNotFoundException(
+				"Could not get the Relative Path for the specified file '"
+						+ directory.getFileName() + "'.");
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -472,4 +504,26 @@ public class VirtualRootVolume implements IRootVolume {
 				"None of the mounted shares contains the specified file '"
 						+ fileName + "'.");
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.desktop.common.vfs.backend.IRootVolume#invalidatePath(java.
+	 * lang.String)
+	 */
+	@Override
+	public void invalidatePath(String fileName) {
+		if (fileName.equals(File.separator)) {
+			return;
+		}
+		for (VFSShare s : shares) {
+			if (s.contains(fileName)) {
+				String path = fileName.substring(s.getShareName().length() + 1);
+				s.getObfuscator().invalidatePath(
+						path.isEmpty() ? File.separator : path);
+				return;
+			}
+		}
+	}
 }
@@ -29,20 +29,26 @@ package org.panbox.desktop.common.vfs.backend.generic;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.Hashtable;
+import java.util.Iterator;
 
 import javax.crypto.SecretKey;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
-import org.panbox.core.crypto.io.AESGCMRandomAccessFileCompat;
+import org.panbox.core.crypto.io.AbstractAESGCMRandomAccessFile;
+import org.panbox.core.crypto.io.GCMImplementationSelector;
 import org.panbox.core.exception.FileEncryptionException;
 import org.panbox.core.exception.FileIntegrityException;
 import org.panbox.core.vfs.backend.VirtualFile;
+import org.panbox.core.vfs.backend.VirtualFileAttributes;
 import org.panbox.core.vfs.backend.VirtualVolume;
 import org.panbox.desktop.common.ex.PanboxEncryptionException;
 import org.panbox.desktop.common.ex.PanboxIntegrityException;
@@ -51,7 +57,7 @@ import org.panbox.desktop.common.vfs.backend.VirtualRandomAccessFile;
 public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 
 	protected File file;
-	protected AESGCMRandomAccessFileCompat aesRandomAccessFile;
+	protected AbstractAESGCMRandomAccessFile aesRandomAccessFile;
 
 	protected boolean deleteFileOnClose = false;
 	
@@ -61,7 +67,7 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	/**
 	 * stores number of open file handles for each opened file
 	 */
-	final static Hashtable<AESGCMRandomAccessFileCompat, Integer> filehandleCtrMap = new Hashtable<AESGCMRandomAccessFileCompat, Integer>();
+	final static Hashtable<AbstractAESGCMRandomAccessFile, Integer> filehandleCtrMap = new Hashtable<AbstractAESGCMRandomAccessFile, Integer>();
 
 	protected GenericVirtualFileImpl(String fileName, VirtualVolume volume) {
 		super(fileName, volume);
@@ -69,17 +75,17 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 		try {
 			if (!isDirectory()) {
 				if (exists()) {
-					aesRandomAccessFile = file.canWrite() ? AESGCMRandomAccessFileCompat
+					aesRandomAccessFile = file.canWrite() ? GCMImplementationSelector
 							.getInstance(file, true)
-							: AESGCMRandomAccessFileCompat.getInstance(file,
+							: GCMImplementationSelector.getInstance(file,
 									false);
 					// System.err.println("getInstance(" + file.getName() + ","
 					// + aesRandomAccessFile.writable + ") -> "
 					// + aesRandomAccessFile.toString());
 				} else {
-					aesRandomAccessFile = file.getParentFile().canWrite() ? AESGCMRandomAccessFileCompat
+					aesRandomAccessFile = file.getParentFile().canWrite() ? GCMImplementationSelector
 							.getInstance(file, true)
-							: AESGCMRandomAccessFileCompat.getInstance(file,
+							: GCMImplementationSelector.getInstance(file,
 									false);
 					// System.err.println("getInstance(" + file.getName() + ","
 					// + aesRandomAccessFile.writable + ") -> "
@@ -125,7 +131,7 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	@Override
 	public long length() throws IOException {
 		// return aesRandomAccessFile.length();
-		return AESGCMRandomAccessFileCompat
+		return AbstractAESGCMRandomAccessFile
 				.realToVirtualFileSize(file.length());
 	}
 
@@ -143,6 +149,47 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 		return fileList;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.vfs.backend.VirtualFile#newDirectoryStream()
+	 */
+	@Override
+	public DirectoryStream<VirtualFile> newDirectoryStream()
+			throws IOException {
+		final DirectoryStream<Path> stream = Files.newDirectoryStream(file
+				.toPath());
+		return new DirectoryStream<VirtualFile>() {
+			@Override
+			public Iterator<VirtualFile> iterator() {
+				final Iterator<Path> it = stream.iterator();
+				return new Iterator<VirtualFile>() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public VirtualFile next() {
+						return new GenericVirtualFileImpl(new File(file, it
+								.next().getFileName().toString()).getPath(),
+								volume);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public void close() throws IOException {
+				stream.close();
+			}
+		};
+	}
+
 	@Override
 	public String getPath() {
 		return file.getPath();
@@ -306,19 +353,15 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	public int write(long seekpos, ByteBuffer b) throws IOException,
 			PanboxEncryptionException {
 		try {
-			aesRandomAccessFile.seek(seekpos);
-			byte[] buf;
-			if (b.hasArray()) {
-				buf = b.array();
-				this.write(buf, 0, buf.length);
-			} else {
-				buf = new byte[b.remaining()];
-				b.get(buf);
-				this.write(buf, 0, buf.length);
-			}
-			return buf.length;
+			// positional write, i.e. seeking and writing are atomic w.r.t.
+			// other handles of this file. Copies the buffer's remaining bytes
+			// into the chunk cache directly, regardless of whether it is a
+			// direct buffer
+			return aesRandomAccessFile.write(seekpos, b);
 		} catch (FileEncryptionException e) {
 			throw new PanboxEncryptionException(e.getMessage(), e);
+		} catch (FileIntegrityException e) {
+			throw new PanboxIntegrityException(e.getMessage(), e);
 		}
 	}
 
@@ -332,11 +375,11 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	public int write(long seekpos, byte[] b) throws IOException,
 			PanboxEncryptionException {
 		try {
-			aesRandomAccessFile.seek(seekpos);
-			this.write(b, 0, b.length);
-			return b.length;
+			return aesRandomAccessFile.write(seekpos, ByteBuffer.wrap(b));
 		} catch (FileEncryptionException e) {
 			throw new PanboxEncryptionException(e.getMessage(), e);
+		} catch (FileIntegrityException e) {
+			throw new PanboxIntegrityException(e.getMessage(), e);
 		}
 	}
 
@@ -425,15 +468,13 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	@Override
 	public int read(long seekpos, ByteBuffer b) throws IOException,
 			PanboxEncryptionException {
-		byte[] buf = new byte[b.remaining()]; // raf.array() does not
-		// work, because backend
-		// byte[] is missing!
 		try {
-			aesRandomAccessFile.seek(seekpos);
-			int reallyRead = aesRandomAccessFile.read(buf, 0, buf.length);
+			// positional read, which leaves the file pointer untouched and
+			// thus may be called by multiple threads in parallel. Decrypted
+			// data is copied into the buffer directly, which usually is a
+			// direct buffer provided by FUSE
+			int reallyRead = aesRandomAccessFile.read(seekpos, b);
 			if (reallyRead != -1) {
-				// Trim NUL-Bytes from file
-				b.put(buf, 0, reallyRead);
 				return reallyRead;
 			} else {
 				// EOF is indicated by -1; returning -1 will be misinterpreted
@@ -457,8 +498,8 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 	public int read(long seekpos, byte[] b) throws IOException,
 			PanboxEncryptionException {
 		try {
-			aesRandomAccessFile.seek(seekpos);
-			int reallyRead = aesRandomAccessFile.read(b);
+			int reallyRead = aesRandomAccessFile.read(seekpos,
+					ByteBuffer.wrap(b));
 			if (reallyRead == -1) {
 				// EOF is indicated by -1; returning -1 will be misinterpreted
 				// as an ERRNO (i.e. EPERM)
@@ -651,6 +692,23 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.desktop.common.vfs.backend.IRandomAccess#reencryptFile(int,
+	 * javax.crypto.SecretKey)
+	 */
+	@Override
+	public void reencryptFile(int shareKeyVersion, SecretKey shareKey)
+			throws PanboxEncryptionException, IOException {
+		try {
+			aesRandomAccessFile.reencryptFile(shareKeyVersion, shareKey);
+		} catch (FileEncryptionException e) {
+			throw new PanboxEncryptionException(e.getMessage(), e);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -678,6 +736,45 @@ public class GenericVirtualFileImpl extends VirtualRandomAccessFile {
 		return Files.isSymbolicLink(getFile().toPath());
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.vfs.backend.VirtualFile#getAttributes()
+	 */
+	@Override
+	public VirtualFileAttributes getAttributes() throws IOException {
+		Path path = file.toPath();
+		BasicFileAttributes attr;
+		try {
+			attr = Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		boolean directory = attr.isDirectory();
+		long size = attr.size();
+		if (attr.isSymbolicLink()) {
+			// as with isDirectory() and length(), type and size are those of
+			// the link target
+			try {
+				BasicFileAttributes target = Files.readAttributes(path,
+						BasicFileAttributes.class);
+				directory = target.isDirectory();
+				size = target.size();
+			} catch (IOException e) {
+				// dangling link
+				directory = false;
+				size = 0;
+			}
+		}
+		return new VirtualFileAttributes(directory, attr.isSymbolicLink(),
+				directory ? 0
+						: AbstractAESGCMRandomAccessFile
+								.realToVirtualFileSize(size), attr
+						.creationTime().toMillis(), attr.lastAccessTime()
+						.toMillis(), attr.lastModifiedTime().toMillis());
+	}
+
 	@Override
 	public void setAttr(long attr) throws IOException {
 		super.setAttr(attr);
@@ -0,0 +1,149 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panbox.core.Utils;
+
+/**
+ * @author palige
+ *
+ *         Tests that entries queued by {@link IVPoolWriter} are replayed from
+ *         its journal after a crash.
+ */
+public class IVPoolWriterTest {
+
+	private final static int THREADS = 4;
+
+	private final static int ENTRIES_PER_THREAD = 50;
+
+	private final static int ENTRY_LEN = IVPoolMap.HASH_LEN
+			+ IVPoolMap.IV_LEN;
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static byte[] hash(int n) {
+		byte[] hash = new byte[IVPoolMap.HASH_LEN];
+		hash[0] = (byte) 0xa0;
+		hash[1] = (byte) (n >> 8);
+		hash[2] = (byte) n;
+		return hash;
+	}
+
+	private static byte[] iv(int n) {
+		byte[] iv = new byte[IVPoolMap.IV_LEN];
+		iv[0] = (byte) (n >> 8);
+		iv[1] = (byte) n;
+		return iv;
+	}
+
+	@Test
+	public void testReplayAfterCrash() throws Exception {
+		File ivPoolDir = testFolder.newFolder("ivs");
+		assertTrue(new File(ivPoolDir, "A").mkdir());
+		File journal = new File(testFolder.getRoot(), "cache/ivpool.journal");
+		// entries remain queued until the crash
+		final IVPoolWriter writer = new IVPoolWriter(ivPoolDir, "share", null,
+				journal, 60 * 1000, Integer.MAX_VALUE);
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t * ENTRIES_PER_THREAD;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < ENTRIES_PER_THREAD; i++) {
+							writer.add(hash(offset + i), iv(offset + i));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (!errors.isEmpty()) {
+			throw new AssertionError("Adding entries failed", errors.peek());
+		}
+		int total = THREADS * ENTRIES_PER_THREAD;
+
+		// state of the storage device at the time of the crash: all added
+		// entries, followed by a torn write
+		File crashed = new File(testFolder.getRoot(), "crashed/ivpool.journal");
+		crashed.getParentFile().mkdirs();
+		Files.copy(journal.toPath(), crashed.toPath());
+		assertEquals(total * ENTRY_LEN, crashed.length());
+		try (FileOutputStream out = new FileOutputStream(crashed, true)) {
+			out.write(new byte[ENTRY_LEN / 2]);
+		}
+		assertEquals(0, new File(ivPoolDir, "A").list().length);
+
+		// restart
+		File replayDir = testFolder.newFolder("replayed");
+		assertTrue(new File(replayDir, "A").mkdir());
+		IVPoolWriter replayed = new IVPoolWriter(replayDir, "share", null,
+				crashed, 60 * 1000, Integer.MAX_VALUE);
+		IVPoolMap pending = new IVPoolMap();
+		replayed.getPending(pending);
+		assertEquals(total, pending.size());
+		for (int i = 0; i < total; i++) {
+			assertArrayEquals(iv(i), pending.get(hash(i)));
+		}
+		replayed.close();
+		writer.close();
+
+		String[] sidecars = new File(replayDir, "A").list();
+		assertEquals(total, sidecars.length);
+		for (int i = 0; i < total; i++) {
+			byte[] entry = new byte[ENTRY_LEN];
+			System.arraycopy(hash(i), 0, entry, 0, IVPoolMap.HASH_LEN);
+			System.arraycopy(iv(i), 0, entry, IVPoolMap.HASH_LEN,
+					IVPoolMap.IV_LEN);
+			assertTrue(new File(replayDir, "A" + File.separator
+					+ Utils.bytesToHex(entry)).isFile());
+		}
+		assertTrue(!crashed.exists() || crashed.length() == 0);
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.obfuscation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panbox.core.Utils;
+import org.panbox.core.crypto.FileBasedObfuscator;
+import org.panbox.core.crypto.IVPoolCacheFile;
+import org.panbox.core.crypto.IVPoolMap;
+import org.panbox.core.crypto.IVPoolSegment;
+import org.panbox.core.crypto.Obfuscator;
+import org.panbox.core.crypto.ObfuscatorStatistics;
+import org.panbox.core.exception.MissingIVException;
+import org.panbox.core.tests.AbstractTest;
+
+/**
+ * Tests for the incremental IV pool lookup of {@link FileBasedObfuscator} and
+ * the {@link IVPoolCacheFile}
+ */
+public class IVPoolLookupTest extends AbstractTest {
+
+	private final int numFiles = 200;
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private SecretKey key;
+
+	private Obfuscator writer;
+
+	private FileBasedObfuscator readerPool;
+
+	private Obfuscator reader;
+
+	@Before
+	public void setUp() throws Exception {
+		String sharePath = testFolder.getRoot().getAbsolutePath();
+		key = new SecretKeySpec(generateAESKey(), "AES");
+		// separate instances for the same share, as with two devices
+		// synchronized by the CSP
+		writer = new Obfuscator(sharePath, new FileBasedObfuscator(), "share");
+		readerPool = new FileBasedObfuscator();
+		reader = new Obfuscator(sharePath, readerPool, "share");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		writer.close();
+		reader.close();
+	}
+
+	@Test
+	public void testLookupOfNewSidecarFiles() throws Exception {
+		String[] obfuscated = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated[i] = writer.obfuscate("file" + i, key, true);
+		}
+
+		// initial miss reads the whole IV pool
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, reader.deObfuscate(obfuscated[i], key));
+		}
+		assertEquals(0, readerPool.getProbeCount());
+
+		// names created afterwards are resolved by the watcher or a single
+		// lookup each
+		for (int i = 0; i < numFiles; i++) {
+			String obf = writer.obfuscate("new" + i, key, true);
+			assertEquals("new" + i, reader.deObfuscate(obf, key));
+		}
+		assertTrue(readerPool.getProbeCount() <= numFiles);
+	}
+
+	@Test
+	public void testMissingIV() throws Exception {
+		writer.obfuscate("existing", key, true);
+		String unknown = writer.obfuscate("unknown", key, false);
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				reader.deObfuscate(unknown, key);
+				fail("deobfuscation without IV succeeded");
+			} catch (MissingIVException e) {
+				// expected
+			}
+		}
+		// first miss reads the pool, subsequent ones only look up the single
+		// sidecar file
+		assertEquals(2, readerPool.getProbeCount());
+
+		ObfuscatorStatistics stats = reader.getStatistics();
+		assertEquals(3, stats.getMissingIVCount());
+		assertEquals(3, stats.getIVPoolFetchCount());
+		assertEquals(1, stats.getIVPoolLoadCount());
+		assertTrue(stats.getIVPoolFetchP99Micros() > 0);
+
+		String name = reader.deObfuscate(writer.obfuscate("existing", key,
+				false), key);
+		assertEquals("existing", name);
+		reader.deObfuscate(writer.obfuscate("existing", key, false), key);
+		assertEquals(2, stats.getDeobfuscateCount());
+		assertEquals(1, stats.getDeobfuscateCacheHits());
+		stats.reset();
+		assertEquals(0, stats.getMissingIVCount());
+		assertEquals(0, stats.getIVPoolFetchCount());
+	}
+
+	@Test
+	public void testDeObfuscateAll() throws Exception {
+		List<String> obfuscated = new ArrayList<String>();
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated.add(writer.obfuscate("file" + i, key, true));
+		}
+		String unknown = writer.obfuscate("unknown", key, false);
+		obfuscated.add(unknown);
+
+		Map<String, String> names = reader.deObfuscateAll(obfuscated, key);
+		assertEquals(numFiles, names.size());
+		assertFalse(names.containsKey(unknown));
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, names.get(obfuscated.get(i)));
+		}
+
+		// names created afterwards are resolved without single lookups
+		long probes = readerPool.getProbeCount();
+		obfuscated.clear();
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated.add(writer.obfuscate("new" + i, key, true));
+		}
+		names = reader.deObfuscateAll(obfuscated, key);
+		assertEquals(numFiles, names.size());
+		assertEquals("new0", names.get(obfuscated.get(0)));
+		assertEquals(probes, readerPool.getProbeCount());
+	}
+
+	@Test
+	public void testCacheFile() throws Exception {
+		File cacheFile = new File(testFolder.getRoot(), "cache/ivpool");
+		String sharePath = testFolder.getRoot().getAbsolutePath();
+
+		String[] obfuscated = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated[i] = writer.obfuscate("file" + i, key, true);
+		}
+
+		// first mount reads the IV pool and creates the cache file
+		FileBasedObfuscator pool = new FileBasedObfuscator(cacheFile);
+		Obfuscator ob = new Obfuscator(sharePath, pool, "share");
+		assertEquals("file0", ob.deObfuscate(obfuscated[0], key));
+		ob.close();
+		IVPoolCacheFile cache = IVPoolCacheFile.open(cacheFile);
+		assertEquals(numFiles, cache.size());
+
+		// names added while unmounted are found upon next mount
+		String added = writer.obfuscate("added", key, true);
+		pool = new FileBasedObfuscator(cacheFile);
+		ob = new Obfuscator(sharePath, pool, "share");
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, ob.deObfuscate(obfuscated[i], key));
+		}
+		assertEquals("added", ob.deObfuscate(added, key));
+		assertTrue(pool.getProbeCount() <= 1);
+		ob.close();
+		assertEquals(numFiles + 1, IVPoolCacheFile.open(cacheFile).size());
+	}
+
+	@Test
+	public void testCacheFileMerge() throws Exception {
+		File cacheFile = new File(testFolder.getRoot(), "ivpool");
+		long[] stamps = new long[IVPoolCacheFile.NUM_SUBDIRS];
+		boolean[] keep = new boolean[IVPoolCacheFile.NUM_SUBDIRS];
+		IVPoolMap ivs = new IVPoolMap();
+		for (int i = 0; i < IVPoolCacheFile.NUM_SUBDIRS; i++) {
+			stamps[i] = i;
+			keep[i] = (i % 2 == 0);
+			ivs.put(hash(i, 1), iv(i));
+			ivs.put(hash(i, 2), iv(i));
+		}
+		assertEquals(32,
+				IVPoolCacheFile.write(cacheFile, stamps, null, keep, ivs));
+		IVPoolCacheFile cache = IVPoolCacheFile.open(cacheFile);
+		assertEquals(32, cache.size());
+		assertEquals(5, cache.getStamp(5));
+		assertArrayEquals(iv(7), cache.get(Utils.hexToBytes(hash(7, 2))));
+		assertNull(cache.get(Utils.hexToBytes(hash(7, 3))));
+
+		// entries of subdirectories not to be kept are replaced, new entries
+		// take precedence
+		ivs.clear();
+		ivs.put(hash(1, 3), iv(1));
+		ivs.put(hash(2, 1), iv(0));
+		assertEquals(17,
+				IVPoolCacheFile.write(cacheFile, stamps, cache, keep, ivs));
+		cache = IVPoolCacheFile.open(cacheFile);
+		assertArrayEquals(iv(1), cache.get(Utils.hexToBytes(hash(1, 3))));
+		assertNull(cache.get(Utils.hexToBytes(hash(1, 1))));
+		assertArrayEquals(iv(0), cache.get(Utils.hexToBytes(hash(2, 1))));
+		assertArrayEquals(iv(2), cache.get(Utils.hexToBytes(hash(2, 2))));
+	}
+
+	@Test
+	public void testPackedIVPool() throws Exception {
+		String sharePath = testFolder.getRoot().getAbsolutePath();
+		File ivPoolDir = new File(sharePath, Obfuscator.IV_POOL_PATH);
+		String[] obfuscated = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated[i] = writer.obfuscate("file" + i, key, true);
+		}
+		assertFalse(IVPoolSegment.isPacked(ivPoolDir));
+		assertEquals(numFiles, IVPoolSegment.migrate(ivPoolDir, "a", true));
+		assertEquals(0, countSidecarFiles(ivPoolDir));
+		assertTrue(IVPoolSegment.isPacked(ivPoolDir));
+
+		// devices with a segment append new IVs to it
+		Obfuscator packedWriter = new Obfuscator(sharePath,
+				new FileBasedObfuscator(null, "b"), "share");
+		String[] added = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			added[i] = packedWriter.obfuscate("new" + i, key, true);
+		}
+		packedWriter.close();
+		assertEquals(0, countSidecarFiles(ivPoolDir));
+		File segment = IVPoolSegment.getSegmentFile(ivPoolDir, "b");
+		assertTrue(segment.isFile());
+
+		// conflicting copy with an incomplete trailing entry
+		File conflict = new File(ivPoolDir, "b (conflicted copy).ivs");
+		Files.copy(segment.toPath(), conflict.toPath());
+		try (FileOutputStream out = new FileOutputStream(conflict, true)) {
+			out.write(new byte[10]);
+		}
+
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, reader.deObfuscate(obfuscated[i], key));
+			assertEquals("new" + i, reader.deObfuscate(added[i], key));
+		}
+
+		// entries appended later on are read incrementally
+		String legacy = writer.obfuscate("legacy", key, true);
+		assertEquals(1, countSidecarFiles(ivPoolDir));
+		IVPoolSegment.append(segment, new byte[20], new byte[16]);
+		Obfuscator late = new Obfuscator(sharePath, new FileBasedObfuscator(
+				null, "b"), "share");
+		String packedLate = late.obfuscate("late", key, true);
+		late.close();
+		assertEquals("legacy", reader.deObfuscate(legacy, key));
+		assertEquals("late", reader.deObfuscate(packedLate, key));
+	}
+
+	@Test
+	public void testWriteBehind() throws Exception {
+		String sharePath = testFolder.getRoot().getAbsolutePath();
+		File ivPoolDir = new File(sharePath, Obfuscator.IV_POOL_PATH);
+		File cacheFile = new File(testFolder.getRoot(), "cache/ivpool");
+		File journal = new File(cacheFile.getPath() + ".journal");
+
+		// entry left in the journal by a previous run
+		byte[] entry = new byte[36];
+		entry[0] = (byte) 0xab;
+		journal.getParentFile().mkdirs();
+		Files.write(journal.toPath(), entry);
+
+		FileBasedObfuscator pool = new FileBasedObfuscator(cacheFile, null,
+				true);
+		Obfuscator ob = new Obfuscator(sharePath, pool, "share");
+		String[] obfuscated = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated[i] = ob.obfuscate("file" + i, key, true);
+		}
+		// queued IVs are visible immediately
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, ob.deObfuscate(obfuscated[i], key));
+		}
+		ob.close();
+
+		assertEquals(numFiles + 1, countSidecarFiles(ivPoolDir));
+		assertTrue(new File(ivPoolDir, "A" + File.separator
+				+ Utils.bytesToHex(entry)).isFile());
+		assertTrue(!journal.exists() || journal.length() == 0);
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, reader.deObfuscate(obfuscated[i], key));
+		}
+	}
+
+	@Test
+	public void testWriteBehindReload() throws Exception {
+		String sharePath = testFolder.getRoot().getAbsolutePath();
+		File ivPoolDir = new File(sharePath, Obfuscator.IV_POOL_PATH);
+		File cacheFile = new File(testFolder.getRoot(), "cache/ivpool");
+		writer.obfuscate("existing", key, true);
+
+		FileBasedObfuscator pool = new FileBasedObfuscator(cacheFile, null,
+				true);
+		Obfuscator ob = new Obfuscator(sharePath, pool, "share");
+		String[] obfuscated = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			obfuscated[i] = ob.obfuscate("file" + i, key, true);
+		}
+		// reload before the queued IVs have been written, e.g. after the
+		// watcher missed events
+		pool.fetchIVPool(sharePath, "share");
+		assertTrue(countSidecarFiles(ivPoolDir) < numFiles + 1);
+		for (int i = 0; i < numFiles; i++) {
+			assertEquals("file" + i, ob.deObfuscate(obfuscated[i], key));
+		}
+		ob.close();
+		assertEquals(numFiles + 1, countSidecarFiles(ivPoolDir));
+	}
+
+	private static int countSidecarFiles(File ivPoolDir) {
+		int n = 0;
+		for (File subdir : ivPoolDir.listFiles()) {
+			if (subdir.isDirectory()) {
+				n += subdir.list().length;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return hex encoded lookup hash within the given subdirectory
+	 */
+	private static String hash(int subdir, int n) {
+		byte[] hash = new byte[20];
+		hash[0] = (byte) (subdir << 4);
+		hash[19] = (byte) n;
+		return Utils.bytesToHex(hash);
+	}
+
+	private static byte[] iv(int n) {
+		byte[] iv = new byte[16];
+		iv[0] = (byte) n;
+		return iv;
+	}
+}
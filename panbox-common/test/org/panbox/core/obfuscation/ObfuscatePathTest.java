@@ -31,8 +31,13 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.After;
@@ -42,8 +47,12 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.panbox.PanboxConstants;
 import org.panbox.core.crypto.AbstractObfuscatorFactory;
+import org.panbox.core.crypto.EncodingHelper;
+import org.panbox.core.crypto.EncodingType;
 import org.panbox.core.crypto.FileObfuscatorFactory;
+import org.panbox.core.crypto.KeyConstants;
 import org.panbox.core.crypto.Obfuscator;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.tests.AbstractTest;
@@ -135,4 +144,43 @@ public class ObfuscatePathTest extends AbstractTest {
 		
 	}
 
+	/**
+	 * obfuscated names have to remain the same as the ones created with
+	 * {@link KeyConstants#OBFUSCATOR_ALG} from the JCE, also after the key
+	 * material has been wiped upon {@link Obfuscator#close()}
+	 */
+	@Test
+	public void testNamesUnchanged() throws Exception {
+		AbstractObfuscatorFactory aof = AbstractObfuscatorFactory
+				.getFactory(FileObfuscatorFactory.class);
+		Obfuscator ob = aof.getInstance(testFolder.getRoot()
+				.getAbsolutePath(), "namesUnchangedShare");
+		SecretKey key = new SecretKeySpec(generateAESKey(), "AES");
+		Charset charset = Charset.forName(PanboxConstants.STANDARD_CHARSET);
+
+		String[] names = { "a", "testFile.txt", "Übergrößenträger",
+				"a name which is longer than a single digest block.txt" };
+		for (int round = 0; round < 2; round++) {
+			for (String base : names) {
+				// new names, which are not cached yet
+				String name = round + base;
+				MessageDigest md = MessageDigest
+						.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
+				md.update(name.getBytes(charset));
+				md.update(key.getEncoded());
+				byte[] iv = Arrays.copyOf(md.digest(),
+						KeyConstants.SYMMETRIC_BLOCK_SIZE);
+				Cipher c = Cipher.getInstance(KeyConstants.OBFUSCATOR_ALG);
+				c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+				String expected = EncodingHelper.encodeByte(
+						c.doFinal(name.getBytes(charset)), EncodingType.BASE64);
+
+				String obfuscated = ob.obfuscate(name, key, true);
+				assertEquals(expected, obfuscated);
+				assertEquals(name, ob.deObfuscate(obfuscated, key));
+			}
+			ob.close();
+		}
+	}
+
 }
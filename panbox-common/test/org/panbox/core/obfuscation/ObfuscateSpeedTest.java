@@ -31,11 +31,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -44,8 +53,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.panbox.core.crypto.AbstractObfuscatorFactory;
+import org.panbox.core.crypto.FileBasedObfuscator;
 import org.panbox.core.crypto.FileObfuscatorFactory;
 import org.panbox.core.crypto.Obfuscator;
+import org.panbox.core.exception.MissingIVException;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.tests.AbstractTest;
 
@@ -171,6 +182,72 @@ public class ObfuscateSpeedTest extends AbstractTest {
 
 	}
 
+	/**
+	 * measures path (de)obfuscation throughput of a single instance with an
+	 * increasing number of concurrent threads
+	 */
+	@Test
+	public void testConcurrentPaths() throws Exception {
+		String realFileTestPath = testFolder.getRoot().getAbsolutePath();
+		final SecretKey key = new SecretKeySpec(generateAESKey(), "AES");
+
+		LinkedList<String> words = getFileNamesFromFile(new File(
+				"test/wortliste-deutsch.txt"), numFiles);
+		final List<String> paths = new ArrayList<String>(words.size());
+		String dir = null;
+		for (String w : words) {
+			if (paths.size() % 100 == 0) {
+				dir = File.separator + w;
+			}
+			paths.add(dir + File.separator + "sub" + File.separator + w);
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= Math.max(4, cpus); threads <<= 1) {
+			final Obfuscator ob = new Obfuscator(realFileTestPath,
+					new FileBasedObfuscator(), "myShareName" + threads);
+			final int numThreads = threads;
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			long start = System.currentTimeMillis();
+			for (int t = 0; t < threads; t++) {
+				final int offset = t;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int i = offset; i < paths.size(); i += numThreads) {
+							String path = paths.get(i);
+							String obf = ob.obfuscatePath(path, key, true);
+							assertEquals(path, ob.deObfuscatePath(obf, key));
+							if (i % 10 == 0) {
+								// lookup of a name without IV, which misses
+								// the cache and probes the IV pool
+								String missing = ob.obfuscate("missing-" + i,
+										key, false);
+								try {
+									ob.deObfuscate(missing, key);
+									fail("Deobfuscated name without IV");
+								} catch (MissingIVException e) {
+									// expected
+								}
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : results) {
+				f.get();
+			}
+			long stop = System.currentTimeMillis();
+			pool.shutdown();
+			ob.close();
+			System.out.println("Finished (de)obfuscation of " + paths.size()
+					+ " paths with " + threads + " threads in "
+					+ (stop - start) + "ms");
+		}
+	}
+
 	public static LinkedList<String> getFileNamesFromFile(File file, int count) {
 		LinkedList<String> filenames = new LinkedList<String>();
 
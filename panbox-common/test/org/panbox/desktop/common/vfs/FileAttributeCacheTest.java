@@ -0,0 +1,145 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.desktop.common.vfs;
+
+import static org.junit.Assert.*;
+
+import java.io.FileNotFoundException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author palige
+ *
+ *         Tests expiry and invalidation of {@link FileAttributeCache}.
+ */
+public class FileAttributeCacheTest {
+
+	private final static long TTL = 200;
+
+	private FileAttributeCache cache;
+
+	private AbstractFileInfo info;
+
+	@Before
+	public void setUp() {
+		cache = new FileAttributeCache(16, TTL, TTL);
+		info = new AbstractFileInfo("/share/file", false, 42, 0, 0, 0);
+	}
+
+	@Test
+	public void testPutAndExpire() throws Exception {
+		assertNull(cache.get("/share/file"));
+		cache.put("/share/file", info, cache.getGeneration());
+		assertSame(info, cache.get("/share/file"));
+		Thread.sleep(TTL + 50);
+		assertNull(cache.get("/share/file"));
+	}
+
+	@Test
+	public void testNegativeEntry() throws Exception {
+		cache.putNotFound("/share/missing", cache.getGeneration());
+		try {
+			cache.get("/share/missing");
+			fail("Expected FileNotFoundException for cached missing path");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		cache.invalidate("/share/missing");
+		assertNull(cache.get("/share/missing"));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		cache.put("/share/file", info, cache.getGeneration());
+		cache.put("/share/other", info, cache.getGeneration());
+		cache.invalidate("/share/file");
+		assertNull(cache.get("/share/file"));
+		assertSame(info, cache.get("/share/other"));
+		cache.invalidateAll();
+		assertNull(cache.get("/share/other"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testStaleLookupIsNotCached() throws Exception {
+		// lookup started before a concurrent modification
+		long generation = cache.getGeneration();
+		cache.invalidate("/share/file", "/share/new");
+		cache.put("/share/file", info, generation);
+		cache.putNotFound("/share/new", generation);
+		assertNull(cache.get("/share/file"));
+		assertNull(cache.get("/share/new"));
+		// all paths
+		generation = cache.getGeneration();
+		cache.invalidateAll();
+		cache.put("/share/other", info, generation);
+		assertNull(cache.get("/share/other"));
+	}
+
+	@Test
+	public void testModificationOfOtherPath() throws Exception {
+		// writes to one file, each invalidating it and its directory, while
+		// other paths are looked up
+		cache = new FileAttributeCache(1024, TTL, TTL);
+		for (int i = 0; i < 100; i++) {
+			long generation = cache.getGeneration();
+			cache.invalidate("/share/build/file", "/share/build");
+			cache.put("/share/other" + i, info, generation);
+			cache.putNotFound("/share/missing" + i, generation);
+		}
+		assertSame(info, cache.get("/share/other99"));
+		try {
+			cache.get("/share/missing99");
+			fail("Expected FileNotFoundException for cached missing path");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSetTimeouts() throws Exception {
+		cache.put("/share/file", info, cache.getGeneration());
+		cache.setTimeouts(TTL, 0);
+		assertNull(cache.get("/share/file"));
+		// negative caching disabled
+		cache.putNotFound("/share/missing", cache.getGeneration());
+		assertNull(cache.get("/share/missing"));
+		cache.setTimeouts(0, 0);
+		cache.put("/share/file", info, cache.getGeneration());
+		assertNull(cache.get("/share/file"));
+	}
+
+	@Test
+	public void testSizeLimit() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			cache.put("/share/file" + i, info, cache.getGeneration());
+		}
+		assertTrue(cache.size() <= 16);
+	}
+}
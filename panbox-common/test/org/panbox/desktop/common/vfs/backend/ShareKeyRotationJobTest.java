@@ -0,0 +1,215 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.desktop.common.vfs.backend;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panbox.core.crypto.CryptCore;
+import org.panbox.core.keymgmt.EncryptedShareKey;
+import org.panbox.core.keymgmt.IVolume;
+import org.panbox.core.vfs.backend.VirtualFile;
+import org.panbox.desktop.common.vfs.backend.generic.GenericVirtualVolumeImpl;
+
+/**
+ * @author palige
+ *
+ *         Tests that an interrupted {@link ShareKeyRotationJob} resumes at its
+ *         checkpoint and rotates every file exactly once.
+ */
+public class ShareKeyRotationJobTest {
+
+	private final static int NUM_DIRS = 4;
+
+	private final static int FILES_PER_DIR = 10;
+
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private KeyPair deviceKeys;
+
+	private final List<SecretKey> shareKeys = new ArrayList<SecretKey>();
+
+	private SecretKey obfuscationKey;
+
+	/**
+	 * backend which cancels the job after a given number of files have been
+	 * looked up by it
+	 */
+	private class InterruptingVolume extends GenericVirtualVolumeImpl {
+
+		final AtomicInteger lookups = new AtomicInteger();
+
+		volatile ShareKeyRotationJob job;
+
+		volatile int cancelAfter = -1;
+
+		InterruptingVolume(String rootDirectory) throws FileNotFoundException {
+			super(rootDirectory);
+		}
+
+		@Override
+		public VirtualFile getFile(String fileName) throws IOException {
+			if ((job != null) && (lookups.incrementAndGet() == cancelAfter)) {
+				job.cancel();
+			}
+			return super.getFile(fileName);
+		}
+	}
+
+	/**
+	 * @return {@link IVolume} only providing the keys of this test
+	 */
+	private IVolume createVolume() {
+		return (IVolume) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { IVolume.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "getEncryptedObfuscationKey":
+							return encrypt(obfuscationKey);
+						case "getEncryptedShareKey":
+							int version = (Integer) args[0];
+							return new EncryptedShareKey(
+									encrypt(shareKeys.get(version)), version);
+						case "getLatestEncryptedShareKey":
+							int latest = shareKeys.size() - 1;
+							return new EncryptedShareKey(
+									encrypt(shareKeys.get(latest)), latest);
+						default:
+							throw new UnsupportedOperationException(
+									method.getName());
+						}
+					}
+				});
+	}
+
+	private byte[] encrypt(SecretKey key) throws Exception {
+		return CryptCore.encryptSymmetricKey(key.getEncoded(),
+				deviceKeys.getPublic());
+	}
+
+	private static byte[] content(String relPath) throws Exception {
+		return ("content of " + relPath).getBytes("UTF-8");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		deviceKeys = CryptCore.generateKeypair();
+		obfuscationKey = CryptCore.generateSymmetricKey();
+		shareKeys.add(CryptCore.generateSymmetricKey());
+	}
+
+	@Test
+	public void testInterruptAndResume() throws Exception {
+		File root = tmpFolder.newFolder("share");
+		File checkpoint = new File(tmpFolder.getRoot(), "checkpoint");
+		InterruptingVolume backend = new InterruptingVolume(
+				root.getAbsolutePath());
+		VFSShare share = new VFSShare("rotationtest", root.getAbsolutePath(),
+				backend, createVolume(), deviceKeys);
+
+		List<String> files = new ArrayList<String>();
+		for (int d = 0; d < NUM_DIRS; d++) {
+			File dir = new File(root, "dir" + d);
+			assertTrue(dir.mkdir());
+			for (int f = 0; f < FILES_PER_DIR; f++) {
+				String relPath = File.separator + dir.getName()
+						+ File.separator + "file" + f;
+				VirtualRandomAccessFile raf = (VirtualRandomAccessFile) backend
+						.getFile(relPath);
+				raf.create(0, shareKeys.get(0));
+				raf.write(content(relPath));
+				raf.close();
+				files.add(relPath);
+			}
+		}
+
+		// add a new share key and interrupt the rotation part way
+		shareKeys.add(CryptCore.generateSymmetricKey());
+		int total = files.size();
+		ShareKeyRotationJob job = new ShareKeyRotationJob(share, checkpoint, 1);
+		backend.cancelAfter = total / 3;
+		backend.job = job;
+		job.run();
+		assertTrue(job.isCancelled());
+		assertEquals(0, job.getFailedFiles());
+		long processed = job.getProcessedFiles();
+		assertTrue(processed > 0);
+		assertTrue(processed < total);
+		assertEquals(processed, job.getRotatedFiles());
+		assertTrue(checkpoint.exists());
+
+		// resume
+		ShareKeyRotationJob resumed = new ShareKeyRotationJob(share,
+				checkpoint, 1);
+		backend.job = null;
+		resumed.run();
+		assertFalse(resumed.isCancelled());
+		assertEquals(0, resumed.getFailedFiles());
+		assertEquals(total - processed, resumed.getProcessedFiles());
+		assertEquals(total - processed, resumed.getRotatedFiles());
+		assertFalse(checkpoint.exists());
+
+		for (String relPath : files) {
+			VirtualRandomAccessFile raf = (VirtualRandomAccessFile) backend
+					.getFile(relPath);
+			raf.open();
+			try {
+				assertEquals(1, raf.getShareKeyVersion());
+				raf.initWithShareKey(shareKeys.get(1));
+				byte[] ref = content(relPath);
+				byte[] buf = new byte[ref.length];
+				assertEquals(ref.length, raf.read(buf));
+				assertTrue(Arrays.equals(ref, buf));
+			} finally {
+				raf.close();
+			}
+		}
+	}
+}
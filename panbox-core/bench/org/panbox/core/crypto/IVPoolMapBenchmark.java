@@ -0,0 +1,148 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.panbox.core.LimitedHashMap;
+import org.panbox.core.Utils;
+
+/**
+ * @author palige
+ *
+ *         JMH benchmark comparing lookups in {@link IVPoolMap} with the
+ *         previously used <code>LimitedHashMap&lt;String, byte[]&gt;</code>
+ *         keyed by hex encoded lookup hashes. The heap retained by each map
+ *         is printed during setup. Run with
+ *         <code>ant bench -Dbench.include=IVPoolMapBenchmark</code>.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IVPoolMapBenchmark {
+
+	@Param({ "HashMap", "IVPoolMap", "IVPoolMapDirect" })
+	public String impl;
+
+	@Param({ "1000000" })
+	public int entries;
+
+	private LimitedHashMap<String, byte[]> hashMap;
+
+	private IVPoolMap ivPoolMap;
+
+	private String[] hexHashes;
+
+	private String[] missingHexHashes;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random r = new Random(0);
+		hexHashes = new String[entries];
+		missingHexHashes = new String[entries];
+		byte[] hash = new byte[IVPoolMap.HASH_LEN];
+		for (int i = 0; i < entries; i++) {
+			r.nextBytes(hash);
+			hexHashes[i] = Utils.bytesToHex(hash);
+			r.nextBytes(hash);
+			missingHexHashes[i] = Utils.bytesToHex(hash);
+		}
+
+		long before = usedHeap();
+		if (impl.equals("HashMap")) {
+			hashMap = new LimitedHashMap<String, byte[]>(Integer.MAX_VALUE);
+			for (int i = 0; i < entries; i++) {
+				byte[] iv = new byte[IVPoolMap.IV_LEN];
+				r.nextBytes(iv);
+				// keys are created from scratch as when reading the IV pool
+				hashMap.put(new String(hexHashes[i]), iv);
+			}
+		} else {
+			ivPoolMap = new IVPoolMap(0, impl.equals("IVPoolMapDirect"));
+			byte[] iv = new byte[IVPoolMap.IV_LEN];
+			for (int i = 0; i < entries; i++) {
+				r.nextBytes(iv);
+				ivPoolMap.put(hexHashes[i], iv);
+			}
+		}
+		long after = usedHeap();
+		System.out.println();
+		System.out.println(impl + ": " + entries + " entries, retained heap "
+				+ ((after - before) / (1024 * 1024)) + " MiB"
+				+ ((ivPoolMap != null) ? ", table size "
+						+ (ivPoolMap.getMemoryUsage() / (1024 * 1024))
+						+ " MiB" : ""));
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private byte[] get(String hexHash) {
+		if (hashMap != null) {
+			return hashMap.get(hexHash);
+		} else {
+			return ivPoolMap.get(hexHash);
+		}
+	}
+
+	@Benchmark
+	public byte[] lookupHit() {
+		String h = hexHashes[next];
+		next = (next + 1) % entries;
+		return get(h);
+	}
+
+	@Benchmark
+	public byte[] lookupMiss() {
+		String h = missingHexHashes[next];
+		next = (next + 1) % entries;
+		return get(h);
+	}
+}
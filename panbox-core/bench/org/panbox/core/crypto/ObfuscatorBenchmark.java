@@ -0,0 +1,188 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.panbox.PanboxConstants;
+import org.panbox.core.Utils;
+
+/**
+ * @author palige
+ *
+ *         JMH benchmark of the per-name cost of {@link Obfuscator}, bypassing
+ *         its name caches. The <code>baseline</code> methods repeat the
+ *         derivation of lookup hash, IV and cipher key as done before key
+ *         material was cached per share, i.e. copying the key for each
+ *         digest and decryption, and encode names via apache codec. Run with
+ *         <code>ant bench -Dbench.include=ObfuscatorBenchmark</code>.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ObfuscatorBenchmark {
+
+	/**
+	 * exceeds the name caches of {@link Obfuscator}
+	 */
+	private final static int NAMES = 100000;
+
+	private File shareDir;
+
+	private SecretKey key;
+
+	private AbstractObfuscatorIVPool pool;
+
+	private Obfuscator obfuscator;
+
+	private String[] names;
+
+	private String[] obfuscated;
+
+	private MessageDigest digest;
+
+	private Cipher cipher;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		shareDir = Files.createTempDirectory("obfuscatorbench").toFile();
+		byte[] keyBytes = new byte[KeyConstants.SYMMETRIC_KEY_SIZE_BYTES];
+		Arrays.fill(keyBytes, (byte) 0x42);
+		key = new SecretKeySpec(keyBytes, KeyConstants.SYMMETRIC_ALGORITHM);
+
+		// IVs are kept in memory only
+		pool = new AbstractObfuscatorIVPool() {
+			@Override
+			public void fetchIVPool(String absolutePath, String shareName) {
+			}
+
+			@Override
+			public void storeIV(String absolutePath, String lookupHash,
+					byte[] iv) throws IOException {
+				putCachedIV(lookupHash, iv);
+			}
+		};
+		obfuscator = new Obfuscator(shareDir.getAbsolutePath(), pool,
+				"bench");
+		names = new String[NAMES];
+		obfuscated = new String[NAMES];
+		for (int i = 0; i < NAMES; i++) {
+			names[i] = "Document " + i + ".odt";
+			obfuscated[i] = obfuscator.obfuscate(names[i], key, true);
+		}
+		digest = MessageDigest.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
+		cipher = Cipher.getInstance(KeyConstants.OBFUSCATOR_ALG);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		obfuscator.close();
+		FileUtils.deleteDirectory(shareDir);
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = (next + 1) % NAMES;
+		return i;
+	}
+
+	@Benchmark
+	public String obfuscate() throws Exception {
+		// without creating IVs, names are not cached
+		return obfuscator.obfuscate(names[nextIndex()], key, false);
+	}
+
+	@Benchmark
+	public String deobfuscate() throws Exception {
+		return obfuscator.deObfuscate(obfuscated[nextIndex()], key);
+	}
+
+	@Benchmark
+	public String obfuscateBaseline() throws Exception {
+		String name = names[nextIndex()];
+		digest.update(name.getBytes(PanboxConstants.STANDARD_CHARSET));
+		digest.update(key.getEncoded());
+		byte[] iv = Arrays.copyOf(digest.digest(),
+				KeyConstants.SYMMETRIC_BLOCK_SIZE);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		String encoded = new String(new Base64().encode(cipher.doFinal(name
+				.getBytes(PanboxConstants.STANDARD_CHARSET))),
+				PanboxConstants.STANDARD_CHARSET).replace('+', '-').replace(
+				'/', '_');
+		while (encoded.endsWith("=")) {
+			encoded = encoded.substring(0, encoded.length() - 1);
+		}
+		return encoded;
+	}
+
+	@Benchmark
+	public String deobfuscateBaseline() throws Exception {
+		String name = obfuscated[nextIndex()];
+		digest.update(name.getBytes(PanboxConstants.STANDARD_CHARSET));
+		digest.update(key.getEncoded());
+		byte[] iv = pool.getCachedIV(Utils.bytesToHex(digest.digest()),
+				"bench");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.getEncoded(),
+				"AES"), new IvParameterSpec(iv));
+		String padded = name.replace('-', '+').replace('_', '/');
+		while (padded.length() % 4 != 0) {
+			padded = padded.concat("=");
+		}
+		return new String(cipher.doFinal(Base64.decodeBase64(padded
+				.getBytes(PanboxConstants.STANDARD_CHARSET))),
+				PanboxConstants.STANDARD_CHARSET);
+	}
+}
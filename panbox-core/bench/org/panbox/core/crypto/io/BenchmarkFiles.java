@@ -0,0 +1,165 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.Security;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.panbox.core.exception.FileEncryptionException;
+import org.panbox.core.exception.FileIntegrityException;
+
+/**
+ * @author palige
+ *
+ *         Helper for the JMH benchmarks, creating and opening files with the
+ *         {@link EncRandomAccessFile} implementation selected by name.
+ */
+final class BenchmarkFiles {
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	/**
+	 * implementation names as used for the benchmarks' <code>impl</code>
+	 * parameter
+	 */
+	final static String AESGCM = "AESGCM";
+	final static String AESGCM_COMPAT = "AESGCMCompat";
+	final static String AESGCM_HW = "AESGCMHW";
+	final static String AESCBC = "AESCBC";
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * @return new random 128 bit AES share key
+	 */
+	static SecretKey newShareKey() {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		return new SecretKeySpec(tmp, "AES");
+	}
+
+	/**
+	 * @param size
+	 * @return array of the given size filled with random data
+	 */
+	static byte[] randomData(int size) {
+		byte[] tmp = new byte[size];
+		new Random().nextBytes(tmp);
+		return tmp;
+	}
+
+	/**
+	 * @return new empty temporary directory for benchmark files
+	 * @throws IOException
+	 */
+	static File newTempDir() throws IOException {
+		File dir = File.createTempFile("panbox-bench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to create temporary directory "
+					+ dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * recursively deletes the given directory
+	 *
+	 * @param dir
+	 */
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		dir.delete();
+	}
+
+	static EncRandomAccessFile create(String impl, SecretKey shareKey,
+			File file) throws FileEncryptionException, IOException {
+		switch (impl) {
+		case AESGCM:
+			return AESGCMRandomAccessFile.create(0, shareKey, file);
+		case AESGCM_COMPAT:
+			return AESGCMRandomAccessFileCompat.create(0, shareKey, file);
+		case AESGCM_HW:
+			return AESGCMRandomAccessFileHW.create(0, shareKey, file);
+		case AESCBC:
+			return AESCBCRandomAccessFile.create(0, shareKey, file);
+		default:
+			throw new IllegalArgumentException("Unknown implementation "
+					+ impl);
+		}
+	}
+
+	static EncRandomAccessFile open(String impl, SecretKey shareKey,
+			File file, boolean writable) throws FileEncryptionException,
+			FileIntegrityException, IOException {
+		EncRandomAccessFile ret;
+		switch (impl) {
+		case AESGCM:
+			ret = AESGCMRandomAccessFile.open(file, writable);
+			break;
+		case AESGCM_COMPAT:
+			ret = AESGCMRandomAccessFileCompat.open(file, writable);
+			break;
+		case AESGCM_HW:
+			ret = AESGCMRandomAccessFileHW.open(file, writable);
+			break;
+		case AESCBC:
+			ret = AESCBCRandomAccessFile.open(file, writable);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown implementation "
+					+ impl);
+		}
+		ret.initWithShareKey(shareKey);
+		return ret;
+	}
+
+	/**
+	 * creates a file of the given contents and closes it
+	 */
+	static void createFile(String impl, SecretKey shareKey, File file,
+			byte[] contents) throws FileEncryptionException,
+			FileIntegrityException, IOException {
+		EncRandomAccessFile f = create(impl, shareKey, file);
+		f.write(contents);
+		f.flush();
+		f.close();
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * @author palige
+ *
+ *         JMH benchmarks for sequential and random accesses to a single large
+ *         file for all {@link EncRandomAccessFile} implementations. Run with
+ *         <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncRandomAccessFileBenchmark {
+
+	private final static int BLOCK_SIZE = 4096;
+
+	private final static int SEQUENTIAL_REQUEST_SIZE = 1024 * 1024;
+
+	@Param({ BenchmarkFiles.AESGCM, BenchmarkFiles.AESGCM_COMPAT,
+			BenchmarkFiles.AESGCM_HW, BenchmarkFiles.AESCBC })
+	public String impl;
+
+	@Param({ "16777216" })
+	public int fileSize;
+
+	private File tmpDir;
+
+	private SecretKey shareKey;
+
+	private EncRandomAccessFile file;
+
+	private byte[] contents;
+
+	private byte[] buf;
+
+	private byte[] block;
+
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tmpDir = BenchmarkFiles.newTempDir();
+		shareKey = BenchmarkFiles.newShareKey();
+		contents = BenchmarkFiles.randomData(fileSize);
+		buf = new byte[SEQUENTIAL_REQUEST_SIZE];
+		block = BenchmarkFiles.randomData(BLOCK_SIZE);
+		random = new Random(0);
+
+		File f = new File(tmpDir, "bench");
+		BenchmarkFiles.createFile(impl, shareKey, f, contents);
+		file = BenchmarkFiles.open(impl, shareKey, f, true);
+	}
+
+	@TearDown(Level.Iteration)
+	public void flush() throws Exception {
+		file.flush();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		file.close();
+		BenchmarkFiles.delete(tmpDir);
+	}
+
+	/**
+	 * @return random offset of a 4 KiB block within the file
+	 */
+	private long randomBlockOffset() {
+		return (long) random.nextInt(fileSize / BLOCK_SIZE) * BLOCK_SIZE;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void sequentialRead(Blackhole bh) throws Exception {
+		// flushing invalidates the chunk cache, so all chunks are read and
+		// decrypted from disk
+		file.flush();
+		file.seek(0);
+		int n;
+		while ((n = file.read(buf)) > 0) {
+			bh.consume(n);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void sequentialWrite() throws Exception {
+		file.seek(0);
+		for (int off = 0; off < fileSize; off += SEQUENTIAL_REQUEST_SIZE) {
+			file.write(contents, off,
+					Math.min(SEQUENTIAL_REQUEST_SIZE, fileSize - off));
+		}
+		file.flush();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public int randomRead4k() throws Exception {
+		file.seek(randomBlockOffset());
+		return file.read(block);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void randomWrite4k() throws Exception {
+		file.seek(randomBlockOffset());
+		file.write(block);
+	}
+
+	/**
+	 * modifies a single block and flushes it, i.e. measures chunk write-back
+	 * together with the update of the file authentication tag by
+	 * {@link AuthTagVerifier}
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void flushAuthTag() throws Exception {
+		file.seek(randomBlockOffset());
+		file.write(block);
+		file.flush();
+	}
+
+	/**
+	 * state for {@link EncRandomAccessFileBenchmark#truncate(TruncateState)},
+	 * which restores the file's length before each invocation
+	 */
+	@State(Scope.Thread)
+	public static class TruncateState {
+
+		@Param({ BenchmarkFiles.AESGCM, BenchmarkFiles.AESGCM_COMPAT,
+				BenchmarkFiles.AESGCM_HW, BenchmarkFiles.AESCBC })
+		public String impl;
+
+		@Param({ "16777216" })
+		public int fileSize;
+
+		private File tmpDir;
+
+		EncRandomAccessFile file;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			tmpDir = BenchmarkFiles.newTempDir();
+			SecretKey shareKey = BenchmarkFiles.newShareKey();
+			File f = new File(tmpDir, "truncate");
+			BenchmarkFiles.createFile(impl, shareKey, f,
+					BenchmarkFiles.randomData(fileSize));
+			file = BenchmarkFiles.open(impl, shareKey, f, true);
+		}
+
+		@Setup(Level.Invocation)
+		public void extend() throws Exception {
+			file.setLength(fileSize);
+			file.flush();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			file.close();
+			BenchmarkFiles.delete(tmpDir);
+		}
+	}
+
+	/**
+	 * truncates the file to half its size within a chunk
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void truncate(TruncateState state) throws Exception {
+		state.file.setLength((state.fileSize / 2) + 123);
+		state.file.flush();
+	}
+}
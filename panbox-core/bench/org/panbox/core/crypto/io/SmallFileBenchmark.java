@@ -0,0 +1,119 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author palige
+ *
+ *         JMH benchmark for opening, reading and closing many small files, as
+ *         done by build tools or file indexers working on a mounted share. Run
+ *         with <code>ant bench</code>.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SmallFileBenchmark {
+
+	private final static int NUM_FILES = 256;
+
+	@Param({ BenchmarkFiles.AESGCM, BenchmarkFiles.AESGCM_COMPAT,
+			BenchmarkFiles.AESGCM_HW, BenchmarkFiles.AESCBC })
+	public String impl;
+
+	@Param({ "4096" })
+	public int fileSize;
+
+	private File tmpDir;
+
+	private SecretKey shareKey;
+
+	private File[] files;
+
+	private byte[] buf;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		tmpDir = BenchmarkFiles.newTempDir();
+		shareKey = BenchmarkFiles.newShareKey();
+		buf = new byte[fileSize];
+		files = new File[NUM_FILES];
+		for (int i = 0; i < NUM_FILES; i++) {
+			files[i] = new File(tmpDir, "small" + i);
+			BenchmarkFiles.createFile(impl, shareKey, files[i],
+					BenchmarkFiles.randomData(fileSize));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		BenchmarkFiles.delete(tmpDir);
+	}
+
+	@Benchmark
+	public int openReadClose() throws Exception {
+		File f = files[next];
+		next = (next + 1) % NUM_FILES;
+		EncRandomAccessFile file = BenchmarkFiles.open(impl, shareKey, f,
+				false);
+		try {
+			return file.read(buf);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Benchmark
+	public void openClose() throws Exception {
+		File f = files[next];
+		next = (next + 1) % NUM_FILES;
+		BenchmarkFiles.open(impl, shareKey, f, false).close();
+	}
+}
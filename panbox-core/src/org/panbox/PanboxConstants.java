@@ -44,6 +44,13 @@ public interface PanboxConstants {
 	 */
 	public static final byte[] PANBOX_VERSION = new byte[] { '1', '.', '0', '0' };
 
+	/**
+	 * version field for Panbox files authenticating their chunks with a hash
+	 * tree instead of a flat list of chunk authentication tags, 4 bytes
+	 */
+	public static final byte[] PANBOX_VERSION_HASHTREE = new byte[] { '1',
+			'.', '0', '1' };
+
 	/**
 	 * panbox metadata subdirectory identifier within share directories
 	 */
@@ -65,6 +65,8 @@ public class Settings {
 	private boolean uriHandlerSupported;
 	private boolean mailtoSchemeSupported;
 	private boolean clipboardHandlerSupported;
+	private boolean hashTreeAuthentication;
+	private String gcmImplementation;
 
 	private final Preferences prefs;
 	private final static String PANBOX_DEFAULT_CONF_DIR = System
@@ -118,6 +120,9 @@ public class Settings {
 				"true"));
 		clipboardHandlerSupported = Boolean.valueOf(prefs.get(
 				"clipboardHandlerSupported", "true"));
+		hashTreeAuthentication = Boolean.valueOf(prefs.get(
+				"hashTreeAuthentication", "false"));
+		gcmImplementation = prefs.get("gcmImplementation", "auto");
 
 		String pairingAddressStr = prefs.get("pairingAddress", "127.0.0.1");		
 		
@@ -304,6 +309,22 @@ public class Settings {
 		return panboxConfDir + File.separator + "devices.db";
 	}
 
+	public String getAuthTagCachePath() {
+		return panboxConfDir + File.separator + "authtags";
+	}
+
+	public String getIVPoolCachePath() {
+		return panboxConfDir + File.separator + "ivpoolcache";
+	}
+
+	public String getShareKeyRotationPath() {
+		return panboxConfDir + File.separator + "keyrotation";
+	}
+
+	public String getGCMCalibrationPath() {
+		return panboxConfDir + File.separator + "gcmcalibration.properties";
+	}
+
 	public String getDeviceName() {
 		return deviceName;
 	}
@@ -353,6 +374,34 @@ public class Settings {
 				Boolean.toString(this.clipboardHandlerSupported));
 	}
 
+	/**
+	 * @return <code>true</code> if newly created files should use hash tree
+	 *         based file authentication, which older Panbox versions are not
+	 *         able to read
+	 */
+	public boolean isHashTreeAuthentication() {
+		return hashTreeAuthentication;
+	}
+
+	public void setHashTreeAuthentication(boolean hashTreeAuthentication) {
+		this.hashTreeAuthentication = hashTreeAuthentication;
+		prefs.put("hashTreeAuthentication",
+				Boolean.toString(hashTreeAuthentication));
+	}
+
+	/**
+	 * @return name of the GCM implementation to be used for encrypted files,
+	 *         or "auto" for selecting the fastest one by calibration
+	 */
+	public String getGCMImplementation() {
+		return gcmImplementation;
+	}
+
+	public void setGCMImplementation(String gcmImplementation) {
+		this.gcmImplementation = gcmImplementation;
+		prefs.put("gcmImplementation", gcmImplementation);
+	}
+
 	public String getDropboxAccessToken() {
 		return dropboxAccessToken;
 	}
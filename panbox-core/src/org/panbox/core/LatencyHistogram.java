@@ -0,0 +1,126 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of operation latencies with power-of-two buckets,
+ * i.e. bucket <i>i</i> counts latencies of at least 2^<i>i</i> and less than
+ * 2^(<i>i</i>+1) nanoseconds. Recording costs two atomic increments, so that
+ * it can be used on hot paths. Percentiles are approximated by the upper
+ * bound of the respective bucket.
+ */
+public class LatencyHistogram {
+
+	private final static int NUM_BUCKETS = 48;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/**
+	 * records a single operation
+	 *
+	 * @param nanos
+	 *            latency of the operation in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 1) {
+			nanos = 1;
+		}
+		int bucket = Math.min(63 - Long.numberOfLeadingZeros(nanos),
+				NUM_BUCKETS - 1);
+		buckets.incrementAndGet(bucket);
+		totalNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return number of recorded operations
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return overall latency of all recorded operations in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * @return mean latency in microseconds, 0 if no operation has been
+	 *         recorded
+	 */
+	public double getMeanMicros() {
+		long count = getCount();
+		return (count == 0) ? 0 : (getTotalNanos() / 1000.0) / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return upper bound of the given latency percentile in microseconds, 0
+	 *         if no operation has been recorded
+	 */
+	public double getPercentileMicros(double percentile) {
+		long[] counts = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return (1L << (i + 1)) / 1000.0;
+			}
+		}
+		return (1L << NUM_BUCKETS) / 1000.0;
+	}
+
+	/**
+	 * discards all recorded operations
+	 */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		totalNanos.set(0);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core;
+
+/**
+ * Thread-safe variant of {@link LimitedHashMap}. Entries are distributed over
+ * a fixed number of {@link LimitedHashMap} stripes by key hash, each guarded
+ * by its own lock, so that concurrent accesses to different keys rarely
+ * contend. The size limit is enforced per stripe.
+ */
+public class StripedLimitedHashMap<K, V> {
+
+	private final static int DEFAULT_STRIPES = 16;
+
+	private final LimitedHashMap<K, V>[] stripes;
+
+	public StripedLimitedHashMap(int maxSize) {
+		this(maxSize, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum overall number of entries
+	 * @param numStripes
+	 *            number of stripes, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLimitedHashMap(int maxSize, int numStripes) {
+		int n = 1;
+		while (n < numStripes) {
+			n <<= 1;
+		}
+		this.stripes = new LimitedHashMap[n];
+		int stripeSize = Math.max(1, (maxSize + n - 1) / n);
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new LimitedHashMap<K, V>(stripeSize);
+		}
+	}
+
+	private LimitedHashMap<K, V> stripeFor(Object key) {
+		if (stripes.length == 1) {
+			return stripes[0];
+		}
+		// select the stripe by the high bits of a multiplicative hash, as the
+		// low bits are used by the stripes for their own buckets. Otherwise,
+		// all keys of a stripe would end up in 1/n of its buckets.
+		int h = key.hashCode() * 0x9E3779B9;
+		return stripes[h >>> (32 - Integer.numberOfTrailingZeros(stripes.length))];
+	}
+
+	/**
+	 * @param key
+	 * @return the value for the given key or <code>null</code>
+	 */
+	public V get(Object key) {
+		LimitedHashMap<K, V> stripe = stripeFor(key);
+		synchronized (stripe) {
+			return stripe.get(key);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the previous value or <code>null</code>
+	 */
+	public V put(K key, V value) {
+		LimitedHashMap<K, V> stripe = stripeFor(key);
+		synchronized (stripe) {
+			return stripe.put(key, value);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the removed value or <code>null</code>
+	 */
+	public V remove(Object key) {
+		LimitedHashMap<K, V> stripe = stripeFor(key);
+		synchronized (stripe) {
+			return stripe.remove(key);
+		}
+	}
+
+	/**
+	 * @return current number of entries over all stripes
+	 */
+	public int size() {
+		int size = 0;
+		for (LimitedHashMap<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (LimitedHashMap<K, V> stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+}
@@ -26,11 +26,15 @@
  */
 package org.panbox.core.crypto;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import org.panbox.PanboxConstants;
 import org.panbox.core.KeyValuePair;
-import org.panbox.core.LimitedHashMap;
 import org.panbox.core.Utils;
 
 public abstract class AbstractObfuscatorIVPool {
@@ -38,16 +42,145 @@ public abstract class AbstractObfuscatorIVPool {
 	public abstract void fetchIVPool(String absolutePath, String shareName);
 
 	// Cache: filenameHash -> IV
-	protected LimitedHashMap<String, byte[]> ivPool = new LimitedHashMap<String, byte[]>(
-			PanboxConstants.OBFUSCATOR_IV_POOL_SIZE);
+	protected IVPoolMap ivPool = new IVPoolMap();
 
-	public byte[] getCachedIV(String lookupHash, String shareName) {
-		byte[] iv = null;
+	/**
+	 * statistics of the obfuscator using this IV pool, may be
+	 * <code>null</code>
+	 */
+	protected ObfuscatorStatistics statistics = null;
+
+	/**
+	 * @param statistics
+	 *            statistics receiving the durations of complete reads of the
+	 *            IV pool
+	 */
+	public void setStatistics(ObfuscatorStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * reads the whole IV pool and records its duration
+	 * 
+	 * @param absolutePath
+	 * @param shareName
+	 */
+	protected void loadIVPoolTimed(String absolutePath, String shareName) {
+		long start = System.nanoTime();
+		fetchIVPool(absolutePath, shareName);
+		recordIVPoolLoad(start);
+	}
+
+	/**
+	 * @param start
+	 *            {@link System#nanoTime()} at the start of reading the IV pool
+	 */
+	protected void recordIVPoolLoad(long start) {
+		if (statistics != null) {
+			statistics.recordIVPoolLoad(System.nanoTime() - start);
+		}
+	}
+
+	public synchronized byte[] getCachedIV(String lookupHash, String shareName) {
+		return ivPool.get(lookupHash);
+	}
+
+	/**
+	 * fetches the IV for a single lookup hash which could not be found in the
+	 * cache. The default implementation re-reads the whole IV pool,
+	 * implementations with direct access to the IV pool should override this
+	 * method for looking up the single sidecar file.
+	 * 
+	 * @param absolutePath
+	 *            absolute path of the share
+	 * @param shareName
+	 * @param lookupHash
+	 *            hex encoded lookup hash
+	 * @return the IV or <code>null</code>, if there is none for the given
+	 *         lookup hash
+	 */
+	public byte[] fetchIV(String absolutePath, String shareName,
+			String lookupHash) {
+		loadIVPoolTimed(absolutePath, shareName);
+		return getCachedIV(lookupHash, shareName);
+	}
 
-		if (ivPool.containsKey(lookupHash)) {
-			iv = ivPool.get(lookupHash);
+	/**
+	 * fetches the IVs for several lookup hashes at once, e.g. for all names of
+	 * a directory listing. The default implementation re-reads the whole IV
+	 * pool once if any of them could not be found in the cache.
+	 * 
+	 * @param absolutePath
+	 *            absolute path of the share
+	 * @param shareName
+	 * @param lookupHashes
+	 *            hex encoded lookup hashes
+	 * @return map of lookup hashes to IVs, lookup hashes without IV are
+	 *         omitted
+	 */
+	public Map<String, byte[]> fetchIVs(String absolutePath, String shareName,
+			Collection<String> lookupHashes) {
+		Map<String, byte[]> ret = new HashMap<String, byte[]>();
+		List<String> missing = new ArrayList<String>();
+		for (String lookupHash : lookupHashes) {
+			byte[] iv = getCachedIV(lookupHash, shareName);
+			if (iv != null) {
+				ret.put(lookupHash, iv);
+			} else {
+				missing.add(lookupHash);
+			}
+		}
+		if (!missing.isEmpty()) {
+			loadIVPoolTimed(absolutePath, shareName);
+			for (String lookupHash : missing) {
+				byte[] iv = getCachedIV(lookupHash, shareName);
+				if (iv != null) {
+					ret.put(lookupHash, iv);
+				}
+			}
 		}
-		return iv;
+		return ret;
+	}
+
+	/**
+	 * stores a new IV within the IV pool of the share and adds it to the
+	 * cache. The default implementation creates the corresponding sidecar
+	 * file.
+	 * 
+	 * @param absolutePath
+	 *            absolute path of the share
+	 * @param lookupHash
+	 *            hex encoded lookup hash
+	 * @param iv
+	 * @throws IOException
+	 *             if the IV could not be stored
+	 */
+	public void storeIV(String absolutePath, String lookupHash, byte[] iv)
+			throws IOException {
+		File ivFile = new File(absolutePath + File.separator
+				+ Obfuscator.IV_POOL_PATH + File.separator
+				+ Character.toUpperCase(lookupHash.charAt(0)) + File.separator
+				+ lookupHash + Utils.bytesToHex(iv));
+		ivFile.createNewFile();
+		putCachedIV(lookupHash, iv);
+	}
+
+	/**
+	 * adds an IV to the cache, e.g. after its sidecar file has been created
+	 * 
+	 * @param lookupHash
+	 *            hex encoded lookup hash
+	 * @param iv
+	 */
+	public synchronized void putCachedIV(String lookupHash, byte[] iv) {
+		ivPool.put(lookupHash, iv);
+	}
+
+	/**
+	 * releases any resources held by this IV pool. The default implementation
+	 * does nothing.
+	 */
+	public void close() {
 	}
 
 	/**
@@ -61,7 +194,12 @@ public abstract class AbstractObfuscatorIVPool {
 		return (filename.length() == IV_SIDECAR_FILE_LEN);
 	}
 
-	protected synchronized Map.Entry<String, byte[]> splitFilename(String fileName) {
+	/**
+	 * splits the name of an IV sidecar file into lookup hash and IV. Does not
+	 * access any state of this pool, so it is not synchronized and may be
+	 * called by concurrent lookups.
+	 */
+	protected Map.Entry<String, byte[]> splitFilename(String fileName) {
 		// filename should be in format: concat(hash,iv) (both in hex encoded format)
 		StringBuilder buf = new StringBuilder(fileName);
 
@@ -26,36 +26,36 @@
  */
 package org.panbox.core.crypto;
 
-import java.io.UnsupportedEncodingException;
-
-import org.apache.commons.codec.binary.Base64;
-import org.panbox.PanboxConstants;
+import java.util.Arrays;
 
 public class EncodingHelper {
 	
+	/**
+	 * url-safe Base64 alphabet, see RFC 4648
+	 */
+	private final static char[] BASE64_URL_SAFE = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			+ "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+
+	/**
+	 * maps characters of both the plain and the url-safe Base64 alphabet to
+	 * their values, all other characters to -1
+	 */
+	private final static byte[] BASE64_DECODE_TABLE = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_DECODE_TABLE, (byte) -1);
+		for (int i = 0; i < BASE64_URL_SAFE.length; i++) {
+			BASE64_DECODE_TABLE[BASE64_URL_SAFE[i]] = (byte) i;
+		}
+		BASE64_DECODE_TABLE['+'] = 62;
+		BASE64_DECODE_TABLE['/'] = 63;
+	}
+
 	public static byte[] decodeString(String str, EncodingType type) {
 //			throws IOException {
 		switch (type) {
 		case BASE64:
-			
-			//convert the url-safe back to plain base64
-			str = str.replace('-', '+').replace('_', '/');
-			
-			//Because we do not have a padding and Base64.decodeBase64 from apache codec only supports padded Base64 string, we readd the padding		
-			while(str.length() %4 != 0)
-			{
-				str = str.concat("=");
-			}
-			
-			byte[] decoded = null;
-
-			try {
-				decoded = Base64.decodeBase64(str.getBytes(PanboxConstants.STANDARD_CHARSET));
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return decoded;
+			return decodeBase64(str);
 //		case BASE85:
 //
 //			ByteArrayOutputStream boas = new ByteArrayOutputStream(1024);
@@ -82,30 +82,7 @@ public class EncodingHelper {
 		switch (type) {
 		case BASE64:
 //			return Base64.encodeBase64URLSafeString(data);
-			Base64 b = new Base64();
-			byte[] b64RawBytes = b.encode(data);
-			
-			String b64Str = "";
-			try {
-				b64Str = new String(b64RawBytes, PanboxConstants.STANDARD_CHARSET);
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-//			return b64Str;
-			String b64UrlSafeStr = b64Str.replace('+', '-').replace('/', '_');
-			
-			//remove padding, because padding is "=" and we don't want this in our URLs
-			//apache codec > 1.4 Base64.encodeBase64URLSafeString also skips the padding
-			if(b64UrlSafeStr.endsWith("=="))
-			{
-				return b64UrlSafeStr.substring(0, b64UrlSafeStr.length()-2);
-			}
-			else if(b64UrlSafeStr.endsWith("="))
-			{
-				return b64UrlSafeStr.substring(0, b64UrlSafeStr.length()-1);
-			}
-			return b64UrlSafeStr;
+			return encodeBase64(data);
 //		case BASE85:
 //
 //			ByteArrayOutputStream boas = new ByteArrayOutputStream(1024);
@@ -124,4 +101,75 @@ public class EncodingHelper {
 		return null;
 	}
 	
+	/**
+	 * Encodes the given data as url-safe Base64 without padding, as "=" is not
+	 * wanted in file names. Equivalent to encoding with apache codec and
+	 * replacing '+' and '/' afterwards, without the intermediate copies.
+	 */
+	private static String encodeBase64(byte[] data) {
+		char[] out = new char[(data.length * 4 + 2) / 3];
+		int o = 0;
+		int i = 0;
+		for (; i + 2 < data.length; i += 3) {
+			int v = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8)
+					| (data[i + 2] & 0xff);
+			out[o++] = BASE64_URL_SAFE[v >>> 18];
+			out[o++] = BASE64_URL_SAFE[(v >>> 12) & 0x3f];
+			out[o++] = BASE64_URL_SAFE[(v >>> 6) & 0x3f];
+			out[o++] = BASE64_URL_SAFE[v & 0x3f];
+		}
+		int rest = data.length - i;
+		if (rest > 0) {
+			int v = (data[i] & 0xff) << 16;
+			if (rest == 2) {
+				v |= (data[i + 1] & 0xff) << 8;
+			}
+			out[o++] = BASE64_URL_SAFE[v >>> 18];
+			out[o++] = BASE64_URL_SAFE[(v >>> 12) & 0x3f];
+			if (rest == 2) {
+				out[o++] = BASE64_URL_SAFE[(v >>> 6) & 0x3f];
+			}
+		}
+		return new String(out);
+	}
+
+	/**
+	 * Decodes plain or url-safe Base64 with optional padding. As with apache
+	 * codec, characters outside of the alphabet are skipped, decoding stops at
+	 * the first "=" and incomplete trailing bits are discarded.
+	 */
+	private static byte[] decodeBase64(String str) {
+		int len = str.length();
+		byte[] out = new byte[len * 3 / 4];
+		int o = 0;
+		int v = 0;
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c == '=') {
+				break;
+			}
+			int d = (c < BASE64_DECODE_TABLE.length) ? BASE64_DECODE_TABLE[c]
+					: -1;
+			if (d < 0) {
+				continue;
+			}
+			v = (v << 6) | d;
+			if (++n == 4) {
+				out[o++] = (byte) (v >>> 16);
+				out[o++] = (byte) (v >>> 8);
+				out[o++] = (byte) v;
+				v = 0;
+				n = 0;
+			}
+		}
+		if (n == 2) {
+			out[o++] = (byte) (v >>> 4);
+		} else if (n == 3) {
+			out[o++] = (byte) (v >>> 10);
+			out[o++] = (byte) (v >>> 2);
+		}
+		return (o == out.length) ? out : Arrays.copyOf(out, o);
+	}
+	
 }
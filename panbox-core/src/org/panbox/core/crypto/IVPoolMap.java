@@ -0,0 +1,405 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.nio.ByteBuffer;
+
+import org.panbox.core.Utils;
+
+/**
+ * Map of IV lookup hashes to IVs for the obfuscator's IV pool. Entries are
+ * stored as raw bytes in a single flat table using open addressing with
+ * linear probing, i.e. an entry costs {@value #ENTRY_LEN} bytes plus the
+ * table's free slots instead of several objects per entry as with a
+ * <code>HashMap&lt;String, byte[]&gt;</code> keyed by hex strings. The table
+ * may optionally be allocated off-heap. Entries are never evicted.
+ *
+ * This class is not thread-safe.
+ */
+public class IVPoolMap {
+
+	/**
+	 * lookup hash length in bytes
+	 */
+	public final static int HASH_LEN = KeyConstants.IV_LOOKUP_HASH_SIZE / 8;
+
+	/**
+	 * IV length in bytes
+	 */
+	public final static int IV_LEN = KeyConstants.SYMMETRIC_BLOCK_SIZE;
+
+	final static int ENTRY_LEN = HASH_LEN + IV_LEN;
+
+	private final static int MIN_CAPACITY = 16;
+
+	/**
+	 * maximum ratio of used slots before the table is grown
+	 */
+	private final static float LOAD_FACTOR = 0.75f;
+
+	private final boolean direct;
+
+	private ByteBuffer table;
+
+	/**
+	 * bit set of used slots
+	 */
+	private long[] used;
+
+	private int capacity;
+
+	private int size;
+
+	private int threshold;
+
+	public IVPoolMap() {
+		this(MIN_CAPACITY, false);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            number of entries the table initially is sized for
+	 * @param direct
+	 *            if <code>true</code>, the table is allocated off-heap
+	 */
+	public IVPoolMap(int expectedSize, boolean direct) {
+		this.direct = direct;
+		int cap = MIN_CAPACITY;
+		while (cap * LOAD_FACTOR < expectedSize) {
+			cap <<= 1;
+		}
+		allocate(cap);
+	}
+
+	private void allocate(int cap) {
+		if ((long) cap * ENTRY_LEN > Integer.MAX_VALUE) {
+			throw new IllegalStateException("IV pool too large: " + cap
+					+ " slots");
+		}
+		this.capacity = cap;
+		this.table = direct ? ByteBuffer.allocateDirect(cap * ENTRY_LEN)
+				: ByteBuffer.allocate(cap * ENTRY_LEN);
+		this.used = new long[(cap + 63) >>> 6];
+		this.size = 0;
+		this.threshold = (int) (cap * LOAD_FACTOR);
+	}
+
+	private boolean isUsed(int slot) {
+		return (used[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	private void setUsed(int slot, boolean b) {
+		if (b) {
+			used[slot >>> 6] |= (1L << slot);
+		} else {
+			used[slot >>> 6] &= ~(1L << slot);
+		}
+	}
+
+	/**
+	 * lookup hashes are uniformly distributed, so the slot is derived from
+	 * their first bytes
+	 */
+	private int home(byte[] hash, int off) {
+		int h = ((hash[off] & 0xff) << 24) | ((hash[off + 1] & 0xff) << 16)
+				| ((hash[off + 2] & 0xff) << 8) | (hash[off + 3] & 0xff);
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+
+	private int homeOfSlot(int slot) {
+		int pos = slot * ENTRY_LEN;
+		int h = table.getInt(pos);
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+
+	private boolean keyEquals(int slot, byte[] hash) {
+		int pos = slot * ENTRY_LEN;
+		for (int i = 0; i < HASH_LEN; i++) {
+			if (table.get(pos + i) != hash[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return slot holding the given lookup hash, or <code>-1</code>
+	 */
+	private int find(byte[] hash) {
+		int slot = home(hash, 0);
+		while (isUsed(slot)) {
+			if (keyEquals(slot, hash)) {
+				return slot;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+		return -1;
+	}
+
+	private static void checkHash(byte[] hash) {
+		if (hash.length != HASH_LEN) {
+			throw new IllegalArgumentException("Invalid lookup hash length "
+					+ hash.length);
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            lookup hash
+	 * @return the IV or <code>null</code>, if there is none for the given
+	 *         lookup hash
+	 */
+	public byte[] get(byte[] hash) {
+		checkHash(hash);
+		int slot = find(hash);
+		return (slot < 0) ? null : readIV(slot);
+	}
+
+	private byte[] readIV(int slot) {
+		byte[] iv = new byte[IV_LEN];
+		int pos = slot * ENTRY_LEN + HASH_LEN;
+		for (int i = 0; i < IV_LEN; i++) {
+			iv[i] = table.get(pos + i);
+		}
+		return iv;
+	}
+
+	/**
+	 * @param hexHash
+	 *            hex encoded lookup hash
+	 * @return the IV or <code>null</code>, if there is none for the given
+	 *         lookup hash
+	 */
+	public byte[] get(String hexHash) {
+		if (hexHash.length() != HASH_LEN * 2) {
+			return null;
+		}
+		return get(Utils.hexToBytes(hexHash));
+	}
+
+	/**
+	 * @param hash
+	 * @return <code>true</code> if there is an IV for the given lookup hash
+	 */
+	public boolean containsKey(byte[] hash) {
+		checkHash(hash);
+		return find(hash) >= 0;
+	}
+
+	/**
+	 * adds or replaces the IV for the given lookup hash
+	 *
+	 * @param hash
+	 *            lookup hash
+	 * @param iv
+	 * @return the previous IV or <code>null</code>
+	 */
+	public byte[] put(byte[] hash, byte[] iv) {
+		checkHash(hash);
+		if (iv.length != IV_LEN) {
+			throw new IllegalArgumentException("Invalid IV length "
+					+ iv.length);
+		}
+		int slot = find(hash);
+		byte[] old = null;
+		if (slot >= 0) {
+			old = readIV(slot);
+		} else {
+			if (size >= threshold) {
+				grow();
+			}
+			slot = home(hash, 0);
+			while (isUsed(slot)) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			setUsed(slot, true);
+			size++;
+		}
+		int pos = slot * ENTRY_LEN;
+		for (int i = 0; i < HASH_LEN; i++) {
+			table.put(pos + i, hash[i]);
+		}
+		for (int i = 0; i < IV_LEN; i++) {
+			table.put(pos + HASH_LEN + i, iv[i]);
+		}
+		return old;
+	}
+
+	/**
+	 * @param hexHash
+	 *            hex encoded lookup hash
+	 * @param iv
+	 * @return the previous IV or <code>null</code>
+	 */
+	public byte[] put(String hexHash, byte[] iv) {
+		return put(Utils.hexToBytes(hexHash), iv);
+	}
+
+	/**
+	 * adds all entries of the given map
+	 *
+	 * @param other
+	 */
+	public void putAll(IVPoolMap other) {
+		byte[] hash = new byte[HASH_LEN];
+		byte[] iv = new byte[IV_LEN];
+		for (int slot = 0; slot < other.capacity; slot++) {
+			if (other.isUsed(slot)) {
+				other.read(slot, hash, iv);
+				put(hash, iv);
+			}
+		}
+	}
+
+	private void read(int slot, byte[] hash, byte[] iv) {
+		int pos = slot * ENTRY_LEN;
+		for (int i = 0; i < HASH_LEN; i++) {
+			hash[i] = table.get(pos + i);
+		}
+		for (int i = 0; i < IV_LEN; i++) {
+			iv[i] = table.get(pos + HASH_LEN + i);
+		}
+	}
+
+	/**
+	 * removes the IV for the given lookup hash
+	 *
+	 * @param hash
+	 * @return <code>true</code> if there has been an entry
+	 */
+	public boolean remove(byte[] hash) {
+		checkHash(hash);
+		int slot = find(hash);
+		if (slot < 0) {
+			return false;
+		}
+		// backward shift deletion, so that probe sequences of subsequent
+		// entries remain intact
+		int mask = capacity - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (isUsed(next)) {
+			int home = homeOfSlot(next);
+			// move entry into the hole, if its home slot does not lie
+			// cyclically within (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				copySlot(next, hole);
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		setUsed(hole, false);
+		size--;
+		return true;
+	}
+
+	/**
+	 * @param hexHash
+	 *            hex encoded lookup hash
+	 * @return <code>true</code> if there has been an entry
+	 */
+	public boolean remove(String hexHash) {
+		if (hexHash.length() != HASH_LEN * 2) {
+			return false;
+		}
+		return remove(Utils.hexToBytes(hexHash));
+	}
+
+	private void copySlot(int from, int to) {
+		int src = from * ENTRY_LEN;
+		int dst = to * ENTRY_LEN;
+		for (int i = 0; i < ENTRY_LEN; i++) {
+			table.put(dst + i, table.get(src + i));
+		}
+	}
+
+	private void grow() {
+		ByteBuffer oldTable = table;
+		long[] oldUsed = used;
+		int oldCapacity = capacity;
+		allocate(oldCapacity << 1);
+		byte[] hash = new byte[HASH_LEN];
+		byte[] iv = new byte[IV_LEN];
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			if ((oldUsed[slot >>> 6] & (1L << slot)) != 0) {
+				int pos = slot * ENTRY_LEN;
+				for (int i = 0; i < HASH_LEN; i++) {
+					hash[i] = oldTable.get(pos + i);
+				}
+				for (int i = 0; i < IV_LEN; i++) {
+					iv[i] = oldTable.get(pos + HASH_LEN + i);
+				}
+				put(hash, iv);
+			}
+		}
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * removes all entries
+	 */
+	public void clear() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * @return approximate memory used by the table in bytes
+	 */
+	public long getMemoryUsage() {
+		return (long) capacity * ENTRY_LEN + (long) used.length * 8;
+	}
+
+	/**
+	 * @return all entries as arrays of {@value #ENTRY_LEN} bytes, consisting
+	 *         of lookup hash and IV, in no particular order
+	 */
+	public byte[][] toEntryArray() {
+		byte[][] ret = new byte[size][];
+		int n = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			if (isUsed(slot)) {
+				byte[] entry = new byte[ENTRY_LEN];
+				int pos = slot * ENTRY_LEN;
+				for (int i = 0; i < ENTRY_LEN; i++) {
+					entry[i] = table.get(pos + i);
+				}
+				ret[n++] = entry;
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefix trie caching the mapping between plaintext and obfuscated path
+ * components of a share. Each node represents a whole path prefix and is
+ * reachable both by its plaintext and by its obfuscated component, so that
+ * resolving a path whose parent directories have been resolved before costs
+ * one map lookup per component instead of a cipher operation.
+ *
+ * The number of nodes is bounded. If the bound is exceeded, the whole trie is
+ * dropped and rebuilt upon subsequent lookups. Lookups and insertions do not
+ * block each other.
+ */
+class ObfuscatedPathCache {
+
+	private static final class Node {
+
+		final String plain;
+
+		final String obfuscated;
+
+		final ConcurrentHashMap<String, Node> byPlain = new ConcurrentHashMap<String, Node>(
+				4);
+
+		final ConcurrentHashMap<String, Node> byObfuscated = new ConcurrentHashMap<String, Node>(
+				4);
+
+		Node(String plain, String obfuscated) {
+			this.plain = plain;
+			this.obfuscated = obfuscated;
+		}
+
+		int subtreeSize() {
+			int n = 1;
+			for (Node child : byPlain.values()) {
+				n += child.subtreeSize();
+			}
+			return n;
+		}
+	}
+
+	private final int maxNodes;
+
+	private volatile Node root = new Node("", "");
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param maxNodes
+	 *            maximum number of cached path components
+	 */
+	ObfuscatedPathCache(int maxNodes) {
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * resolves the longest cached prefix of the given plaintext components
+	 *
+	 * @param plain
+	 *            plaintext path components
+	 * @param obfuscated
+	 *            array receiving the obfuscated components of the prefix
+	 * @return number of resolved components
+	 */
+	int lookupPlain(String[] plain, String[] obfuscated) {
+		Node node = root;
+		int i = 0;
+		while (i < plain.length) {
+			node = node.byPlain.get(plain[i]);
+			if (node == null) {
+				break;
+			}
+			obfuscated[i++] = node.obfuscated;
+		}
+		return i;
+	}
+
+	/**
+	 * resolves the longest cached prefix of the given obfuscated components
+	 *
+	 * @param obfuscated
+	 *            obfuscated path components
+	 * @param plain
+	 *            array receiving the plaintext components of the prefix
+	 * @return number of resolved components
+	 */
+	int lookupObfuscated(String[] obfuscated, String[] plain) {
+		Node node = root;
+		int i = 0;
+		while (i < obfuscated.length) {
+			node = node.byObfuscated.get(obfuscated[i]);
+			if (node == null) {
+				break;
+			}
+			plain[i++] = node.plain;
+		}
+		return i;
+	}
+
+	/**
+	 * adds the mapping of the given path. Callers must only add paths whose
+	 * IV sidecar files exist.
+	 *
+	 * @param plain
+	 *            plaintext path components
+	 * @param obfuscated
+	 *            corresponding obfuscated path components
+	 * @param count
+	 *            number of components to be added
+	 */
+	void put(String[] plain, String[] obfuscated, int count) {
+		if (size.get() + count > maxNodes) {
+			clear();
+		}
+		Node node = root;
+		for (int i = 0; i < count; i++) {
+			Node child = node.byPlain.get(plain[i]);
+			if (child == null) {
+				child = new Node(plain[i], obfuscated[i]);
+				Node prev = node.byPlain.putIfAbsent(plain[i], child);
+				if (prev != null) {
+					child = prev;
+				} else {
+					node.byObfuscated.put(obfuscated[i], child);
+					size.incrementAndGet();
+				}
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * removes the given path and all paths below it, e.g. after it has been
+	 * deleted or renamed
+	 *
+	 * @param plain
+	 *            plaintext path components
+	 */
+	void remove(String[] plain) {
+		if (plain.length == 0) {
+			clear();
+			return;
+		}
+		Node node = root;
+		for (int i = 0; i < plain.length - 1; i++) {
+			node = node.byPlain.get(plain[i]);
+			if (node == null) {
+				return;
+			}
+		}
+		Node removed = node.byPlain.remove(plain[plain.length - 1]);
+		if (removed != null) {
+			node.byObfuscated.remove(removed.obfuscated);
+			size.addAndGet(-removed.subtreeSize());
+		}
+	}
+
+	/**
+	 * removes all entries
+	 */
+	void clear() {
+		root = new Node("", "");
+		size.set(0);
+	}
+
+	/**
+	 * @return number of cached path components
+	 */
+	int size() {
+		return size.get();
+	}
+}
@@ -29,37 +29,51 @@ package org.panbox.core.crypto;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.util.Arrays;
 import org.panbox.OS;
 import org.panbox.OS.OperatingSystem;
 import org.panbox.PanboxConstants;
-import org.panbox.core.LimitedHashMap;
+import org.panbox.core.StripedLimitedHashMap;
 import org.panbox.core.Utils;
 import org.panbox.core.exception.MissingIVException;
 import org.panbox.core.exception.ObfuscationException;
 
+/**
+ * Obfuscates and deobfuscates file names of a share. Instances are
+ * thread-safe and do not serialize concurrent callers: name caches are
+ * lock-striped, and ciphers and digests are kept per thread.
+ */
 public class Obfuscator {
 
-	private static Cipher encryptCipher;
+	/**
+	 * digest instances are not thread-safe, so each thread keeps its own
+	 */
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>();
+
 	private static boolean zip = false;
+
+	private static final Charset NAME_CHARSET = Charset
+			.forName(PanboxConstants.STANDARD_CHARSET);
 	private static final Logger logger = Logger.getLogger("org.panbox.core");
 
 	public static final String IV_POOL_PATH = PanboxConstants.PANBOX_SHARE_METADATA_DIRECTORY
@@ -69,6 +83,7 @@ public class Obfuscator {
 	private String shareName;
 	private AbstractObfuscatorIVPool ivPoolImpl;
 	private OperatingSystem os;
+	private final ObfuscatorStatistics statistics;
 
 	public Obfuscator(String sharePath, AbstractObfuscatorIVPool ivPoolImpl,
 			String shareName) throws ObfuscationException {
@@ -76,19 +91,15 @@ public class Obfuscator {
 		this.shareName = shareName;
 		this.ivPoolImpl = ivPoolImpl;
 		this.os = OS.getOperatingSystem();
+		this.statistics = new ObfuscatorStatistics(shareName);
+		ivPoolImpl.setStatistics(statistics);
 
 		try {
-			encryptCipher = Cipher.getInstance(KeyConstants.OBFUSCATOR_ALG);
-			this.lookupvalueDigest = MessageDigest
-					.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
-			this.ivDigest = MessageDigest
-					.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
-		} catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-			encryptCipher = null;
-			logger.fatal(
-					"Could not initialize cipher or digest - Fatal error!", e);
+			getDigest();
+		} catch (NoSuchAlgorithmException e) {
+			logger.fatal("Could not initialize digest - Fatal error!", e);
 			throw new ObfuscationException(
-					"Unable to create obfuscator - Could not initialize cipher or digest!",
+					"Unable to create obfuscator - Could not initialize digest!",
 					e);
 		}
 
@@ -105,34 +116,141 @@ public class Obfuscator {
 		}
 	}
 
-	private synchronized File getIVPoolSubDir(char firstChar) {
-		return new File(this.sharePath + File.separator + IV_POOL_PATH
-				+ File.separator + firstChar);
+	private static MessageDigest getDigest() throws NoSuchAlgorithmException {
+		MessageDigest md = digests.get();
+		if (md == null) {
+			md = MessageDigest.getInstance(KeyConstants.IV_LOOKUP_HASH_ALG);
+			digests.set(md);
+		}
+		return md;
 	}
 
 	// realFile -> obfuscatedFile
-	private LimitedHashMap<String, String> cachedObfuscatedNames = new LimitedHashMap<String, String>(
+	private final StripedLimitedHashMap<String, String> cachedObfuscatedNames = new StripedLimitedHashMap<String, String>(
 			1024 * 10);
 
 	// obfuscatedFile -> realFile
-	private LimitedHashMap<String, String> cachedDeObfuscatedNames = new LimitedHashMap<String, String>(
+	private final StripedLimitedHashMap<String, String> cachedDeObfuscatedNames = new StripedLimitedHashMap<String, String>(
 			1024 * 10);
 
-	private MessageDigest lookupvalueDigest;
+	// plaintext path <-> obfuscated path
+	private final ObfuscatedPathCache pathCache = new ObfuscatedPathCache(
+			1024 * 16);
 
-	private synchronized byte[] createLookupHash(String obfuscatedFileName,
-			SecretKey obKey) throws ObfuscationException {
-		try {
-			lookupvalueDigest.update(obfuscatedFileName
-					.getBytes(PanboxConstants.STANDARD_CHARSET));
-			lookupvalueDigest.update(obKey.getEncoded());
-			return lookupvalueDigest.digest();
+	/**
+	 * key material derived from the obfuscation key. As callers pass the same
+	 * key instance for all names of a share, it is derived only once instead
+	 * of copying the key upon each name. Each thread keeps an
+	 * {@link KeyConstants#OBFUSCATOR_ALG} engine initialized with the key, so
+	 * only the IV has to be set per name. Lookup hashes and IVs digest the key
+	 * after the name, thus there is no key dependent digest state to keep.
+	 */
+	private static final class KeyState {
+
+		final SecretKey key;
+
+		final byte[] encoded;
+
+		private final ThreadLocal<CFBBlockCipher> ciphers = new ThreadLocal<CFBBlockCipher>();
+
+		/**
+		 * engines of all threads, for wiping them in {@link #drop()}
+		 */
+		private final ConcurrentLinkedQueue<CFBBlockCipher> allCiphers = new ConcurrentLinkedQueue<CFBBlockCipher>();
+
+		/**
+		 * set once the key material has been wiped. Results computed with
+		 * this instance have to be discarded afterwards.
+		 */
+		volatile boolean dropped = false;
+
+		KeyState(SecretKey key) {
+			this.key = key;
+			this.encoded = key.getEncoded();
+		}
+
+		/**
+		 * @return engine of the current thread, initialized with the key
+		 */
+		CFBBlockCipher getCipher() {
+			CFBBlockCipher c = ciphers.get();
+			if (c == null) {
+				c = new CFBBlockCipher(new AESFastEngine(),
+						KeyConstants.SYMMETRIC_BLOCK_SIZE * 8);
+				initCipher(c, encoded);
+				ciphers.set(c);
+				allCiphers.add(c);
+				if (dropped) {
+					// raced with drop()
+					initCipher(c, encoded);
+				}
+			}
+			return c;
+		}
+
+		private static void initCipher(CFBBlockCipher c, byte[] key) {
+			KeyParameter kp = new KeyParameter(key);
+			c.init(true, new ParametersWithIV(kp,
+					new byte[KeyConstants.SYMMETRIC_BLOCK_SIZE]));
+			// KeyParameter keeps its own copy
+			Arrays.fill(kp.getKey(), (byte) 0);
+		}
+
+		/**
+		 * wipes the key material, once the key is not used anymore
+		 */
+		void drop() {
+			dropped = true;
+			Arrays.fill(encoded, (byte) 0);
+			CFBBlockCipher c;
+			while ((c = allCiphers.poll()) != null) {
+				initCipher(c, encoded);
+			}
+		}
+	}
 
-		} catch (UnsupportedEncodingException e) {
-			logger.error("Unsupported encoding", e);
+	private volatile KeyState keyState = null;
+
+	private KeyState getKeyState(SecretKey key) {
+		KeyState ks = keyState;
+		if (ks == null || ks.key != key || ks.dropped) {
+			KeyState tmp = new KeyState(key);
+			synchronized (this) {
+				ks = keyState;
+				if (ks == null || ks.key != key || ks.dropped) {
+					if (ks != null) {
+						ks.drop();
+					}
+					ks = tmp;
+					keyState = ks;
+					tmp = null;
+				}
+			}
+			if (tmp != null) {
+				tmp.drop();
+			}
+		}
+		return ks;
+	}
+
+	private byte[] createLookupHash(String obfuscatedFileName, SecretKey obKey)
+			throws ObfuscationException {
+		try {
+			MessageDigest lookupvalueDigest = getDigest();
+			byte[] name = obfuscatedFileName.getBytes(NAME_CHARSET);
+			KeyState ks;
+			byte[] hash;
+			do {
+				ks = getKeyState(obKey);
+				lookupvalueDigest.update(name);
+				lookupvalueDigest.update(ks.encoded);
+				hash = lookupvalueDigest.digest();
+			} while (ks.dropped);
+			return hash;
+
+		} catch (NoSuchAlgorithmException e) {
 			throw new ObfuscationException(
-					"Error creating IV lookup value due to unsupported encoding!",
-					e);
+					"Error creating IV lookup value due to missing digest!", e);
 		}
 	}
 
@@ -150,15 +268,23 @@ public class Obfuscator {
 	 * @throws ObfuscationException
 	 */
 
-	public synchronized String deObfuscate(String str, SecretKey key)
+	public String deObfuscate(String str, SecretKey key)
 			throws MissingIVException, ObfuscationException {
 
-		logger.debug("Obfuscator("+this.shareName+") DeObfuscate(String, key): " + str);		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Obfuscator("+this.shareName+") DeObfuscate(String, key): " + str);
+		}
+		long start = System.nanoTime();
 
 		// lookup in cache
-		if (cachedDeObfuscatedNames.containsKey(str)) {
-			logger.debug("DeObfuscate(String, key) - return cached value for: " + str);
-			return cachedDeObfuscatedNames.get(str);
+		String cached = cachedDeObfuscatedNames.get(str);
+		if (cached != null) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("DeObfuscate(String, key) - return cached value for: " + str);
+			}
+			statistics.deobfuscateHits.incrementAndGet();
+			statistics.deobfuscate.record(System.nanoTime() - start);
+			return cached;
 		}
 
 		// if not in cache, do processing
@@ -168,10 +294,12 @@ public class Obfuscator {
 		byte[] iv = ivPoolImpl.getCachedIV(sLookupHash, this.shareName);
 
 		if (null == iv) {
-			// re-read IVs from file-system or server
-			logger.debug("Obfuscator: RE-fetch IV Pool");
-			ivPoolImpl.fetchIVPool(this.sharePath, this.shareName);
-			iv = ivPoolImpl.getCachedIV(sLookupHash, this.shareName);
+			// look up IV in file-system or server
+			logger.debug("Obfuscator: fetch IV for " + sLookupHash);
+			long fetchStart = System.nanoTime();
+			iv = ivPoolImpl.fetchIV(this.sharePath, this.shareName,
+					sLookupHash);
+			statistics.ivPoolFetch.record(System.nanoTime() - fetchStart);
 
 			// // "direct" IV lookup
 			// char firstChar = base64LookupHash.toUpperCase().charAt(0);
@@ -193,6 +321,7 @@ public class Obfuscator {
 			// error cannot decode
 			logger.error("Could not find IV for hash: " + sLookupHash
 					+ " generated from obfuscate file: " + str);
+			statistics.missingIVs.incrementAndGet();
 			throw new MissingIVException("Could not find IV for hash: "
 					+ sLookupHash + " generated from obfuscate file: " + str,
 					sLookupHash);
@@ -200,12 +329,9 @@ public class Obfuscator {
 
 		String originalName = null;
 		try {
-			originalName = decryptFileName(str, key.getEncoded(), iv, false,
+			originalName = decryptFileName(str, key, iv, false,
 					EncodingType.BASE64);
-		} catch (InvalidKeyException | NoSuchAlgorithmException
-				| NoSuchPaddingException | InvalidAlgorithmParameterException
-				| IllegalBlockSizeException | BadPaddingException
-				| DataFormatException | IOException e) {
+		} catch (DataFormatException | IOException e) {
 			logger.error("Could not deobfuscate string: " + str, e);
 			throw new ObfuscationException("Could not decrypt string: " + str,
 					e);
@@ -213,49 +339,113 @@ public class Obfuscator {
 
 		// do caching
 		cachedDeObfuscatedNames.put(str, originalName);
+		statistics.deobfuscate.record(System.nanoTime() - start);
 
-		logger.debug("Obfuscator("+this.shareName+") DeObfuscate(String, key)-return: " + originalName);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Obfuscator("+this.shareName+") DeObfuscate(String, key)-return: " + originalName);
+		}
 		return originalName;
 
 	}
 
-	private MessageDigest ivDigest;
+	/**
+	 * Deobfuscates several strings with the given key at once, e.g. all names
+	 * of a directory listing. Lookup hashes of all names missing from the
+	 * cache are computed first and their IVs are resolved by the IV pool in a
+	 * single pass.
+	 * 
+	 * @param strs
+	 *            - strings to deobfuscate
+	 * @param key
+	 *            - symmetric key used to decrypt the strings
+	 * @return map of the given strings to their deobfuscated values. Strings
+	 *         without IV or which could not be decrypted are omitted, callers
+	 *         may use {@link #deObfuscate(String, SecretKey)} for handling
+	 *         them individually.
+	 * @throws ObfuscationException
+	 */
+	public Map<String, String> deObfuscateAll(Collection<String> strs,
+			SecretKey key) throws ObfuscationException {
+		logger.debug("Obfuscator(" + this.shareName
+				+ ") DeObfuscateAll(Collection, key): " + strs.size()
+				+ " names");
+
+		Map<String, String> ret = new HashMap<String, String>(
+				strs.size() * 4 / 3 + 1);
+		List<String> missing = new ArrayList<String>();
+		for (String str : strs) {
+			String cached = cachedDeObfuscatedNames.get(str);
+			if (cached != null) {
+				ret.put(str, cached);
+			} else {
+				missing.add(str);
+			}
+		}
+		statistics.deobfuscateBatched.addAndGet(strs.size());
+		statistics.deobfuscateHits.addAndGet(ret.size());
+		if (missing.isEmpty()) {
+			return ret;
+		}
+
+		List<String> lookupHashes = new ArrayList<String>(missing.size());
+		for (String str : missing) {
+			lookupHashes.add(Utils.bytesToHex(createLookupHash(str, key)));
+		}
+		long fetchStart = System.nanoTime();
+		Map<String, byte[]> ivs = ivPoolImpl.fetchIVs(this.sharePath,
+				this.shareName, lookupHashes);
+		statistics.ivPoolFetch.record(System.nanoTime() - fetchStart);
+
+		for (int i = 0; i < missing.size(); i++) {
+			String str = missing.get(i);
+			byte[] iv = ivs.get(lookupHashes.get(i));
+			if (iv == null) {
+				logger.debug("DeObfuscateAll(Collection, key) - no IV for: "
+						+ str);
+				continue;
+			}
+			try {
+				String originalName = decryptFileName(str, key, iv, false,
+						EncodingType.BASE64);
+				cachedDeObfuscatedNames.put(str, originalName);
+				ret.put(str, originalName);
+			} catch (DataFormatException | IOException e) {
+				logger.error("Could not deobfuscate string: " + str, e);
+			}
+		}
+		return ret;
+	}
 
-	private synchronized byte[] createIV(String originalFileName,
-			SecretKey obKey) throws ObfuscationException {
+	private byte[] createIV(String originalFileName, SecretKey obKey)
+			throws ObfuscationException {
 		try {
-			ivDigest.update(originalFileName
-					.getBytes(PanboxConstants.STANDARD_CHARSET));
-			ivDigest.update(obKey.getEncoded());
-			byte[] hash = ivDigest.digest();
+			MessageDigest ivDigest = getDigest();
+			byte[] name = originalFileName.getBytes(NAME_CHARSET);
+			KeyState ks;
+			byte[] hash;
+			do {
+				ks = getKeyState(obKey);
+				ivDigest.update(name);
+				ivDigest.update(ks.encoded);
+				hash = ivDigest.digest();
+			} while (ks.dropped);
 
 			// truncate to IV size
 			return Arrays.copyOf(hash, KeyConstants.SYMMETRIC_BLOCK_SIZE);
 
-		} catch (UnsupportedEncodingException e) {
-			logger.error("Unsupported encoding", e);
+		} catch (NoSuchAlgorithmException e) {
 			throw new ObfuscationException(
-					"Error creating IV for filename due to unsupported encoding!",
-					e);
+					"Error creating IV for filename due to missing digest!", e);
 		}
 	}
 
-	private synchronized void createIVFile(byte[] iv, String encryptedName,
+	private void createIVFile(byte[] iv, String encryptedName,
 			SecretKey key) throws ObfuscationException {
 		// store IV in pool
-		String ivhex = Utils.bytesToHex(iv);
 		byte[] lookupHashBytes = createLookupHash(encryptedName, key);
 		String lookupHashStr = Utils.bytesToHex(lookupHashBytes);
-
-		char firstChar = lookupHashStr.toUpperCase().charAt(0);
-
-		File dirs = getIVPoolSubDir(firstChar);
-
-		// java based file creation
-		File ivFile = new File(dirs.getAbsolutePath() + File.separator
-				+ lookupHashStr + ivhex);
 		try {
-			ivFile.createNewFile();
+			ivPoolImpl.storeIV(this.sharePath, lookupHashStr, iv);
 		} catch (IOException e) {
 			logger.error("Unable to create IV sidecar file!", e);
 			throw new ObfuscationException("Unable to create IV sidecar file!",
@@ -263,6 +453,36 @@ public class Obfuscator {
 		}
 	}
 
+	/**
+	 * releases resources held by the IV pool of this instance and wipes the
+	 * key material derived from the obfuscation key
+	 */
+	public void close() {
+		ivPoolImpl.close();
+		KeyState ks;
+		synchronized (this) {
+			ks = keyState;
+			keyState = null;
+		}
+		if (ks != null) {
+			ks.drop();
+		}
+	}
+
+	/**
+	 * @return name of the share of this instance
+	 */
+	public String getShareName() {
+		return shareName;
+	}
+
+	/**
+	 * @return cache and latency statistics of this instance
+	 */
+	public ObfuscatorStatistics getStatistics() {
+		return statistics;
+	}
+
 	/**
 	 * Obfuscates a string with the given key and encodes it with a fixed
 	 * encoding
@@ -278,14 +498,17 @@ public class Obfuscator {
 	 * @throws ObfuscationException
 	 *             if obfuscation failed for some reason
 	 */
-	public synchronized String obfuscate(String str, SecretKey key,
+	public String obfuscate(String str, SecretKey key,
 			boolean createiv) throws ObfuscationException {
 
-		logger.debug("Obfuscator("+this.shareName+") Obfuscate(String, key): " + str + " with createiv=? "
-				+ createiv);
-		String encryptedName = null;
-		if (cachedObfuscatedNames.containsKey(str)) {
-			encryptedName = cachedObfuscatedNames.get(str);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Obfuscator("+this.shareName+") Obfuscate(String, key): " + str + " with createiv=? "
+					+ createiv);
+		}
+		long start = System.nanoTime();
+		String encryptedName = cachedObfuscatedNames.get(str);
+		if (encryptedName != null) {
+			statistics.obfuscateHits.incrementAndGet();
 
 			// logger.debug("obfuscate() return cached value " + encryptedName +
 			// " for plain str: " + str);
@@ -305,11 +528,7 @@ public class Obfuscator {
 			try {
 				encryptedName = encryptFileName(str, key, iv, zip,
 						EncodingType.BASE64);
-			} catch (InvalidKeyException | NoSuchAlgorithmException
-					| NoSuchPaddingException
-					| InvalidAlgorithmParameterException
-					| IllegalBlockSizeException | BadPaddingException
-					| IOException e) {
+			} catch (IOException e) {
 				logger.error("Could not obfuscate string: " + str, e);
 				throw new ObfuscationException("Could not obfuscate string: "
 						+ str, e);
@@ -322,21 +541,42 @@ public class Obfuscator {
 			}
 
 		}
-		logger.debug("Obfuscator("+this.shareName+") Obfuscate(String, key)-return: " + encryptedName);
+		statistics.obfuscate.record(System.nanoTime() - start);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Obfuscator("+this.shareName+") Obfuscate(String, key)-return: " + encryptedName);
+		}
 		return encryptedName;
 	}
 
+	/**
+	 * en- or decrypts the given data with the engine of the current thread,
+	 * which already is initialized with the given key
+	 * 
+	 * @param key
+	 * @param encrypt
+	 * @param iv
+	 * @param data
+	 * @return
+	 */
+	private byte[] crypt(SecretKey key, boolean encrypt, byte[] iv,
+			byte[] data) {
+		byte[] res = new byte[data.length];
+		KeyState ks;
+		do {
+			ks = getKeyState(key);
+			CFBBlockCipher c = ks.getCipher();
+			// no key parameter, the engine keeps its key schedule
+			c.init(encrypt, new ParametersWithIV(null, iv));
+			c.processBytes(data, 0, data.length, res, 0);
+		} while (ks.dropped);
+		return res;
+	}
+
 	private String encryptFileName(String filename, SecretKey key, byte[] iv,
-			boolean zip, EncodingType encoding)
-			throws NoSuchAlgorithmException, NoSuchPaddingException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException {
+			boolean zip, EncodingType encoding) throws IOException {
 		// System.out.println("Original String ("+filename.length()+" chars):\t"
 		// + filename);
 
-		IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-		encryptCipher.init(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
-
 		byte[] encryptedBytes;
 		if (zip) {
 			// test zip filename
@@ -347,12 +587,12 @@ public class Obfuscator {
 			// .getBytes().length) * 100 + "%) OrigName bytes: "
 			// + filename.getBytes().length + " Zipped bytes: "
 			// + zippedFileName.length);
-			encryptedBytes = encryptCipher.doFinal(zippedFileName);
+			encryptedBytes = crypt(key, true, iv, zippedFileName);
 		} else {
 			// if we do not have UTF-8, convert the filename to UTF-8
-			byte[] bytes = filename.getBytes(PanboxConstants.STANDARD_CHARSET);
+			byte[] bytes = filename.getBytes(NAME_CHARSET);
 			// encryptedBytes = encryptCipher.doFinal(filename.getBytes());
-			encryptedBytes = encryptCipher.doFinal(bytes);
+			encryptedBytes = crypt(key, true, iv, bytes);
 		}
 
 		// String text = Base64.encodeBase64URLSafeString(encryptedBytes);
@@ -363,23 +603,13 @@ public class Obfuscator {
 		return text;
 	}
 
-	private String decryptFileName(String filename, byte[] key, byte[] iv,
-			boolean zip, EncodingType encoding)
-			throws NoSuchAlgorithmException, NoSuchPaddingException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException,
-			DataFormatException, IOException {
+	private String decryptFileName(String filename, SecretKey key, byte[] iv,
+			boolean zip, EncodingType encoding) throws DataFormatException,
+			IOException {
 		// byte[] encFileName = Base64.decodeBase64(filename);
 		byte[] encFileName = EncodingHelper.decodeString(filename, encoding);
 
-		Cipher decryptCipher = encryptCipher;
-
-		IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-		SecretKeySpec aesKeySpec = new SecretKeySpec(key, "AES");
-
-		decryptCipher.init(Cipher.DECRYPT_MODE, aesKeySpec, ivParameterSpec);
-
-		byte[] decryptedBytes = decryptCipher.doFinal(encFileName);
+		byte[] decryptedBytes = crypt(key, false, iv, encFileName);
 
 		String decoded;
 
@@ -390,8 +620,7 @@ public class Obfuscator {
 
 			// since we now force the conversion to UTF-8, we expect the
 			// decrypted filename to be in UTF-8
-			decoded = new String(decryptedBytes,
-					PanboxConstants.STANDARD_CHARSET);
+			decoded = new String(decryptedBytes, NAME_CHARSET);
 		}
 
 		// System.out.println("Decrypted String:\t" + decoded);
@@ -417,57 +646,110 @@ public class Obfuscator {
 	public String obfuscatePath(String path, SecretKey key, boolean createivs)
 			throws ObfuscationException {
 
-		logger.debug("ObfuscatePath: " + path);
-
-		String[] dirs = {};
-		String newPath = "";
+		if (logger.isDebugEnabled()) {
+			logger.debug("ObfuscatePath: " + path);
+		}
 
-		if (!path.equals(File.separator)) {
-			String splitter = File.separator.toString();
-			if (os.isWindows()) {
-				// WINx
-				splitter += File.separator;
-			}
-			if (path.startsWith(File.separator)) {
-				dirs = path.substring(1).split(splitter);
-			} else {
-				dirs = path.split(splitter);
-			}
-			for (String dir : dirs) {
-				newPath += File.separator + obfuscate(dir, key, createivs);
-			}
-		} else {
+		if (path.equals(File.separator)) {
 			logger.debug("ObfuscatePath-return: " + path);
 			return path;
 		}
-		logger.debug("ObfuscatePath-return: " + newPath);
+
+		String[] dirs = splitPath(path);
+		String[] obfDirs = new String[dirs.length];
+		int resolved = pathCache.lookupPlain(dirs, obfDirs);
+		int known = resolved;
+		for (int i = resolved; i < dirs.length; i++) {
+			obfDirs[i] = obfuscate(dirs[i], key, createivs);
+			if (known == i && (createivs || hasIV(dirs[i], obfDirs[i]))) {
+				known++;
+			}
+		}
+		// only cache prefixes whose IV sidecar files are known to exist
+		if (known > resolved) {
+			pathCache.put(dirs, obfDirs, known);
+		}
+
+		String newPath = joinPath(obfDirs);
+		if (logger.isDebugEnabled()) {
+			logger.debug("ObfuscatePath-return: " + newPath);
+		}
 		return newPath;
 	}
 
 	public String deObfuscatePath(String path, SecretKey obfuscationKey)
 			throws MissingIVException, ObfuscationException {
-		logger.debug("DeObfuscatePath: " + path);
+		if (logger.isDebugEnabled()) {
+			logger.debug("DeObfuscatePath: " + path);
+		}
 
-		String[] dirs = {};
-		StringBuffer newPath = new StringBuffer(path);
+		if (path.equals(File.separator)) {
+			logger.debug("DeObfuscatePath-return: " + path);
+			return path;
+		}
 
-		if (!newPath.toString().equals(File.separator)) {
-			if (os.isWindows()) {
-				// WINx
-				dirs = newPath.substring(1).split(
-						File.separator + File.separator);
-			} else {
-				// LINUX
-				dirs = newPath.substring(1).split(File.separator);
-			}
-			newPath.delete(0, newPath.length());
-			for (String dir : dirs) {
-				newPath.append(File.separator);
-				newPath.append(deObfuscate(dir, obfuscationKey));
-			}
+		String[] dirs = splitPath(path);
+		String[] plainDirs = new String[dirs.length];
+		int resolved = pathCache.lookupObfuscated(dirs, plainDirs);
+		for (int i = resolved; i < dirs.length; i++) {
+			plainDirs[i] = deObfuscate(dirs[i], obfuscationKey);
+		}
+		if (resolved < dirs.length) {
+			pathCache.put(plainDirs, dirs, dirs.length);
+		}
+
+		String newPath = joinPath(plainDirs);
+		if (logger.isDebugEnabled()) {
+			logger.debug("DeObfuscatePath-return: " + newPath);
 		}
-		logger.debug("DeObfuscatePath-return: " + newPath.toString());
-		return newPath.toString();
+		return newPath;
+	}
+
+	/**
+	 * Removes the given path and any paths below it from the path cache, e.g.
+	 * after it has been deleted or renamed.
+	 * 
+	 * @param path
+	 *            - plaintext path relative to the share
+	 */
+	public void invalidatePath(String path) {
+		logger.debug("InvalidatePath: " + path);
+		if (path.equals(File.separator)) {
+			pathCache.clear();
+		} else {
+			pathCache.remove(splitPath(path));
+		}
+	}
+
+	private String[] splitPath(String path) {
+		String splitter = File.separator;
+		if (os.isWindows()) {
+			// WINx
+			splitter += File.separator;
+		}
+		if (path.startsWith(File.separator)) {
+			return path.substring(1).split(splitter);
+		} else {
+			return path.split(splitter);
+		}
+	}
+
+	private static String joinPath(String[] dirs) {
+		StringBuilder sb = new StringBuilder();
+		for (String dir : dirs) {
+			sb.append(File.separator);
+			sb.append(dir);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return <code>true</code> if the IV sidecar file of the given name is
+	 *         known to exist, as it has been created or looked up before
+	 */
+	private boolean hasIV(String plain, String obfuscated) {
+		return obfuscated.equals(cachedObfuscatedNames.get(plain))
+				|| plain.equals(cachedDeObfuscatedNames.get(obfuscated));
 	}
 
 	/**
@@ -483,8 +765,23 @@ public class Obfuscator {
 	 * @return proposed new obfuscated filename, or <code>null</code>, if
 	 *         conflict resolution was not successful
 	 */
-	public synchronized String resolveConflictCandidate(String path,
+	public String resolveConflictCandidate(String path,
 			SecretKey key) throws ObfuscationException {
+		long start = System.nanoTime();
+		String ret = null;
+		try {
+			ret = doResolveConflictCandidate(path, key);
+			return ret;
+		} finally {
+			statistics.conflictResolution.record(System.nanoTime() - start);
+			if (ret == null) {
+				statistics.conflictResolutionFailures.incrementAndGet();
+			}
+		}
+	}
+
+	private String doResolveConflictCandidate(String path, SecretKey key)
+			throws ObfuscationException {
 		logger.debug("Checking potential conflict candidate " + path);
 		String[] dirs = {};
 		StringBuffer newPath = new StringBuffer(path);
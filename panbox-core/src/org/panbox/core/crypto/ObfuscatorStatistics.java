@@ -0,0 +1,224 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.panbox.core.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of the {@link Obfuscator} of a single
+ * share, e.g. for sizing its name caches or spotting shares whose IV pool is
+ * re-read frequently.
+ *
+ * Deobfuscation counts include names deobfuscated in batches by
+ * {@link Obfuscator#deObfuscateAll(java.util.Collection, javax.crypto.SecretKey)}
+ * , whose latency is recorded as a single IV pool fetch.
+ */
+public class ObfuscatorStatistics implements ObfuscatorStatisticsMBean {
+
+	private final String shareName;
+
+	final LatencyHistogram obfuscate = new LatencyHistogram();
+
+	final AtomicLong obfuscateHits = new AtomicLong();
+
+	final LatencyHistogram deobfuscate = new LatencyHistogram();
+
+	final AtomicLong deobfuscateHits = new AtomicLong();
+
+	/**
+	 * names deobfuscated in batches
+	 */
+	final AtomicLong deobfuscateBatched = new AtomicLong();
+
+	final AtomicLong missingIVs = new AtomicLong();
+
+	/**
+	 * IV lookups which could not be answered from the cache
+	 */
+	final LatencyHistogram ivPoolFetch = new LatencyHistogram();
+
+	/**
+	 * complete reads of the IV pool
+	 */
+	final LatencyHistogram ivPoolLoad = new LatencyHistogram();
+
+	final LatencyHistogram conflictResolution = new LatencyHistogram();
+
+	final AtomicLong conflictResolutionFailures = new AtomicLong();
+
+	public ObfuscatorStatistics(String shareName) {
+		this.shareName = shareName;
+	}
+
+	@Override
+	public String getShareName() {
+		return shareName;
+	}
+
+	@Override
+	public long getObfuscateCount() {
+		return obfuscate.getCount();
+	}
+
+	@Override
+	public long getObfuscateCacheHits() {
+		return obfuscateHits.get();
+	}
+
+	@Override
+	public double getObfuscateMeanMicros() {
+		return obfuscate.getMeanMicros();
+	}
+
+	@Override
+	public double getObfuscateP99Micros() {
+		return obfuscate.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getDeobfuscateCount() {
+		return deobfuscate.getCount() + deobfuscateBatched.get();
+	}
+
+	@Override
+	public long getDeobfuscateCacheHits() {
+		return deobfuscateHits.get();
+	}
+
+	@Override
+	public double getDeobfuscateMeanMicros() {
+		return deobfuscate.getMeanMicros();
+	}
+
+	@Override
+	public double getDeobfuscateP99Micros() {
+		return deobfuscate.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getMissingIVCount() {
+		return missingIVs.get();
+	}
+
+	@Override
+	public long getIVPoolFetchCount() {
+		return ivPoolFetch.getCount();
+	}
+
+	@Override
+	public double getIVPoolFetchMeanMicros() {
+		return ivPoolFetch.getMeanMicros();
+	}
+
+	@Override
+	public double getIVPoolFetchP99Micros() {
+		return ivPoolFetch.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getIVPoolLoadCount() {
+		return ivPoolLoad.getCount();
+	}
+
+	@Override
+	public double getIVPoolLoadMeanMicros() {
+		return ivPoolLoad.getMeanMicros();
+	}
+
+	@Override
+	public long getConflictResolutionCount() {
+		return conflictResolution.getCount();
+	}
+
+	@Override
+	public long getConflictResolutionFailures() {
+		return conflictResolutionFailures.get();
+	}
+
+	@Override
+	public double getConflictResolutionMeanMicros() {
+		return conflictResolution.getMeanMicros();
+	}
+
+	/**
+	 * records a complete read of the IV pool
+	 *
+	 * @param nanos
+	 */
+	public void recordIVPoolLoad(long nanos) {
+		ivPoolLoad.record(nanos);
+	}
+
+	@Override
+	public void reset() {
+		obfuscate.reset();
+		obfuscateHits.set(0);
+		deobfuscate.reset();
+		deobfuscateHits.set(0);
+		deobfuscateBatched.set(0);
+		missingIVs.set(0);
+		ivPoolFetch.reset();
+		ivPoolLoad.reset();
+		conflictResolution.reset();
+		conflictResolutionFailures.set(0);
+	}
+
+	/**
+	 * @return all values as (name, value) pairs, e.g. for the DBus interface
+	 */
+	public String[][] toTable() {
+		return new String[][] {
+				{ "ObfuscateCount", String.valueOf(getObfuscateCount()) },
+				{ "ObfuscateCacheHits", String.valueOf(getObfuscateCacheHits()) },
+				{ "ObfuscateMeanMicros", format(getObfuscateMeanMicros()) },
+				{ "ObfuscateP99Micros", format(getObfuscateP99Micros()) },
+				{ "DeobfuscateCount", String.valueOf(getDeobfuscateCount()) },
+				{ "DeobfuscateCacheHits",
+						String.valueOf(getDeobfuscateCacheHits()) },
+				{ "DeobfuscateMeanMicros", format(getDeobfuscateMeanMicros()) },
+				{ "DeobfuscateP99Micros", format(getDeobfuscateP99Micros()) },
+				{ "MissingIVCount", String.valueOf(getMissingIVCount()) },
+				{ "IVPoolFetchCount", String.valueOf(getIVPoolFetchCount()) },
+				{ "IVPoolFetchMeanMicros", format(getIVPoolFetchMeanMicros()) },
+				{ "IVPoolFetchP99Micros", format(getIVPoolFetchP99Micros()) },
+				{ "IVPoolLoadCount", String.valueOf(getIVPoolLoadCount()) },
+				{ "IVPoolLoadMeanMicros", format(getIVPoolLoadMeanMicros()) },
+				{ "ConflictResolutionCount",
+						String.valueOf(getConflictResolutionCount()) },
+				{ "ConflictResolutionFailures",
+						String.valueOf(getConflictResolutionFailures()) },
+				{ "ConflictResolutionMeanMicros",
+						format(getConflictResolutionMeanMicros()) } };
+	}
+
+	private static String format(double d) {
+		return String.format(Locale.ENGLISH, "%.1f", d);
+	}
+}
@@ -84,10 +84,21 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 	public final static String CIPHER_CHUNK = "AES/CBC/NoPadding";
 	// 1-byte CFB for the last chunk
 	public final static String CIPHER_LASTCHUNK = "AES/CFB8/NoPadding";
-	private Cipher lastChunkCipher;
 
 	protected void initParams() {
-		BLOCK_LENGTH = encCipher.getBlockSize();
+		Cipher cipher = null;
+		try {
+			cipher = CryptoEnginePool.borrowCipher(CIPHER_CHUNK,
+					getCryptoProvider());
+			BLOCK_LENGTH = cipher.getBlockSize();
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException
+				| NoSuchProviderException e) {
+			throw new IllegalStateException("Unable to initialize cipher "
+					+ CIPHER_CHUNK + ": " + e.getMessage(), e);
+		} finally {
+			CryptoEnginePool.releaseCipher(CIPHER_CHUNK, getCryptoProvider(),
+					cipher);
+		}
 		CHUNK_IV_SIZE = BLOCK_LENGTH;
 		CHUNK_DATA_SIZE = CHUNK_MULTIPLE * BLOCK_LENGTH;
 		CHUNK_SIZE = CHUNK_DATA_SIZE + CHUNK_IV_SIZE;
@@ -110,14 +121,99 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 			NoSuchPaddingException, InvalidKeyException,
 			RandomDataGenerationException, InvalidAlgorithmParameterException,
 			NoSuchProviderException {
-
-		this.encCipher = Cipher.getInstance(CIPHER_CHUNK, getCryptoProvider());
-		this.decCipher = Cipher.getInstance(CIPHER_CHUNK, getCryptoProvider());
-		this.lastChunkCipher = Cipher.getInstance(CIPHER_LASTCHUNK,
-				getCryptoProvider());
+		// chunk ciphers are borrowed from the CryptoEnginePool on demand
 		this.srWrapper = SecureRandomWrapper.getInstance();
 	}
 
+	/**
+	 * ciphers for {@link #CIPHER_CHUNK} which still are initialized with the
+	 * file key
+	 */
+	private final CryptoEnginePool.KeyedEngines<Cipher> keyedChunkCiphers = createKeyedCiphers(CIPHER_CHUNK);
+
+	/**
+	 * ciphers for {@link #CIPHER_LASTCHUNK} which still are initialized with
+	 * the file key
+	 */
+	private final CryptoEnginePool.KeyedEngines<Cipher> keyedLastChunkCiphers = createKeyedCiphers(CIPHER_LASTCHUNK);
+
+	private CryptoEnginePool.KeyedEngines<Cipher> createKeyedCiphers(
+			final String transformation) {
+		return new CryptoEnginePool.KeyedEngines<Cipher>(
+				new CryptoEnginePool.EngineEvictor<Cipher>() {
+					@Override
+					public void evict(Cipher cipher) {
+						CryptoEnginePool.releaseCipher(transformation,
+								getCryptoProvider(), cipher);
+					}
+				});
+	}
+
+	private CryptoEnginePool.KeyedEngines<Cipher> getKeyedCiphers(
+			String transformation) {
+		return CIPHER_LASTCHUNK.equals(transformation) ? keyedLastChunkCiphers
+				: keyedChunkCiphers;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.EncRandomAccessFile#releaseKeyedEngines()
+	 */
+	@Override
+	protected void releaseKeyedEngines() {
+		keyedChunkCiphers.clear();
+		keyedLastChunkCiphers.clear();
+	}
+
+	/**
+	 * en- or decrypts the given data with the file key, using a cipher for
+	 * the given transformation which either has already been initialized with
+	 * the file key or is borrowed from the {@link CryptoEnginePool}
+	 * 
+	 * @param transformation
+	 * @param mode
+	 * @param spec
+	 * @param data
+	 * @return
+	 * @throws FileEncryptionException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private byte[] crypt(String transformation, int mode,
+			IvParameterSpec spec, byte[] data) throws FileEncryptionException,
+			InvalidKeyException, InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException {
+		SecretKey key = getFileKey();
+		CryptoEnginePool.KeyedEngines<Cipher> keyedCiphers = getKeyedCiphers(transformation);
+		Cipher cipher = null;
+		boolean keyed = false;
+		try {
+			cipher = keyedCiphers.poll(key);
+			if (cipher == null) {
+				cipher = CryptoEnginePool.borrowCipher(transformation,
+						getCryptoProvider());
+			}
+			cipher.init(mode, key, spec);
+			keyed = true;
+			return cipher.doFinal(data);
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException
+				| NoSuchProviderException e) {
+			throw new FileEncryptionException("Unable to initialize cipher "
+					+ transformation + ": " + e.getMessage(), e);
+		} finally {
+			if (keyed) {
+				keyedCiphers.offer(key, cipher);
+			} else {
+				CryptoEnginePool.releaseCipher(transformation,
+						getCryptoProvider(), cipher);
+			}
+		}
+	}
+
 	/**
 	 * Helper method for reading and decrypting a single chunk within the file
 	 * 
@@ -148,7 +244,6 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 		}
 
 		IvParameterSpec spec = new IvParameterSpec(iv);
-		decCipher.init(Cipher.DECRYPT_MODE, getFileKey(), spec);
 
 		byte[] res;
 		byte[] buf = new byte[CHUNK_ENC_DATA_SIZE];
@@ -162,7 +257,7 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 		}
 
 		// decrypt data
-		res = decCipher.doFinal(buf);
+		res = crypt(CIPHER_CHUNK, Cipher.DECRYPT_MODE, spec, buf);
 		if ((res == null) || (res.length != CHUNK_DATA_SIZE)) {
 			throw new FileEncryptionException(
 					"Decryption error or chunk size mismatch during decryption!");
@@ -217,7 +312,6 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 
 		// initialize cipher with corresponding chunk IV
 		IvParameterSpec spec = new IvParameterSpec(iv);
-		lastChunkCipher.init(Cipher.DECRYPT_MODE, getFileKey(), spec);
 
 		// adjust number of remaining bytes for reading encrypted data
 		nRemaining -= CHUNK_IV_SIZE;
@@ -233,7 +327,7 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 		}
 
 		// decrypt data
-		res = lastChunkCipher.doFinal(buf);
+		res = crypt(CIPHER_LASTCHUNK, Cipher.DECRYPT_MODE, spec, buf);
 		if ((res == null) || (res.length != (nRemaining - CHUNK_TLEN))) {
 			throw new FileEncryptionException(
 					"Decryption error or chunk size mismatch during decryption!");
@@ -265,11 +359,11 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 		// initialize cipher with corresponding chunk IV
 		byte[] iv = generateRandomChunkIV();
 		IvParameterSpec spec = new IvParameterSpec(iv);
-		encCipher.init(Cipher.ENCRYPT_MODE, getFileKey(), spec);
 
 		// no need to use update(). cipher iterates over blocks & chunk is
 		// held in memory anyway
-		byte[] encChunk = encCipher.doFinal(buffer);
+		byte[] encChunk = crypt(CIPHER_CHUNK, Cipher.ENCRYPT_MODE, spec,
+				buffer);
 
 		if (encChunk == null || encChunk.length != CHUNK_ENC_DATA_SIZE) {
 			throw new FileEncryptionException(
@@ -311,9 +405,8 @@ public class AESCBCRandomAccessFile extends EncRandomAccessFile {
 		byte[] iv = generateRandomChunkIV();
 		IvParameterSpec spec = new IvParameterSpec(iv);
 
-		lastChunkCipher.init(Cipher.ENCRYPT_MODE, getFileKey(), spec);
-
-		byte[] encChunk = lastChunkCipher.doFinal(buffer);
+		byte[] encChunk = crypt(CIPHER_LASTCHUNK, Cipher.ENCRYPT_MODE, spec,
+				buffer);
 
 		// length of plaintext should match ciphertext minus length of the
 		// authentication tag
@@ -28,6 +28,7 @@ package org.panbox.core.crypto.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -42,6 +43,7 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 
 import org.apache.log4j.Logger;
@@ -80,16 +82,6 @@ public class AESGCMRandomAccessFile extends AbstractAESGCMRandomAccessFile {
 		return KeyConstants.PROV_BC;
 	}
 
-	@Override
-	protected void initCiphers() throws NoSuchAlgorithmException,
-			NoSuchPaddingException, InvalidKeyException,
-			RandomDataGenerationException, InvalidAlgorithmParameterException,
-			NoSuchProviderException {
-		super.initCiphers();
-		this.encCipher = Cipher.getInstance(CIPHER_CHUNK, getCryptoProvider());
-		this.decCipher = Cipher.getInstance(CIPHER_CHUNK, getCryptoProvider());
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -98,282 +90,183 @@ public class AESGCMRandomAccessFile extends AbstractAESGCMRandomAccessFile {
 	 */
 	@Override
 	int getBlockSize() {
-		return encCipher.getBlockSize();
-	}
-
-	@Override
-	protected byte[] _readChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException {
-		// first, get chunk iv for decryption
-		long oldpos = backingRandomAccessFile.getFilePointer();
-		backingRandomAccessFile.seek(chunkOffset(index));
-
-		// read iv
-		byte[] iv = new byte[CHUNK_IV_SIZE];
-		int ret = backingRandomAccessFile.read(iv);
-		if (ret != CHUNK_IV_SIZE) {
-			throw new FileEncryptionException("Size mismatch reading chunk IV!");
-		}
-
-		GCMParameterSpec spec = new GCMParameterSpec(
-				GCM_AUTHENTICATION_TAG_LEN, iv);
-		byte[] res, buf;
+		Cipher cipher = null;
 		try {
-			decCipher.init(Cipher.DECRYPT_MODE, getFileKey(), spec);
-
-			// set chunk metadata for verifying metadata integrity
-
-			// index of current chunk
-			decCipher.updateAAD(LongByteConv.long2Bytes(index));
-			// flag indicating if we're writing the last chunk
-			decCipher.updateAAD(BooleanByteConv.bool2byte(false));
+			cipher = borrowCipher();
+			return cipher.getBlockSize();
+		} catch (NoSuchAlgorithmException | NoSuchProviderException
+				| NoSuchPaddingException e) {
+			throw new IllegalStateException("Unable to initialize cipher "
+					+ CIPHER_CHUNK + ": " + e.getMessage(), e);
+		} finally {
+			releaseCipher(cipher);
+		}
+	}
 
-			buf = new byte[CHUNK_ENC_DATA_SIZE];
+	/**
+	 * borrows a cipher for en- or decrypting a single chunk from the
+	 * {@link CryptoEnginePool}, so chunks may be processed without holding
+	 * this instance's monitor
+	 */
+	private Cipher borrowCipher() throws NoSuchAlgorithmException,
+			NoSuchProviderException, NoSuchPaddingException {
+		return CryptoEnginePool.borrowCipher(CIPHER_CHUNK, getCryptoProvider());
+	}
 
-			ret = backingRandomAccessFile.read(buf);
-			backingRandomAccessFile.seek(oldpos);
+	private void releaseCipher(Cipher cipher) {
+		CryptoEnginePool.releaseCipher(CIPHER_CHUNK, getCryptoProvider(),
+				cipher);
+	}
 
-			if (ret != CHUNK_ENC_DATA_SIZE) {
-				throw new FileEncryptionException(
-						"Size mismatch reading encrypted chunk data!");
-			}
+	/**
+	 * ciphers which still are initialized with the file key
+	 */
+	private final CryptoEnginePool.KeyedEngines<Cipher> keyedCiphers = new CryptoEnginePool.KeyedEngines<Cipher>(
+			new CryptoEnginePool.EngineEvictor<Cipher>() {
+				@Override
+				public void evict(Cipher cipher) {
+					releaseCipher(cipher);
+				}
+			});
 
-			// decrypt data
-			res = decCipher.doFinal(buf);
-		} catch (AEADBadTagException e) {
-			throw new FileIntegrityException("Decryption error in chunk "
-					+ index + ". Possible file integrity violation.", e);
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException
-				| IllegalBlockSizeException | BadPaddingException e) {
-			throw new FileEncryptionException("Decryption error in chunk "
-					+ index + ": " + e.getMessage(), e);
-		}
+	/**
+	 * @param key
+	 *            file key of the chunk operation
+	 * @return a cipher for the given key, preferably one which has already
+	 *         been initialized with it
+	 */
+	private Cipher borrowCipher(SecretKey key) throws NoSuchAlgorithmException,
+			NoSuchProviderException, NoSuchPaddingException {
+		Cipher cipher = keyedCiphers.poll(key);
+		return (cipher != null) ? cipher : borrowCipher();
+	}
 
-		if ((res == null) || (res.length != CHUNK_DATA_SIZE)) {
-			throw new FileEncryptionException(
-					"Decryption error or chunk size mismatch during decryption!");
+	/**
+	 * returns a cipher after a chunk operation. Ciphers which have been
+	 * initialized with the file key are kept for the next chunk, all others
+	 * are wiped and returned to the {@link CryptoEnginePool}.
+	 * 
+	 * @param key
+	 *            file key of the operation
+	 * @param cipher
+	 * @param keyed
+	 *            whether the cipher has been initialized with the file key
+	 */
+	private void releaseCipher(SecretKey key, Cipher cipher, boolean keyed) {
+		if (keyed) {
+			keyedCiphers.offer(key, cipher);
 		} else {
-			if (implementsAuthentication()) {
-				// check authentication tag for integrity
-				byte[] tag = Arrays.copyOfRange(buf, res.length, buf.length);
-				if (!getAuthTagVerifier().verifyChunkAuthTag((int) index, tag)) {
-					throw new FileIntegrityException(
-							"File authentication tag verification failed in chunk "
-									+ index);
-				}
-			}
-			return res;
+			releaseCipher(cipher);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.EncRandomAccessFile#releaseKeyedEngines()
+	 */
 	@Override
-	protected byte[] _readLastChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException {
-		// check how many bytes there are left to read
-		long nRemaining = backingRandomAccessFile.length()
-				- (chunkOffset(index));
-
-		// just to be sure
-		if (nRemaining > CHUNK_ENC_SIZE) {
-			throw new FileEncryptionException(
-					"Calculated size of size of last chunk bigger than default chunk size!");
-		} else if (nRemaining <= CHUNK_IV_SIZE) {
-			return new byte[] {};
-			// throw new FileEncryptionException(
-			// "Calculated size of size of last chunk smaller than minimum size!");
-		}
-
-		// get chunk iv for decryption
-		long oldpos = backingRandomAccessFile.getFilePointer();
-		backingRandomAccessFile.seek(chunkOffset(index));
-
-		// read iv
-		byte[] iv = new byte[CHUNK_IV_SIZE];
-		int ret = backingRandomAccessFile.read(iv);
-		if (ret != CHUNK_IV_SIZE) {
-			throw new FileEncryptionException("Size mismatch reading chunk IV!");
-		}
-
-		// initialize cipher with corresponding chunk IV
-		GCMParameterSpec spec = new GCMParameterSpec(
-				GCM_AUTHENTICATION_TAG_LEN, iv);
+	protected void releaseKeyedEngines() {
+		keyedCiphers.clear();
+	}
 
-		byte[] res, buf;
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.panbox.core.crypto.io.AbstractAESGCMRandomAccessFile#decryptChunk
+	 * (java.nio.ByteBuffer, long, boolean)
+	 */
+	@Override
+	protected byte[] decryptChunk(ByteBuffer encChunk, long index,
+			boolean lastchunk) throws FileEncryptionException,
+			FileIntegrityException {
+		SecretKey key = getFileKey();
+		Cipher cipher = null;
+		boolean keyed = false;
 		try {
-			decCipher.init(Cipher.DECRYPT_MODE, getFileKey(), spec);
-
-			// set chunk metadata for verifying metadata integrity
-
-			// index of current chunk
-			decCipher.updateAAD(LongByteConv.long2Bytes(index));
-			// flag indicating if we're writing the last chunk
-			decCipher.updateAAD(BooleanByteConv.bool2byte(true));
-
-			// adjust number of remaining bytes for reading encrypted data
-			nRemaining -= CHUNK_IV_SIZE;
-
-			buf = new byte[(int) nRemaining];
+			cipher = borrowCipher(key);
 
-			ret = backingRandomAccessFile.read(buf);
-			backingRandomAccessFile.seek(oldpos);
+			byte[] iv = new byte[CHUNK_IV_SIZE];
+			encChunk.get(iv);
+			GCMParameterSpec spec = new GCMParameterSpec(
+					GCM_AUTHENTICATION_TAG_LEN, iv);
+			cipher.init(Cipher.DECRYPT_MODE, key, spec);
+			keyed = true;
 
-			if (ret != nRemaining) {
-				throw new FileEncryptionException(
-						"Size mismatch reading encrypted chunk data!");
-			}
+			// set chunk metadata for verifying metadata integrity
+			cipher.updateAAD(LongByteConv.long2Bytes(index));
+			cipher.updateAAD(BooleanByteConv.bool2byte(lastchunk));
 
-			// decrypt data
-			res = decCipher.doFinal(buf);
+			byte[] res = new byte[cipher.getOutputSize(encChunk.remaining())];
+			int decLen = cipher.doFinal(encChunk, ByteBuffer.wrap(res));
+			return (decLen == res.length) ? res : Arrays.copyOf(res, decLen);
 		} catch (AEADBadTagException e) {
 			throw new FileIntegrityException("Decryption error in chunk "
 					+ index + ". Possible file integrity violation.", e);
-		} catch (InvalidKeyException | InvalidAlgorithmParameterException
-				| IllegalBlockSizeException | BadPaddingException e) {
+		} catch (NoSuchAlgorithmException | NoSuchProviderException
+				| NoSuchPaddingException | InvalidKeyException
+				| InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException e) {
 			throw new FileEncryptionException("Decryption error in chunk "
 					+ index + ": " + e.getMessage(), e);
-		}
-
-		if ((res == null) || (res.length != (nRemaining - CHUNK_TLEN))) {
-			throw new FileEncryptionException(
-					"Decryption error or chunk size mismatch during decryption!");
-		} else {
-			if (implementsAuthentication()) {
-				// check authentication tag for integrity
-				byte[] tag = Arrays.copyOfRange(buf, res.length, buf.length);
-				if (!getAuthTagVerifier().verifyChunkAuthTag((int) index, tag)) {
-					throw new FileIntegrityException(
-							"File authentication tag verification failed in last chunk "
-									+ index);
-				}
-			}
-			return res;
+		} finally {
+			releaseCipher(key, cipher, keyed);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.AbstractAESGCMRandomAccessFile#encryptChunk
+	 * (byte[], long, boolean, java.nio.ByteBuffer)
+	 */
 	@Override
-	protected void _writeChunk(byte[] buffer, long index)
-			throws FileEncryptionException, RandomDataGenerationException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException {
-
-		// write only if authentication tag verification succeeds.
-		// if (implementsAuthentication() && length() > 0 && !onlyCachedData())
-		// {
-		// flushAuthData();
-		// if (!getAuthTagVerifier().verifyFileAuthTag()) {
-		// throw new FileEncryptionException(
-		// "File authentication tag verification failed!");
-		// }
-		// }
-
-		// initialize cipher with corresponding chunk IV
-		byte[] iv = generateRandomChunkIV();
-
-		GCMParameterSpec spec = new GCMParameterSpec(
-				GCM_AUTHENTICATION_TAG_LEN, iv);
-
-		encCipher.init(Cipher.ENCRYPT_MODE, getFileKey(), spec);
-
-		// set chunk metadata, i.e. chunk index and flag indicating if
-		// current chunk is last chunk. NOTE: the latter is essential to be able
-		// to
-		// determine if a file has been manually truncated
-
-		// index of current chunk
-		encCipher.updateAAD(LongByteConv.long2Bytes(index));
-		// flag indicating if we're writing the last chunk
-		encCipher.updateAAD(BooleanByteConv.bool2byte(false));
-
-		// no need to use update(). cipher iterates over blocks & chunk is
-		// held in memory anyway
-		byte[] encChunk = encCipher.doFinal(buffer);
-
-		if (encChunk == null || encChunk.length != CHUNK_ENC_DATA_SIZE) {
-			throw new FileEncryptionException(
-					"Encrypted chunk length mismatch!");
-		}
-
-		// now write complete chunk into file
-		long oldpos = backingRandomAccessFile.getFilePointer();
-
-		backingRandomAccessFile.seek(chunkOffset(index));
-		// first write chunk iv
-		backingRandomAccessFile.write(iv);
-		// next, write encrypted data
-		backingRandomAccessFile.write(encChunk);
-		// return to initial offset
-		backingRandomAccessFile.seek(oldpos);
-
-		if (implementsAuthentication()) {
-			// extract & update auth tag
-			byte[] tag = Arrays.copyOfRange(encChunk, buffer.length,
-					encChunk.length);
-			getAuthTagVerifier().updateChunkAuthTag((int) index, tag);
-		}
-	}
-
-	@Override
-	protected void _writeLastChunk(byte[] buffer, long index)
-			throws FileEncryptionException, RandomDataGenerationException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException {
-		// write only if authentication tag verification succeeds.
-		// if (implementsAuthentication() && length() > 0 && !onlyCachedData())
-		// {
-		// // FIXME: flushing auth data & subsequently checking the file auth
-		// // tag will always succeed
-		// flushAuthData();
-		// if (!getAuthTagVerifier().verifyFileAuthTag()) {
-		// throw new FileEncryptionException(
-		// "File authentication tag verification failed!");
-		// }
-		// }
-
+	protected void encryptChunk(byte[] buffer, long index, boolean lastchunk,
+			ByteBuffer out) throws FileEncryptionException,
+			RandomDataGenerationException {
 		// initialize cipher with corresponding chunk IV
 		byte[] iv = generateRandomChunkIV();
 
 		GCMParameterSpec spec = new GCMParameterSpec(
 				GCM_AUTHENTICATION_TAG_LEN, iv);
 
-		encCipher.init(Cipher.ENCRYPT_MODE, getFileKey(), spec);
-
-		// set chunk metadata, i.e. chunk index and flag indicating if current
-		// chunk is last chunk. NOTE: the latter is essential to be able to
-		// determine if a file has been manually truncated
-
-		// index of current chunk
-		encCipher.updateAAD(LongByteConv.long2Bytes(index));
-		// flag indicating if we're writing the last chunk
-		encCipher.updateAAD(BooleanByteConv.bool2byte(true));
-
-		byte[] encChunk = encCipher.doFinal(buffer);
-
-		// length of plaintext should match ciphertext minus length of the
-		// authentication tag
-		if ((encChunk == null)
-				|| (encChunk.length != (buffer.length + CHUNK_TLEN))) {
-			throw new FileEncryptionException(
-					"Encrypted chunk length mismatch!");
-		}
-
-		long oldpos = backingRandomAccessFile.getFilePointer();
-
-		backingRandomAccessFile.seek(chunkOffset(index));
+		SecretKey key = getFileKey();
+		Cipher cipher = null;
+		boolean keyed = false;
+		try {
+			cipher = borrowCipher(key);
+			cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+			keyed = true;
 
-		// first write iv
-		backingRandomAccessFile.write(iv);
-		// then write encrypted data
-		backingRandomAccessFile.write(encChunk);
-		// then return to initial position
-		backingRandomAccessFile.seek(oldpos);
+			// set chunk metadata, i.e. chunk index and flag indicating if
+			// current chunk is last chunk. NOTE: the latter is essential to be
+			// able to determine if a file has been manually truncated
 
-		if (implementsAuthentication()) {
-			// extract & update auth tag
-			byte[] tag = Arrays.copyOfRange(encChunk, buffer.length,
-					encChunk.length);
-			getAuthTagVerifier().updateChunkAuthTag((int) index, tag);
+			// index of current chunk
+			cipher.updateAAD(LongByteConv.long2Bytes(index));
+			// flag indicating if we're writing the last chunk
+			cipher.updateAAD(BooleanByteConv.bool2byte(lastchunk));
+
+			// no need to use update(). cipher iterates over blocks & chunk is
+			// held in memory anyway
+			out.put(iv);
+			int encLen = cipher.doFinal(ByteBuffer.wrap(buffer), out);
+
+			checkEncryptedChunkLength(buffer.length, encLen, lastchunk);
+		} catch (NoSuchAlgorithmException | NoSuchProviderException
+				| NoSuchPaddingException | InvalidKeyException
+				| InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException e) {
+			throw new FileEncryptionException("Error encrypting chunk "
+					+ index + ": " + e.getMessage(), e);
+		} finally {
+			releaseCipher(key, cipher, keyed);
 		}
-		// System.out.println(authTagVerifier);
 	}
 
 	/**
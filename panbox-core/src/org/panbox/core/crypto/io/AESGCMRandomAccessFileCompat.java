@@ -28,11 +28,11 @@ package org.panbox.core.crypto.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.util.Arrays;
 import java.util.Set;
 import java.util.WeakHashMap;
 
@@ -84,26 +84,18 @@ public class AESGCMRandomAccessFileCompat extends
 	}
 
 	/**
-	 * initialize ciphers
+	 * creates a new GCM engine instance
 	 * 
+	 * @return
 	 * @throws NoSuchAlgorithmException
 	 * @throws NoSuchPaddingException
-	 * @throws InvalidKeyException
-	 * @throws RandomDataGenerationException
-	 * @throws InvalidAlgorithmParameterException
 	 * @throws NoSuchProviderException
 	 */
-	protected void initCiphers() throws NoSuchAlgorithmException,
-			NoSuchPaddingException, InvalidKeyException,
-			RandomDataGenerationException, InvalidAlgorithmParameterException,
-			NoSuchProviderException {
-		super.initCiphers();
-
-		this.gcmEngine = new GCMBlockCipher(new AESFastEngine());
+	protected GCMBlockCipher createGCMEngine() throws NoSuchAlgorithmException,
+			NoSuchPaddingException, NoSuchProviderException {
+		return new GCMBlockCipher(new AESFastEngine());
 	}
 
-	protected GCMBlockCipher gcmEngine;
-
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -112,7 +104,15 @@ public class AESGCMRandomAccessFileCompat extends
 	 */
 	@Override
 	int getBlockSize() {
-		return gcmEngine.getUnderlyingCipher().getBlockSize();
+		GCMBlockCipher engine = null;
+		try {
+			engine = borrowGCMEngine();
+			return engine.getUnderlyingCipher().getBlockSize();
+		} catch (FileEncryptionException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		} finally {
+			releaseGCMEngine(engine);
+		}
 	}
 
 	protected byte[] getFileKeyBytes() {
@@ -120,148 +120,115 @@ public class AESGCMRandomAccessFileCompat extends
 				.getEncoded() : null;
 	}
 
-	@Override
-	protected byte[] _readChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException {
-		// first, get chunk iv for decryption
-		long oldpos = backingRandomAccessFile.getFilePointer();
-		backingRandomAccessFile.seek(chunkOffset(index));
-
-		// read iv
-		byte[] iv = new byte[CHUNK_IV_SIZE];
-		int ret = backingRandomAccessFile.read(iv);
-		if (ret != CHUNK_IV_SIZE) {
-			throw new FileEncryptionException("Size mismatch reading chunk IV!");
-		}
-
-		// prepare params for GCM decryption
-		// retrieve key bytes from SecretKey
-		byte[] key = getFileKeyBytes();
-		if ((key == null)
-				|| (key.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
-			throw new FileEncryptionException("Invalid encryption key format!");
-		}
-
-		// prepare additional authenticated data (index and lastchunkflag as
-		// bytes) for verifying metadata integrity
-		// byte[] indexAsBytes = IntByteConv.int2byte(index);
-		byte[] indexAsBytes = LongByteConv.long2Bytes(index);
-		byte[] lastchunkflagAsBytes = BooleanByteConv.bool2byte(false);
+	/**
+	 * @return key of this implementation's GCM engines within the
+	 *         {@link CryptoEnginePool}
+	 */
+	private String getGCMEngineKey() {
+		return "GCMBlockCipher/" + getClass().getName();
+	}
 
-		if ((indexAsBytes == null) || (lastchunkflagAsBytes == null)
-				|| (indexAsBytes.length == 0)
-				|| (lastchunkflagAsBytes.length == 0)) {
+	/**
+	 * borrows a GCM engine for en- or decrypting a single chunk from the
+	 * {@link CryptoEnginePool}, so chunks may be processed without holding
+	 * this instance's monitor
+	 */
+	private GCMBlockCipher borrowGCMEngine() throws FileEncryptionException {
+		try {
+			return CryptoEnginePool.borrow(getGCMEngineKey(),
+					new CryptoEnginePool.EngineFactory<GCMBlockCipher>() {
+						@Override
+						public GCMBlockCipher create()
+								throws NoSuchAlgorithmException,
+								NoSuchPaddingException, NoSuchProviderException {
+							return createGCMEngine();
+						}
+					});
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException
+				| NoSuchProviderException e) {
 			throw new FileEncryptionException(
-					"Invalid additional autenticated data!");
+					"Unable to initialize GCM engine: " + e.getMessage(), e);
 		}
+	}
 
-		byte[] associatedText = new byte[indexAsBytes.length
-				+ lastchunkflagAsBytes.length];
-		System.arraycopy(indexAsBytes, 0, associatedText, 0,
-				indexAsBytes.length);
-		System.arraycopy(lastchunkflagAsBytes, 0, associatedText,
-				indexAsBytes.length, lastchunkflagAsBytes.length);
-
-		AEADParameters gcmParams = new AEADParameters(new KeyParameter(key),
-				GCM_AUTHENTICATION_TAG_LEN, iv, associatedText);
-
-		GCMBlockCipher gcmEngine = new GCMBlockCipher(new AESFastEngine());
-		gcmEngine.init(false, gcmParams);
-
-		byte[] decMsg = new byte[gcmEngine.getOutputSize(CHUNK_ENC_DATA_SIZE)];
-		byte[] encMsg = new byte[CHUNK_ENC_DATA_SIZE];
-
-		ret = backingRandomAccessFile.read(encMsg);
-		backingRandomAccessFile.seek(oldpos);
-
-		if (ret != CHUNK_ENC_DATA_SIZE) {
-			throw new FileEncryptionException(
-					"Size mismatch reading encrypted chunk data!");
-		}
+	private void releaseGCMEngine(GCMBlockCipher engine) {
+		CryptoEnginePool.releaseGCMBlockCipher(getGCMEngineKey(), engine);
+	}
 
-		int decLen = gcmEngine
-				.processBytes(encMsg, 0, encMsg.length, decMsg, 0);
-		try {
-			decLen += gcmEngine.doFinal(decMsg, decLen);
-		} catch (IllegalStateException | InvalidCipherTextException e) {
-			if ((e instanceof InvalidCipherTextException)
-					&& (e.getMessage().contains("mac check in GCM failed"))) {
-				throw new FileIntegrityException("Decryption error in chunk "
-						+ index + ". Possible file integrity violation.", e);
-			} else {
-				throw new FileEncryptionException("Decryption error in chunk "
-						+ index + ": " + e.getMessage(), e);
-			}
-		}
+	/**
+	 * GCM engines which still are initialized with the file key
+	 */
+	private final CryptoEnginePool.KeyedEngines<GCMBlockCipher> keyedEngines = new CryptoEnginePool.KeyedEngines<GCMBlockCipher>(
+			new CryptoEnginePool.EngineEvictor<GCMBlockCipher>() {
+				@Override
+				public void evict(GCMBlockCipher engine) {
+					releaseGCMEngine(engine);
+				}
+			});
 
-		if ((decMsg == null) || (decMsg.length != CHUNK_DATA_SIZE)) {
-			throw new FileEncryptionException(
-					"Decryption error or chunk size mismatch during decryption!");
+	/**
+	 * returns a GCM engine after a chunk operation. Engines which have been
+	 * initialized with the file key are kept for the next chunk, all others
+	 * are wiped and returned to the {@link CryptoEnginePool}.
+	 * 
+	 * @param key
+	 *            file key of the operation
+	 * @param engine
+	 * @param keyed
+	 *            whether the engine has been initialized with the file key
+	 */
+	private void releaseGCMEngine(SecretKey key, GCMBlockCipher engine,
+			boolean keyed) {
+		if (keyed) {
+			keyedEngines.offer(key, engine);
 		} else {
-			if (implementsAuthentication()) {
-				// check authentication tag for integrity
-				byte[] tag = Arrays.copyOfRange(encMsg, decMsg.length,
-						encMsg.length);
-				if (!getAuthTagVerifier().verifyChunkAuthTag((int) index, tag)) {
-					throw new FileIntegrityException(
-							"File authentication tag verification failed in chunk "
-									+ index);
-				}
-			}
-			return decMsg;
+			releaseGCMEngine(engine);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.EncRandomAccessFile#releaseKeyedEngines()
+	 */
 	@Override
-	protected byte[] _readLastChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException {
-		// check how many bytes there are left to read
-		// System.err.println("_readLAstChunk index: " + index);
-		long nRemaining = backingRandomAccessFile.length()
-				- (chunkOffset(index));
-
-		// just to be sure
-		if (nRemaining > CHUNK_ENC_SIZE) {
-			throw new FileEncryptionException(
-					"Calculated size of size of last chunk bigger than default chunk size!");
-		} else if (nRemaining <= CHUNK_IV_SIZE) {
-			return new byte[] {};
-			// throw new FileEncryptionException(
-			// "Calculated size of size of last chunk smaller than minimum size!");
-		}
-
-		// get chunk iv for decryption
-		long oldpos = backingRandomAccessFile.getFilePointer();
-		backingRandomAccessFile.seek(chunkOffset(index));
-
-		// read iv
-		byte[] iv = new byte[CHUNK_IV_SIZE];
-		int ret = backingRandomAccessFile.read(iv);
-		if (ret != CHUNK_IV_SIZE) {
-			throw new FileEncryptionException("Size mismatch reading chunk IV!");
-		}
+	protected void releaseKeyedEngines() {
+		keyedEngines.clear();
+	}
 
-		// prepare params for GCM decryption
-		// retrieve key bytes from SecretKey
-		byte[] key = getFileKeyBytes();
-		if ((key == null)
-				|| (key.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
-			throw new FileEncryptionException("Invalid encryption key format!");
+	/**
+	 * prepares the GCM parameters for en- or decrypting a chunk with the given
+	 * IV and index
+	 * 
+	 * @param iv
+	 * @param index
+	 * @param lastchunk
+	 * @param keyed
+	 *            if the engine already has been initialized with the file
+	 *            key. In this case, the key is omitted, so the engine neither
+	 *            recomputes the key schedule nor its GHASH tables.
+	 * @return
+	 * @throws FileEncryptionException
+	 */
+	private AEADParameters getGCMParameters(byte[] iv, long index,
+			boolean lastchunk, boolean keyed) throws FileEncryptionException {
+		KeyParameter keyParam = null;
+		if (!keyed) {
+			// retrieve key bytes from SecretKey
+			byte[] key = getFileKeyBytes();
+			if ((key == null)
+					|| (key.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
+				throw new FileEncryptionException(
+						"Invalid encryption key format!");
+			}
+			keyParam = new KeyParameter(key);
 		}
 
-		// prepare additional authenticated data (index and lastchunkflag as
-		// bytes) for verifying metadata integrity
-		// byte[] indexAsBytes = IntByteConv.int2byte(index);
+		// additional authenticated data (index and lastchunkflag as bytes) for
+		// verifying metadata integrity
 		byte[] indexAsBytes = LongByteConv.long2Bytes(index);
-		byte[] lastchunkflagAsBytes = BooleanByteConv.bool2byte(true);
-
-		if ((indexAsBytes == null) || (lastchunkflagAsBytes == null)
-				|| (indexAsBytes.length == 0)
-				|| (lastchunkflagAsBytes.length == 0)) {
-			throw new FileEncryptionException(
-					"Invalid additional autenticated data!");
-		}
-
+		byte[] lastchunkflagAsBytes = BooleanByteConv.bool2byte(lastchunk);
 		byte[] associatedText = new byte[indexAsBytes.length
 				+ lastchunkflagAsBytes.length];
 		System.arraycopy(indexAsBytes, 0, associatedText, 0,
@@ -269,233 +236,129 @@ public class AESGCMRandomAccessFileCompat extends
 		System.arraycopy(lastchunkflagAsBytes, 0, associatedText,
 				indexAsBytes.length, lastchunkflagAsBytes.length);
 
-		AEADParameters gcmParams = new AEADParameters(new KeyParameter(key),
-				GCM_AUTHENTICATION_TAG_LEN, iv, associatedText);
-
-		gcmEngine.init(false, gcmParams);
-
-		// adjust number of remaining bytes for reading encrypted data
-		nRemaining -= CHUNK_IV_SIZE;
-
-		byte[] decMsg = new byte[gcmEngine.getOutputSize((int) nRemaining)];
-		byte[] encMsg = new byte[(int) nRemaining];
+		return new AEADParameters(keyParam, GCM_AUTHENTICATION_TAG_LEN, iv,
+				associatedText);
+	}
 
-		ret = backingRandomAccessFile.read(encMsg);
-		backingRandomAccessFile.seek(oldpos);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.AbstractAESGCMRandomAccessFile#decryptChunk
+	 * (java.nio.ByteBuffer, long, boolean)
+	 */
+	@Override
+	protected byte[] decryptChunk(ByteBuffer encChunk, long index,
+			boolean lastchunk) throws FileEncryptionException,
+			FileIntegrityException {
+		byte[] iv = new byte[CHUNK_IV_SIZE];
+		encChunk.get(iv);
 
-		if (ret != nRemaining) {
-			throw new FileEncryptionException(
-					"Size mismatch reading encrypted chunk data!");
+		SecretKey key = getFileKey();
+		GCMBlockCipher engine = keyedEngines.poll(key);
+		boolean keyed = (engine != null);
+		if (!keyed) {
+			engine = borrowGCMEngine();
 		}
-
-		// decrypt data
-		int decLen = gcmEngine
-				.processBytes(encMsg, 0, encMsg.length, decMsg, 0);
 		try {
-			decLen += gcmEngine.doFinal(decMsg, decLen);
-		} catch (IllegalStateException | InvalidCipherTextException e) {
-			if ((e instanceof InvalidCipherTextException)
-					&& (e.getMessage().contains("mac check in GCM failed"))) {
-				throw new FileIntegrityException("Decryption error in chunk "
-						+ index + ". Possible file integrity violation.", e);
+			engine.init(false, getGCMParameters(iv, index, lastchunk, keyed));
+			keyed = true;
+
+			// the engine only operates on arrays
+			int encLen = encChunk.remaining();
+			byte[] encMsg;
+			int encOff;
+			if (encChunk.hasArray()) {
+				encMsg = encChunk.array();
+				encOff = encChunk.arrayOffset() + encChunk.position();
+				encChunk.position(encChunk.limit());
 			} else {
-				throw new FileEncryptionException("Decryption error in chunk "
-						+ index + ": " + e.getMessage(), e);
+				encMsg = new byte[encLen];
+				encOff = 0;
+				encChunk.get(encMsg);
 			}
-		}
 
-		if ((decMsg == null) || (decMsg.length != (nRemaining - CHUNK_TLEN))) {
-			throw new FileEncryptionException(
-					"Decryption error or chunk size mismatch during decryption!");
-		} else {
-			if (implementsAuthentication()) {
-				// check authentication tag for integrity
-				byte[] tag = Arrays.copyOfRange(encMsg, decMsg.length,
-						encMsg.length);
-				if (!getAuthTagVerifier().verifyChunkAuthTag((int) index, tag)) {
+			byte[] decMsg = new byte[engine.getOutputSize(encLen)];
+			int decLen = engine.processBytes(encMsg, encOff, encLen, decMsg,
+					0);
+			try {
+				decLen += engine.doFinal(decMsg, decLen);
+			} catch (IllegalStateException | InvalidCipherTextException e) {
+				if ((e instanceof InvalidCipherTextException)
+						&& (e.getMessage().contains("mac check in GCM failed"))) {
 					throw new FileIntegrityException(
-							"File authentication tag verification failed in last chunk "
-									+ index);
+							"Decryption error in chunk " + index
+									+ ". Possible file integrity violation.",
+							e);
+				} else {
+					throw new FileEncryptionException(
+							"Decryption error in chunk " + index + ": "
+									+ e.getMessage(), e);
 				}
 			}
 			return decMsg;
+		} finally {
+			releaseGCMEngine(key, engine, keyed);
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.AbstractAESGCMRandomAccessFile#encryptChunk
+	 * (byte[], long, boolean, java.nio.ByteBuffer)
+	 */
 	@Override
-	protected void _writeChunk(byte[] buffer, long index)
-			throws FileEncryptionException, RandomDataGenerationException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException {
-
-		// write only if authentication tag verification succeeds.
-		// if (implementsAuthentication() && length() > 0 && !onlyCachedData())
-		// {
-		// flushAuthData();
-		// if (!getAuthTagVerifier().verifyFileAuthTag()) {
-		// throw new FileEncryptionException(
-		// "File authentication tag verification failed!");
-		// }
-		// }
-
-		// initialize cipher with corresponding chunk IV
-		byte[] iv = generateRandomChunkIV();
-
-		// prepare params for GCM encryption
-		// retrieve key bytes from SecretKey
-		byte[] key = getFileKeyBytes();
-		if ((key == null)
-				|| (key.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
-			throw new FileEncryptionException("Invalid encryption key format!");
-		}
-
-		// prepare additional authenticated data (index and lastchunkflag as
-		// bytes) for verifying metadata integrity
-		// byte[] indexAsBytes = IntByteConv.int2byte(index);
-		byte[] indexAsBytes = LongByteConv.long2Bytes(index);
-		byte[] lastchunkflagAsBytes = BooleanByteConv.bool2byte(false);
-
-		if ((indexAsBytes == null) || (lastchunkflagAsBytes == null)
-				|| (indexAsBytes.length == 0)
-				|| (lastchunkflagAsBytes.length == 0)) {
-			throw new FileEncryptionException(
-					"Invalid additional autenticated data!");
-		}
-
-		byte[] associatedText = new byte[indexAsBytes.length
-				+ lastchunkflagAsBytes.length];
-		System.arraycopy(indexAsBytes, 0, associatedText, 0,
-				indexAsBytes.length);
-		System.arraycopy(lastchunkflagAsBytes, 0, associatedText,
-				indexAsBytes.length, lastchunkflagAsBytes.length);
-
-		AEADParameters gcmParams = new AEADParameters(new KeyParameter(key),
-				GCM_AUTHENTICATION_TAG_LEN, iv, associatedText);
-
-		gcmEngine.init(true, gcmParams);
-
-		byte[] encMsg = new byte[gcmEngine.getOutputSize(buffer.length)];
-		int encLen = gcmEngine
-				.processBytes(buffer, 0, buffer.length, encMsg, 0);
-		try {
-			encLen += gcmEngine.doFinal(encMsg, encLen);
-		} catch (IllegalStateException | InvalidCipherTextException e) {
-			throw new FileEncryptionException(
-					"Error encrypting chunk " + index, e);
-		}
-
-		if (encMsg == null || encMsg.length != CHUNK_ENC_DATA_SIZE) {
-			throw new FileEncryptionException(
-					"Encrypted chunk length mismatch!");
-		}
-
-		// now write complete chunk into file
-		long oldpos = backingRandomAccessFile.getFilePointer();
-
-		backingRandomAccessFile.seek(chunkOffset(index));
-		// first write chunk iv
-		backingRandomAccessFile.write(iv);
-		// next, write encrypted data
-		backingRandomAccessFile.write(encMsg);
-		// return to initial offset
-		backingRandomAccessFile.seek(oldpos);
-
-		if (implementsAuthentication()) {
-			// extract & update auth tag
-			byte[] tag = Arrays.copyOfRange(encMsg, buffer.length,
-					encMsg.length);
-			getAuthTagVerifier().updateChunkAuthTag((int) index, tag);
-		}
-	}
-
-	@Override
-	protected void _writeLastChunk(byte[] buffer, long index)
-			throws FileEncryptionException, RandomDataGenerationException,
-			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException {
-		// write only if authentication tag verification succeeds.
-		// if (implementsAuthentication() && length() > 0 && !onlyCachedData())
-		// {
-		// // FIXME: flushing auth data & subsequently checking the file auth
-		// // tag will always succeed
-		// flushAuthData();
-		// if (!getAuthTagVerifier().verifyFileAuthTag()) {
-		// throw new FileEncryptionException(
-		// "File authentication tag verification failed!");
-		// }
-		// }
-
+	protected void encryptChunk(byte[] buffer, long index, boolean lastchunk,
+			ByteBuffer out) throws FileEncryptionException,
+			RandomDataGenerationException {
 		// initialize cipher with corresponding chunk IV
 		byte[] iv = generateRandomChunkIV();
 
-		// prepare params for GCM encryption
-		// retrieve key bytes from SecretKey
-		byte[] key = getFileKeyBytes();
-		if ((key == null)
-				|| (key.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
-			throw new FileEncryptionException("Invalid encryption key format!");
-		}
-
-		// prepare additional authenticated data (index and lastchunkflag as
-		// bytes) for verifying metadata integrity
-		// byte[] indexAsBytes = IntByteConv.int2byte(index);
-		byte[] indexAsBytes = LongByteConv.long2Bytes(index);
-		byte[] lastchunkflagAsBytes = BooleanByteConv.bool2byte(true);
-
-		if ((indexAsBytes == null) || (lastchunkflagAsBytes == null)
-				|| (indexAsBytes.length == 0)
-				|| (lastchunkflagAsBytes.length == 0)) {
-			throw new FileEncryptionException(
-					"Invalid additional autenticated data!");
+		SecretKey key = getFileKey();
+		GCMBlockCipher engine = keyedEngines.poll(key);
+		boolean keyed = (engine != null);
+		if (!keyed) {
+			engine = borrowGCMEngine();
 		}
-
-		byte[] associatedText = new byte[indexAsBytes.length
-				+ lastchunkflagAsBytes.length];
-		System.arraycopy(indexAsBytes, 0, associatedText, 0,
-				indexAsBytes.length);
-		System.arraycopy(lastchunkflagAsBytes, 0, associatedText,
-				indexAsBytes.length, lastchunkflagAsBytes.length);
-
-		AEADParameters gcmParams = new AEADParameters(new KeyParameter(key),
-				GCM_AUTHENTICATION_TAG_LEN, iv, associatedText);
-
-		gcmEngine.init(true, gcmParams);
-
-		byte[] encMsg = new byte[gcmEngine.getOutputSize(buffer.length)];
-		int encLen = gcmEngine
-				.processBytes(buffer, 0, buffer.length, encMsg, 0);
 		try {
-			encLen += gcmEngine.doFinal(encMsg, encLen);
-		} catch (IllegalStateException | InvalidCipherTextException e) {
-			throw new FileEncryptionException(
-					"Error encrypting chunk " + index, e);
-		}
-
-		// length of plaintext should match ciphertext minus length of the
-		// authentication tag
-		if ((encMsg == null) || (encMsg.length != (buffer.length + CHUNK_TLEN))) {
-			throw new FileEncryptionException(
-					"Encrypted chunk length mismatch!");
-		}
-
-		long oldpos = backingRandomAccessFile.getFilePointer();
-
-		backingRandomAccessFile.seek(chunkOffset(index));
+			engine.init(true, getGCMParameters(iv, index, lastchunk, keyed));
+			keyed = true;
+
+			out.put(iv);
+
+			// the engine only operates on arrays
+			int outLen = engine.getOutputSize(buffer.length);
+			boolean inPlace = out.hasArray() && (out.remaining() >= outLen);
+			byte[] encMsg;
+			int encOff;
+			if (inPlace) {
+				encMsg = out.array();
+				encOff = out.arrayOffset() + out.position();
+			} else {
+				encMsg = new byte[outLen];
+				encOff = 0;
+			}
 
-		// first write iv
-		backingRandomAccessFile.write(iv);
-		// then write encrypted data
-		backingRandomAccessFile.write(encMsg);
-		// then return to initial position
-		backingRandomAccessFile.seek(oldpos);
+			int encLen = engine.processBytes(buffer, 0, buffer.length, encMsg,
+					encOff);
+			try {
+				encLen += engine.doFinal(encMsg, encOff + encLen);
+			} catch (IllegalStateException | InvalidCipherTextException e) {
+				throw new FileEncryptionException(
+						"Error encrypting chunk " + index, e);
+			}
 
-		if (implementsAuthentication()) {
-			// extract & update auth tag
-			byte[] tag = Arrays.copyOfRange(encMsg, buffer.length,
-					encMsg.length);
-			getAuthTagVerifier().updateChunkAuthTag((int) index, tag);
+			checkEncryptedChunkLength(buffer.length, encLen, lastchunk);
+			if (inPlace) {
+				out.position(out.position() + encLen);
+			} else {
+				out.put(encMsg, 0, encLen);
+			}
+		} finally {
+			releaseGCMEngine(key, engine, keyed);
 		}
-		// System.out.println(authTagVerifier);
 	}
 
 	/**
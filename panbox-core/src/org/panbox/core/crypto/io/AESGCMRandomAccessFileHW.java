@@ -73,21 +73,22 @@ public class AESGCMRandomAccessFileHW extends AESGCMRandomAccessFileCompat {
 		super(backingFile);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.AESGCMRandomAccessFileCompat#createGCMEngine()
+	 */
 	@Override
-	protected void initCiphers() throws NoSuchAlgorithmException,
-			NoSuchPaddingException, InvalidKeyException,
-			RandomDataGenerationException, InvalidAlgorithmParameterException,
-			NoSuchProviderException {
-
-		super.initCiphers();
-
+	protected GCMBlockCipher createGCMEngine() throws NoSuchAlgorithmException,
+			NoSuchPaddingException, NoSuchProviderException {
 		// TODO: This following code mixes the SunJCE AES blockcipher
 		// implementation with Bouncycastle's GCMBlockCipher to improve
 		// performance due to SunJCE's AES NI support. Replace this with
 		// "native" BC code, as soon as they introduce AES NI support
 		// themselves. For more information see
 		// http://bouncy-castle.1462172.n4.nabble.com/Using-BC-AES-GCM-for-S3-td4657050.html
-		this.gcmEngine = new GCMBlockCipher(new BlockCipher() {
+		return new GCMBlockCipher(new BlockCipher() {
 			Cipher aes = Cipher.getInstance("AES/ECB/NoPadding",
 					KeyConstants.PROV_SunJCE);
 
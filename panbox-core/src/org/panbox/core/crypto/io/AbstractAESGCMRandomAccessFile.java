@@ -30,10 +30,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -42,6 +47,7 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.ShortBufferException;
 
+import org.apache.log4j.Logger;
 import org.panbox.core.crypto.KeyConstants;
 import org.panbox.core.crypto.randomness.SecureRandomWrapper;
 import org.panbox.core.exception.FileEncryptionException;
@@ -59,7 +65,149 @@ import org.panbox.core.exception.RandomDataGenerationException;
 public abstract class AbstractAESGCMRandomAccessFile extends
 		EncRandomAccessFile {
 
-	// private static final Logger log = Logger.getLogger("org.panbox.core");
+	private static final Logger log = Logger.getLogger("org.panbox.core");
+
+	/**
+	 * default minimum number of chunks for which read-only instances verify
+	 * their chunk authentication tags in the background, see
+	 * {@link #setLazyVerificationThreshold(long)}
+	 */
+	public static final long DEFAULT_LAZY_VERIFICATION_THRESHOLD = 256;
+
+	private static volatile long lazyVerificationThreshold = DEFAULT_LAZY_VERIFICATION_THRESHOLD;
+
+	/**
+	 * @return the minimum number of chunks for which read-only instances
+	 *         verify their chunk authentication tags in the background, or a
+	 *         negative value if background verification is disabled
+	 */
+	public static long getLazyVerificationThreshold() {
+		return lazyVerificationThreshold;
+	}
+
+	/**
+	 * Sets the minimum number of chunks for which read-only instances verify
+	 * their chunk authentication tags in the background. For such files,
+	 * {@link #initWithShareKey(SecretKey)} returns after the header has been
+	 * verified, and chunk accesses block until the background task has
+	 * verified the file authentication tag, see
+	 * {@link AuthTagVerifier#beginBackgroundVerification()}. If verification
+	 * of the file authentication tag fails, all subsequent chunk accesses fail
+	 * with a {@link FileIntegrityException}. Writable instances are always
+	 * verified upon opening.
+	 * 
+	 * @param nchunks
+	 *            minimum number of chunks, or a negative value to disable
+	 *            background verification
+	 */
+	public static void setLazyVerificationThreshold(long nchunks) {
+		lazyVerificationThreshold = nchunks;
+	}
+
+	private static ExecutorService verificationExecutor;
+
+	private static synchronized ExecutorService getVerificationExecutor() {
+		if (verificationExecutor == null) {
+			verificationExecutor = Executors
+					.newCachedThreadPool(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Panbox-TagVerification");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return verificationExecutor;
+	}
+
+	/**
+	 * background task verifying the chunk authentication tags of a read-only
+	 * instance
+	 */
+	private class TagVerificationTask implements Runnable {
+
+		private final AuthTagVerifier verifier;
+		private final FileChannel channel;
+		private final long nchunks;
+		private final long flen;
+		private final byte[] fileAuthTag;
+
+		TagVerificationTask(AuthTagVerifier verifier, FileChannel channel,
+				long nchunks, long flen, byte[] fileAuthTag) {
+			this.verifier = verifier;
+			this.channel = channel;
+			this.nchunks = nchunks;
+			this.flen = flen;
+			this.fileAuthTag = fileAuthTag;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			boolean valid = false;
+			try {
+				readChunkAuthTags(verifier, channel, nchunks, flen);
+				valid = verifier.verifyFileAuthTag(fileAuthTag);
+				if (valid) {
+					verifier.storeSidecar(fileAuthTag);
+				} else {
+					log.error("File authentication tag verification failed for "
+							+ getAbsolutePath());
+				}
+			} catch (FileEncryptionException | IOException e) {
+				log.warn("Background verification of chunk authentication tags failed for "
+						+ getAbsolutePath(), e);
+			} finally {
+				verificationTime = System.nanoTime() - start;
+				verifier.endBackgroundVerification(valid);
+			}
+		}
+	}
+
+	/**
+	 * System.nanoTime() at which reading the file metadata started
+	 */
+	private long metadataReadStart;
+
+	/**
+	 * time needed for reading and verifying all chunk authentication tags in
+	 * nanoseconds, or -1 if not available
+	 */
+	private volatile long verificationTime = -1;
+
+	/**
+	 * time from reading the file metadata until the first chunk access in
+	 * nanoseconds, or -1 if no chunk has been accessed yet
+	 */
+	private volatile long timeToFirstByte = -1;
+
+	/**
+	 * @return time from reading the file metadata until the first chunk has
+	 *         been accessed in nanoseconds, or -1 if no chunk has been
+	 *         accessed yet
+	 */
+	public long getTimeToFirstByte() {
+		return timeToFirstByte;
+	}
+
+	/**
+	 * @return time needed for reading and verifying all chunk authentication
+	 *         tags in nanoseconds, or -1 if verification has not finished
+	 *         yet or has not been necessary
+	 */
+	public long getVerificationTime() {
+		return verificationTime;
+	}
+
+	/**
+	 * @return time chunk accesses have been blocked waiting for background
+	 *         verification in nanoseconds
+	 */
+	public long getBlockedTime() {
+		AuthTagVerifier verifier = getAuthTagVerifier();
+		return (verifier != null) ? verifier.getBlockedTime() : 0;
+	}
 
 	protected AbstractAESGCMRandomAccessFile(File backingFile)
 			throws InvalidKeyException, NoSuchAlgorithmException,
@@ -134,6 +282,45 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 		fHeader.write();
 	}
 
+	/**
+	 * scratch buffers for reading and writing encrypted chunks, one per thread.
+	 * As the chunk size only depends on the AES block size, buffers are
+	 * shared between all instances.
+	 */
+	private static final ThreadLocal<ByteBuffer> threadChunkBuffer = new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * scratch arrays for chunk authentication tags to be verified, one per
+	 * thread
+	 */
+	private static final ThreadLocal<byte[]> threadAuthTag = new ThreadLocal<byte[]>();
+
+	/**
+	 * returns the calling thread's scratch buffer for a single encrypted
+	 * chunk. The buffer is cleared and must not be used after the calling
+	 * method has returned.
+	 * 
+	 * @return
+	 */
+	protected ByteBuffer getChunkScratchBuffer() {
+		ByteBuffer buf = threadChunkBuffer.get();
+		if ((buf == null) || (buf.capacity() < CHUNK_ENC_SIZE)) {
+			buf = ByteBuffer.allocate(CHUNK_ENC_SIZE);
+			threadChunkBuffer.set(buf);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	private byte[] getAuthTagScratchArray() {
+		byte[] tag = threadAuthTag.get();
+		if ((tag == null) || (tag.length != CHUNK_TLEN)) {
+			tag = new byte[CHUNK_TLEN];
+			threadAuthTag.set(tag);
+		}
+		return tag;
+	}
+
 	/**
 	 * Helper method for reading and decrypting a single chunk within the file
 	 * 
@@ -141,8 +328,12 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 * @param index
 	 * @throws FileIntegrityException
 	 */
-	protected abstract byte[] _readChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException;
+	@Override
+	protected byte[] _readChunk(long index) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		return _readChunkAt(backingRandomAccessFile.getChannel(), index,
+				false, getAuthTagVerifier());
+	}
 
 	/**
 	 * Helper method for reading and decrypting the last chunk of the file
@@ -158,8 +349,102 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 * @throws IllegalBlockSizeException
 	 * @throws ShortBufferException
 	 */
-	protected abstract byte[] _readLastChunk(long index) throws IOException,
-			FileEncryptionException, FileIntegrityException;
+	@Override
+	protected byte[] _readLastChunk(long index) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		return _readChunkAt(backingRandomAccessFile.getChannel(), index, true,
+				getAuthTagVerifier());
+	}
+
+	/**
+	 * Helper method for decrypting a single chunk read by
+	 * {@link #_readChunkAt(FileChannel, long, boolean, AuthTagVerifier)}. Implementations must
+	 * not use any cipher instances shared between threads.
+	 *
+	 * @param encChunk
+	 *            buffer holding the chunk IV, the encrypted data and the GCM
+	 *            authentication tag between its position and its limit. Its
+	 *            position will be advanced to its limit.
+	 * @param index
+	 *            chunk index
+	 * @param lastchunk
+	 *            <code>true</code> if the chunk is the file's last chunk
+	 * @return the decrypted chunk data
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	protected abstract byte[] decryptChunk(ByteBuffer encChunk, long index,
+			boolean lastchunk) throws FileEncryptionException,
+			FileIntegrityException;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * org.panbox.core.crypto.io.EncRandomAccessFile#_readChunkAt(java.nio.channels
+	 * .FileChannel, long, boolean,
+	 * org.panbox.core.crypto.io.AuthTagVerifier)
+	 */
+	@Override
+	protected byte[] _readChunkAt(FileChannel channel, long index,
+			boolean lastchunk, AuthTagVerifier verifier) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		long offset = chunkOffset(index);
+		long nRemaining = lastchunk ? (channel.size() - offset)
+				: CHUNK_ENC_SIZE;
+
+		// just to be sure
+		if (nRemaining > CHUNK_ENC_SIZE) {
+			throw new FileEncryptionException(
+					"Calculated size of size of last chunk bigger than default chunk size!");
+		} else if (nRemaining <= CHUNK_IV_SIZE) {
+			return new byte[] {};
+		}
+
+		ByteBuffer buf = getChunkScratchBuffer();
+		buf.limit((int) nRemaining);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, offset + buf.position()) < 0) {
+				throw new FileEncryptionException(
+						"Size mismatch reading encrypted chunk data!");
+			}
+		}
+		buf.flip();
+
+		byte[] tag = null;
+		if (implementsAuthentication()) {
+			tag = getAuthTagScratchArray();
+			for (int i = 0; i < CHUNK_TLEN; i++) {
+				tag[i] = buf.get(buf.limit() - CHUNK_TLEN + i);
+			}
+		}
+
+		byte[] res = decryptChunk(buf, index, lastchunk);
+		if ((res == null)
+				|| (res.length != (nRemaining - CHUNK_IV_SIZE - CHUNK_TLEN))) {
+			throw new FileEncryptionException(
+					"Decryption error or chunk size mismatch during decryption!");
+		}
+
+		// check authentication tag for integrity
+		if ((tag != null) && !verifier.verifyChunkAuthTag((int) index, tag)) {
+			throw new FileIntegrityException(
+					"File authentication tag verification failed in "
+							+ (lastchunk ? "last " : "") + "chunk " + index);
+		}
+
+		if (timeToFirstByte < 0) {
+			timeToFirstByte = System.nanoTime() - metadataReadStart;
+			if (log.isDebugEnabled()) {
+				log.debug("Time to first byte for " + getAbsolutePath() + ": "
+						+ (timeToFirstByte / 1000000L)
+						+ "ms (tag verification: "
+						+ (verificationTime / 1000000L) + "ms, blocked: "
+						+ (getBlockedTime() / 1000000L) + "ms)");
+			}
+		}
+		return res;
+	}
 
 	/**
 	 * indicates if currently data is only held in the cache but has not been
@@ -169,7 +454,7 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 *         <code>false</code> otherwise
 	 */
 	protected boolean onlyCachedData() {
-		return (this.cache.needsToBeWritten && !isAuthTagInitialized());
+		return (this.cache.needsToBeWritten() && !isAuthTagInitialized());
 	}
 
 	/**
@@ -192,13 +477,17 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 * @throws IllegalBlockSizeException
 	 * @throws InvalidAlgorithmParameterException
 	 * @throws InvalidKeyException
-	 * @throws ShortBufferException
-	 * @throws Exception
 	 */
-	protected abstract void _writeChunk(byte[] buffer, long index)
+	@Override
+	protected void _writeChunk(byte[] buffer, long index)
 			throws FileEncryptionException, RandomDataGenerationException,
 			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException;
+			IllegalBlockSizeException, BadPaddingException, IOException {
+		ByteBuffer encChunk = getChunkScratchBuffer();
+		encryptChunk(buffer, index, false, encChunk);
+		encChunk.flip();
+		_writeEncryptedChunk(encChunk, index);
+	}
 
 	/**
 	 * Helper method for encrypting and writing the last chunk of the file
@@ -212,12 +501,179 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 * @throws InvalidAlgorithmParameterException
 	 * @throws InvalidKeyException
 	 * @throws IOException
-	 * @throws ShortBufferException
 	 */
-	protected abstract void _writeLastChunk(byte[] buffer, long index)
+	@Override
+	protected void _writeLastChunk(byte[] buffer, long index)
 			throws FileEncryptionException, RandomDataGenerationException,
 			InvalidKeyException, InvalidAlgorithmParameterException,
-			IllegalBlockSizeException, BadPaddingException, IOException;
+			IllegalBlockSizeException, BadPaddingException, IOException {
+		ByteBuffer encChunk = getChunkScratchBuffer();
+		encryptChunk(buffer, index, true, encChunk);
+		encChunk.flip();
+		_writeEncryptedChunk(encChunk, index);
+	}
+
+	/**
+	 * Helper method for encrypting a single chunk with a cipher instance
+	 * bound to the calling thread. The chunk's random IV, the encrypted data
+	 * and the GCM authentication tag are written to the given buffer.
+	 * 
+	 * @param buffer
+	 *            plaintext chunk data
+	 * @param index
+	 *            chunk index
+	 * @param lastchunk
+	 *            <code>true</code> if the chunk is the file's last chunk
+	 * @param out
+	 *            target buffer with at least
+	 *            <code>buffer.length + CHUNK_IV_SIZE + CHUNK_TLEN</code> bytes
+	 *            remaining. Its position will be advanced accordingly.
+	 * @throws FileEncryptionException
+	 * @throws RandomDataGenerationException
+	 */
+	protected abstract void encryptChunk(byte[] buffer, long index,
+			boolean lastchunk, ByteBuffer out) throws FileEncryptionException,
+			RandomDataGenerationException;
+
+	/**
+	 * encrypts a chunk without writing it, see
+	 * {@link ParallelChunkWriter#encryptChunk(byte[], long, boolean)}
+	 * 
+	 * @param buffer
+	 *            plaintext chunk data
+	 * @param index
+	 *            chunk index
+	 * @param lastchunk
+	 *            <code>true</code> if the chunk is the file's last chunk
+	 * @return the encrypted chunk as it is to be stored on disk
+	 * @throws FileEncryptionException
+	 * @throws RandomDataGenerationException
+	 */
+	protected byte[] _encryptChunk(byte[] buffer, long index,
+			boolean lastchunk) throws FileEncryptionException,
+			RandomDataGenerationException {
+		// encrypted chunks handed out to other threads can't be backed by a
+		// scratch buffer
+		ByteBuffer encChunk = ByteBuffer.allocate(CHUNK_IV_SIZE
+				+ buffer.length + CHUNK_TLEN);
+		encryptChunk(buffer, index, lastchunk, encChunk);
+		return encChunk.array();
+	}
+
+	/**
+	 * writes a chunk encrypted by {@link #_encryptChunk(byte[], long, boolean)}
+	 * and updates its authentication tag
+	 * 
+	 * @param encChunk
+	 * @param index
+	 * @throws FileEncryptionException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	protected void _writeEncryptedChunk(byte[] encChunk, long index)
+			throws FileEncryptionException, InvalidKeyException,
+			IllegalBlockSizeException, BadPaddingException, IOException {
+		_writeEncryptedChunk(ByteBuffer.wrap(encChunk), index);
+	}
+
+	/**
+	 * writes the encrypted chunk between the given buffer's position and limit
+	 * and updates its authentication tag
+	 * 
+	 * @param encChunk
+	 * @param index
+	 * @throws FileEncryptionException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws IOException
+	 */
+	protected void _writeEncryptedChunk(ByteBuffer encChunk, long index)
+			throws FileEncryptionException, InvalidKeyException,
+			IllegalBlockSizeException, BadPaddingException, IOException {
+		// the tag array is kept by the verifier, so it can't be a scratch array
+		byte[] tag = null;
+		if (implementsAuthentication()) {
+			tag = new byte[CHUNK_TLEN];
+			for (int i = 0; i < CHUNK_TLEN; i++) {
+				tag[i] = encChunk.get(encChunk.limit() - CHUNK_TLEN + i);
+			}
+		}
+
+		// now write complete chunk into file. positional writes don't
+		// affect the file pointer
+		FileChannel channel = backingRandomAccessFile.getChannel();
+		long offset = chunkOffset(index) - encChunk.position();
+		while (encChunk.hasRemaining()) {
+			channel.write(encChunk, offset + encChunk.position());
+		}
+
+		if (tag != null) {
+			// update auth tag
+			getAuthTagVerifier().updateChunkAuthTag((int) index, tag);
+		}
+	}
+
+	/**
+	 * checks the length of a chunk encrypted by
+	 * {@link #encryptChunk(byte[], long, boolean, ByteBuffer)}
+	 * 
+	 * @param plainLength
+	 *            length of the plaintext chunk data
+	 * @param encLength
+	 *            length of the encrypted data including the authentication
+	 *            tag, but without the IV
+	 * @param lastchunk
+	 * @throws FileEncryptionException
+	 */
+	protected void checkEncryptedChunkLength(int plainLength, int encLength,
+			boolean lastchunk) throws FileEncryptionException {
+		// length of plaintext should match ciphertext minus length of the
+		// authentication tag
+		if (lastchunk ? (encLength != (plainLength + CHUNK_TLEN))
+				: (encLength != CHUNK_ENC_DATA_SIZE)) {
+			throw new FileEncryptionException(
+					"Encrypted chunk length mismatch!");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.core.crypto.io.EncRandomAccessFile#supportsParallelCrypto()
+	 */
+	@Override
+	boolean supportsParallelCrypto() {
+		return true;
+	}
+
+	private final ParallelChunkWriter parallelChunkWriter = new ParallelChunkWriter() {
+		@Override
+		public byte[] encryptChunk(byte[] buffer, long index, boolean lastchunk)
+				throws FileEncryptionException, RandomDataGenerationException {
+			return _encryptChunk(buffer, index, lastchunk);
+		}
+
+		@Override
+		public void writeEncryptedChunk(byte[] encChunk, long index)
+				throws FileEncryptionException, InvalidKeyException,
+				IllegalBlockSizeException, BadPaddingException, IOException {
+			_writeEncryptedChunk(encChunk, index);
+		}
+	};
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.panbox.core.crypto.io.EncRandomAccessFile#getParallelChunkWriter()
+	 */
+	@Override
+	ParallelChunkWriter getParallelChunkWriter() {
+		return parallelChunkWriter;
+	}
 
 	@Override
 	boolean implementsAuthentication() {
@@ -240,14 +696,46 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 			BadPaddingException, NoSuchAlgorithmException,
 			NoSuchPaddingException, NoSuchProviderException,
 			FileEncryptionException {
-		AuthTagVerifier instanceVerifier = new AuthTagVerifier(this);
+		this.metadataReadStart = System.nanoTime();
+		this.timeToFirstByte = -1;
+		this.verificationTime = -1;
+
 		fHeader.readAndVerify();
+		AuthTagVerifier instanceVerifier = new AuthTagVerifier(this);
+		long nchunks = numchunks();
+
+		// for hash tree authenticated files, try to restore the tree from
+		// its sidecar file instead of reading all chunk authentication tags
+		if ((nchunks > 0) && instanceVerifier.loadSidecar(nchunks)) {
+			setAuthTagVerifier(instanceVerifier);
+			return;
+		}
+
+		// large read-only files are verified in the background; chunk
+		// accesses block until the file authentication tag has been verified
+		long threshold = lazyVerificationThreshold;
+		if (!writable && (nchunks > 0) && (threshold >= 0)
+				&& (nchunks >= threshold)) {
+			TagVerificationTask task = new TagVerificationTask(
+					instanceVerifier, backingRandomAccessFile.getChannel(),
+					nchunks, realLength(), fHeader.getFileAuthTag());
+			instanceVerifier.beginBackgroundVerification();
+			setAuthTagVerifier(instanceVerifier);
+			getVerificationExecutor().execute(task);
+			return;
+		}
+
+		long start = System.nanoTime();
 		initVerifier(instanceVerifier);
 
-		if ((numchunks() > 0) && (!instanceVerifier.verifyFileAuthTag())) {
+		if ((nchunks > 0) && (!instanceVerifier.verifyFileAuthTag())) {
 			throw new FileIntegrityException(
 					"File authentication tag verification failed!");
 		} else {
+			this.verificationTime = System.nanoTime() - start;
+			if (nchunks > 0) {
+				instanceVerifier.storeSidecar(fHeader.getFileAuthTag());
+			}
 			setAuthTagVerifier(instanceVerifier);
 		}
 	}
@@ -263,61 +751,50 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 	 * @throws FileEncryptionException
 	 * @throws IOException
 	 */
-	private void initVerifier(AuthTagVerifier verifier)
+	void initVerifier(AuthTagVerifier verifier) throws FileEncryptionException,
+			IOException {
+		FileChannel channel = backingRandomAccessFile.getChannel();
+		long flen = channel.size();
+		readChunkAuthTags(verifier, channel, numchunks(flen), flen);
+	}
+
+	/**
+	 * reads the authentication tags of the given number of chunks in a single
+	 * ascending pass. As positional reads neither depend on nor modify the
+	 * file pointer, this method does not need to hold the lock of this
+	 * instance.
+	 * 
+	 * @param verifier
+	 *            {@link AuthTagVerifier}-instance for storing chunk
+	 *            authentication tags
+	 * @param channel
+	 *            channel of the backing file
+	 * @param nchunks
+	 *            number of chunks
+	 * @param flen
+	 *            real length of the backing file
+	 * @throws FileEncryptionException
+	 * @throws IOException
+	 */
+	private void readChunkAuthTags(AuthTagVerifier verifier,
+			FileChannel channel, long nchunks, long flen)
 			throws FileEncryptionException, IOException {
-		// this.authTagVerifier = new AuthTagVerifier(this);
 		int hlen = fHeader.headerSize();
-		long flen = realLength();
-		long oldpos = backingRandomAccessFile.getFilePointer();
-		// goto virtual offset 0
-		seek(0);
-		flen -= hlen;
-
-		// determine number of full chunks
-
-		long nchunks = numchunks();
-
-		// only try parsing auth tags if there already been wri tten any chunks
-		if (nchunks != 0) {
-			// determine if there is a last *partial* chunk
-			boolean partial = (flen % CHUNK_ENC_SIZE) != 0;
-			long tmp;
-			byte[] tmpATag = new byte[CHUNK_TLEN];
-
-			if (nchunks == 1 && !partial) {
-				tmp = hlen + CHUNK_IV_SIZE + CHUNK_DATA_SIZE;
-				backingRandomAccessFile.seek(tmp);
-				backingRandomAccessFile.read(tmpATag);
-				verifier.insertChunkAuthTag(0, tmpATag);
-			} else if (nchunks > 1 && !partial) {
-				// parse all full chunks
-				for (long i = 0; i < nchunks; i++) {
-					// read authentication tag for each chunk
-					tmp = hlen + CHUNK_ENC_SIZE * i + CHUNK_IV_SIZE
-							+ CHUNK_DATA_SIZE;
-					backingRandomAccessFile.seek(tmp);
-					backingRandomAccessFile.read(tmpATag);
-					verifier.insertChunkAuthTag((int) i, tmpATag);
-				}
-			} else {
-				// parse all full chunks
-				for (long i = 0; i < (nchunks - 1); i++) {
-					// read authentication tag for each chunk
-					tmp = hlen + CHUNK_ENC_SIZE * i + CHUNK_IV_SIZE
-							+ CHUNK_DATA_SIZE;
-					backingRandomAccessFile.seek(tmp);
-					backingRandomAccessFile.read(tmpATag);
-					verifier.insertChunkAuthTag((int) i, tmpATag);
+		ByteBuffer tmpATag = ByteBuffer.allocate(CHUNK_TLEN);
+		for (long i = 0; i < nchunks; i++) {
+			// the last chunk may be a partial chunk, but its auth tag is
+			// always located at the end of the file
+			long pos = (i == (nchunks - 1)) ? (flen - CHUNK_TLEN) : (hlen
+					+ CHUNK_ENC_SIZE * i + CHUNK_IV_SIZE + CHUNK_DATA_SIZE);
+			tmpATag.clear();
+			while (tmpATag.hasRemaining()) {
+				if (channel.read(tmpATag, pos + tmpATag.position()) < 0) {
+					throw new FileEncryptionException(
+							"Unexpected end of file while reading chunk authentication tags!");
 				}
-
-				// parse last chunk
-				backingRandomAccessFile.seek(realLength() - CHUNK_TLEN);
-				backingRandomAccessFile.read(tmpATag);
-				verifier.insertChunkAuthTag((int) (nchunks - 1), tmpATag);
 			}
+			verifier.insertChunkAuthTag((int) i, tmpATag.array());
 		}
-
-		backingRandomAccessFile.seek(oldpos);
 	}
 
 	@Override
@@ -333,6 +810,20 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 		}
 	}
 
+	@Override
+	protected synchronized void rewrapFileKey()
+			throws FileEncryptionException, IOException, InvalidKeyException,
+			IllegalBlockSizeException, BadPaddingException {
+		// the root authentication tag is keyed with the share key as well and
+		// gets written to the header together with the wrapped file key. Empty
+		// files don't carry a root authentication tag.
+		if (numchunks() > 0) {
+			getAuthTagVerifier().updateFileAuthTag();
+		} else {
+			super.rewrapFileKey();
+		}
+	}
+
 	@Override
 	public boolean checkFileAuthenticationTag() throws FileEncryptionException,
 			IOException {
@@ -431,9 +922,9 @@ public abstract class AbstractAESGCMRandomAccessFile extends
 				} else {
 					try {
 						this.shareKey = shareKey;
-						this.setAuthTagVerifier(new AuthTagVerifier(this));
 						// initialize new file with header information
 						this.fHeader = this.new FileHeader();
+						this.setAuthTagVerifier(new AuthTagVerifier(this));
 
 						// init with new cache
 						this.cache = this.implementsCaching() ? new ChunkCache()
@@ -26,19 +26,31 @@
  */
 package org.panbox.core.crypto.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
 
+import org.apache.log4j.Logger;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
+import org.panbox.PanboxConstants;
 import org.panbox.core.exception.FileEncryptionException;
 
 /**
@@ -51,9 +63,23 @@ import org.panbox.core.exception.FileEncryptionException;
  *         authentication tag, all authentication tag management is conducted
  *         in-memory only, i.e. in particular chunk authentication tags still
  *         need to be written to disk after having been updated.
+ * 
+ *         Depending on the version of the file, one of two structures is used:
+ *         Files of version {@link PanboxConstants#PANBOX_VERSION} store an
+ *         HMAC over the flat list of all chunk authentication tags. Files of
+ *         version {@link PanboxConstants#PANBOX_VERSION_HASHTREE} store an
+ *         HMAC over the root of a binary SHA-256 hash tree, the leaves of
+ *         which are the chunk authentication tags. In the latter case,
+ *         updating a single chunk authentication tag only requires the nodes
+ *         on its path to the root to be recomputed, and the interior nodes
+ *         may be cached in a local sidecar file (see
+ *         {@link #setSidecarDirectory(File)}), so reopening a file does not
+ *         require all chunk authentication tags to be read.
  */
 public class AuthTagVerifier {
 
+	private static final Logger log = Logger.getLogger("org.panbox.core");
+
 	/**
 	 * {@link EncRandomAccessFile}-instance using this {@link AuthTagVerifier}
 	 * for auth tag verification
@@ -63,14 +89,162 @@ public class AuthTagVerifier {
 	private int CHUNK_AUTH_TAG_LENGTH;
 
 	/**
-	 * HMAC for calculating the root authentication tag of this file.
+	 * hard-coded file auth tag size for SHA256Digest
 	 */
-	protected final HMac authTagHMac;
+	final static int AUTH_TAG_SIZE = 32;
 
 	/**
-	 * hard-coded file auth tag size for SHA256Digest
+	 * hard-coded size of a hash tree node for SHA256Digest
 	 */
-	final static int AUTH_TAG_SIZE = 32;
+	final static int NODE_SIZE = 32;
+
+	/**
+	 * domain separation prefixes for leaf and interior node hashes
+	 */
+	private final static byte LEAF_PREFIX = 0x00;
+	private final static byte NODE_PREFIX = 0x01;
+
+	/**
+	 * sidecar file layout: magic (6 bytes), state (1 byte), capacity (4
+	 * bytes), number of leaves (8 bytes), followed by 2 * capacity nodes in
+	 * heap order (node 0 is unused)
+	 */
+	private final static byte[] SIDECAR_MAGIC = new byte[] { 'P', 'B', 'T',
+			'R', 'E', 'E' };
+	private final static String SIDECAR_SUFFIX = ".tree";
+	private final static byte SIDECAR_STATE_CLEAN = 0x00;
+	private final static byte SIDECAR_STATE_DIRTY = 0x01;
+	private final static int SIDECAR_FIELD_STATE = SIDECAR_MAGIC.length;
+	private final static int SIDECAR_FIELD_LEAVES = SIDECAR_FIELD_STATE + 1
+			+ (Integer.SIZE / 8);
+	private final static int SIDECAR_HEADER_SIZE = SIDECAR_FIELD_LEAVES
+			+ (Long.SIZE / 8);
+
+	/**
+	 * indicates if newly created files should use hash tree based file
+	 * authentication
+	 */
+	private static volatile boolean hashTreeEnabled = false;
+
+	/**
+	 * local directory for caching hash tree sidecar files, or
+	 * <code>null</code> if no sidecar files should be used
+	 */
+	private static volatile File sidecarDirectory = null;
+
+	/**
+	 * @return <code>true</code> if newly created files use hash tree based
+	 *         file authentication, <code>false</code> otherwise
+	 */
+	public static boolean isHashTreeEnabled() {
+		return hashTreeEnabled;
+	}
+
+	/**
+	 * Sets whether newly created files use hash tree based file
+	 * authentication. Existing files keep their format. NOTE: Files created
+	 * with hash tree authentication cannot be opened by clients which only
+	 * support {@link PanboxConstants#PANBOX_VERSION}.
+	 * 
+	 * @param enabled
+	 */
+	public static void setHashTreeEnabled(boolean enabled) {
+		hashTreeEnabled = enabled;
+	}
+
+	/**
+	 * @return the local directory for hash tree sidecar files, or
+	 *         <code>null</code> if sidecar files are disabled
+	 */
+	public static File getSidecarDirectory() {
+		return sidecarDirectory;
+	}
+
+	/**
+	 * Sets the local directory in which the interior nodes of hash tree
+	 * authenticated files are cached. Sidecar files are named after the file
+	 * authentication tag they belong to and are verified against it before
+	 * being used, so they may be removed at any time. As the encrypted files
+	 * may be modified by other devices, sidecar files should not be stored
+	 * within a share.
+	 * 
+	 * @param directory
+	 *            sidecar directory, or <code>null</code> to disable sidecar
+	 *            files
+	 */
+	public static void setSidecarDirectory(File directory) {
+		sidecarDirectory = directory;
+	}
+
+	/**
+	 * @return the sidecar directory to be used for the given file, or
+	 *         <code>null</code> if sidecar files are disabled for it
+	 */
+	private static File sidecarDirectoryFor(EncRandomAccessFile file) {
+		return file.isSidecarDisabled() ? null : sidecarDirectory;
+	}
+
+	/**
+	 * indicates if this instance manages a hash tree instead of a flat list of
+	 * chunk authentication tags
+	 */
+	private final boolean hashTree;
+
+	/**
+	 * digest for calculating hash tree nodes
+	 */
+	private final SHA256Digest nodeDigest;
+
+	/**
+	 * hash tree nodes in heap order, i.e. node j has the children 2j and 2j+1
+	 * and the leaf for chunk i is stored at node (capacity + i). Empty
+	 * subtrees are represented by all-zero nodes.
+	 */
+	private byte[] nodes;
+
+	/**
+	 * number of leaves of the hash tree, always a power of two
+	 */
+	private int capacity;
+
+	/**
+	 * number of chunk authentication tags stored in the hash tree
+	 */
+	private int leafCount;
+
+	/**
+	 * number of leaves below leafCount for which no chunk authentication tag
+	 * has been set
+	 */
+	private int missingLeaves;
+
+	/**
+	 * indicates if leaves have been inserted without updating the interior
+	 * nodes
+	 */
+	private boolean treeStale;
+
+	/**
+	 * nodes which have been restored from a sidecar file and have not been
+	 * verified against the root yet
+	 */
+	private BitSet unverifiedNodes;
+
+	/**
+	 * nodes which have been changed since the sidecar file has been written
+	 */
+	private BitSet dirtyNodes;
+
+	/**
+	 * indicates if the sidecar file needs to be rewritten completely
+	 */
+	private boolean sidecarLayoutChanged;
+
+	/**
+	 * file authentication tag under which the sidecar file for this instance
+	 * is currently stored, or <code>null</code> if there is none
+	 */
+	private byte[] sidecarTag;
 
 	/**
 	 * @param
@@ -78,12 +252,20 @@ public class AuthTagVerifier {
 	public AuthTagVerifier(EncRandomAccessFile encRandomAccessFile) {
 		this.backEncRandomAccessFile = encRandomAccessFile;
 		this.CHUNK_AUTH_TAG_LENGTH = encRandomAccessFile.CHUNK_TLEN;
-		this.authTagHMac = new HMac(new SHA256Digest());
-		// KeyParameter keyParame = new
-		// KeyParameter(backEncRandomAccessFile.secretKey.)
-		// authTagHMac.init(null);
 
 		this.atagList = new ArrayList<byte[]>();
+		this.hashTree = encRandomAccessFile.usesHashTree();
+		this.nodeDigest = new SHA256Digest();
+		resetTree();
+	}
+
+	/**
+	 * @return <code>true</code> if this instance manages a hash tree,
+	 *         <code>false</code> if it manages a flat list of chunk
+	 *         authentication tags
+	 */
+	public boolean isHashTree() {
+		return hashTree;
 	}
 
 	/**
@@ -99,9 +281,13 @@ public class AuthTagVerifier {
 	public synchronized void updateFileAuthTag()
 			throws FileEncryptionException, InvalidKeyException,
 			IllegalBlockSizeException, BadPaddingException, IOException {
+		awaitVerification();
 		byte[] tmp = buildFileAuthTag();
 		backEncRandomAccessFile.writeFileAuthenticationTag(tmp);
 		this.needsUpdate = false;
+		if (hashTree) {
+			persistSidecar(tmp);
+		}
 	}
 
 	// /**
@@ -123,10 +309,24 @@ public class AuthTagVerifier {
 		if (key == null || key.getEncoded().length == 0) {
 			throw new FileEncryptionException(
 					"Invalid file encryption key in encrypting random access file!");
-		} else {
-			authTagHMac.reset();
-			KeyParameter keyParameter = new KeyParameter(key.getEncoded());
-			authTagHMac.init(keyParameter);
+		}
+		HMac authTagHMac = CryptoEnginePool.borrowHMac();
+		try {
+			authTagHMac.init(new KeyParameter(key.getEncoded()));
+			return buildFileAuthTag(authTagHMac);
+		} finally {
+			CryptoEnginePool.releaseHMac(authTagHMac);
+		}
+	}
+
+	/**
+	 * builds the root authentication tag with the given, already initialized
+	 * HMAC
+	 */
+	private byte[] buildFileAuthTag(HMac authTagHMac)
+			throws FileEncryptionException {
+		if (hashTree) {
+			return buildTreeFileAuthTag(authTagHMac);
 		}
 
 		if (atagList.size() == 0) {
@@ -150,12 +350,62 @@ public class AuthTagVerifier {
 		}
 	}
 
+	/**
+	 * builds the root authentication tag for the hash tree, i.e. the HMAC
+	 * over its root node and number of leaves. authTagHMac needs to have been
+	 * initialized.
+	 * 
+	 * @return
+	 * @throws FileEncryptionException
+	 */
+	private byte[] buildTreeFileAuthTag(HMac authTagHMac)
+			throws FileEncryptionException {
+		if (leafCount == 0) {
+			throw new FileEncryptionException(
+					"No chunk authentication tags have been set yet!");
+		} else if (missingLeaves > 0) {
+			for (int i = 0; i < leafCount; i++) {
+				if (isEmptyNode(nodes, capacity + i)) {
+					throw new FileEncryptionException(
+							"Invalid chunk authentication tag in auth tag table at offset: "
+									+ i);
+				}
+			}
+		}
+		ensureTreeBuilt();
+		return rootAuthTag(authTagHMac, nodes, leafCount);
+	}
+
+	/**
+	 * calculates the HMAC over the root of the given tree and its number of
+	 * leaves with the already initialized authTagHMac
+	 */
+	private static byte[] rootAuthTag(HMac authTagHMac, byte[] treeNodes,
+			long leaves) {
+		authTagHMac.update(treeNodes, NODE_SIZE, NODE_SIZE);
+		for (int i = Long.SIZE - Byte.SIZE; i >= 0; i -= Byte.SIZE) {
+			authTagHMac.update((byte) (leaves >>> i));
+		}
+		byte[] tmp = new byte[AUTH_TAG_SIZE];
+		authTagHMac.doFinal(tmp, 0);
+		return tmp;
+	}
+
 	private ArrayList<byte[]> atagList = new ArrayList<byte[]>();
 
 	@Override
 	public String toString() {
 		StringBuffer buf = new StringBuffer();
-		if (atagList == null) {
+		if (hashTree) {
+			buf.append("leaves: " + leafCount + ", capacity: " + capacity
+					+ "\n");
+			for (int i = 0; i < leafCount; i++) {
+				buf.append(i + ": ");
+				buf.append(Hex.toHexString(nodes, (capacity + i) * NODE_SIZE,
+						NODE_SIZE));
+				buf.append("\n");
+			}
+		} else if (atagList == null) {
 			buf.append("null");
 		} else {
 			for (int i = 0; i < atagList.size(); i++) {
@@ -184,7 +434,25 @@ public class AuthTagVerifier {
 	 */
 	public synchronized boolean verifyFileAuthTag()
 			throws FileEncryptionException {
-		byte[] storedTag = backEncRandomAccessFile.readFileAuthenticationTag();
+		awaitVerification();
+		return verifyFileAuthTag(backEncRandomAccessFile
+				.readFileAuthenticationTag());
+	}
+
+	/**
+	 * verifies the complete list of all authentication tags w.r.t. the given
+	 * file authentication tag. Unlike {@link #verifyFileAuthTag()}, this does
+	 * not access the file header and may therefore be called without holding
+	 * the lock of the corresponding {@link EncRandomAccessFile}-instance.
+	 * 
+	 * @param storedTag
+	 *            file authentication tag as stored in the file header
+	 * @return <code>true</code> if the verification was positive,
+	 *         <code>false</code> otherwise
+	 * @throws FileEncryptionException
+	 */
+	synchronized boolean verifyFileAuthTag(byte[] storedTag)
+			throws FileEncryptionException {
 		if (storedTag == null || storedTag.length != AUTH_TAG_SIZE) {
 			throw new FileEncryptionException(
 					"Encrypted file has invalid file authentication tag!");
@@ -197,7 +465,16 @@ public class AuthTagVerifier {
 	/**
 	 * verifies if the given chunk authentication tag equals the one in the
 	 * authentication tag list, but DOES NOT verify if the complete list of all
-	 * authentication tags is valid w.r.t. the central file authentication tag
+	 * authentication tags is valid w.r.t. the central file authentication tag.
+	 * In hash tree mode, the authentication path of the chunk is checked up to
+	 * the first node which has already been verified.
+	 * 
+	 * While the file authentication tag is verified in the background (see
+	 * {@link #beginBackgroundVerification()}), this method blocks until
+	 * verification has finished: Until then, the tags read so far have not
+	 * been authenticated by the file authentication tag, and neither a flat
+	 * list nor the authentication path of a hash tree can be checked without
+	 * the tags of all chunks.
 	 * 
 	 * @param chunkIdx
 	 * @param chunkAuthTag
@@ -210,6 +487,25 @@ public class AuthTagVerifier {
 				|| (chunkAuthTag.length != backEncRandomAccessFile.CHUNK_TLEN)) {
 			throw new FileEncryptionException(
 					"Invalid auth tag parameter given!");
+		}
+		awaitVerification();
+		if (invalid) {
+			return false;
+		} else if (hashTree) {
+			ensureTreeBuilt();
+			if (chunkIdx >= leafCount) {
+				return false;
+			}
+			byte[] leaf = leafHash(chunkAuthTag);
+			if (verifyAuthPath(chunkIdx, leaf)) {
+				return true;
+			} else if (!unverifiedNodes.isEmpty() && rebuildFromChunkTags()) {
+				// sidecar data were inconsistent, retry with the tree
+				// rebuilt from the chunk authentication tags
+				return verifyAuthPath(chunkIdx, leaf);
+			} else {
+				return false;
+			}
 		} else {
 			byte[] storedAuthTag = atagList.get(chunkIdx);
 			if (storedAuthTag == null
@@ -228,7 +524,8 @@ public class AuthTagVerifier {
 	 * corresponding chunk auth tag has already been written to disk prior to
 	 * calling this function. NOTE: This mthod neither rebuilds the file
 	 * authentication tag tree nor writes the resulting file authentication tag.
-	 * See {@link #updateFileAuthTag()}
+	 * See {@link #updateFileAuthTag()}. In hash tree mode, only the nodes on
+	 * the path from the chunks leaf to the root are recomputed.
 	 * 
 	 * @param chunkIdx
 	 * @param chunkAuthTag
@@ -242,7 +539,19 @@ public class AuthTagVerifier {
 			byte[] chunkAuthTag) throws FileEncryptionException,
 			InvalidKeyException, IllegalBlockSizeException,
 			BadPaddingException, IOException {
-		insertChunkAuthTag(chunkIdx, chunkAuthTag);
+		awaitVerification();
+		if (hashTree) {
+			checkChunkAuthTagParams(chunkIdx, chunkAuthTag);
+			ensureTreeBuilt();
+			while (capacity <= chunkIdx) {
+				growTree();
+			}
+			authenticatePath(chunkIdx);
+			setLeaf(chunkIdx, leafHash(chunkAuthTag));
+			updatePath(chunkIdx);
+		} else {
+			insertChunkAuthTag(chunkIdx, chunkAuthTag);
+		}
 		// updateFileAuthTag();
 		this.needsUpdate = true;
 	}
@@ -256,11 +565,18 @@ public class AuthTagVerifier {
 	 * @return chunk authentication tag as byte array, if set, <code>null</code>
 	 *         otherwise
 	 * @throws FileEncryptionException
+	 *             if the index is invalid or if this instance manages a hash
+	 *             tree, which only retains the hashes of chunk authentication
+	 *             tags
 	 */
 	public final synchronized byte[] getStoredChunkAuthTag(int chunkIdx)
 			throws FileEncryptionException {
+		awaitVerification();
 		if (chunkIdx < 0) {
 			throw new FileEncryptionException("Invalid chunk index given!");
+		} else if (hashTree) {
+			throw new FileEncryptionException(
+					"Chunk authentication tags are not retained in hash tree mode!");
 		} else {
 			return atagList.get(chunkIdx);
 		}
@@ -269,7 +585,8 @@ public class AuthTagVerifier {
 	/**
 	 * Method inserts a new authentication tag WITHOUT setting the needsUpdate
 	 * flag. To be used for initial construction of the authentication tag
-	 * table.
+	 * table. In hash tree mode, interior nodes are only computed once they are
+	 * needed.
 	 * 
 	 * @param chunkIdx
 	 * @param chunkAuthTag
@@ -277,10 +594,13 @@ public class AuthTagVerifier {
 	 */
 	public synchronized void insertChunkAuthTag(int chunkIdx,
 			byte[] chunkAuthTag) throws FileEncryptionException {
-		if (chunkIdx < 0 || chunkAuthTag == null
-				|| chunkAuthTag.length != CHUNK_AUTH_TAG_LENGTH) {
-			throw new FileEncryptionException(
-					"Invalid auth tag parameter given!");
+		checkChunkAuthTagParams(chunkIdx, chunkAuthTag);
+		if (hashTree) {
+			while (capacity <= chunkIdx) {
+				growTree();
+			}
+			setLeaf(chunkIdx, leafHash(chunkAuthTag));
+			this.treeStale = true;
 		} else {
 			if (atagList.size() <= chunkIdx) {
 				atagList.ensureCapacity(chunkIdx + 1);
@@ -295,6 +615,97 @@ public class AuthTagVerifier {
 		}
 	}
 
+	private void checkChunkAuthTagParams(int chunkIdx, byte[] chunkAuthTag)
+			throws FileEncryptionException {
+		if (chunkIdx < 0 || chunkAuthTag == null
+				|| chunkAuthTag.length != CHUNK_AUTH_TAG_LENGTH) {
+			throw new FileEncryptionException(
+					"Invalid auth tag parameter given!");
+		}
+	}
+
+	/**
+	 * marks this instance as invalid, e.g. if the verification of the file
+	 * authentication tag failed after the instance has already been handed
+	 * out. Afterwards, all chunk authentication tags fail verification.
+	 */
+	synchronized void invalidate() {
+		this.invalid = true;
+	}
+
+	/**
+	 * indicates if this instance has been invalidated
+	 */
+	private boolean invalid;
+
+	/**
+	 * indicates if the file authentication tag is being verified in the
+	 * background
+	 */
+	private boolean verifying;
+
+	/**
+	 * time threads have been waiting for background verification in
+	 * nanoseconds
+	 */
+	private long blockedTime;
+
+	/**
+	 * Marks the start of a background verification, which inserts the chunk
+	 * authentication tags by means of {@link #insertChunkAuthTag(int, byte[])}
+	 * and then calls {@link #endBackgroundVerification(boolean)}. In the
+	 * meantime, {@link #verifyChunkAuthTag(int, byte[])} and all other
+	 * operations depending on the file authentication tag block until
+	 * verification has finished, so no chunk is served before it has been
+	 * authenticated w.r.t. the file as a whole. If verification fails, this
+	 * instance is invalidated and all chunk accesses fail.
+	 */
+	synchronized void beginBackgroundVerification() {
+		this.verifying = true;
+	}
+
+	/**
+	 * @param valid
+	 *            result of the verification of the file authentication tag
+	 */
+	synchronized void endBackgroundVerification(boolean valid) {
+		if (!valid) {
+			this.invalid = true;
+		}
+		this.verifying = false;
+		notifyAll();
+	}
+
+	/**
+	 * @return time threads have been waiting for background verification in
+	 *         nanoseconds
+	 */
+	synchronized long getBlockedTime() {
+		return blockedTime;
+	}
+
+	/**
+	 * blocks until a pending background verification has finished
+	 */
+	synchronized void awaitVerification() {
+		if (!verifying) {
+			return;
+		}
+		long start = System.nanoTime();
+		boolean interrupted = false;
+		while (verifying) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		blockedTime += System.nanoTime() - start;
+	}
+
 	/**
 	 * indicates if the file authentication tag needs to be re-built
 	 */
@@ -312,8 +723,9 @@ public class AuthTagVerifier {
 	/**
 	 * Method removes an existing authentication tag WITHOUT rebuilding the
 	 * value of the central file authentication tag. May e.g. be used in case of
-	 * file truncation. Note: In case of removal of intermediate chunks, it may
-	 * become necessary to rebuild the authentication tag table
+	 * file truncation, in which case tags need to be removed starting with the
+	 * last one. Note: In case of removal of intermediate chunks, it may become
+	 * necessary to rebuild the authentication tag table
 	 * 
 	 * @param chunkIdx
 	 * @param chunkAuthTag
@@ -321,11 +733,16 @@ public class AuthTagVerifier {
 	 */
 	protected synchronized void removeChunkAuthTag(long chunkIdx)
 			throws FileEncryptionException {
+		awaitVerification();
 		if (chunkIdx < 0) {
 			throw new FileEncryptionException(
 					"Invalid auth tag parameter given!");
-		} else {
-			atagList.remove(chunkIdx);
+		} else if (hashTree) {
+			if (chunkIdx < leafCount) {
+				removeLeaf((int) chunkIdx);
+			}
+		} else if (chunkIdx < atagList.size()) {
+			atagList.remove((int) chunkIdx);
 		}
 	}
 
@@ -333,7 +750,546 @@ public class AuthTagVerifier {
 	 * completely resets this authentication tag tree instance
 	 */
 	public synchronized void reset() {
-		authTagHMac.reset();
 		atagList.clear();
+		resetTree();
+		this.sidecarTag = null;
+	}
+
+	/**
+	 * Initializes this instance from the sidecar file stored for the current
+	 * file authentication tag, if there is one. Only the root of the sidecar
+	 * tree is verified against the file authentication tag, all other nodes
+	 * are verified lazily along the authentication paths of the chunks being
+	 * accessed.
+	 * 
+	 * @param nchunks
+	 *            number of chunks of the file
+	 * @return <code>true</code> if the hash tree could be restored from the
+	 *         sidecar file, <code>false</code> otherwise
+	 * @throws FileEncryptionException
+	 */
+	synchronized boolean loadSidecar(long nchunks)
+			throws FileEncryptionException {
+		File directory = sidecarDirectoryFor(backEncRandomAccessFile);
+		byte[] fileAuthTag = backEncRandomAccessFile
+				.readFileAuthenticationTag();
+		if (!hashTree || directory == null || fileAuthTag == null
+				|| nchunks <= 0 || nchunks > Integer.MAX_VALUE) {
+			return false;
+		}
+
+		File sidecar = sidecarFile(directory, fileAuthTag);
+		if (!sidecar.isFile()) {
+			return false;
+		}
+
+		int expectedCapacity = capacityFor((int) nchunks);
+		byte[] tmpNodes = null;
+		if (sidecar.length() == SIDECAR_HEADER_SIZE + 2L * expectedCapacity
+				* NODE_SIZE) {
+			try {
+				DataInputStream istream = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(sidecar)));
+				try {
+					byte[] tmpmagic = new byte[SIDECAR_MAGIC.length];
+					istream.readFully(tmpmagic);
+					byte state = istream.readByte();
+					int tmpcapacity = istream.readInt();
+					long tmpleaves = istream.readLong();
+					if (Arrays.equals(tmpmagic, SIDECAR_MAGIC)
+							&& (state == SIDECAR_STATE_CLEAN)
+							&& (tmpcapacity == expectedCapacity)
+							&& (tmpleaves == nchunks)) {
+						tmpNodes = new byte[2 * expectedCapacity * NODE_SIZE];
+						istream.readFully(tmpNodes);
+					}
+				} finally {
+					istream.close();
+				}
+			} catch (IOException e) {
+				log.warn("Could not read authentication tag tree sidecar "
+						+ sidecar, e);
+				tmpNodes = null;
+			}
+		}
+
+		if (tmpNodes != null) {
+			SecretKey key = backEncRandomAccessFile.shareKey;
+			if (key == null || key.getEncoded().length == 0) {
+				throw new FileEncryptionException(
+						"Invalid file encryption key in encrypting random access file!");
+			}
+			HMac authTagHMac = CryptoEnginePool.borrowHMac();
+			boolean valid;
+			try {
+				authTagHMac.init(new KeyParameter(key.getEncoded()));
+				valid = Arrays.equals(
+						rootAuthTag(authTagHMac, tmpNodes, nchunks),
+						fileAuthTag);
+			} finally {
+				CryptoEnginePool.releaseHMac(authTagHMac);
+			}
+			if (valid) {
+				resetTree();
+				this.nodes = tmpNodes;
+				this.capacity = expectedCapacity;
+				this.leafCount = (int) nchunks;
+				// everything below the root still needs to be verified
+				this.unverifiedNodes.set(2, 2 * capacity);
+				this.sidecarLayoutChanged = false;
+				this.sidecarTag = Arrays.copyOf(fileAuthTag,
+						fileAuthTag.length);
+				return true;
+			}
+		}
+
+		// sidecar is stale or broken
+		if (!sidecar.delete()) {
+			log.warn("Could not delete invalid authentication tag tree sidecar "
+					+ sidecar);
+		}
+		return false;
+	}
+
+	/**
+	 * stores the current hash tree within a sidecar file for the given file
+	 * authentication tag, if sidecar files have been enabled and no sidecar
+	 * file has been stored yet
+	 * 
+	 * @param fileAuthTag
+	 *            verified file authentication tag
+	 */
+	synchronized void storeSidecar(byte[] fileAuthTag) {
+		if (hashTree && (sidecarTag == null) && (fileAuthTag != null)
+				&& (leafCount > 0)) {
+			ensureTreeBuilt();
+			persistSidecar(fileAuthTag);
+		}
+	}
+
+	private static File sidecarFile(File directory, byte[] fileAuthTag) {
+		return new File(directory, Hex.toHexString(fileAuthTag)
+				+ SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * writes the current hash tree to the sidecar file for the given file
+	 * authentication tag. If a sidecar file of the same layout exists, only
+	 * the nodes which have changed are written and the file is renamed
+	 * afterwards. Failures are logged, as sidecar files are a cache only.
+	 * 
+	 * @param fileAuthTag
+	 */
+	private void persistSidecar(byte[] fileAuthTag) {
+		File directory = sidecarDirectoryFor(backEncRandomAccessFile);
+		if (directory == null) {
+			return;
+		}
+
+		File target = sidecarFile(directory, fileAuthTag);
+		File current = (sidecarTag != null) ? sidecarFile(directory,
+				sidecarTag) : null;
+		try {
+			if ((current != null) && !sidecarLayoutChanged && current.isFile()) {
+				writeSidecarNodes(current);
+				if (!current.equals(target)) {
+					if (target.exists() && !target.delete()) {
+						throw new IOException("Could not replace " + target);
+					}
+					if (!current.renameTo(target)) {
+						throw new IOException("Could not rename " + current
+								+ " to " + target);
+					}
+				}
+			} else {
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Could not create directory "
+							+ directory);
+				}
+				if (current != null) {
+					current.delete();
+				}
+				writeSidecar(target);
+			}
+			this.sidecarTag = Arrays.copyOf(fileAuthTag, fileAuthTag.length);
+			this.sidecarLayoutChanged = false;
+			dirtyNodes.clear();
+		} catch (IOException e) {
+			log.warn("Could not persist authentication tag tree sidecar "
+					+ target, e);
+			if (current != null) {
+				current.delete();
+			}
+			target.delete();
+			this.sidecarTag = null;
+			this.sidecarLayoutChanged = true;
+		}
+	}
+
+	private void writeSidecar(File sidecar) throws IOException {
+		DataOutputStream ostream = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(sidecar)));
+		try {
+			ostream.write(SIDECAR_MAGIC);
+			ostream.writeByte(SIDECAR_STATE_CLEAN);
+			ostream.writeInt(capacity);
+			ostream.writeLong(leafCount);
+			ostream.write(nodes);
+		} finally {
+			ostream.close();
+		}
+	}
+
+	private void writeSidecarNodes(File sidecar) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+		try {
+			// mark sidecar as dirty while updating it, so an interrupted
+			// update will not be loaded
+			raf.seek(SIDECAR_FIELD_STATE);
+			raf.writeByte(SIDECAR_STATE_DIRTY);
+			raf.seek(SIDECAR_FIELD_LEAVES);
+			raf.writeLong(leafCount);
+			for (int j = dirtyNodes.nextSetBit(0); j >= 0; j = dirtyNodes
+					.nextSetBit(j + 1)) {
+				raf.seek(SIDECAR_HEADER_SIZE + (long) j * NODE_SIZE);
+				raf.write(nodes, j * NODE_SIZE, NODE_SIZE);
+			}
+			raf.seek(SIDECAR_FIELD_STATE);
+			raf.writeByte(SIDECAR_STATE_CLEAN);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * resets the hash tree to an empty tree with a single leaf
+	 */
+	private void resetTree() {
+		this.capacity = 1;
+		this.nodes = new byte[2 * NODE_SIZE];
+		this.leafCount = 0;
+		this.missingLeaves = 0;
+		this.treeStale = false;
+		this.unverifiedNodes = new BitSet();
+		this.dirtyNodes = new BitSet();
+		this.sidecarLayoutChanged = true;
+	}
+
+	/**
+	 * @return smallest power of two being greater or equal to the given
+	 *         number of leaves
+	 */
+	static int capacityFor(int leaves) {
+		int c = 1;
+		while (c < leaves) {
+			c <<= 1;
+		}
+		return c;
+	}
+
+	/**
+	 * doubles the capacity of the hash tree. The current tree becomes the
+	 * left subtree of the new root.
+	 */
+	private void growTree() {
+		int newCapacity = capacity << 1;
+		byte[] newNodes = new byte[2 * newCapacity * NODE_SIZE];
+		BitSet newUnverified = new BitSet();
+		// each level of the current tree moves down by one level, i.e. node j
+		// on the level starting at index l becomes node j + l
+		for (int l = 1; l <= capacity; l <<= 1) {
+			System.arraycopy(nodes, l * NODE_SIZE, newNodes, 2 * l
+					* NODE_SIZE, l * NODE_SIZE);
+			for (int j = unverifiedNodes.nextSetBit(l); (j >= 0)
+					&& (j < 2 * l); j = unverifiedNodes.nextSetBit(j + 1)) {
+				newUnverified.set(j + l);
+			}
+		}
+		this.nodes = newNodes;
+		this.capacity = newCapacity;
+		this.unverifiedNodes = newUnverified;
+		this.sidecarLayoutChanged = true;
+		computeNode(1);
+	}
+
+	/**
+	 * halves the capacity of the hash tree. The left subtree of the current
+	 * root becomes the new tree, so the right subtree needs to be empty and
+	 * the left child of the root needs to have been verified.
+	 */
+	private void shrinkTree() {
+		int newCapacity = capacity >> 1;
+		byte[] newNodes = new byte[2 * newCapacity * NODE_SIZE];
+		BitSet newUnverified = new BitSet();
+		// the left half of each level below the root moves up by one level,
+		// i.e. node j on the level starting at index l becomes node j - l/2
+		for (int l = 2; l <= capacity; l <<= 1) {
+			int half = l >> 1;
+			System.arraycopy(nodes, l * NODE_SIZE, newNodes, half * NODE_SIZE,
+					half * NODE_SIZE);
+			for (int j = unverifiedNodes.nextSetBit(l); (j >= 0)
+					&& (j < l + half); j = unverifiedNodes.nextSetBit(j + 1)) {
+				newUnverified.set(j - half);
+			}
+		}
+		newUnverified.clear(1);
+		this.nodes = newNodes;
+		this.capacity = newCapacity;
+		this.unverifiedNodes = newUnverified;
+		this.sidecarLayoutChanged = true;
+	}
+
+	/**
+	 * sets the leaf for the given chunk, which needs to be within the current
+	 * capacity
+	 */
+	private void setLeaf(int chunkIdx, byte[] leaf) {
+		int j = capacity + chunkIdx;
+		if (chunkIdx >= leafCount) {
+			missingLeaves += chunkIdx - leafCount;
+			leafCount = chunkIdx + 1;
+		} else if (isEmptyNode(nodes, j)) {
+			missingLeaves--;
+		}
+		System.arraycopy(leaf, 0, nodes, j * NODE_SIZE, NODE_SIZE);
+		unverifiedNodes.clear(j);
+		dirtyNodes.set(j);
+	}
+
+	/**
+	 * removes the leaf of the given chunk and adjusts the capacity of the
+	 * tree, if the last leaf has been removed
+	 */
+	private void removeLeaf(int chunkIdx) throws FileEncryptionException {
+		ensureTreeBuilt();
+		authenticatePath(chunkIdx);
+		int j = capacity + chunkIdx;
+		if (!isEmptyNode(nodes, j)) {
+			Arrays.fill(nodes, j * NODE_SIZE, (j + 1) * NODE_SIZE, (byte) 0x00);
+			missingLeaves++;
+			dirtyNodes.set(j);
+		}
+		updatePath(chunkIdx);
+
+		// drop trailing missing leaves
+		while ((leafCount > 0) && isEmptyNode(nodes, capacity + leafCount - 1)) {
+			leafCount--;
+			missingLeaves--;
+		}
+
+		if (capacityFor(Math.max(leafCount, 1)) < capacity) {
+			// all nodes of the remaining tree lie on the path of its last
+			// leaf or to its left, so the new root will have been verified
+			if (leafCount > 0) {
+				authenticatePath(leafCount - 1);
+			}
+			while (capacityFor(Math.max(leafCount, 1)) < capacity) {
+				shrinkTree();
+			}
+		}
+	}
+
+	/**
+	 * recomputes all interior nodes if leaves have been inserted via
+	 * {@link #insertChunkAuthTag(int, byte[])}
+	 */
+	private void ensureTreeBuilt() {
+		if (treeStale) {
+			for (int j = capacity - 1; j >= 1; j--) {
+				computeNode(j);
+			}
+			unverifiedNodes.clear();
+			this.treeStale = false;
+			this.sidecarLayoutChanged = true;
+		}
+	}
+
+	/**
+	 * recomputes all nodes on the path from the given chunks leaf to the root
+	 */
+	private void updatePath(int chunkIdx) {
+		for (int j = (capacity + chunkIdx) >> 1; j >= 1; j >>= 1) {
+			computeNode(j);
+		}
+	}
+
+	/**
+	 * makes sure that all siblings on the path of the given chunks leaf have
+	 * been verified, so they may be used for computing a new root. If the
+	 * path cannot be verified, the complete tree is rebuilt from its leaves.
+	 * 
+	 * @throws FileEncryptionException
+	 *             if the tree is inconsistent
+	 */
+	private void authenticatePath(int chunkIdx) throws FileEncryptionException {
+		if (unverifiedNodes.isEmpty()
+				|| verifyAuthPath(chunkIdx, getNode(capacity + chunkIdx))) {
+			return;
+		}
+
+		byte[] trustedRoot = getNode(1);
+		byte[] oldNodes = Arrays.copyOf(nodes, nodes.length);
+		BitSet oldUnverified = (BitSet) unverifiedNodes.clone();
+		BitSet oldDirty = (BitSet) dirtyNodes.clone();
+		for (int j = capacity - 1; j >= 1; j--) {
+			computeNode(j);
+		}
+		if (nodeEquals(1, trustedRoot)) {
+			unverifiedNodes.clear();
+			this.sidecarLayoutChanged = true;
+		} else {
+			this.nodes = oldNodes;
+			this.unverifiedNodes = oldUnverified;
+			this.dirtyNodes = oldDirty;
+			throw new FileEncryptionException(
+					"Inconsistent authentication tag tree at chunk " + chunkIdx);
+		}
+	}
+
+	/**
+	 * verifies the authentication path of the given leaf value up to the
+	 * first verified node. If successful, all nodes on the path as well as
+	 * their siblings are marked as verified.
+	 * 
+	 * @return <code>true</code> if the leaf value could be verified,
+	 *         <code>false</code> otherwise
+	 */
+	private boolean verifyAuthPath(int chunkIdx, byte[] leaf) {
+		List<byte[]> path = new ArrayList<byte[]>();
+		int j = capacity + chunkIdx;
+		byte[] h = leaf;
+		// the root is never unverified
+		while (unverifiedNodes.get(j)) {
+			path.add(h);
+			byte[] sibling = getNode(j ^ 1);
+			h = ((j & 1) == 0) ? hashNode(h, sibling) : hashNode(sibling, h);
+			j >>= 1;
+		}
+		if (!nodeEquals(j, h)) {
+			return false;
+		}
+
+		j = capacity + chunkIdx;
+		for (byte[] node : path) {
+			if (!nodeEquals(j, node)) {
+				System.arraycopy(node, 0, nodes, j * NODE_SIZE, NODE_SIZE);
+				dirtyNodes.set(j);
+			}
+			unverifiedNodes.clear(j);
+			unverifiedNodes.clear(j ^ 1);
+			j >>= 1;
+		}
+		return true;
+	}
+
+	/**
+	 * rebuilds the hash tree from the chunk authentication tags stored in the
+	 * file and checks if it results in the current, verified root. Otherwise,
+	 * the current tree is kept.
+	 * 
+	 * @return <code>true</code> if the tree has been rebuilt,
+	 *         <code>false</code> otherwise
+	 * @throws FileEncryptionException
+	 */
+	private boolean rebuildFromChunkTags() throws FileEncryptionException {
+		byte[] oldNodes = nodes;
+		int oldCapacity = capacity;
+		int oldLeafCount = leafCount;
+		int oldMissingLeaves = missingLeaves;
+		BitSet oldUnverified = unverifiedNodes;
+		BitSet oldDirty = dirtyNodes;
+		boolean oldLayoutChanged = sidecarLayoutChanged;
+		byte[] trustedRoot = getNode(1);
+
+		resetTree();
+		try {
+			((AbstractAESGCMRandomAccessFile) backEncRandomAccessFile)
+					.initVerifier(this);
+			ensureTreeBuilt();
+		} catch (IOException e) {
+			log.warn("Could not read chunk authentication tags", e);
+			this.leafCount = -1;
+		}
+
+		if ((leafCount == oldLeafCount) && nodeEquals(1, trustedRoot)) {
+			log.warn("Authentication tag tree for "
+					+ backEncRandomAccessFile.getAbsolutePath()
+					+ " has been rebuilt from chunk authentication tags.");
+			return true;
+		} else {
+			this.nodes = oldNodes;
+			this.capacity = oldCapacity;
+			this.leafCount = oldLeafCount;
+			this.missingLeaves = oldMissingLeaves;
+			this.unverifiedNodes = oldUnverified;
+			this.dirtyNodes = oldDirty;
+			this.sidecarLayoutChanged = oldLayoutChanged;
+			this.treeStale = false;
+			return false;
+		}
+	}
+
+	private void computeNode(int j) {
+		int left = 2 * j * NODE_SIZE;
+		int right = left + NODE_SIZE;
+		if (isEmptyNode(nodes, 2 * j) && isEmptyNode(nodes, 2 * j + 1)) {
+			Arrays.fill(nodes, j * NODE_SIZE, (j + 1) * NODE_SIZE, (byte) 0x00);
+		} else {
+			nodeDigest.update(NODE_PREFIX);
+			nodeDigest.update(nodes, left, NODE_SIZE);
+			nodeDigest.update(nodes, right, NODE_SIZE);
+			nodeDigest.doFinal(nodes, j * NODE_SIZE);
+		}
+		if (!unverifiedNodes.get(2 * j) && !unverifiedNodes.get(2 * j + 1)) {
+			unverifiedNodes.clear(j);
+		}
+		dirtyNodes.set(j);
+	}
+
+	private byte[] hashNode(byte[] left, byte[] right) {
+		byte[] tmp = new byte[NODE_SIZE];
+		if (!isEmpty(left) || !isEmpty(right)) {
+			nodeDigest.update(NODE_PREFIX);
+			nodeDigest.update(left, 0, NODE_SIZE);
+			nodeDigest.update(right, 0, NODE_SIZE);
+			nodeDigest.doFinal(tmp, 0);
+		}
+		return tmp;
+	}
+
+	private byte[] leafHash(byte[] chunkAuthTag) {
+		byte[] tmp = new byte[NODE_SIZE];
+		nodeDigest.update(LEAF_PREFIX);
+		nodeDigest.update(chunkAuthTag, 0, chunkAuthTag.length);
+		nodeDigest.doFinal(tmp, 0);
+		return tmp;
+	}
+
+	private byte[] getNode(int j) {
+		return Arrays.copyOfRange(nodes, j * NODE_SIZE, (j + 1) * NODE_SIZE);
+	}
+
+	private boolean nodeEquals(int j, byte[] node) {
+		int off = j * NODE_SIZE;
+		for (int i = 0; i < NODE_SIZE; i++) {
+			if (nodes[off + i] != node[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEmptyNode(byte[] treeNodes, int j) {
+		int off = j * NODE_SIZE;
+		for (int i = 0; i < NODE_SIZE; i++) {
+			if (treeNodes[off + i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEmpty(byte[] node) {
+		return isEmptyNode(node, 0);
 	}
 }
@@ -0,0 +1,496 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * @author palige
+ *
+ *         Thread-safe pool of cipher and MAC engines shared by all
+ *         {@link EncRandomAccessFile} instances. Engines are keyed by their
+ *         algorithm and provider and are borrowed for a single operation, i.e.
+ *         callers have to initialize a borrowed engine with their own key and
+ *         parameters before use and must return it with
+ *         {@link #release(String, Object)} afterwards. This avoids the
+ *         provider lookup and object setup costs of creating new engines for
+ *         each opened file.
+ *
+ *         Engines keep the key schedule of their last initialization, thus
+ *         the type specific release methods re-initialize them with an
+ *         all-zero key before they are pooled. This way, idle engines never
+ *         hold key material of a file which may already have been closed. As
+ *         this costs an additional key schedule, files keep the engines they
+ *         use for their chunks in a {@link KeyedEngines} instance between
+ *         operations and only return them to this pool once the file is
+ *         closed.
+ *
+ *         At most {@link #MAX_IDLE_ENGINES} idle engines are kept per key;
+ *         surplus engines are discarded upon release.
+ */
+public final class CryptoEnginePool {
+
+	/**
+	 * maximum number of idle engines held per key
+	 */
+	public final static int MAX_IDLE_ENGINES = Math.max(8, 2 * Runtime
+			.getRuntime().availableProcessors());
+
+	/**
+	 * pool key for {@link #borrowHMac()}
+	 */
+	public final static String HMAC_SHA256 = "HMac/SHA256";
+
+	/**
+	 * throwaway key for removing key material from released engines
+	 */
+	private final static byte[] ZERO_KEY = new byte[16];
+
+	/**
+	 * factory for creating new engines if no idle one is available
+	 *
+	 * @param <T>
+	 *            engine type
+	 */
+	public interface EngineFactory<T> {
+		T create() throws NoSuchAlgorithmException, NoSuchPaddingException,
+				NoSuchProviderException;
+	}
+
+	/**
+	 * idle engines and metrics for a single key
+	 */
+	private static class EngineQueue {
+		final ConcurrentLinkedQueue<Object> idle = new ConcurrentLinkedQueue<Object>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		final AtomicLong borrowed = new AtomicLong();
+		final AtomicLong created = new AtomicLong();
+		final AtomicLong discarded = new AtomicLong();
+	}
+
+	/**
+	 * returns an engine leaving a {@link KeyedEngines} instance to the shared
+	 * pool, e.g. with one of the type specific release methods
+	 *
+	 * @param <T>
+	 *            engine type
+	 */
+	public interface EngineEvictor<T> {
+		void evict(T engine);
+	}
+
+	/**
+	 * idle engines of a single file, which are still initialized with the
+	 * file's key. Chunk operations take their engine from and return it to
+	 * such an instance, so pooled engines neither have to be wiped after nor
+	 * need to compute a new key schedule before each chunk. The key material
+	 * is only removed when an engine leaves this instance, i.e. if more than
+	 * {@link CryptoEnginePool#MAX_IDLE_ENGINES} engines are idle, if an engine
+	 * for another key is offered or upon {@link #clear()}.
+	 *
+	 * Keys are compared by identity, as a file keeps the same key object as
+	 * long as it is open.
+	 *
+	 * @param <T>
+	 *            engine type
+	 */
+	public static final class KeyedEngines<T> {
+
+		private final EngineEvictor<T> evictor;
+
+		private final ArrayDeque<T> idle = new ArrayDeque<T>();
+
+		/**
+		 * key of the idle engines
+		 */
+		private Object key;
+
+		/**
+		 * key dropped by the last call to {@link #clear()}. Engines for this
+		 * key which are offered afterwards, e.g. by operations still running
+		 * while the file was closed, are evicted immediately.
+		 */
+		private Object clearedKey;
+
+		public KeyedEngines(EngineEvictor<T> evictor) {
+			this.evictor = evictor;
+		}
+
+		/**
+		 * @param key
+		 *            key the caller is going to use
+		 * @return an idle engine which already has been initialized with the
+		 *         given key, or <code>null</code> if there is none
+		 */
+		public synchronized T poll(Object key) {
+			return ((key != null) && (key == this.key)) ? idle.poll() : null;
+		}
+
+		/**
+		 * keeps the given engine for further operations with the given key
+		 *
+		 * @param key
+		 *            key the engine has been initialized with
+		 * @param engine
+		 *            the engine, may be <code>null</code>
+		 */
+		public void offer(Object key, T engine) {
+			if (engine == null) {
+				return;
+			}
+			List<T> evicted = null;
+			synchronized (this) {
+				if ((key != null) && (key != clearedKey)) {
+					if (key != this.key) {
+						evicted = new ArrayList<T>(idle);
+						idle.clear();
+						this.key = key;
+					}
+					if (idle.size() < MAX_IDLE_ENGINES) {
+						idle.push(engine);
+						engine = null;
+					}
+				}
+			}
+			if (evicted != null) {
+				for (T e : evicted) {
+					evictor.evict(e);
+				}
+			}
+			if (engine != null) {
+				evictor.evict(engine);
+			}
+		}
+
+		/**
+		 * evicts all idle engines, i.e. once their key is not used anymore
+		 */
+		public void clear() {
+			List<T> evicted;
+			synchronized (this) {
+				evicted = new ArrayList<T>(idle);
+				idle.clear();
+				if (key != null) {
+					clearedKey = key;
+				}
+				key = null;
+			}
+			for (T e : evicted) {
+				evictor.evict(e);
+			}
+		}
+
+		/**
+		 * @return number of idle engines
+		 */
+		public synchronized int getIdleCount() {
+			return idle.size();
+		}
+	}
+
+	private final static ConcurrentHashMap<String, EngineQueue> pools = new ConcurrentHashMap<String, EngineQueue>();
+
+	private CryptoEnginePool() {
+	}
+
+	private static EngineQueue getQueue(String key) {
+		EngineQueue q = pools.get(key);
+		if (q == null) {
+			EngineQueue tmp = new EngineQueue();
+			q = pools.putIfAbsent(key, tmp);
+			if (q == null) {
+				q = tmp;
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * borrows an idle engine for the given key or creates a new one with the
+	 * given factory
+	 *
+	 * @param key
+	 *            identifies algorithm and provider of the engine
+	 * @param factory
+	 *            factory for creating a new engine
+	 * @return engine, which has to be returned with
+	 *         {@link #release(String, Object)}
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchProviderException
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T borrow(String key, EngineFactory<T> factory)
+			throws NoSuchAlgorithmException, NoSuchPaddingException,
+			NoSuchProviderException {
+		EngineQueue q = getQueue(key);
+		q.borrowed.incrementAndGet();
+		Object engine = q.idle.poll();
+		if (engine != null) {
+			q.idleCount.decrementAndGet();
+			return (T) engine;
+		} else {
+			q.created.incrementAndGet();
+			return factory.create();
+		}
+	}
+
+	/**
+	 * returns a previously borrowed engine to the pool. The engine must not
+	 * hold any key material anymore, i.e. callers should use the type specific
+	 * release methods if there is one for their engine type.
+	 *
+	 * @param key
+	 *            key the engine has been borrowed with
+	 * @param engine
+	 *            the engine, may be <code>null</code>
+	 */
+	public static void release(String key, Object engine) {
+		if (engine == null) {
+			return;
+		}
+		EngineQueue q = getQueue(key);
+		if (q.idleCount.incrementAndGet() <= MAX_IDLE_ENGINES) {
+			q.idle.offer(engine);
+		} else {
+			q.idleCount.decrementAndGet();
+			q.discarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param transformation
+	 * @param provider
+	 * @return pool key for {@link Cipher} instances
+	 */
+	public static String cipherKey(String transformation, String provider) {
+		return "Cipher/" + transformation + "/" + provider;
+	}
+
+	/**
+	 * borrows a {@link Cipher} instance for the given transformation and
+	 * provider
+	 *
+	 * @param transformation
+	 * @param provider
+	 * @return
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchProviderException
+	 */
+	public static Cipher borrowCipher(final String transformation,
+			final String provider) throws NoSuchAlgorithmException,
+			NoSuchPaddingException, NoSuchProviderException {
+		return borrow(cipherKey(transformation, provider),
+				new EngineFactory<Cipher>() {
+					@Override
+					public Cipher create() throws NoSuchAlgorithmException,
+							NoSuchPaddingException, NoSuchProviderException {
+						return Cipher.getInstance(transformation, provider);
+					}
+				});
+	}
+
+	/**
+	 * returns a {@link Cipher} borrowed with
+	 * {@link #borrowCipher(String, String)}. The cipher is re-initialized with
+	 * an all-zero key first; if this fails, it is discarded instead.
+	 *
+	 * @param transformation
+	 * @param provider
+	 * @param cipher
+	 */
+	public static void releaseCipher(String transformation, String provider,
+			Cipher cipher) {
+		if (cipher == null) {
+			return;
+		}
+		String key = cipherKey(transformation, provider);
+		try {
+			SecretKeySpec zeroKey = new SecretKeySpec(ZERO_KEY,
+					transformation.split("/")[0]);
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, zeroKey,
+						cipher.getParameters());
+			} catch (GeneralSecurityException e) {
+				// cipher has not been initialized before, but its mode
+				// requires an IV
+				cipher.init(Cipher.DECRYPT_MODE, zeroKey, new IvParameterSpec(
+						new byte[cipher.getBlockSize()]));
+			}
+		} catch (GeneralSecurityException | RuntimeException e) {
+			getQueue(key).discarded.incrementAndGet();
+			return;
+		}
+		release(key, cipher);
+	}
+
+	/**
+	 * returns a {@link GCMBlockCipher} borrowed with
+	 * {@link #borrow(String, EngineFactory)} after re-initializing it with an
+	 * all-zero key
+	 *
+	 * @param key
+	 *            key the engine has been borrowed with
+	 * @param engine
+	 *            the engine, may be <code>null</code>
+	 */
+	public static void releaseGCMBlockCipher(String key, GCMBlockCipher engine) {
+		if (engine == null) {
+			return;
+		}
+		try {
+			engine.init(false, new AEADParameters(new KeyParameter(ZERO_KEY),
+					128, new byte[12]));
+		} catch (RuntimeException e) {
+			getQueue(key).discarded.incrementAndGet();
+			return;
+		}
+		release(key, engine);
+	}
+
+	private final static EngineFactory<HMac> HMAC_FACTORY = new EngineFactory<HMac>() {
+		@Override
+		public HMac create() {
+			return new HMac(new SHA256Digest());
+		}
+	};
+
+	/**
+	 * borrows a SHA256 based {@link HMac}, which has to be initialized with
+	 * the caller's key
+	 *
+	 * @return
+	 */
+	public static HMac borrowHMac() {
+		try {
+			return borrow(HMAC_SHA256, HMAC_FACTORY);
+		} catch (NoSuchAlgorithmException | NoSuchPaddingException
+				| NoSuchProviderException e) {
+			// cannot happen for bouncycastle lightweight API
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * returns a {@link HMac} borrowed with {@link #borrowHMac()}. As resetting
+	 * a {@link HMac} keeps the padded key state, it is re-initialized with an
+	 * all-zero key instead.
+	 *
+	 * @param hmac
+	 */
+	public static void releaseHMac(HMac hmac) {
+		if (hmac != null) {
+			hmac.init(new KeyParameter(ZERO_KEY));
+			release(HMAC_SHA256, hmac);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return number of borrow calls for the given key
+	 */
+	public static long getBorrowCount(String key) {
+		EngineQueue q = pools.get(key);
+		return (q == null) ? 0 : q.borrowed.get();
+	}
+
+	/**
+	 * @param key
+	 * @return number of engines which have been created for the given key,
+	 *         i.e. borrow calls which could not be served from the pool
+	 */
+	public static long getCreateCount(String key) {
+		EngineQueue q = pools.get(key);
+		return (q == null) ? 0 : q.created.get();
+	}
+
+	/**
+	 * @param key
+	 * @return number of released engines which have been discarded as the
+	 *         pool was full
+	 */
+	public static long getDiscardCount(String key) {
+		EngineQueue q = pools.get(key);
+		return (q == null) ? 0 : q.discarded.get();
+	}
+
+	/**
+	 * @param key
+	 * @return number of idle engines currently held for the given key
+	 */
+	public static int getIdleCount(String key) {
+		EngineQueue q = pools.get(key);
+		return (q == null) ? 0 : q.idleCount.get();
+	}
+
+	/**
+	 * @return summary of all pool metrics, e.g. for logging
+	 */
+	public static String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, EngineQueue> e : pools.entrySet()) {
+			EngineQueue q = e.getValue();
+			long borrowed = q.borrowed.get();
+			long created = q.created.get();
+			sb.append(e.getKey()).append(": borrowed=").append(borrowed)
+					.append(", created=").append(created).append(", hits=")
+					.append(borrowed - created).append(", idle=")
+					.append(q.idleCount.get()).append(", discarded=")
+					.append(q.discarded.get()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * discards all idle engines and resets all metrics
+	 */
+	public static void clear() {
+		pools.clear();
+	}
+}
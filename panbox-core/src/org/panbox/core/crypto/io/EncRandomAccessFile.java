@@ -34,6 +34,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -43,7 +44,22 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -55,7 +71,6 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
-import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -137,6 +152,34 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	 */
 	abstract boolean implementsAuthentication();
 
+	/**
+	 * indicates if this file authenticates its chunks with a hash tree (see
+	 * {@link AuthTagVerifier}) instead of a flat list of chunk authentication
+	 * tags. Only valid once the file header has been created or read.
+	 */
+	boolean usesHashTree() {
+		return (fHeader != null)
+				&& Arrays.equals(fHeader.getFileVersion(),
+						PanboxConstants.PANBOX_VERSION_HASHTREE);
+	}
+
+	/**
+	 * if set, the hash tree of this file is never cached in a sidecar file,
+	 * see {@link AuthTagVerifier#setSidecarDirectory(File)}
+	 */
+	private volatile boolean sidecarDisabled = false;
+
+	/**
+	 * disables sidecar files for this file, e.g. as it is only temporary
+	 */
+	void disableSidecar() {
+		this.sidecarDisabled = true;
+	}
+
+	boolean isSidecarDisabled() {
+		return sidecarDisabled;
+	}
+
 	/**
 	 * indicates if an implementation of this class uses the read()/write()
 	 * caches
@@ -244,16 +287,6 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		this.initialized = initialized;
 	}
 
-	/**
-	 * stores {@link Cipher}-instance for decryption
-	 */
-	protected Cipher decCipher;
-
-	/**
-	 * stores {@link Cipher}-instance for encryption
-	 */
-	protected Cipher encCipher;
-
 	/**
 	 * cache for temporary storage of chunks
 	 */
@@ -261,9 +294,10 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 
 	/**
 	 * stores an instance of the management class for verification of
-	 * authentication tag integrity
+	 * authentication tag integrity. Volatile, as concurrent positional reads
+	 * fetch it without holding the monitor of this instance.
 	 */
-	private AuthTagVerifier authTagVerifier;
+	private volatile AuthTagVerifier authTagVerifier;
 
 	protected AuthTagVerifier getAuthTagVerifier() {
 		return authTagVerifier;
@@ -332,20 +366,81 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			FileIntegrityException;
 
 	/**
-	 * Method handles share key updates by creating a new pseudo random file
-	 * encryption key for this file, re-encrypting the files contents,then
-	 * re-encrypting new file encryption key with the given share key and
-	 * storing it within the file header alongside its corresponding version
-	 * number.
+	 * Method handles share key updates by re-encrypting this files file
+	 * encryption key with the given share key and storing it within the file
+	 * header alongside its corresponding version number. As chunk contents are
+	 * encrypted with the file encryption key only, they are not touched, so the
+	 * costs of a share key rotation are independent of the file size. Any
+	 * metadata authenticated with the share key (i.e. the header and, if
+	 * implemented, the file authentication tag) is re-authenticated with the
+	 * new share key by {@link #rewrapFileKey()}.
+	 * 
+	 * If the rotation fails, the previous share key and version are restored
+	 * for this instance.
 	 * 
 	 * @param shareKeyVersion
 	 *            version number of the new share key
 	 * @param shareKey
 	 *            the new share key
+	 * @throws FileEncryptionException
+	 *             if the instance has not been initialized or is not writable,
+	 *             or if the header could not be rewritten
+	 * @throws IOException
 	 */
 	public synchronized void reencryptFile(int shareKeyVersion,
-			SecretKey shareKey) {
-		// TODO: implementation
+			SecretKey shareKey) throws FileEncryptionException, IOException {
+		if (!isOpen()) {
+			throw new IOException("File has not been opened!");
+		} else if (!isInitialized()) {
+			throw new FileEncryptionException(
+					"File has not been initialized with its share key!");
+		} else if (!writable) {
+			throw new FileEncryptionException(
+					"File has not been opened for writing!");
+		} else if (shareKey == null) {
+			throw new FileEncryptionException("Secret key is null!");
+		} else if (shareKeyVersion < 0) {
+			throw new FileEncryptionException("Invalid share key version!");
+		}
+
+		SecretKey oldShareKey = this.shareKey;
+		int oldShareKeyVersion = fHeader.getShareKeyVersion();
+		try {
+			// write back pending chunks before switching keys, so any cached
+			// authentication data refer to the current contents
+			flush(false);
+			this.shareKey = shareKey;
+			fHeader.setShareKeyVersion(shareKeyVersion);
+			rewrapFileKey();
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| RandomDataGenerationException | FileEncryptionException e) {
+			this.shareKey = oldShareKey;
+			fHeader.setShareKeyVersion(oldShareKeyVersion);
+			throw new FileEncryptionException(
+					"Error re-encrypting file with new share key!", e);
+		} catch (IOException e) {
+			this.shareKey = oldShareKey;
+			fHeader.setShareKeyVersion(oldShareKeyVersion);
+			throw e;
+		}
+	}
+
+	/**
+	 * writes the file header with the file encryption key wrapped under the
+	 * current share key. Implementations which authenticate additional data
+	 * with the share key have to override this method to also rebuild these.
+	 * 
+	 * @throws FileEncryptionException
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	protected void rewrapFileKey() throws FileEncryptionException,
+			IOException, InvalidKeyException, IllegalBlockSizeException,
+			BadPaddingException {
+		fHeader.write();
 	}
 
 	/**
@@ -404,6 +499,15 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			RandomDataGenerationException, InvalidAlgorithmParameterException,
 			NoSuchProviderException;
 
+	/**
+	 * returns the engines which have been kept initialized with the file key
+	 * (see {@link CryptoEnginePool.KeyedEngines}) to the
+	 * {@link CryptoEnginePool}. Called upon {@link #close()}, as the file key
+	 * is not used anymore afterwards.
+	 */
+	protected void releaseKeyedEngines() {
+	}
+
 	/**
 	 * {@link SecureRandomWrapper} instance for IV generation
 	 */
@@ -431,57 +535,609 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	}
 
 	/**
-	 * Inner class for caching a single chunk for reading and writing,
-	 * respectively. NOTE: Cached chunks are stored in plain text until they are
-	 * actually to be written to disk. Correspondingly, no
+	 * default upper bound (in bytes) of plaintext chunk data each instance may
+	 * hold within its {@link ChunkCache}
+	 */
+	public static final int DEFAULT_CHUNK_CACHE_SIZE = 2 * 1024 * 1024;
+
+	/**
+	 * byte budget for the {@link ChunkCache} of newly opened or created
+	 * instances
+	 */
+	private static volatile int chunkCacheSize = DEFAULT_CHUNK_CACHE_SIZE;
+
+	/**
+	 * @return the byte budget for the chunk cache of newly opened instances
+	 */
+	public static int getChunkCacheSize() {
+		return chunkCacheSize;
+	}
+
+	/**
+	 * sets the byte budget for the chunk cache of instances opened or created
+	 * after this call. Regardless of the given value, each cache will hold at
+	 * least one chunk.
+	 * 
+	 * @param size
+	 *            maximum number of plaintext bytes to be cached per instance
+	 */
+	public static void setChunkCacheSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid chunk cache size: "
+					+ size);
+		}
+		chunkCacheSize = size;
+	}
+
+	/**
+	 * default number of threads for en- and decrypting chunks of large reads
+	 * and cache write-backs in parallel
+	 */
+	public static final int DEFAULT_CRYPTO_PARALLELISM = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * minimum number of chunks a single read or cache write-back has to span
+	 * for its chunks to be processed in parallel
+	 */
+	public static final int PARALLEL_CRYPTO_MIN_CHUNKS = 4;
+
+	private static int cryptoParallelism = DEFAULT_CRYPTO_PARALLELISM;
+
+	private static ExecutorService cryptoExecutor;
+
+	/**
+	 * @return the number of threads for en- and decrypting chunks in parallel
+	 */
+	public static synchronized int getCryptoParallelism() {
+		return cryptoParallelism;
+	}
+
+	/**
+	 * Sets the number of threads for en- and decrypting chunks in parallel.
+	 * Chunks of reads spanning at least {@link #PARALLEL_CRYPTO_MIN_CHUNKS}
+	 * chunks are decrypted in parallel, modified chunks being written back
+	 * from the {@link ChunkCache} are encrypted in parallel. As each chunk has
+	 * its own random IV and its index within its AAD, chunks may be processed
+	 * independently from each other. Data are always written to disk and
+	 * authentication tags are always updated in ascending chunk order by the
+	 * calling thread.
+	 *
+	 * @param parallelism
+	 *            number of threads; values smaller than 2 disable parallel
+	 *            processing
+	 */
+	public static synchronized void setCryptoParallelism(int parallelism) {
+		if (parallelism != cryptoParallelism) {
+			cryptoParallelism = parallelism;
+			if (cryptoExecutor != null) {
+				// tasks already submitted will still be completed
+				cryptoExecutor.shutdown();
+				cryptoExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the thread pool for en- and decrypting chunks in parallel, or
+	 *         <code>null</code> if parallel processing has been disabled
+	 */
+	protected static synchronized ExecutorService getCryptoExecutor() {
+		if (cryptoParallelism < 2) {
+			return null;
+		} else if (cryptoExecutor == null) {
+			cryptoExecutor = Executors.newFixedThreadPool(cryptoParallelism,
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Panbox-ChunkCrypto-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return cryptoExecutor;
+	}
+
+	/**
+	 * indicates if an implementation of this class supports decrypting chunks
+	 * in parallel by means of
+	 * {@link #_readChunkAt(FileChannel, long, boolean, AuthTagVerifier)}, i.e.
+	 * if this method neither uses shared cipher instances nor acquires this
+	 * instance's monitor
+	 */
+	boolean supportsParallelCrypto() {
+		return false;
+	}
+
+	/**
+	 * Encrypts modified chunks being written back from the {@link ChunkCache}
+	 * in parallel and writes them afterwards, see
+	 * {@link EncRandomAccessFile#getParallelChunkWriter()}.
+	 */
+	interface ParallelChunkWriter {
+
+		/**
+		 * encrypts a chunk without writing it. Called concurrently by the
+		 * threads of {@link EncRandomAccessFile#getCryptoExecutor()}, so
+		 * implementations must neither use shared cipher instances nor
+		 * acquire the monitor of the file.
+		 *
+		 * @param buffer
+		 *            plaintext chunk data
+		 * @param index
+		 *            chunk index
+		 * @param lastchunk
+		 *            <code>true</code> if the chunk is the file's last chunk
+		 * @return the encrypted chunk as it is to be stored on disk
+		 * @throws FileEncryptionException
+		 * @throws RandomDataGenerationException
+		 */
+		byte[] encryptChunk(byte[] buffer, long index, boolean lastchunk)
+				throws FileEncryptionException, RandomDataGenerationException;
+
+		/**
+		 * writes a chunk encrypted by
+		 * {@link #encryptChunk(byte[], long, boolean)} and updates its
+		 * authentication tag. Called in ascending chunk order by the thread
+		 * holding the monitor of the file.
+		 *
+		 * @param encChunk
+		 *            encrypted chunk
+		 * @param index
+		 *            chunk index
+		 * @throws FileEncryptionException
+		 * @throws InvalidKeyException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 * @throws IOException
+		 */
+		void writeEncryptedChunk(byte[] encChunk, long index)
+				throws FileEncryptionException, InvalidKeyException,
+				IllegalBlockSizeException, BadPaddingException, IOException;
+	}
+
+	/**
+	 * @return the {@link ParallelChunkWriter} of this instance, or
+	 *         <code>null</code> if modified chunks are encrypted and written
+	 *         one at a time
+	 */
+	ParallelChunkWriter getParallelChunkWriter() {
+		return null;
+	}
+
+	/**
+	 * returns the thread pool for processing the given number of chunks in
+	 * parallel
+	 *
+	 * @param nchunks
+	 * @param supported
+	 *            <code>true</code> if this instance supports processing the
+	 *            chunks in parallel
+	 * @return the thread pool, or <code>null</code> if the chunks are to be
+	 *         processed serially
+	 */
+	private static ExecutorService parallelCryptoExecutor(int nchunks,
+			boolean supported) {
+		if ((nchunks < PARALLEL_CRYPTO_MIN_CHUNKS) || !supported) {
+			return null;
+		} else {
+			return getCryptoExecutor();
+		}
+	}
+
+	/**
+	 * waits for the result of a chunk en- or decryption task, rethrowing any
+	 * exception thrown by the task
+	 *
+	 * @param result
+	 * @return
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	private static byte[] awaitChunk(Future<byte[]> result)
+			throws IOException, FileEncryptionException,
+			FileIntegrityException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for chunk processing");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileIntegrityException) {
+				throw (FileIntegrityException) cause;
+			} else if (cause instanceof FileEncryptionException) {
+				throw (FileEncryptionException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new FileEncryptionException("Chunk processing failed: "
+						+ cause.getMessage(), cause);
+			}
+		}
+	}
+
+	/**
+	 * Inner class for caching multiple chunks for reading and writing,
+	 * respectively. Chunks are kept in least-recently-used order up to the byte
+	 * budget configured with {@link #setChunkCacheSize(int)}. Modified chunks
+	 * are written to disk if they are evicted from the cache or if the cache is
+	 * flushed explicitly. NOTE: Cached chunks are stored in plain text until
+	 * they are actually to be written to disk. Correspondingly, no
 	 * authentication/integrity checking is done when a cached chunk is being
 	 * read.
 	 */
 	protected class ChunkCache {
 
-		// /**
-		// * stores the index of the chunk which has been cached before the
-		// chunk
-		// * being currently cached, or -1 if no chunk had been cached before
-		// */
-		// protected long previousChunkIdx = -1;
-
 		/**
-		 * stores the index of the chunk currently being cached
+		 * single cache entry
 		 */
-		protected long chunkIdx;
+		protected class CachedChunk {
+
+			/**
+			 * holds the actual chunk
+			 */
+			protected byte[] chunkBuffer;
+
+			/**
+			 * indicates if this chunk still needs to be written to disk (i.e.,
+			 * has been set from within a write* call)
+			 */
+			protected boolean needsToBeWritten;
+
+			/**
+			 * indicates if this chunk is a last chunk
+			 */
+			protected boolean isLast;
+		}
 
 		/**
-		 * holds the actual chunk
+		 * maximum number of chunks being held in this cache
 		 */
-		protected byte[] chunkBuffer;
+		private final int maxChunks;
 
 		/**
-		 * indicates if the chunk currently being held in this cache still needs
-		 * to be written to disk (i.e., has been set from within a write* call)
+		 * cached chunks in access order, i.e. the eldest entry is the least
+		 * recently used one
 		 */
-		protected boolean needsToBeWritten;
+		private final LinkedHashMap<Long, CachedChunk> chunks;
 
 		/**
-		 * indicates if chunk currently being held in cache is a last chunk
+		 * statistics
 		 */
-		protected boolean isLast;
+		private long hits, misses, evictions;
 
-		protected synchronized void setChunkBuffer(long idx, byte[] chunk,
-				boolean needsdToBeWritten, boolean isLast) {
+		protected ChunkCache() {
+			this.maxChunks = Math.max(1, chunkCacheSize / CHUNK_DATA_SIZE);
+			this.chunks = new LinkedHashMap<Long, CachedChunk>(
+					maxChunks + 1, 1.0f, true);
+		}
 
-			this.chunkIdx = idx;
+		/**
+		 * caches the given chunk. If the cache exceeds its size limit, the
+		 * least recently used chunks will be evicted and, if they have been
+		 * modified, written to disk.
+		 * 
+		 * @param idx
+		 * @param chunk
+		 * @param needsToBeWritten
+		 * @param isLast
+		 * @throws FileEncryptionException
+		 * @throws RandomDataGenerationException
+		 * @throws InvalidKeyException
+		 * @throws InvalidAlgorithmParameterException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 * @throws IOException
+		 */
+		protected synchronized void setChunkBuffer(long idx, byte[] chunk,
+				boolean needsToBeWritten, boolean isLast)
+				throws FileEncryptionException, RandomDataGenerationException,
+				InvalidKeyException, InvalidAlgorithmParameterException,
+				IllegalBlockSizeException, BadPaddingException, IOException {
 			// only store a *copy* of this array to avoid modification of its
 			// contents due to stale pointers
-			this.chunkBuffer = Arrays.copyOf(chunk, chunk.length);
-			this.needsToBeWritten = needsdToBeWritten;
-			this.isLast = isLast;
-			// this.previousChunkIdx = previousChunkIdx;
+			adoptChunkBuffer(idx, Arrays.copyOf(chunk, chunk.length),
+					needsToBeWritten, isLast);
 		}
 
+		/**
+		 * caches the given chunk like
+		 * {@link #setChunkBuffer(long, byte[], boolean, boolean)}, but takes
+		 * ownership of the given array instead of copying it. The caller must
+		 * not modify the array afterwards.
+		 * 
+		 * @param idx
+		 * @param chunk
+		 * @param needsToBeWritten
+		 * @param isLast
+		 * @throws FileEncryptionException
+		 * @throws RandomDataGenerationException
+		 * @throws InvalidKeyException
+		 * @throws InvalidAlgorithmParameterException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 * @throws IOException
+		 */
+		protected synchronized void adoptChunkBuffer(long idx, byte[] chunk,
+				boolean needsToBeWritten, boolean isLast)
+				throws FileEncryptionException, RandomDataGenerationException,
+				InvalidKeyException, InvalidAlgorithmParameterException,
+				IllegalBlockSizeException, BadPaddingException, IOException {
+			CachedChunk entry = chunks.get(idx);
+			if (entry == null) {
+				entry = new CachedChunk();
+				chunks.put(idx, entry);
+			}
+			entry.chunkBuffer = chunk;
+			entry.needsToBeWritten = needsToBeWritten;
+			entry.isLast = isLast;
+
+			// evict least recently used chunks. the entry which has just been
+			// set is the most recently used one and thus will never be evicted
+			int excess = chunks.size() - maxChunks;
+			if (excess > 0) {
+				if ((getParallelChunkWriter() != null)
+						&& (getCryptoParallelism() > 1)) {
+					// write back modified chunks within the less recently used
+					// half of the cache in a single parallel batch. Thus,
+					// subsequent evictions caused by large sequential writes
+					// don't have to encrypt chunks one at a time.
+					TreeMap<Long, CachedChunk> dirty = new TreeMap<Long, CachedChunk>();
+					Iterator<Map.Entry<Long, CachedChunk>> it = chunks
+							.entrySet().iterator();
+					int batch = Math.max(excess, chunks.size() / 2);
+					for (int i = 0; (i < batch) && it.hasNext(); i++) {
+						Map.Entry<Long, CachedChunk> e = it.next();
+						if (e.getValue().needsToBeWritten) {
+							dirty.put(e.getKey(), e.getValue());
+						}
+					}
+					if (dirty.size() >= PARALLEL_CRYPTO_MIN_CHUNKS) {
+						writeBack(dirty);
+					}
+				}
+
+				Iterator<Map.Entry<Long, CachedChunk>> it = chunks.entrySet()
+						.iterator();
+				for (int i = 0; (i < excess) && it.hasNext(); i++) {
+					Map.Entry<Long, CachedChunk> eldest = it.next();
+					writeBack(eldest.getKey(), eldest.getValue());
+					it.remove();
+					evictions++;
+				}
+			}
+		}
+
+		/**
+		 * @param index
+		 * @return a copy of the cached chunk with the given index, or
+		 *         <code>null</code> if it is not being cached
+		 */
 		protected synchronized byte[] getChunkBuffer(long index) {
-			return ((this.chunkIdx == index) && (this.chunkBuffer != null)) ? Arrays
-					.copyOf(chunkBuffer, chunkBuffer.length) : null;
+			CachedChunk entry = chunks.get(index);
+			if ((entry != null) && (entry.chunkBuffer != null)) {
+				hits++;
+				return Arrays.copyOf(entry.chunkBuffer,
+						entry.chunkBuffer.length);
+			} else {
+				misses++;
+				return null;
+			}
+		}
+
+		/**
+		 * @param index
+		 * @return <code>true</code> if the chunk with the given index is being
+		 *         cached, <code>false</code> otherwise
+		 */
+		protected synchronized boolean containsChunk(long index) {
+			CachedChunk entry = chunks.get(index);
+			return (entry != null) && (entry.chunkBuffer != null);
+		}
+
+		/**
+		 * copies data of the cached chunk with the given index directly into
+		 * the given buffer, starting at the given offset within the chunk
+		 * 
+		 * @param index
+		 * @param offset
+		 *            offset within the chunk
+		 * @param dst
+		 * @return number of bytes copied, which is 0 if the offset is not
+		 *         located within the chunk, or -1 if the chunk is not being
+		 *         cached
+		 */
+		protected synchronized int copyChunkData(long index, int offset,
+				ByteBuffer dst) {
+			CachedChunk entry = chunks.get(index);
+			if ((entry != null) && (entry.chunkBuffer != null)) {
+				hits++;
+				int n = Math.max(0,
+						Math.min(entry.chunkBuffer.length - offset,
+								dst.remaining()));
+				dst.put(entry.chunkBuffer, offset, n);
+				return n;
+			} else {
+				misses++;
+				return -1;
+			}
+		}
+
+		/**
+		 * merges the given number of bytes from the given buffer directly into
+		 * the cached chunk with the given index, starting at the given offset
+		 * within the chunk, and marks the chunk as modified. A last chunk is
+		 * grown as needed, whereas the size of any other chunk has to remain
+		 * unchanged.
+		 * 
+		 * @param index
+		 * @param offset
+		 *            offset within the chunk
+		 * @param src
+		 * @param len
+		 *            number of bytes to merge
+		 * @param isLast
+		 *            <code>true</code> if the chunk is the file's last chunk
+		 * @return the resulting length of the chunk, or -1 if the chunk is not
+		 *         being cached or cannot be modified in place
+		 */
+		protected synchronized int mergeChunkData(long index, int offset,
+				ByteBuffer src, int len, boolean isLast) {
+			CachedChunk entry = chunks.get(index);
+			if ((entry == null) || (entry.chunkBuffer == null)
+					|| (entry.isLast != isLast)) {
+				return -1;
+			}
+			int newLength = offset + len;
+			if (newLength > entry.chunkBuffer.length) {
+				if (!isLast || (newLength > CHUNK_DATA_SIZE)) {
+					return -1;
+				}
+				// any gap between the former end of the chunk and the offset
+				// is filled with null bytes
+				entry.chunkBuffer = Arrays.copyOf(entry.chunkBuffer, newLength);
+			}
+			hits++;
+			src.get(entry.chunkBuffer, offset, len);
+			entry.needsToBeWritten = true;
+			return entry.chunkBuffer.length;
+		}
+
+		/**
+		 * @return <code>true</code> if any cached chunk still needs to be
+		 *         written to disk, <code>false</code> otherwise
+		 */
+		protected synchronized boolean needsToBeWritten() {
+			for (CachedChunk entry : chunks.values()) {
+				if (entry.needsToBeWritten) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * writes all modified chunks to disk in ascending index order. Chunks
+		 * remain cached.
+		 * 
+		 * @throws FileEncryptionException
+		 * @throws RandomDataGenerationException
+		 * @throws InvalidKeyException
+		 * @throws InvalidAlgorithmParameterException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 * @throws IOException
+		 */
+		protected synchronized void writeBack() throws FileEncryptionException,
+				RandomDataGenerationException, InvalidKeyException,
+				InvalidAlgorithmParameterException, IllegalBlockSizeException,
+				BadPaddingException, IOException {
+			// iterating over the map itself would alter its access order
+			TreeMap<Long, CachedChunk> dirty = new TreeMap<Long, CachedChunk>();
+			for (Map.Entry<Long, CachedChunk> entry : chunks.entrySet()) {
+				if (entry.getValue().needsToBeWritten) {
+					dirty.put(entry.getKey(), entry.getValue());
+				}
+			}
+			writeBack(dirty);
+		}
+
+		/**
+		 * writes the given modified chunks to disk in ascending index order.
+		 * If supported, the chunks are encrypted in parallel beforehand.
+		 * 
+		 * @param dirty
+		 * @throws FileEncryptionException
+		 * @throws RandomDataGenerationException
+		 * @throws InvalidKeyException
+		 * @throws InvalidAlgorithmParameterException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 * @throws IOException
+		 */
+		private void writeBack(SortedMap<Long, CachedChunk> dirty)
+				throws FileEncryptionException, RandomDataGenerationException,
+				InvalidKeyException, InvalidAlgorithmParameterException,
+				IllegalBlockSizeException, BadPaddingException, IOException {
+			final ParallelChunkWriter writer = getParallelChunkWriter();
+			ExecutorService executor = parallelCryptoExecutor(dirty.size(),
+					writer != null);
+			if (executor == null) {
+				for (Map.Entry<Long, CachedChunk> entry : dirty.entrySet()) {
+					writeBack(entry.getKey(), entry.getValue());
+				}
+				return;
+			}
+
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(
+					dirty.size());
+			for (Map.Entry<Long, CachedChunk> entry : dirty.entrySet()) {
+				final long idx = entry.getKey();
+				final byte[] buffer = entry.getValue().chunkBuffer;
+				final boolean isLast = entry.getValue().isLast;
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return writer.encryptChunk(buffer, idx, isLast);
+					}
+				}));
+			}
+
+			try {
+				Iterator<Future<byte[]>> it = results.iterator();
+				for (Map.Entry<Long, CachedChunk> entry : dirty.entrySet()) {
+					byte[] encChunk = awaitChunk(it.next());
+					writer.writeEncryptedChunk(encChunk, entry.getKey());
+					entry.getValue().needsToBeWritten = false;
+				}
+			} catch (FileIntegrityException e) {
+				// not thrown by chunk encryption
+				throw new FileEncryptionException(e.getMessage(), e);
+			} finally {
+				// don't leave pending tasks behind in case of an error
+				for (Future<byte[]> result : results) {
+					result.cancel(false);
+				}
+			}
+		}
+
+		private void writeBack(long idx, CachedChunk entry)
+				throws FileEncryptionException, RandomDataGenerationException,
+				InvalidKeyException, InvalidAlgorithmParameterException,
+				IllegalBlockSizeException, BadPaddingException, IOException {
+			if (entry.needsToBeWritten) {
+				if (!entry.isLast) {
+					_writeChunk(entry.chunkBuffer, idx);
+				} else {
+					_writeLastChunk(entry.chunkBuffer, idx);
+				}
+				entry.needsToBeWritten = false;
+			}
+		}
+
+		/**
+		 * discards all cached chunks with an index greater than or equal to
+		 * the given index WITHOUT writing them to disk. To be used in case of
+		 * file truncation.
+		 * 
+		 * @param index
+		 */
+		protected synchronized void invalidateFrom(long index) {
+			Iterator<Long> it = chunks.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next() >= index) {
+					it.remove();
+				}
+			}
 		}
 
 		/*
@@ -490,13 +1146,15 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		 * @see java.lang.Object#toString()
 		 */
 		@Override
-		public String toString() {
+		public synchronized String toString() {
 			StringBuffer res = new StringBuffer();
 			res.append("ChunkCache:");
-			res.append("index=" + this.chunkIdx + ";");
-			res.append("length=" + this.chunkBuffer.length + ";");
-			res.append("needsToBeWritten=" + this.needsToBeWritten + ";");
-			res.append("isLast=" + this.isLast);
+			res.append("chunks=" + this.chunks.size() + "/" + this.maxChunks
+					+ ";");
+			res.append("hits=" + this.hits + ";");
+			res.append("misses=" + this.misses + ";");
+			res.append("evictions=" + this.evictions + ";");
+			res.append("needsToBeWritten=" + needsToBeWritten());
 			return res.toString();
 		}
 	}
@@ -510,16 +1168,14 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	 * byte-and-back-in-java</a>
 	 */
 	protected static class LongByteConv {
-		private static ByteBuffer buf = ByteBuffer.allocate(Long.SIZE / 8);
-
+		// NOTE: chunks of different instances may be en- and decrypted
+		// concurrently, so no buffer may be shared between calls
 		public static byte[] long2Bytes(long x) {
-			buf.clear();
-			buf.putLong(0, x);
-			return buf.array();
+			return ByteBuffer.allocate(Long.SIZE / 8).putLong(0, x).array();
 		}
 
 		public static long bytes2Long(byte[] bytes) {
-			buf.clear();
+			ByteBuffer buf = ByteBuffer.allocate(Long.SIZE / 8);
 			buf.put(bytes, 0, bytes.length);
 			buf.flip();// need flip
 			return buf.getLong();
@@ -537,7 +1193,6 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		 * sizeof(file_key) == sizeof(share_key)
 		 */
 		private final String CIPHER_FILEKEY = "AES/ECB/NoPadding";
-		private Cipher filekeyCipher;
 
 		/**
 		 * magic number, 6 bytes
@@ -549,6 +1204,13 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		 */
 		final byte[] PANBOX_FILE_VERSION = PanboxConstants.PANBOX_VERSION;
 
+		/**
+		 * version of this file, either {@link #PANBOX_FILE_VERSION} or, for
+		 * files using hash tree authentication,
+		 * {@link PanboxConstants#PANBOX_VERSION_HASHTREE}
+		 */
+		private byte[] fileVersion;
+
 		/**
 		 * decrypted file key
 		 */
@@ -580,18 +1242,11 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		 */
 		final static int AUTH_TAG_SIZE = 32;
 
-		/**
-		 * HMAC for creating the header authentication tag
-		 */
-		private HMac headerAuthHMac;
-
 		protected final FieldOffsets OffsetTable;
 
 		protected FileHeader() throws NoSuchAlgorithmException,
 				NoSuchPaddingException, NoSuchProviderException {
-			this.headerAuthHMac = new HMac(new SHA256Digest());
 			this.headerAuthTag = new byte[AUTH_TAG_SIZE];
-			this.filekeyCipher = Cipher.getInstance(CIPHER_FILEKEY, "BC");
 
 			if (implementsAuthentication()) {
 				// include file auth tag
@@ -613,6 +1268,22 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 						+ (Integer.SIZE / 8); // shareKeyVersion
 			}
 			this.OffsetTable = new FieldOffsets();
+			// version for newly created files; will be overwritten when
+			// reading an existing header
+			this.fileVersion = (implementsAuthentication() && AuthTagVerifier
+					.isHashTreeEnabled()) ? PanboxConstants.PANBOX_VERSION_HASHTREE
+					: PANBOX_FILE_VERSION;
+		}
+
+		/**
+		 * @param version
+		 * @return <code>true</code> if the given file version is supported by
+		 *         this implementation
+		 */
+		private boolean isSupportedVersion(byte[] version) {
+			return Arrays.equals(version, PANBOX_FILE_VERSION)
+					|| (implementsAuthentication() && Arrays.equals(version,
+							PanboxConstants.PANBOX_VERSION_HASHTREE));
 		}
 
 		/**
@@ -665,33 +1336,27 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 						"Share key version number has not been set!");
 			}
 
-			// if all data have been set, initialize HMac with shareKey
+			// if all data have been set, check shareKey
 			if (shareKey == null || shareKey.getEncoded().length == 0) {
 				throw new FileEncryptionException(
 						"Invalid share key in encrypting random access file!");
-			} else {
-				headerAuthHMac.reset();
-				KeyParameter keyParameter = new KeyParameter(
-						shareKey.getEncoded());
-				headerAuthHMac.init(keyParameter);
 			}
 
 			// encrypt file key
 			byte[] tmpencryptedFileKey = new byte[KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES];
-			filekeyCipher.init(Cipher.ENCRYPT_MODE, shareKey);
 			byte[] t2 = decryptedFileKey.getEncoded();
 			if ((t2 == null)
 					|| (t2.length != KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES)) {
 				throw new FileEncryptionException(
 						"Encoded file key null or invalid length!");
 			}
-			tmpencryptedFileKey = filekeyCipher.doFinal(t2);
+			tmpencryptedFileKey = cryptFileKey(Cipher.ENCRYPT_MODE, t2);
 
 			// create output buffer & write header data
 			ByteArrayOutputStream bstream = new ByteArrayOutputStream();
 			DataOutputStream ostream = new DataOutputStream(bstream);
 			ostream.write(PANBOX_FILE_MAGIC);
-			ostream.write(PANBOX_FILE_VERSION);
+			ostream.write(fileVersion);
 			ostream.writeInt(shareKeyVersion);
 			ostream.write(tmpencryptedFileKey);
 			if (implementsAuthentication()) {
@@ -712,8 +1377,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			byte[] header_data = bstream.toByteArray();
 
 			// calculate hmac
-			headerAuthHMac.update(header_data, 0, header_data.length);
-			headerAuthHMac.doFinal(headerAuthTag, 0);
+			calculateHeaderAuthTag(header_data, headerAuthTag);
 
 			// write data and hmac
 			long oldpos = backingRandomAccessFile.getFilePointer();
@@ -757,11 +1421,12 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			// check version field
 			byte[] tmpversion = new byte[PANBOX_FILE_VERSION.length];
 			istream.read(tmpversion);
-			if (!Arrays.equals(tmpversion, PANBOX_FILE_VERSION)) {
+			if (!isSupportedVersion(tmpversion)) {
 				throw new FileEncryptionException(
 						"Invalid version in file header. Expected version is "
 								+ PANBOX_FILE_VERSION.toString());
 			}
+			this.fileVersion = tmpversion;
 
 			// if we got here, read non-final fields
 
@@ -771,6 +1436,56 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			istream.close();
 		}
 
+		/**
+		 * en- or decrypts the file key with the share key, using a cipher from
+		 * the {@link CryptoEnginePool}
+		 * 
+		 * @param mode
+		 *            {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+		 * @param fileKey
+		 * @return
+		 * @throws FileEncryptionException
+		 * @throws InvalidKeyException
+		 * @throws IllegalBlockSizeException
+		 * @throws BadPaddingException
+		 */
+		private byte[] cryptFileKey(int mode, byte[] fileKey)
+				throws FileEncryptionException, InvalidKeyException,
+				IllegalBlockSizeException, BadPaddingException {
+			Cipher filekeyCipher = null;
+			try {
+				filekeyCipher = CryptoEnginePool.borrowCipher(CIPHER_FILEKEY,
+						KeyConstants.PROV_BC);
+				filekeyCipher.init(mode, shareKey);
+				return filekeyCipher.doFinal(fileKey);
+			} catch (NoSuchAlgorithmException | NoSuchPaddingException
+					| NoSuchProviderException e) {
+				throw new FileEncryptionException(
+						"Unable to initialize file key cipher!", e);
+			} finally {
+				CryptoEnginePool.releaseCipher(CIPHER_FILEKEY,
+						KeyConstants.PROV_BC, filekeyCipher);
+			}
+		}
+
+		/**
+		 * calculates the header authentication tag with the share key, using
+		 * a {@link HMac} from the {@link CryptoEnginePool}
+		 * 
+		 * @param header_data
+		 * @param out
+		 */
+		private void calculateHeaderAuthTag(byte[] header_data, byte[] out) {
+			HMac headerAuthHMac = CryptoEnginePool.borrowHMac();
+			try {
+				headerAuthHMac.init(new KeyParameter(shareKey.getEncoded()));
+				headerAuthHMac.update(header_data, 0, header_data.length);
+				headerAuthHMac.doFinal(out, 0);
+			} finally {
+				CryptoEnginePool.releaseHMac(headerAuthHMac);
+			}
+		}
+
 		/**
 		 * reads and verifies all header data from the file
 		 * 
@@ -790,15 +1505,10 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				throw new FileEncryptionException("Invalid file header");
 			}
 
-			// initialize HMac with shareKey
+			// check shareKey
 			if (shareKey == null || shareKey.getEncoded().length == 0) {
 				throw new FileEncryptionException(
 						"Invalid share key in encrypting random access file!");
-			} else {
-				headerAuthHMac.reset();
-				KeyParameter keyParameter = new KeyParameter(
-						shareKey.getEncoded());
-				headerAuthHMac.init(keyParameter);
 			}
 
 			long oldpos = backingRandomAccessFile.getFilePointer();
@@ -811,10 +1521,9 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			backingRandomAccessFile.read(headerAuthTag);
 			backingRandomAccessFile.seek(oldpos);
 
-			// update hmac for header auth tag verification
-			headerAuthHMac.update(header_data, 0, header_data.length);
+			// calculate hmac for header auth tag verification
 			byte[] hmacRef = new byte[AUTH_TAG_SIZE];
-			headerAuthHMac.doFinal(hmacRef, 0);
+			calculateHeaderAuthTag(header_data, hmacRef);
 
 			if (!Arrays.equals(hmacRef, headerAuthTag)) {
 				throw new FileIntegrityException(
@@ -834,11 +1543,12 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				// check version field
 				byte[] tmpversion = new byte[PANBOX_FILE_VERSION.length];
 				istream.read(tmpversion);
-				if (!Arrays.equals(tmpversion, PANBOX_FILE_VERSION)) {
+				if (!isSupportedVersion(tmpversion)) {
 					throw new FileEncryptionException(
 							"Invalid version in file header. Expected version is "
 									+ PANBOX_FILE_VERSION.toString());
 				}
+				this.fileVersion = tmpversion;
 
 				// if we got here, read non-final fields
 
@@ -849,9 +1559,8 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				byte[] tmpencryptedFileKey = new byte[KeyConstants.SYMMETRIC_FILE_KEY_SIZE_BYTES];
 				istream.read(tmpencryptedFileKey);
 
-				filekeyCipher.init(Cipher.DECRYPT_MODE, shareKey);
-				this.decryptedFileKey = new SecretKeySpec(
-						filekeyCipher.doFinal(tmpencryptedFileKey),
+				this.decryptedFileKey = new SecretKeySpec(cryptFileKey(
+						Cipher.DECRYPT_MODE, tmpencryptedFileKey),
 						getAlgorithmIdentifier());
 
 				// file auth tag
@@ -900,6 +1609,10 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			return fileAuthTag;
 		}
 
+		protected byte[] getFileVersion() {
+			return fileVersion;
+		}
+
 		protected void setFileAuthTag(byte[] fileAuthTag) {
 			this.fileAuthTag = fileAuthTag;
 		}
@@ -1036,7 +1749,6 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			if (tmpChunk != null) {
 				return tmpChunk;
 			} else {
-				flush(false);
 				tmpChunk = _readChunk(index);
 				cache.setChunkBuffer(index, tmpChunk, false, false);
 				return tmpChunk;
@@ -1057,7 +1769,6 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			if (tmpChunk != null) {
 				return tmpChunk;
 			} else {
-				flush(false);
 				tmpChunk = _readLastChunk(index);
 				cache.setChunkBuffer(index, tmpChunk, false, true);
 				return tmpChunk;
@@ -1072,14 +1783,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			IllegalBlockSizeException, BadPaddingException,
 			FileEncryptionException, RandomDataGenerationException, IOException {
 		if (writable && implementsCaching()) {
-			if (cache.needsToBeWritten) {
-				if (!cache.isLast) {
-					_writeChunk(cache.chunkBuffer, cache.chunkIdx);
-				} else {
-					_writeLastChunk(cache.chunkBuffer, cache.chunkIdx);
-				}
-				cache.needsToBeWritten = false;
-			}
+			cache.writeBack();
 
 			if (flushauthdata) {
 				flushAuthData();
@@ -1087,6 +1791,14 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		}
 	}
 
+	/**
+	 * Writes all modified chunks and, if implemented, the authentication data
+	 * to disk. For writable instances, the chunk cache is cleared afterwards,
+	 * so any subsequent read call will again be verified against the data
+	 * stored on disk.
+	 * 
+	 * @see java.io.Flushable#flush()
+	 */
 	@Override
 	public synchronized void flush() throws IOException {
 		try {
@@ -1095,6 +1807,9 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			} else {
 				flush(false);
 			}
+			if (writable && implementsCaching()) {
+				cache.invalidateFrom(0);
+			}
 		} catch (InvalidKeyException | InvalidAlgorithmParameterException
 				| IllegalBlockSizeException | BadPaddingException
 				| FileEncryptionException | RandomDataGenerationException e) {
@@ -1107,13 +1822,8 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			InvalidKeyException, InvalidAlgorithmParameterException,
 			IllegalBlockSizeException, BadPaddingException, IOException {
 		if (implementsCaching()) {
-			// if we use caching mode, only write chunk in case it hasn't been
-			// written before & if we're about to write a new chunk (with a new
-			// index)
-			if (index != cache.chunkIdx) {
-				flush(false);
-			}
-
+			// if we use caching mode, chunks are only written to disk once they
+			// get evicted from the cache or the cache is being flushed
 			if (buffer.length == 0) {
 				log.warn("writeLastChunk(): buffer has length 0!");
 				return;
@@ -1138,13 +1848,8 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 			InvalidKeyException, InvalidAlgorithmParameterException,
 			IllegalBlockSizeException, BadPaddingException, IOException {
 		if (implementsCaching()) {
-			// if we use caching mode, only write chunk in case it hasn't been
-			// written before & if we're about to write a new chunk (with a new
-			// index)
-			if (index != cache.chunkIdx) {
-				flush(false);
-			}
-
+			// if we use caching mode, chunks are only written to disk once they
+			// get evicted from the cache or the cache is being flushed
 			if (buffer.length == 0) {
 				log.warn("writeLastChunk(): buffer has length 0!");
 				return;
@@ -1181,10 +1886,23 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		if (buffer == null || buffer.length == 0) {
 			throw new IOException("Buffer null or empty!");
 		}
+		adjustBackingFileLength(buffer.length, index);
+	}
+
+	/**
+	 * see {@link #adjustBackingFileLength(byte[], long)}
+	 * 
+	 * @param chunkLength
+	 *            length of the plaintext chunk data
+	 * @param index
+	 * @throws IOException
+	 */
+	private void adjustBackingFileLength(int chunkLength, long index)
+			throws IOException {
 		// as data is only written when a chunk has been filled completely,
 		// backing file size has to be adapted, so skipBytes etc. still work
 		long newsize = fHeader.headerSize() + (index * CHUNK_ENC_SIZE)
-				+ CHUNK_IV_SIZE + buffer.length + CHUNK_TLEN;
+				+ CHUNK_IV_SIZE + chunkLength + CHUNK_TLEN;
 
 		if (newsize > realLength()) {
 			// only change size if it has been increased
@@ -1320,6 +2038,20 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				// we are now aligned with the current chunk offset
 				// calculate number of chunks to be read
 				int nchunks = (len - preceding) / CHUNK_DATA_SIZE;
+				ExecutorService executor = parallelCryptoExecutor(nchunks,
+						supportsParallelCrypto());
+				if (executor != null) {
+					// decrypt chunk-sized pieces in parallel
+					int n = readChunks(executor, ByteBuffer.wrap(b,
+							off + preceding, nchunks * CHUNK_DATA_SIZE), nchunks);
+					ret += n;
+					if (n < (nchunks * CHUNK_DATA_SIZE)) {
+						readRecursionProtector--;
+						return ret;
+					}
+					// all chunk-sized pieces have been read
+					nchunks = 0;
+				}
 				// read chunk-sized pieces
 				for (int i = 0; i < nchunks; i++) {
 					ret += read(b, off + preceding + (i * CHUNK_DATA_SIZE),
@@ -1334,9 +2066,8 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				int remainder = (len - preceding) % CHUNK_DATA_SIZE;
 				// read remaining bytes, if there are any
 				if (remainder > 0) {
-					ret += read(b, off + preceding
-							+ (nchunks * CHUNK_DATA_SIZE), remainder);
-					if (ret < (preceding + (nchunks * CHUNK_DATA_SIZE) + remainder)) {
+					ret += read(b, off + len - remainder, remainder);
+					if (ret < len) {
 						readRecursionProtector--;
 						return ret;
 					}
@@ -1351,6 +2082,171 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		}
 	}
 
+	/**
+	 * reads the given number of chunks starting at the current file pointer,
+	 * which has to be aligned with the beginning of a chunk. Chunks not being
+	 * cached are read and decrypted in parallel by means of
+	 * {@link #_readChunkAt(FileChannel, long, boolean, AuthTagVerifier)}.
+	 * 
+	 * @param executor
+	 *            thread pool for decrypting the chunks
+	 * @param dst
+	 *            target buffer with at least
+	 *            <code>nchunks * CHUNK_DATA_SIZE</code> bytes remaining
+	 * @param nchunks
+	 *            number of chunks to read
+	 * @return number of bytes read, which is less than
+	 *         <code>nchunks * CHUNK_DATA_SIZE</code> if the end of the file has
+	 *         been reached
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	private synchronized int readChunks(ExecutorService executor,
+			ByteBuffer dst, int nchunks) throws IOException,
+			InvalidKeyException, InvalidAlgorithmParameterException,
+			IllegalBlockSizeException, BadPaddingException,
+			FileEncryptionException, ShortBufferException,
+			RandomDataGenerationException, FileIntegrityException {
+		final long first = currentchunkpointer();
+		final long last = lastchunkpointer();
+		final FileChannel channel = backingRandomAccessFile.getChannel();
+		final AuthTagVerifier verifier = implementsAuthentication() ? getAuthTagVerifier()
+				: null;
+
+		nchunks = (int) Math.min(nchunks, last - first + 1);
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(nchunks);
+		int ret = 0;
+		try {
+			for (int i = 0; i < nchunks; i++) {
+				final long index = first + i;
+				if (implementsCaching() && cache.containsChunk(index)) {
+					results.add(null);
+				} else {
+					results.add(executor.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return _readChunkAt(channel, index, (index == last),
+									verifier);
+						}
+					}));
+				}
+			}
+
+			for (int i = 0; i < nchunks; i++) {
+				long index = first + i;
+				int n = -1;
+				if (results.get(i) == null) {
+					// may have been evicted by chunks decrypted in the meantime
+					n = cache.copyChunkData(index, 0, dst);
+				}
+				if (n < 0) {
+					byte[] chunk = (results.get(i) != null) ? awaitChunk(results
+							.get(i)) : _readChunkAt(channel, index,
+							(index == last), verifier);
+					n = Math.min(chunk.length, dst.remaining());
+					dst.put(chunk, 0, n);
+					if (implementsCaching()) {
+						cache.adoptChunkBuffer(index, chunk, false,
+								(index == last));
+					}
+				}
+				ret += n;
+				if (n < CHUNK_DATA_SIZE) {
+					break;
+				}
+			}
+		} finally {
+			// don't leave pending tasks behind in case of an error
+			for (Future<byte[]> result : results) {
+				if (result != null) {
+					result.cancel(false);
+				}
+			}
+		}
+
+		skipBytes(ret);
+		return ret;
+	}
+
+	/**
+	 * Reads up to <code>dst.remaining()</code> bytes starting at the current
+	 * file pointer directly into the given buffer, which may also be a direct
+	 * buffer. Decrypted data is copied from the {@link ChunkCache} into the
+	 * buffer without any intermediate copies.
+	 * 
+	 * @param dst
+	 *            target buffer
+	 * @return number of bytes read, or -1 if the file pointer is located at
+	 *         or beyond the end of the file
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		if (dst == null)
+			throw new IOException("buffer null or empty");
+
+		// if we read beyond the EOF, always return -1
+		if (getFilePointer() >= length()) {
+			return -1;
+		}
+
+		int ret = 0;
+		try {
+			FileChannel channel = backingRandomAccessFile.getChannel();
+			AuthTagVerifier verifier = implementsAuthentication() ? getAuthTagVerifier()
+					: null;
+
+			while (dst.hasRemaining() && (getFilePointer() < length())) {
+				long index = currentchunkpointer();
+				int offset = currentchunkoffset();
+				boolean lastchunk = (index == lastchunkpointer());
+
+				if ((offset == 0) && !lastchunk) {
+					// decrypt chunk-sized pieces in parallel, if possible
+					int nchunks = dst.remaining() / CHUNK_DATA_SIZE;
+					ExecutorService executor = parallelCryptoExecutor(nchunks,
+							supportsParallelCrypto());
+					if (executor != null) {
+						int n = readChunks(executor, dst, nchunks);
+						ret += n;
+						if (n < (nchunks * CHUNK_DATA_SIZE)) {
+							break;
+						}
+						continue;
+					}
+				}
+
+				int n = implementsCaching() ? cache.copyChunkData(index,
+						offset, dst) : -1;
+				if (n < 0) {
+					byte[] chunk = _readChunkAt(channel, index, lastchunk,
+							verifier);
+					n = Math.max(0,
+							Math.min(chunk.length - offset, dst.remaining()));
+					dst.put(chunk, offset, n);
+					if (implementsCaching()) {
+						// the chunk has just been decrypted, so there is no
+						// need to copy it
+						cache.adoptChunkBuffer(index, chunk, false, lastchunk);
+					}
+				}
+				if (n == 0) {
+					break;
+				}
+				skipBytes(n);
+				ret += n;
+			}
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException | RandomDataGenerationException e) {
+			throw new FileEncryptionException("Error during read()", e);
+		}
+		return ret;
+	}
+
 	public synchronized int read(byte[] b) throws IOException,
 			FileEncryptionException, FileIntegrityException {
 		return this.read(b, 0, b.length);
@@ -1498,6 +2394,106 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		this.write(b, 0, b.length);
 	}
 
+	/**
+	 * scratch array for data passed on from {@link #write(ByteBuffer)} to
+	 * {@link #write(byte[], int, int)}
+	 */
+	private byte[] writeScratch;
+
+	/**
+	 * Encrypts and writes all remaining bytes of the given buffer, which may
+	 * also be a direct buffer, starting at the current file pointer. Data
+	 * written to chunks being cached is copied from the buffer into the
+	 * {@link ChunkCache} directly. Any other data is passed on to
+	 * {@link #write(byte[], int, int)}.
+	 * 
+	 * @param src
+	 *            source buffer
+	 * @return number of bytes written
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	public synchronized int write(ByteBuffer src) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		if (src == null)
+			throw new IOException("buffer null or empty");
+
+		if (!exists() || realLength() == 0) {
+			throw new FileEncryptionException(
+					"File has not been initialized properly!");
+		}
+
+		int ret = src.remaining();
+		try {
+			while (src.hasRemaining()) {
+				long index = currentchunkpointer();
+				int offset = currentchunkoffset();
+				int n = Math.min(src.remaining(), CHUNK_DATA_SIZE - offset);
+
+				if (implementsCaching() && (length() > 0)) {
+					long last = lastchunkpointer();
+					int chunkLength = -1;
+					if (index <= last) {
+						chunkLength = cache.mergeChunkData(index, offset, src,
+								n, (index == last));
+					}
+					if ((chunkLength < 0) && (index < last) && (offset == 0)
+							&& (n == CHUNK_DATA_SIZE)) {
+						// the whole chunk is written at once, so no data need
+						// to be merged
+						byte[] chunk = new byte[CHUNK_DATA_SIZE];
+						src.get(chunk);
+						cache.adoptChunkBuffer(index, chunk, true, false);
+						chunkLength = CHUNK_DATA_SIZE;
+					}
+					if (chunkLength >= 0) {
+						adjustBackingFileLength(chunkLength, index);
+						skipBytes(n);
+						continue;
+					}
+				}
+
+				if (writeScratch == null) {
+					writeScratch = new byte[CHUNK_DATA_SIZE];
+				}
+				src.get(writeScratch, 0, n);
+				write(writeScratch, 0, n);
+			}
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| RandomDataGenerationException e) {
+			throw new FileEncryptionException("Error during write()", e);
+		}
+		return ret;
+	}
+
+	/**
+	 * Positional write: encrypts and writes all remaining bytes of the given
+	 * buffer starting at the given plaintext position. Seeking and writing are
+	 * done atomically under this instance's monitor, so positional writes of
+	 * multiple callers sharing this instance, or a concurrent
+	 * {@link #setLength(long)}, cannot interleave. Afterwards, the file pointer
+	 * points behind the written data.
+	 * 
+	 * @param position
+	 *            virtual plaintext position within this file
+	 * @param src
+	 *            source buffer
+	 * @return number of bytes written
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	public synchronized int write(long position, ByteBuffer src)
+			throws IOException, FileEncryptionException, FileIntegrityException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		seek(position);
+		return write(src);
+	}
+
 	/**
 	 * current recursion level in {@link #write(byte[], int, int)}
 	 */
@@ -1697,7 +2693,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	 * @return offset at which the given <b>encrypted </b> chunk starts
 	 * @throws IOException
 	 */
-	protected synchronized long chunkOffset(long index) throws IOException {
+	protected long chunkOffset(long index) throws IOException {
 		// convert to long *prior to* multiplication to avoid
 		// overflow
 		return ((long) fHeader.headerSize())
@@ -1711,10 +2707,21 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	 * @throws IOException
 	 */
 	protected synchronized long numchunks() throws IOException {
-		if (backingRandomAccessFile.length() <= fHeader.headerSize()) {
+		return numchunks(backingRandomAccessFile.length());
+	}
+
+	/**
+	 * returns number of chunks for the given length of the backing file
+	 * 
+	 * @param realLength
+	 *            length of the backing file including all meta data
+	 * @return
+	 */
+	protected long numchunks(long realLength) {
+		if (realLength <= fHeader.headerSize()) {
 			return 0;
 		} else {
-			long len = backingRandomAccessFile.length() - fHeader.headerSize();
+			long len = realLength - fHeader.headerSize();
 
 			// if file length is aligned with chunk size, we have exactly (len /
 			// chunksize) chunks; otherwise also add the last partial chunk
@@ -2058,7 +3065,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 						// also remove authentication tags of intermediate
 						// chunks to
 						// be removed
-						for (long i = idx_newlastchunk + 1; i <= idx_oldlastchunk; i++) {
+						for (long i = idx_oldlastchunk; i > idx_newlastchunk; i--) {
 							authTagVerifier.removeChunkAuthTag(i);
 						}
 						// no need to update the file auth tag at this point, as
@@ -2067,6 +3074,11 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 						// last chunk
 					}
 
+					if (implementsCaching()) {
+						// discard any cached chunks beyond the new last chunk
+						cache.invalidateFrom(idx_newlastchunk + 1);
+					}
+
 					// reencrypt new last chunk
 					decChunk = readChunk(idx_newlastchunk);
 					byte[] chunk = new byte[offset_new];
@@ -2317,7 +3329,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 	public synchronized void close() throws IOException {
 		if (isOpen()) {
 			// make sure all data have been flushed
-			if (writable && implementsCaching() && cache.needsToBeWritten) {
+			if (writable && implementsCaching() && cache.needsToBeWritten()) {
 				log.warn("close(): Cached data still need to be written, calling flush()");
 				flush();
 			}
@@ -2329,6 +3341,7 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 				this.authTagVerifier = null;
 
 			backingRandomAccessFile.close();
+			releaseKeyedEngines();
 			setOpen(false);
 			setInitialized(false);
 		} else {
@@ -2467,6 +3480,195 @@ public abstract class EncRandomAccessFile implements Flushable, Closeable {
 		return read(buf);
 	}
 
+	/**
+	 * Positional read with the semantics of
+	 * {@link FileChannel#read(ByteBuffer, long)}: reads up to
+	 * <code>dst.remaining()</code> bytes starting at the given plaintext
+	 * position into the given buffer without modifying this file's file
+	 * pointer.
+	 * <p>
+	 * For read-only instances, encrypted chunks are fetched with positional
+	 * reads on the backing {@link FileChannel} and decrypted with cipher
+	 * instances bound to the calling thread (see
+	 * {@link #_readChunkAt(FileChannel, long, boolean, AuthTagVerifier)}), i.e. without holding
+	 * this instance's monitor. Thus, multiple threads may read and decrypt
+	 * different chunks of the same file in parallel. Writable instances fall
+	 * back to the synchronized read path, as their most recent chunk data may
+	 * only exist within the {@link ChunkCache}.
+	 *
+	 * @param position
+	 *            virtual plaintext position within this file
+	 * @param dst
+	 *            buffer to transfer the decrypted data into
+	 * @return number of bytes read, possibly zero, or <code>-1</code> if the
+	 *         given position is greater than or equal to the file's length
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	public int read(long position, ByteBuffer dst) throws IOException,
+			FileEncryptionException, FileIntegrityException {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+
+		if (writable) {
+			return readSynchronized(position, dst);
+		}
+
+		FileChannel channel = backingRandomAccessFile.getChannel();
+		long realLength = channel.size();
+		long nchunks = numchunks(realLength);
+		long plainLength = (nchunks == 0) ? 0 : (realLength
+				- fHeader.headerSize() - (nchunks * (CHUNK_IV_SIZE + CHUNK_TLEN)));
+
+		if (position >= plainLength) {
+			return -1;
+		}
+
+		int ret = 0;
+		try {
+			AuthTagVerifier verifier = null;
+			if (implementsAuthentication()) {
+				verifier = getAuthTagVerifier();
+				if (verifier == null) {
+					throw new IOException("File has already been closed!");
+				}
+			}
+
+			while (dst.hasRemaining() && (position < plainLength)) {
+				long index = position / CHUNK_DATA_SIZE;
+				int offset = (int) (position % CHUNK_DATA_SIZE);
+
+				int n = readChunkAt(channel, index, (index == (nchunks - 1)),
+						verifier, offset, dst);
+				if (n <= 0) {
+					break;
+				}
+
+				position += n;
+				ret += n;
+			}
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException
+				| IllegalBlockSizeException | BadPaddingException
+				| ShortBufferException | RandomDataGenerationException e) {
+			throw new FileEncryptionException("Error during read()", e);
+		}
+		return ret;
+	}
+
+	/**
+	 * fallback for {@link #read(long, ByteBuffer)} on writable instances,
+	 * which restores the previous file pointer after reading
+	 *
+	 * @param position
+	 * @param dst
+	 * @return
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	private synchronized int readSynchronized(long position, ByteBuffer dst)
+			throws IOException, FileEncryptionException,
+			FileIntegrityException {
+		if (position >= length()) {
+			return -1;
+		}
+
+		long oldpos = backingRandomAccessFile.getFilePointer();
+		try {
+			seek(position);
+			return read(dst);
+		} finally {
+			backingRandomAccessFile.seek(oldpos);
+		}
+	}
+
+	/**
+	 * copies data of the decrypted chunk with the given index into the given
+	 * buffer for {@link #read(long, ByteBuffer)}, either directly from the
+	 * {@link ChunkCache} or after reading the chunk by means of
+	 * {@link #_readChunkAt(FileChannel, long, boolean, AuthTagVerifier)}
+	 *
+	 * @param channel
+	 * @param index
+	 * @param lastchunk
+	 * @param verifier
+	 * @param offset
+	 *            offset within the chunk
+	 * @param dst
+	 * @return number of bytes copied
+	 * @throws IOException
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 */
+	private int readChunkAt(FileChannel channel, long index,
+			boolean lastchunk, AuthTagVerifier verifier, int offset,
+			ByteBuffer dst) throws IOException, InvalidKeyException,
+			InvalidAlgorithmParameterException, IllegalBlockSizeException,
+			BadPaddingException, FileEncryptionException,
+			ShortBufferException, RandomDataGenerationException,
+			FileIntegrityException {
+		// the cache reference is reset upon close(), so keep a local copy
+		ChunkCache chunkCache = implementsCaching() ? this.cache : null;
+		if (chunkCache != null) {
+			int n = chunkCache.copyChunkData(index, offset, dst);
+			if (n >= 0) {
+				return n;
+			}
+		}
+
+		byte[] chunk = _readChunkAt(channel, index, lastchunk, verifier);
+		int n = Math.max(0, Math.min(chunk.length - offset, dst.remaining()));
+		dst.put(chunk, offset, n);
+		if (chunkCache != null) {
+			// the chunk has just been decrypted, so there is no need to copy it
+			chunkCache.adoptChunkBuffer(index, chunk, false, lastchunk);
+		}
+		return n;
+	}
+
+	/**
+	 * Method for reading and decrypting a chunk by means of positional reads
+	 * on the given channel, without modifying the file pointer or any other
+	 * state shared between threads. Implementations supporting concurrent
+	 * reads are expected to use cipher instances bound to the calling thread
+	 * and must not acquire this instance's monitor (see
+	 * {@link #supportsParallelCrypto()}). The default implementation falls
+	 * back to {@link #_readChunk(long)} and {@link #_readLastChunk(long)},
+	 * respectively, while holding this instance's monitor.
+	 *
+	 * @param channel
+	 *            channel of the backing file
+	 * @param index
+	 *            chunk index
+	 * @param lastchunk
+	 *            <code>true</code> if the chunk is the file's last chunk
+	 * @param verifier
+	 *            {@link AuthTagVerifier}-instance for verifying the chunk's
+	 *            authentication tag, or <code>null</code> if this
+	 *            implementation does not implement authentication
+	 * @return the decrypted chunk data
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 * @throws FileEncryptionException
+	 * @throws ShortBufferException
+	 * @throws FileIntegrityException
+	 */
+	protected byte[] _readChunkAt(FileChannel channel, long index,
+			boolean lastchunk, AuthTagVerifier verifier) throws IOException,
+			InvalidKeyException,
+			InvalidAlgorithmParameterException, IllegalBlockSizeException,
+			BadPaddingException, FileEncryptionException,
+			ShortBufferException, FileIntegrityException {
+		synchronized (this) {
+			return lastchunk ? _readLastChunk(index) : _readChunk(index);
+		}
+	}
+
 	/**
 	 * Convenience method unifying {@link #seek(long)} and
 	 * {@link #write(byte[], int, int)} in one synchronized method
@@ -0,0 +1,586 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+import org.panbox.core.exception.FileEncryptionException;
+import org.panbox.core.exception.FileIntegrityException;
+
+/**
+ * @author palige
+ *
+ *         Selects the {@link AbstractAESGCMRandomAccessFile} implementation to
+ *         be used for all GCM encrypted files of this JVM. As all
+ *         implementations produce the same on-disk format, the choice only
+ *         affects performance: Each implementation is calibrated by writing
+ *         and reading a temporary file and the one with the highest throughput
+ *         is selected. The calibration runs in a background thread (see
+ *         {@link #startCalibration()}), its result is cached in a properties
+ *         file (see {@link #setCalibrationFile(File)}) and reused as long as
+ *         JVM version, architecture and number of CPUs are unchanged.
+ *
+ *         The selection may be overridden with {@link #setOverride(String)} or
+ *         the system property {@value #OVERRIDE_PROPERTY}. Once selected, the
+ *         implementation is fixed for the lifetime of the JVM, as each
+ *         implementation keeps its own instance map and different instances
+ *         for the same file must not be used concurrently. Thus, if an
+ *         implementation is needed before the calibration has finished,
+ *         {@link #DEFAULT_IMPLEMENTATION} is used for this JVM and the
+ *         calibration result only takes effect after a restart.
+ */
+public final class GCMImplementationSelector {
+
+	private static final Logger logger = Logger.getLogger("org.panbox.core");
+
+	/**
+	 * system property for overriding the implementation, see
+	 * {@link Implementation#forName(String)}
+	 */
+	public final static String OVERRIDE_PROPERTY = "panbox.gcm.implementation";
+
+	/**
+	 * value for {@link #OVERRIDE_PROPERTY} and {@link #setOverride(String)}
+	 * enabling automatic selection
+	 */
+	public final static String AUTO = "auto";
+
+	/**
+	 * amount of data written and read per calibration round
+	 */
+	final static int CALIBRATION_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * number of unmeasured calibration rounds per implementation
+	 */
+	final static int CALIBRATION_WARMUP_ROUNDS = 1;
+
+	/**
+	 * number of measured calibration rounds per implementation
+	 */
+	final static int CALIBRATION_ROUNDS = 2;
+
+	/**
+	 * implementation used while the calibration is running or if it fails for
+	 * all implementations
+	 */
+	final static Implementation DEFAULT_IMPLEMENTATION = Implementation.COMPAT;
+
+	private final static String PROP_FINGERPRINT = "fingerprint";
+	private final static String PROP_SELECTED = "selected";
+	private final static String PROP_THROUGHPUT = "throughput.";
+
+	/**
+	 * available GCM implementations
+	 */
+	public enum Implementation {
+		/**
+		 * {@link AESGCMRandomAccessFile}, JCE GCM cipher
+		 */
+		JCE,
+		/**
+		 * {@link AESGCMRandomAccessFileCompat}, bouncycastle GCM with
+		 * AESFastEngine
+		 */
+		COMPAT,
+		/**
+		 * {@link AESGCMRandomAccessFileHW}, bouncycastle GCM with SunJCE AES
+		 */
+		HW;
+
+		/**
+		 * @param name
+		 *            case insensitive implementation name
+		 * @return the implementation or <code>null</code> for
+		 *         <code>null</code>, empty names and {@link #AUTO}
+		 * @throws IllegalArgumentException
+		 *             if the name is unknown
+		 */
+		public static Implementation forName(String name) {
+			if (name == null) {
+				return null;
+			}
+			name = name.trim();
+			if (name.isEmpty() || name.equalsIgnoreCase(AUTO)) {
+				return null;
+			}
+			return valueOf(name.toUpperCase(Locale.ENGLISH));
+		}
+
+		AbstractAESGCMRandomAccessFile getInstance(File file, boolean writable)
+				throws FileEncryptionException, IOException {
+			switch (this) {
+			case JCE:
+				return AESGCMRandomAccessFile.getInstance(file, writable);
+			case HW:
+				return AESGCMRandomAccessFileHW.getInstance(file, writable);
+			default:
+				return AESGCMRandomAccessFileCompat.getInstance(file, writable);
+			}
+		}
+	}
+
+	private static Implementation override = null;
+
+	private static File calibrationFile = null;
+
+	private static Implementation selected = null;
+
+	private static Thread calibrationThread = null;
+
+	private final static Map<Implementation, Double> throughput = new EnumMap<Implementation, Double>(
+			Implementation.class);
+
+	private GCMImplementationSelector() {
+	}
+
+	/**
+	 * sets the implementation to be used instead of the automatically selected
+	 * one. Has no effect if an implementation already has been selected.
+	 *
+	 * @param name
+	 *            implementation name or {@link #AUTO}, see
+	 *            {@link Implementation#forName(String)}
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static synchronized void setOverride(String name) {
+		Implementation impl = Implementation.forName(name);
+		if (selected != null && impl != null && impl != selected) {
+			logger.warn("GCMImplementationSelector : setOverride : "
+					+ selected + " has already been selected, ignoring " + impl);
+		}
+		override = impl;
+	}
+
+	/**
+	 * sets the file calibration results are cached in. If <code>null</code>,
+	 * the calibration is repeated for each JVM.
+	 *
+	 * @param f
+	 */
+	public static synchronized void setCalibrationFile(File f) {
+		calibrationFile = f;
+	}
+
+	/**
+	 * @return the selected implementation. If there is neither a configured
+	 *         nor a cached selection, the calibration is started in the
+	 *         background and {@link #DEFAULT_IMPLEMENTATION} is returned.
+	 */
+	public static synchronized Implementation getImplementation() {
+		if (selected == null) {
+			Implementation impl = configured();
+			if (impl == null) {
+				startCalibration();
+				impl = DEFAULT_IMPLEMENTATION;
+				logger.info("GCMImplementationSelector : getImplementation : Using "
+						+ impl + " while calibration is running");
+			}
+			selected = impl;
+		}
+		return selected;
+	}
+
+	/**
+	 * starts the calibration in a background thread, unless an implementation
+	 * already has been selected, is configured or the calibration file holds
+	 * a valid result. Should be called early, so the calibration has finished
+	 * before files are being accessed.
+	 */
+	public static synchronized void startCalibration() {
+		if (selected != null || calibrationThread != null) {
+			return;
+		}
+		Implementation impl = configured();
+		if (impl != null) {
+			selected = impl;
+			return;
+		}
+		calibrationThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Map<Implementation, Double> results = new EnumMap<Implementation, Double>(
+						Implementation.class);
+				Implementation best = calibrate(results);
+				calibrationFinished(best, results);
+			}
+		}, "Panbox-GCMCalibration");
+		calibrationThread.setDaemon(true);
+		calibrationThread.start();
+	}
+
+	private static synchronized void calibrationFinished(Implementation best,
+			Map<Implementation, Double> results) {
+		throughput.clear();
+		throughput.putAll(results);
+		logger.info("GCMImplementationSelector : calibrationFinished : "
+				+ statistics(best));
+		storeCalibration(best);
+		if (selected == null) {
+			selected = best;
+		} else if (selected != best) {
+			logger.info("GCMImplementationSelector : calibrationFinished : Keeping "
+					+ selected + " until restart, as it is already in use");
+		}
+		calibrationThread = null;
+		GCMImplementationSelector.class.notifyAll();
+	}
+
+	/**
+	 * waits for a running calibration to finish
+	 *
+	 * @throws InterruptedException
+	 */
+	static synchronized void awaitCalibration() throws InterruptedException {
+		while (calibrationThread != null) {
+			GCMImplementationSelector.class.wait();
+		}
+	}
+
+	/**
+	 * @param impl
+	 * @return throughput in MB/s measured for the given implementation or
+	 *         <code>-1</code>, if none is known, e.g. due to an override
+	 */
+	public static synchronized double getThroughput(Implementation impl) {
+		Double d = throughput.get(impl);
+		return (d == null) ? -1 : d.doubleValue();
+	}
+
+	/**
+	 * @return summary of the selection and measured throughputs, e.g. for
+	 *         logging
+	 */
+	public static synchronized String getStatistics() {
+		return statistics(getImplementation());
+	}
+
+	/**
+	 * returns an instance of the selected implementation for the given
+	 * arguments, see {@link EncRandomAccessFile#getInstance(File, boolean)}
+	 *
+	 * @param file
+	 * @param writable
+	 * @return
+	 * @throws FileEncryptionException
+	 * @throws IOException
+	 */
+	public static AbstractAESGCMRandomAccessFile getInstance(File file,
+			boolean writable) throws FileEncryptionException, IOException {
+		return getImplementation().getInstance(file, writable);
+	}
+
+	/**
+	 * creates a new file with the selected implementation, see
+	 * {@link EncRandomAccessFile#create(int, SecretKey, File)}
+	 *
+	 * @param shareKeyVersion
+	 * @param shareKey
+	 * @param file
+	 * @return
+	 * @throws FileEncryptionException
+	 * @throws IOException
+	 */
+	public static AbstractAESGCMRandomAccessFile create(int shareKeyVersion,
+			SecretKey shareKey, File file) throws FileEncryptionException,
+			IOException {
+		AbstractAESGCMRandomAccessFile ret = getInstance(file, true);
+		ret.create(shareKeyVersion, shareKey);
+		return ret;
+	}
+
+	/**
+	 * opens an existing file with the selected implementation, see
+	 * {@link EncRandomAccessFile#open(File, boolean)}
+	 *
+	 * @param file
+	 * @param writable
+	 * @return
+	 * @throws FileEncryptionException
+	 * @throws IOException
+	 */
+	public static AbstractAESGCMRandomAccessFile open(File file,
+			boolean writable) throws FileEncryptionException, IOException {
+		AbstractAESGCMRandomAccessFile ret = getInstance(file, writable);
+		ret.open();
+		return ret;
+	}
+
+	/**
+	 * discards the current selection and all measurements. Only to be used
+	 * for testing, as instances of the previously selected implementation may
+	 * still be in use.
+	 */
+	static synchronized void reset() throws InterruptedException {
+		awaitCalibration();
+		selected = null;
+		override = null;
+		throughput.clear();
+	}
+
+	/**
+	 * @return the configured or cached implementation, or <code>null</code>
+	 *         if the calibration needs to be run
+	 */
+	private static Implementation configured() {
+		Implementation impl = override;
+		if (impl == null) {
+			try {
+				impl = Implementation.forName(System
+						.getProperty(OVERRIDE_PROPERTY));
+			} catch (IllegalArgumentException e) {
+				logger.error("GCMImplementationSelector : configured : Unknown implementation "
+						+ System.getProperty(OVERRIDE_PROPERTY)
+						+ " in system property " + OVERRIDE_PROPERTY);
+			}
+		}
+		if (impl != null) {
+			logger.info("GCMImplementationSelector : configured : Using "
+					+ impl + " as configured");
+			return impl;
+		}
+
+		impl = loadCalibration();
+		if (impl != null) {
+			logger.info("GCMImplementationSelector : configured : Using cached calibration from "
+					+ calibrationFile + ": " + statistics(impl));
+		}
+		return impl;
+	}
+
+	private static String statistics(Implementation impl) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("selected=").append(impl);
+		for (Map.Entry<Implementation, Double> e : throughput.entrySet()) {
+			sb.append(", ").append(e.getKey()).append('=')
+					.append(String.format(Locale.ENGLISH, "%.1f", e.getValue()))
+					.append(" MB/s");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return string identifying JVM and CPU the calibration is valid for
+	 */
+	static String fingerprint() {
+		return System.getProperty("java.vendor") + "/"
+				+ System.getProperty("java.version") + "/"
+				+ System.getProperty("os.arch") + "/"
+				+ Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * runs the calibration for all implementations. Does not access any
+	 * state of this class, so it may run without holding its lock.
+	 *
+	 * @param results
+	 *            map to store the throughput of each implementation in
+	 * @return the fastest implementation
+	 */
+	static Implementation calibrate(Map<Implementation, Double> results) {
+		Implementation best = null;
+		File tmpDir = null;
+		try {
+			tmpDir = File.createTempFile("panbox-gcmcalibration", "");
+			if (!tmpDir.delete() || !tmpDir.mkdir()) {
+				throw new IOException("Unable to create directory " + tmpDir);
+			}
+
+			byte[] tmp = new byte[16];
+			Random r = new Random();
+			r.nextBytes(tmp);
+			SecretKey shareKey = new SecretKeySpec(tmp, "AES");
+			byte[] data = new byte[CALIBRATION_SIZE];
+			r.nextBytes(data);
+
+			for (Implementation impl : Implementation.values()) {
+				try {
+					double mbs = calibrate(impl, shareKey, data, new File(
+							tmpDir, impl.name()));
+					results.put(impl, mbs);
+					if (best == null || mbs > results.get(best)) {
+						best = impl;
+					}
+				} catch (Exception e) {
+					logger.warn("GCMImplementationSelector : calibrate : Implementation "
+							+ impl + " not available", e);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("GCMImplementationSelector : calibrate : Unable to run calibration",
+					e);
+		} finally {
+			if (tmpDir != null) {
+				File[] files = tmpDir.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						f.delete();
+					}
+				}
+				tmpDir.delete();
+			}
+		}
+		return (best == null) ? DEFAULT_IMPLEMENTATION : best;
+	}
+
+	/**
+	 * writes and reads the given data with the given implementation
+	 *
+	 * @return throughput in MB/s of the measured rounds
+	 * @throws FileEncryptionException
+	 * @throws FileIntegrityException
+	 * @throws IOException
+	 */
+	private static double calibrate(Implementation impl, SecretKey shareKey,
+			byte[] data, File file) throws FileEncryptionException,
+			FileIntegrityException, IOException {
+		byte[] buf = new byte[data.length];
+		long elapsed = 0;
+		for (int i = 0; i < CALIBRATION_WARMUP_ROUNDS + CALIBRATION_ROUNDS; i++) {
+			long start = System.nanoTime();
+
+			// temporary files must not leave sidecar files behind
+			AbstractAESGCMRandomAccessFile f = impl.getInstance(file, true);
+			f.disableSidecar();
+			f.create(0, shareKey);
+			f.write(data);
+			f.close();
+
+			f = impl.getInstance(file, false);
+			f.disableSidecar();
+			f.open();
+			f.initWithShareKey(shareKey);
+			int off = 0, n;
+			while (off < buf.length
+					&& (n = f.read(buf, off, buf.length - off)) > 0) {
+				off += n;
+			}
+			f.close();
+
+			if (off != data.length) {
+				throw new IOException("Read " + off + " bytes instead of "
+						+ data.length);
+			}
+			if (i >= CALIBRATION_WARMUP_ROUNDS) {
+				elapsed += System.nanoTime() - start;
+			}
+			file.delete();
+		}
+		// data is written and read once per round
+		double mb = 2.0 * CALIBRATION_ROUNDS * data.length / (1024 * 1024);
+		return mb / (Math.max(elapsed, 1) / 1e9);
+	}
+
+	/**
+	 * @return the cached selection or <code>null</code>, if there is no valid
+	 *         calibration file
+	 */
+	private static Implementation loadCalibration() {
+		if (calibrationFile == null || !calibrationFile.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(calibrationFile)) {
+			props.load(in);
+		} catch (IOException e) {
+			logger.warn("GCMImplementationSelector : loadCalibration : Unable to read "
+					+ calibrationFile, e);
+			return null;
+		}
+		if (!fingerprint().equals(props.getProperty(PROP_FINGERPRINT))) {
+			logger.info("GCMImplementationSelector : loadCalibration : Calibration in "
+					+ calibrationFile + " is outdated");
+			return null;
+		}
+		try {
+			Implementation impl = Implementation.forName(props
+					.getProperty(PROP_SELECTED));
+			if (impl == null) {
+				return null;
+			}
+			throughput.clear();
+			for (Implementation i : Implementation.values()) {
+				String s = props.getProperty(PROP_THROUGHPUT + i.name());
+				if (s != null) {
+					throughput.put(i, Double.valueOf(s));
+				}
+			}
+			return impl;
+		} catch (IllegalArgumentException e) {
+			// includes NumberFormatException
+			logger.warn("GCMImplementationSelector : loadCalibration : Invalid calibration in "
+					+ calibrationFile, e);
+			throughput.clear();
+			return null;
+		}
+	}
+
+	private static void storeCalibration(Implementation impl) {
+		if (calibrationFile == null || throughput.isEmpty()) {
+			return;
+		}
+		Properties props = new Properties();
+		props.setProperty(PROP_FINGERPRINT, fingerprint());
+		props.setProperty(PROP_SELECTED, impl.name());
+		for (Map.Entry<Implementation, Double> e : throughput.entrySet()) {
+			props.setProperty(PROP_THROUGHPUT + e.getKey().name(), e
+					.getValue().toString());
+		}
+		File tmp = new File(calibrationFile.getPath() + ".tmp");
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				props.store(out, "Panbox GCM implementation calibration");
+			}
+			if (!tmp.renameTo(calibrationFile)) {
+				calibrationFile.delete();
+				if (!tmp.renameTo(calibrationFile)) {
+					throw new IOException("Unable to rename " + tmp + " to "
+							+ calibrationFile);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("GCMImplementationSelector : storeCalibration : Unable to write "
+					+ calibrationFile, e);
+			tmp.delete();
+		}
+	}
+}
@@ -28,6 +28,9 @@ package org.panbox.core.vfs.backend;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.util.Arrays;
+import java.util.Iterator;
 
 public abstract class VirtualFile {
 	private final String fileName;
@@ -64,6 +67,32 @@ public abstract class VirtualFile {
 
 	public abstract VirtualFile[] list() throws IOException;
 
+	/**
+	 * Iterates over the entries of this directory. In contrast to
+	 * {@link #list()}, implementations backed by a directory should read its
+	 * entries one after another, so that large directories do not need to be
+	 * held in memory at once. The default implementation is based on
+	 * {@link #list()}.
+	 * 
+	 * @return stream of the entries of this directory, which needs to be
+	 *         closed after use
+	 * @throws IOException
+	 */
+	public DirectoryStream<VirtualFile> newDirectoryStream()
+			throws IOException {
+		final VirtualFile[] files = list();
+		return new DirectoryStream<VirtualFile>() {
+			@Override
+			public Iterator<VirtualFile> iterator() {
+				return Arrays.asList(files).iterator();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
 	// --------------------- File operations ---------------------
 
 	public File getFile() {
@@ -104,6 +133,25 @@ public abstract class VirtualFile {
 		return false;
 	}
 
+	/**
+	 * Reads all attributes of this file at once. Implementations backed by a
+	 * file should override this in order to read them with a single call.
+	 * 
+	 * @return the attributes of this file, or <code>null</code> if it does
+	 *         not exist
+	 * @throws IOException
+	 */
+	public VirtualFileAttributes getAttributes() throws IOException {
+		boolean symbolic = isSymbolic();
+		if (!symbolic && !exists()) {
+			return null;
+		}
+		boolean directory = isDirectory();
+		return new VirtualFileAttributes(directory, symbolic, directory ? 0
+				: length(), getCreationTime(), getLastAccessTime(),
+				getLastWriteTime());
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 
@@ -0,0 +1,85 @@
+/*
+ * 
+ *               Panbox - encryption for cloud storage 
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3 
+ * will apply to all the product.
+ * 
+ */
+package org.panbox.core.vfs.backend;
+
+/**
+ * Attributes of a {@link VirtualFile} as read at once by
+ * {@link VirtualFile#getAttributes()}. Times are given in milliseconds since
+ * the epoch, the length is the length of the decrypted contents.
+ */
+public class VirtualFileAttributes {
+
+	private final boolean directory;
+
+	private final boolean symbolic;
+
+	private final long length;
+
+	private final long creationTime;
+
+	private final long lastAccessTime;
+
+	private final long lastWriteTime;
+
+	public VirtualFileAttributes(boolean directory, boolean symbolic,
+			long length, long creationTime, long lastAccessTime,
+			long lastWriteTime) {
+		this.directory = directory;
+		this.symbolic = symbolic;
+		this.length = length;
+		this.creationTime = creationTime;
+		this.lastAccessTime = lastAccessTime;
+		this.lastWriteTime = lastWriteTime;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public boolean isSymbolic() {
+		return symbolic;
+	}
+
+	/**
+	 * @return length of the file, 0 for directories
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	public long getLastWriteTime() {
+		return lastWriteTime;
+	}
+}
@@ -36,6 +36,12 @@ import org.junit.runners.Suite.SuiteClasses;
 	org.panbox.core.identitymgmt.AllTests.class,
 	org.panbox.core.keymgmt.AllTests.class,
 	org.panbox.core.crypto.TestSymmetricKeyEnc.class,
+	org.panbox.core.crypto.IVPoolMapTest.class,
+	org.panbox.core.crypto.ObfuscatedPathCacheTest.class,
+	org.panbox.core.crypto.io.AuthTagVerifierTest.class,
+	org.panbox.core.crypto.io.CryptoEnginePoolTest.class,
+	org.panbox.core.crypto.io.GCMImplementationSelectorTest.class,
+	org.panbox.core.crypto.EncodingHelperTest.class,
 	//org.panbox.core.metadata.AllTests.class,
 	//org.panbox.core.crypto.io.EncRandomAccessFileTest.class,
 	org.panbox.core.crypto.randomness.SecureRandomTest.class
@@ -0,0 +1,89 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * @author palige
+ *
+ *         Tests for {@link EncodingHelper}, comparing its Base64 encoding with
+ *         the url-safe, unpadded encoding by apache codec used for obfuscated
+ *         names so far.
+ */
+public class EncodingHelperTest {
+
+	private final Random random = new Random(42);
+
+	private static String codecEncode(byte[] data) {
+		String s = new String(new Base64().encode(data))
+				.replace('+', '-').replace('/', '_');
+		while (s.endsWith("=")) {
+			s = s.substring(0, s.length() - 1);
+		}
+		return s;
+	}
+
+	private static byte[] codecDecode(String s) {
+		s = s.replace('-', '+').replace('_', '/');
+		while (s.length() % 4 != 0) {
+			s = s.concat("=");
+		}
+		return Base64.decodeBase64(s);
+	}
+
+	@Test
+	public void testBase64CodecCompatibility() {
+		for (int len = 0; len < 300; len++) {
+			byte[] data = new byte[len];
+			random.nextBytes(data);
+			String encoded = EncodingHelper.encodeByte(data,
+					EncodingType.BASE64);
+			assertEquals(codecEncode(data), encoded);
+			assertArrayEquals(data,
+					EncodingHelper.decodeString(encoded, EncodingType.BASE64));
+			assertArrayEquals(codecDecode(encoded),
+					EncodingHelper.decodeString(encoded, EncodingType.BASE64));
+		}
+	}
+
+	@Test
+	public void testBase64LenientDecoding() {
+		String[] inputs = { "", "A", "AB", "ABC", "ABCD", "AB==", "ABC=",
+				"AB+/", "AB-_", "A B\nC D", "ABCD=EFGH", "ÄBCDEF", "ab.cd" };
+		for (String input : inputs) {
+			assertArrayEquals(input, codecDecode(input),
+					EncodingHelper.decodeString(input, EncodingType.BASE64));
+		}
+	}
+}
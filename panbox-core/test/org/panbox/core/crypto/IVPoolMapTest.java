@@ -0,0 +1,143 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.panbox.core.Utils;
+
+/**
+ * @author palige
+ *
+ *         Tests for {@link IVPoolMap}
+ */
+public class IVPoolMapTest {
+
+	private final Random random = new Random(42);
+
+	private byte[] randomBytes(int len) {
+		byte[] tmp = new byte[len];
+		random.nextBytes(tmp);
+		return tmp;
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		IVPoolMap map = new IVPoolMap();
+		byte[] hash = randomBytes(IVPoolMap.HASH_LEN);
+		byte[] iv = randomBytes(IVPoolMap.IV_LEN);
+
+		assertTrue(map.isEmpty());
+		assertNull(map.get(hash));
+		assertNull(map.put(hash, iv));
+		assertArrayEquals(iv, map.get(hash));
+		assertArrayEquals(iv, map.get(Utils.bytesToHex(hash)));
+		assertEquals(1, map.size());
+
+		byte[] iv2 = randomBytes(IVPoolMap.IV_LEN);
+		assertArrayEquals(iv, map.put(Utils.bytesToHex(hash), iv2));
+		assertArrayEquals(iv2, map.get(hash));
+		assertEquals(1, map.size());
+
+		assertTrue(map.remove(hash));
+		assertFalse(map.remove(hash));
+		assertNull(map.get(hash));
+		assertTrue(map.isEmpty());
+
+		// invalid hex lookup values are never found
+		assertNull(map.get("ABCD"));
+	}
+
+	/**
+	 * compares random operations with a {@link HashMap}, including hashes
+	 * colliding in their first bytes
+	 */
+	@Test
+	public void testRandomOperations() {
+		for (boolean direct : new boolean[] { false, true }) {
+			IVPoolMap map = new IVPoolMap(0, direct);
+			Map<String, byte[]> ref = new HashMap<String, byte[]>();
+			List<byte[]> keys = new ArrayList<byte[]>();
+			for (int i = 0; i < 50000; i++) {
+				int op = random.nextInt(10);
+				if (op < 6 || keys.isEmpty()) {
+					byte[] hash = randomBytes(IVPoolMap.HASH_LEN);
+					if (random.nextInt(4) == 0) {
+						// same slot as previous keys
+						hash[0] = hash[1] = hash[2] = hash[3] = 0;
+					}
+					byte[] iv = randomBytes(IVPoolMap.IV_LEN);
+					keys.add(hash);
+					map.put(hash, iv);
+					ref.put(Utils.bytesToHex(hash), iv);
+				} else if (op < 8) {
+					byte[] hash = keys.remove(random.nextInt(keys.size()));
+					assertEquals(ref.remove(Utils.bytesToHex(hash)) != null,
+							map.remove(hash));
+				} else {
+					byte[] hash = keys.get(random.nextInt(keys.size()));
+					assertArrayEquals(ref.get(Utils.bytesToHex(hash)),
+							map.get(hash));
+				}
+			}
+			assertEquals(ref.size(), map.size());
+			for (Map.Entry<String, byte[]> e : ref.entrySet()) {
+				assertArrayEquals(e.getValue(), map.get(e.getKey()));
+			}
+			assertEquals(ref.size(), map.toEntryArray().length);
+		}
+	}
+
+	@Test
+	public void testPutAll() {
+		IVPoolMap a = new IVPoolMap();
+		IVPoolMap b = new IVPoolMap(1000, true);
+		for (int i = 0; i < 1000; i++) {
+			a.put(randomBytes(IVPoolMap.HASH_LEN),
+					randomBytes(IVPoolMap.IV_LEN));
+		}
+		b.putAll(a);
+		assertEquals(1000, b.size());
+		for (byte[] entry : a.toEntryArray()) {
+			byte[] hash = new byte[IVPoolMap.HASH_LEN];
+			System.arraycopy(entry, 0, hash, 0, hash.length);
+			assertArrayEquals(a.get(hash), b.get(hash));
+		}
+		assertTrue(b.getMemoryUsage() < 1000 * 2 * IVPoolMap.ENTRY_LEN * 2);
+	}
+}
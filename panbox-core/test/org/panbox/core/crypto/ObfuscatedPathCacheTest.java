@@ -0,0 +1,91 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author palige
+ *
+ *         Tests for {@link ObfuscatedPathCache}
+ */
+public class ObfuscatedPathCacheTest {
+
+	private static String[] p(String... components) {
+		return components;
+	}
+
+	@Test
+	public void testLookup() {
+		ObfuscatedPathCache cache = new ObfuscatedPathCache(100);
+		cache.put(p("a", "b", "c"), p("A", "B", "C"), 3);
+		cache.put(p("a", "b", "d"), p("A", "B", "D"), 3);
+		assertEquals(4, cache.size());
+
+		String[] out = new String[4];
+		assertEquals(3, cache.lookupPlain(p("a", "b", "d", "e"), out));
+		assertArrayEquals(p("A", "B", "D", null), out);
+		out = new String[3];
+		assertEquals(2, cache.lookupObfuscated(p("A", "B", "X"), out));
+		assertArrayEquals(p("a", "b", null), out);
+		assertEquals(0, cache.lookupPlain(p("x"), new String[1]));
+
+		// only the given number of components is added
+		cache.put(p("a", "e", "f"), p("A", "E", "F"), 2);
+		assertEquals(2, cache.lookupPlain(p("a", "e", "f"), new String[3]));
+	}
+
+	@Test
+	public void testRemove() {
+		ObfuscatedPathCache cache = new ObfuscatedPathCache(100);
+		cache.put(p("a", "b", "c"), p("A", "B", "C"), 3);
+		cache.put(p("a", "d"), p("A", "D"), 2);
+		cache.remove(p("a", "b"));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.lookupPlain(p("a", "b", "c"), new String[3]));
+		assertEquals(1, cache.lookupObfuscated(p("A", "B"), new String[2]));
+		assertEquals(2, cache.lookupPlain(p("a", "d"), new String[2]));
+
+		// removal of unknown paths is ignored
+		cache.remove(p("x", "y"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testBound() {
+		ObfuscatedPathCache cache = new ObfuscatedPathCache(10);
+		for (int i = 0; i < 100; i++) {
+			cache.put(p("dir", "f" + i), p("DIR", "F" + i), 2);
+			assertEquals(2, cache.lookupPlain(p("dir", "f" + i),
+					new String[2]));
+		}
+		assertEquals(true, cache.size() <= 10);
+	}
+}
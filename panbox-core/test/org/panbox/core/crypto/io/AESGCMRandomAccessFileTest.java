@@ -458,6 +458,93 @@ public class AESGCMRandomAccessFileTest extends EncRandomAccessFileTest {
 		}
 	}
 
+	/**
+	 * tests background verification of chunk authentication tags for
+	 * read-only instances
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLazyTagVerification() throws Exception {
+		long oldThreshold = AbstractAESGCMRandomAccessFile
+				.getLazyVerificationThreshold();
+		AbstractAESGCMRandomAccessFile.setLazyVerificationThreshold(4);
+		try {
+			File testFile = tmpTestDir.newFile("lazyverificationTest");
+			aesTestFile = createEncRAFInstance(testKey, testFile);
+			int i = 0x41;
+			byte[] buf = new byte[aesTestFile.CHUNK_DATA_SIZE];
+			while (i < 0x51) {
+				Arrays.fill(buf, (byte) i++);
+				aesTestFile.write(buf);
+			}
+			int header_size = aesTestFile.fHeader.headerSize();
+			aesTestFile.close();
+
+			AbstractAESGCMRandomAccessFile gcmTestFile = (AbstractAESGCMRandomAccessFile) openEncRAFInstance(
+					testFile, false);
+			gcmTestFile.initWithShareKey(testKey);
+			assertEquals(-1, gcmTestFile.getTimeToFirstByte());
+			byte[] ref = new byte[buf.length];
+			i = 0x41;
+			while (i < 0x51) {
+				Arrays.fill(ref, (byte) i++);
+				gcmTestFile.read(buf);
+				assertArrayEquals(ref, buf);
+			}
+			assertTrue(gcmTestFile.getTimeToFirstByte() >= 0);
+			assertTrue(gcmTestFile.getVerificationTime() >= 0);
+			assertTrue(gcmTestFile.getTimeToFirstByte() >= gcmTestFile
+					.getBlockedTime());
+			gcmTestFile.close();
+
+			// swap two chunks, which is detected by the file authentication
+			// tag only
+			RandomAccessFile raf = new RandomAccessFile(testFile, "rw");
+			byte[] chunk1 = new byte[gcmTestFile.CHUNK_ENC_SIZE];
+			byte[] chunk2 = new byte[gcmTestFile.CHUNK_ENC_SIZE];
+			raf.seek(header_size + gcmTestFile.CHUNK_ENC_SIZE);
+			raf.read(chunk1);
+			raf.read(chunk2);
+			raf.seek(header_size + gcmTestFile.CHUNK_ENC_SIZE);
+			raf.write(chunk2);
+			raf.write(chunk1);
+			raf.close();
+
+			// opening succeeds, but all chunk accesses need to fail, even if
+			// issued while verification is still running
+			gcmTestFile = (AbstractAESGCMRandomAccessFile) openEncRAFInstance(
+					testFile, false);
+			gcmTestFile.initWithShareKey(testKey);
+			try {
+				gcmTestFile.read(buf);
+				fail("Exception due to failed file authentication tag verification expected!");
+			} catch (FileIntegrityException e) {
+				assertEquals(
+						"File authentication tag verification failed in chunk 0",
+						e.getMessage());
+			} finally {
+				gcmTestFile.close();
+			}
+
+			// writable instances are still verified upon opening
+			gcmTestFile = (AbstractAESGCMRandomAccessFile) openEncRAFInstance(
+					testFile, true);
+			try {
+				gcmTestFile.initWithShareKey(testKey);
+				fail("Exception due to failed file authentication tag verification expected!");
+			} catch (FileIntegrityException e) {
+				assertEquals("File authentication tag verification failed!",
+						e.getMessage());
+			} finally {
+				gcmTestFile.close();
+			}
+		} finally {
+			AbstractAESGCMRandomAccessFile
+					.setLazyVerificationThreshold(oldThreshold);
+		}
+	}
+
 	@Override
 	protected EncRandomAccessFile openEncRAFInstance(File testFile,
 			boolean writable) throws FileEncryptionException, IOException {
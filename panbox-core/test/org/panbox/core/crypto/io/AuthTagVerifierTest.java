@@ -30,6 +30,7 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.InvalidKeyException;
 import java.util.Arrays;
 
@@ -38,10 +39,10 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -49,8 +50,10 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.panbox.PanboxConstants;
 import org.panbox.core.crypto.randomness.SecureRandomWrapper;
 import org.panbox.core.exception.FileEncryptionException;
+import org.panbox.core.exception.FileIntegrityException;
 
 /**
  * @author palige
@@ -131,10 +134,8 @@ public class AuthTagVerifierTest {
 	@Test
 	public void testUpdateFileAuthTag() throws Exception {
 		byte[] testTag = new byte[TAGLEN];
-		byte[] referenceFileTag = new byte[testVerifier.authTagHMac
-				.getMacSize()];
-		HMac refHMac = testVerifier.authTagHMac.getClass()
-				.getConstructor(Digest.class).newInstance(new SHA256Digest());
+		HMac refHMac = new HMac(new SHA256Digest());
+		byte[] referenceFileTag = new byte[refHMac.getMacSize()];
 
 		refHMac.init(new KeyParameter(testKey.getEncoded()));
 
@@ -238,8 +239,7 @@ public class AuthTagVerifierTest {
 
 		// create reference for calculating expected file auth tag
 		// value
-		HMac refHMac = testVerifier.authTagHMac.getClass()
-				.getConstructor(Digest.class).newInstance(new SHA256Digest());
+		HMac refHMac = new HMac(new SHA256Digest());
 		refHMac.init(new KeyParameter(testKey.getEncoded()));
 
 		refHMac.update(testTag1, 0, TAGLEN);
@@ -480,4 +480,314 @@ public class AuthTagVerifierTest {
 		testVerifier.insertChunkAuthTag(4, testTag);
 		assertArrayEquals(refTag, aesTestFile.readFileAuthenticationTag());
 	}
+
+	/**
+	 * creates a hash tree authenticated file with the given number of chunks,
+	 * each of them filled with its index
+	 */
+	private AESGCMRandomAccessFile createHashTreeFile(File testFile,
+			int nchunks) throws Exception {
+		AESGCMRandomAccessFile file = AESGCMRandomAccessFile.create(0,
+				testKey, testFile);
+		assertTrue(file.getAuthTagVerifier().isHashTree());
+		byte[] buf = new byte[file.CHUNK_DATA_SIZE];
+		for (int i = 0; i < nchunks; i++) {
+			Arrays.fill(buf, (byte) i);
+			file.write(buf);
+		}
+		// partial last chunk
+		file.write(buf, 0, 100);
+		return file;
+	}
+
+	private AESGCMRandomAccessFile openHashTreeFile(File testFile,
+			boolean writable) throws Exception {
+		AESGCMRandomAccessFile file = AESGCMRandomAccessFile.open(testFile,
+				writable);
+		file.initWithShareKey(testKey);
+		assertTrue(file.getAuthTagVerifier().isHashTree());
+		return file;
+	}
+
+	private void checkHashTreeFile(AESGCMRandomAccessFile file, int nchunks)
+			throws Exception {
+		byte[] buf = new byte[file.CHUNK_DATA_SIZE];
+		byte[] ref = new byte[file.CHUNK_DATA_SIZE];
+		file.seek(0);
+		for (int i = 0; i < nchunks; i++) {
+			Arrays.fill(ref, (byte) i);
+			assertEquals(buf.length, file.read(buf));
+			assertArrayEquals(ref, buf);
+		}
+		assertEquals(100, file.read(buf));
+	}
+
+	/**
+	 * tests creation, reopening and integrity checking of files using hash
+	 * tree based file authentication
+	 */
+	@Test
+	public void testHashTreeFileAuthentication() throws Exception {
+		AuthTagVerifier.setHashTreeEnabled(true);
+		try {
+			File testFile = tmpTestDir.newFile("hashTreeTest");
+			AESGCMRandomAccessFile file = createHashTreeFile(testFile, 7);
+			file.flush();
+			assertTrue(file.checkFileAuthenticationTag());
+			int header_size = file.fHeader.headerSize();
+			int chunk_size = file.CHUNK_ENC_SIZE;
+			file.close();
+
+			// check version field
+			RandomAccessFile raf = new RandomAccessFile(testFile, "rw");
+			byte[] tmp = new byte[PanboxConstants.PANBOX_VERSION_HASHTREE.length];
+			raf.seek(PanboxConstants.PANBOX_FILE_MAGIC.length);
+			raf.read(tmp);
+			assertArrayEquals(PanboxConstants.PANBOX_VERSION_HASHTREE, tmp);
+			raf.close();
+
+			// hash tree files should still be readable if hash tree
+			// authentication has been disabled for new files
+			AuthTagVerifier.setHashTreeEnabled(false);
+			file = openHashTreeFile(testFile, false);
+			checkHashTreeFile(file, 7);
+			file.close();
+
+			// swap two chunks
+			raf = new RandomAccessFile(testFile, "rw");
+			byte[] chunk2 = new byte[chunk_size];
+			byte[] chunk5 = new byte[chunk_size];
+			raf.seek(header_size + 2 * chunk_size);
+			raf.read(chunk2);
+			raf.seek(header_size + 5 * chunk_size);
+			raf.read(chunk5);
+			raf.seek(header_size + 2 * chunk_size);
+			raf.write(chunk5);
+			raf.seek(header_size + 5 * chunk_size);
+			raf.write(chunk2);
+			raf.close();
+
+			try {
+				openHashTreeFile(testFile, false);
+				fail("Expected exception due to chunk modification!");
+			} catch (FileIntegrityException e) {
+				assertEquals("File authentication tag verification failed!",
+						e.getMessage());
+			}
+		} finally {
+			AuthTagVerifier.setHashTreeEnabled(false);
+		}
+	}
+
+	/**
+	 * tests single chunk updates as well as truncation in hash tree mode
+	 */
+	@Test
+	public void testHashTreeUpdateAndTruncate() throws Exception {
+		AuthTagVerifier.setHashTreeEnabled(true);
+		try {
+			File testFile = tmpTestDir.newFile("hashTreeUpdateTest");
+			AESGCMRandomAccessFile file = createHashTreeFile(testFile, 9);
+			file.close();
+
+			file = openHashTreeFile(testFile, true);
+			byte[] lastFileAuthTag = file.readFileAuthenticationTag();
+			byte[] buf = new byte[file.CHUNK_DATA_SIZE];
+			Arrays.fill(buf, (byte) 3);
+			// rewriting a chunk with identical contents results in a new
+			// chunk IV and therefore a new file authentication tag
+			file.seek(3 * file.CHUNK_DATA_SIZE);
+			file.write(buf);
+			file.flush();
+			assertFalse(Arrays.equals(lastFileAuthTag,
+					file.readFileAuthenticationTag()));
+			assertTrue(file.checkFileAuthenticationTag());
+
+			// truncate to 2.5 chunks
+			file.setLength(2 * file.CHUNK_DATA_SIZE + 100);
+			assertTrue(file.checkFileAuthenticationTag());
+			file.close();
+
+			file = openHashTreeFile(testFile, false);
+			checkHashTreeFile(file, 2);
+			file.close();
+
+			// check truncation in legacy mode
+			AuthTagVerifier.setHashTreeEnabled(false);
+			File legacyFile = tmpTestDir.newFile("legacyTruncateTest");
+			file = AESGCMRandomAccessFile.create(0, testKey, legacyFile);
+			assertFalse(file.getAuthTagVerifier().isHashTree());
+			for (int i = 0; i < 9; i++) {
+				Arrays.fill(buf, (byte) i);
+				file.write(buf);
+			}
+			file.setLength(2 * file.CHUNK_DATA_SIZE + 100);
+			file.close();
+			file = AESGCMRandomAccessFile.open(legacyFile, false);
+			file.initWithShareKey(testKey);
+			checkHashTreeFile(file, 2);
+			file.close();
+		} finally {
+			AuthTagVerifier.setHashTreeEnabled(false);
+		}
+	}
+
+	/**
+	 * tests restoring hash trees from sidecar files
+	 */
+	@Test
+	public void testHashTreeSidecar() throws Exception {
+		File sidecarDir = tmpTestDir.newFolder("sidecars");
+		AuthTagVerifier.setHashTreeEnabled(true);
+		AuthTagVerifier.setSidecarDirectory(sidecarDir);
+		try {
+			File testFile = tmpTestDir.newFile("hashTreeSidecarTest");
+			AESGCMRandomAccessFile file = createHashTreeFile(testFile, 6);
+			int header_size = file.fHeader.headerSize();
+			int chunk_size = file.CHUNK_ENC_SIZE;
+			file.close();
+
+			// store encrypted chunk 4 for a later replay
+			RandomAccessFile raf = new RandomAccessFile(testFile, "r");
+			byte[] oldChunk = new byte[chunk_size];
+			raf.seek(header_size + 4 * chunk_size);
+			raf.read(oldChunk);
+			raf.close();
+
+			// sidecar should be named after the file authentication tag
+			file = openHashTreeFile(testFile, true);
+			File[] sidecars = sidecarDir.listFiles();
+			assertEquals(1, sidecars.length);
+			assertEquals(Hex.toHexString(file.readFileAuthenticationTag())
+					+ ".tree", sidecars[0].getName());
+			checkHashTreeFile(file, 6);
+
+			// update a single chunk; the sidecar should follow the new file
+			// authentication tag
+			byte[] buf = new byte[file.CHUNK_DATA_SIZE];
+			Arrays.fill(buf, (byte) 4);
+			file.seek(4 * file.CHUNK_DATA_SIZE);
+			file.write(buf);
+			file.close();
+			file = openHashTreeFile(testFile, false);
+			sidecars = sidecarDir.listFiles();
+			assertEquals(1, sidecars.length);
+			assertEquals(Hex.toHexString(file.readFileAuthenticationTag())
+					+ ".tree", sidecars[0].getName());
+			file.close();
+
+			// corrupt an interior node as well as a leaf within the sidecar;
+			// the file should nevertheless be readable
+			raf = new RandomAccessFile(sidecars[0], "rw");
+			raf.seek(raf.length() - 8 * AuthTagVerifier.NODE_SIZE);
+			raf.write(new byte[2 * AuthTagVerifier.NODE_SIZE]);
+			raf.seek(raf.length() - 14 * AuthTagVerifier.NODE_SIZE);
+			raf.write(new byte[AuthTagVerifier.NODE_SIZE]);
+			raf.close();
+			file = openHashTreeFile(testFile, false);
+			checkHashTreeFile(file, 6);
+			file.close();
+
+			// replay the old chunk. as the hash tree is restored from the
+			// sidecar, opening the file succeeds, but reading the chunk needs
+			// to fail
+			raf = new RandomAccessFile(testFile, "rw");
+			raf.seek(header_size + 4 * chunk_size);
+			raf.write(oldChunk);
+			raf.close();
+			file = openHashTreeFile(testFile, false);
+			file.seek(3 * file.CHUNK_DATA_SIZE);
+			file.read(buf);
+			try {
+				file.read(buf);
+				fail("Exception due to chunk replay expected!");
+			} catch (FileIntegrityException e) {
+				assertTrue(e.getMessage().contains("chunk 4"));
+			} finally {
+				file.close();
+			}
+
+			// without the sidecar, the modification is detected upon opening
+			for (File f : sidecarDir.listFiles()) {
+				assertTrue(f.delete());
+			}
+			try {
+				openHashTreeFile(testFile, false);
+				fail("Expected exception due to chunk modification!");
+			} catch (FileIntegrityException e) {
+				assertEquals("File authentication tag verification failed!",
+						e.getMessage());
+			}
+		} finally {
+			AuthTagVerifier.setHashTreeEnabled(false);
+			AuthTagVerifier.setSidecarDirectory(null);
+		}
+	}
+
+	/**
+	 * starts a thread verifying the given chunk authentication tag with
+	 * {@link #testVerifier}, storing its result in the given array
+	 */
+	private Thread startChunkVerification(final int chunkIdx,
+			final byte[] chunkAuthTag, final boolean[] result) {
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = testVerifier.verifyChunkAuthTag(chunkIdx,
+							chunkAuthTag);
+				} catch (FileEncryptionException e) {
+					result[0] = false;
+				}
+			}
+		};
+		reader.start();
+		return reader;
+	}
+
+	/**
+	 * tests that chunk accesses block while the file authentication tag is
+	 * verified in the background, so that a chunk whose tag has been tampered
+	 * with is never served before verification has failed
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBackgroundVerification() throws Exception {
+		byte[] testTag = new byte[TAGLEN];
+		Arrays.fill(testTag, (byte) 0x41);
+		byte[] otherTag = new byte[TAGLEN];
+		Arrays.fill(otherTag, (byte) 0x4F);
+		final boolean[] result = new boolean[1];
+
+		// chunks are only served after successful verification
+		testVerifier.beginBackgroundVerification();
+		testVerifier.insertChunkAuthTag(0, testTag);
+		Thread reader = startChunkVerification(0, testTag, result);
+		reader.join(200);
+		assertTrue(reader.isAlive());
+		testVerifier.endBackgroundVerification(true);
+		reader.join(10000);
+		assertFalse(reader.isAlive());
+		assertTrue(result[0]);
+		assertTrue(testVerifier.getBlockedTime() > 0);
+		assertFalse(testVerifier.verifyChunkAuthTag(0, otherTag));
+
+		// the tag of chunk 0 has been tampered with on disk, i.e. the tag read
+		// by the background task matches the tag of the chunk
+		testVerifier.beginBackgroundVerification();
+		testVerifier.insertChunkAuthTag(0, otherTag);
+		result[0] = true;
+		reader = startChunkVerification(0, otherTag, result);
+		reader.join(200);
+		assertTrue(reader.isAlive());
+		testVerifier.endBackgroundVerification(false);
+		reader.join(10000);
+		assertFalse(reader.isAlive());
+		assertFalse(result[0]);
+
+		// failed verification invalidates all chunks
+		assertFalse(testVerifier.verifyChunkAuthTag(0, otherTag));
+		assertFalse(testVerifier.verifyChunkAuthTag(0, testTag));
+	}
 }
@@ -0,0 +1,163 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author palige
+ *
+ *         Compares the throughput of serial and parallel chunk en- and
+ *         decryption (see {@link EncRandomAccessFile#setCryptoParallelism(int)}
+ *         ) for large sequential writes and reads as issued by FUSE with
+ *         max_write=4194304.
+ */
+public class ChunkCryptoSpeedTest {
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	private final static int FILE_SIZE = 32 * 1024 * 1024;
+
+	private final static int REQUEST_SIZE = 4 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder tmpTestDir = new TemporaryFolder();
+
+	private SecretKey testKey;
+
+	private byte[] testData;
+
+	private int oldParallelism;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		testKey = new SecretKeySpec(tmp, "AES");
+		testData = new byte[FILE_SIZE];
+		new Random().nextBytes(testData);
+		oldParallelism = EncRandomAccessFile.getCryptoParallelism();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		EncRandomAccessFile.setCryptoParallelism(oldParallelism);
+	}
+
+	@Test
+	public void testAESGCMRandomAccessFile() throws Exception {
+		int parallelism = Math.max(2, EncRandomAccessFile.DEFAULT_CRYPTO_PARALLELISM);
+		for (int p : new int[] { 1, parallelism }) {
+			EncRandomAccessFile.setCryptoParallelism(p);
+			File testFile = tmpTestDir.newFile("gcm" + p);
+
+			long start = System.currentTimeMillis();
+			EncRandomAccessFile file = AESGCMRandomAccessFile.create(0,
+					testKey, testFile);
+			write(file);
+			long stop = System.currentTimeMillis();
+			report("AESGCMRandomAccessFile", "write", p, stop - start);
+
+			start = System.currentTimeMillis();
+			file = AESGCMRandomAccessFile.open(testFile, false);
+			file.initWithShareKey(testKey);
+			read(file);
+			stop = System.currentTimeMillis();
+			report("AESGCMRandomAccessFile", "read", p, stop - start);
+		}
+	}
+
+	@Test
+	public void testAESGCMRandomAccessFileHW() throws Exception {
+		int parallelism = Math.max(2, EncRandomAccessFile.DEFAULT_CRYPTO_PARALLELISM);
+		for (int p : new int[] { 1, parallelism }) {
+			EncRandomAccessFile.setCryptoParallelism(p);
+			File testFile = tmpTestDir.newFile("gcmhw" + p);
+
+			long start = System.currentTimeMillis();
+			EncRandomAccessFile file = AESGCMRandomAccessFileHW.create(0,
+					testKey, testFile);
+			write(file);
+			long stop = System.currentTimeMillis();
+			report("AESGCMRandomAccessFileHW", "write", p, stop - start);
+
+			start = System.currentTimeMillis();
+			file = AESGCMRandomAccessFileHW.open(testFile, false);
+			file.initWithShareKey(testKey);
+			read(file);
+			stop = System.currentTimeMillis();
+			report("AESGCMRandomAccessFileHW", "read", p, stop - start);
+		}
+	}
+
+	private void write(EncRandomAccessFile file) throws Exception {
+		for (int off = 0; off < FILE_SIZE; off += REQUEST_SIZE) {
+			file.write(testData, off, Math.min(REQUEST_SIZE, FILE_SIZE - off));
+		}
+		file.flush();
+		file.close();
+	}
+
+	private void read(EncRandomAccessFile file) throws Exception {
+		byte[] buf = new byte[REQUEST_SIZE];
+		for (int off = 0; off < FILE_SIZE; off += REQUEST_SIZE) {
+			int n = file.read(buf);
+			assertEquals(Math.min(REQUEST_SIZE, FILE_SIZE - off), n);
+			// assertArrayEquals() would dominate the measured time
+			assertTrue(Arrays.equals(
+					Arrays.copyOfRange(testData, off, off + n),
+					Arrays.copyOf(buf, n)));
+		}
+		file.close();
+	}
+
+	private static void report(String impl, String op, int parallelism,
+			long millis) {
+		System.out.println(impl + ": " + op + " of " + (FILE_SIZE >> 20)
+				+ "MiB with parallelism " + parallelism + " took " + millis
+				+ "ms (" + ((FILE_SIZE >> 20) * 1000L / Math.max(1, millis))
+				+ " MiB/s)");
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panbox.core.crypto.KeyConstants;
+
+/**
+ * @author palige
+ *
+ *         Tests for {@link CryptoEnginePool}
+ */
+public class CryptoEnginePoolTest {
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Rule
+	public TemporaryFolder tmpTestDir = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		CryptoEnginePool.clear();
+	}
+
+	@Test
+	public void testBorrowRelease() throws Exception {
+		String key = CryptoEnginePool.cipherKey(
+				AESGCMRandomAccessFile.CIPHER_CHUNK, KeyConstants.PROV_BC);
+
+		Cipher c1 = CryptoEnginePool.borrowCipher(
+				AESGCMRandomAccessFile.CIPHER_CHUNK, KeyConstants.PROV_BC);
+		Cipher c2 = CryptoEnginePool.borrowCipher(
+				AESGCMRandomAccessFile.CIPHER_CHUNK, KeyConstants.PROV_BC);
+		assertNotSame(c1, c2);
+		assertEquals(2, CryptoEnginePool.getCreateCount(key));
+		assertEquals(0, CryptoEnginePool.getIdleCount(key));
+
+		CryptoEnginePool.releaseCipher(AESGCMRandomAccessFile.CIPHER_CHUNK,
+				KeyConstants.PROV_BC, c1);
+		assertEquals(1, CryptoEnginePool.getIdleCount(key));
+		Cipher c3 = CryptoEnginePool.borrowCipher(
+				AESGCMRandomAccessFile.CIPHER_CHUNK, KeyConstants.PROV_BC);
+		assertSame(c1, c3);
+		assertEquals(3, CryptoEnginePool.getBorrowCount(key));
+		assertEquals(2, CryptoEnginePool.getCreateCount(key));
+
+		// engines of different keys are kept apart
+		CryptoEnginePool.releaseCipher(AESGCMRandomAccessFile.CIPHER_CHUNK,
+				KeyConstants.PROV_BC, c2);
+		Cipher c4 = CryptoEnginePool.borrowCipher(
+				AESCBCRandomAccessFile.CIPHER_CHUNK, KeyConstants.PROV_BC);
+		assertNotSame(c2, c4);
+		assertEquals("AES/CBC/NoPadding", c4.getAlgorithm());
+	}
+
+	@Test
+	public void testKeyMaterialRemoved() throws Exception {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		byte[] data = new byte[16];
+		new Random().nextBytes(data);
+
+		// HMac
+		HMac mac = CryptoEnginePool.borrowHMac();
+		mac.init(new KeyParameter(tmp));
+		CryptoEnginePool.releaseHMac(mac);
+		assertSame(mac, CryptoEnginePool.borrowHMac());
+		byte[] pooled = new byte[mac.getMacSize()];
+		mac.update(data, 0, data.length);
+		mac.doFinal(pooled, 0);
+
+		HMac ref = new HMac(new SHA256Digest());
+		byte[] expected = new byte[ref.getMacSize()];
+		ref.init(new KeyParameter(new byte[16]));
+		ref.update(data, 0, data.length);
+		ref.doFinal(expected, 0);
+		assertArrayEquals(expected, pooled);
+
+		ref.init(new KeyParameter(tmp));
+		ref.update(data, 0, data.length);
+		ref.doFinal(expected, 0);
+		assertFalse(Arrays.equals(expected, pooled));
+
+		// Cipher
+		String transformation = "AES/ECB/NoPadding";
+		Cipher c = CryptoEnginePool.borrowCipher(transformation,
+				KeyConstants.PROV_BC);
+		c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(tmp, "AES"));
+		CryptoEnginePool.releaseCipher(transformation, KeyConstants.PROV_BC,
+				c);
+		assertSame(c, CryptoEnginePool.borrowCipher(transformation,
+				KeyConstants.PROV_BC));
+		Cipher refCipher = Cipher.getInstance(transformation,
+				KeyConstants.PROV_BC);
+		refCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(new byte[16],
+				"AES"));
+		assertArrayEquals(refCipher.doFinal(data), c.doFinal(data));
+	}
+
+	@Test
+	public void testMaxIdle() throws Exception {
+		List<HMac> macs = new ArrayList<HMac>();
+		for (int i = 0; i < CryptoEnginePool.MAX_IDLE_ENGINES + 5; i++) {
+			macs.add(CryptoEnginePool.borrowHMac());
+		}
+		for (HMac mac : macs) {
+			CryptoEnginePool.releaseHMac(mac);
+		}
+		assertEquals(CryptoEnginePool.MAX_IDLE_ENGINES,
+				CryptoEnginePool.getIdleCount(CryptoEnginePool.HMAC_SHA256));
+		assertEquals(5,
+				CryptoEnginePool.getDiscardCount(CryptoEnginePool.HMAC_SHA256));
+	}
+
+	@Test
+	public void testEnginesSharedAcrossFiles() throws Exception {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		SecretKey testKey = new SecretKeySpec(tmp, "AES");
+		byte[] data = new byte[1000];
+		new Random().nextBytes(data);
+
+		int nfiles = 50;
+		for (int i = 0; i < nfiles; i++) {
+			File f = new File(tmpTestDir.getRoot(), "file" + i);
+			EncRandomAccessFile file = AESGCMRandomAccessFileHW.create(0,
+					testKey, f);
+			file.write(data);
+			file.close();
+
+			file = AESGCMRandomAccessFileHW.open(f, false);
+			file.initWithShareKey(testKey);
+			byte[] buf = new byte[data.length];
+			assertEquals(data.length, file.read(buf));
+			assertArrayEquals(data, buf);
+			file.close();
+		}
+
+		// without concurrent accesses, a single engine of each type suffices
+		String gcmKey = "GCMBlockCipher/"
+				+ AESGCMRandomAccessFileHW.class.getName();
+		assertTrue(CryptoEnginePool.getBorrowCount(gcmKey) >= 2 * nfiles);
+		assertEquals(1, CryptoEnginePool.getCreateCount(gcmKey));
+		assertEquals(1,
+				CryptoEnginePool.getCreateCount(CryptoEnginePool.HMAC_SHA256));
+	}
+
+	@Test
+	public void testKeyedEngines() throws Exception {
+		final List<Object> evicted = new ArrayList<Object>();
+		CryptoEnginePool.KeyedEngines<Object> engines = new CryptoEnginePool.KeyedEngines<Object>(
+				new CryptoEnginePool.EngineEvictor<Object>() {
+					@Override
+					public void evict(Object engine) {
+						evicted.add(engine);
+					}
+				});
+		Object key1 = new SecretKeySpec(new byte[16], "AES");
+		Object key2 = new SecretKeySpec(new byte[16], "AES");
+		Object e1 = new Object();
+		Object e2 = new Object();
+
+		engines.offer(key1, e1);
+		// keys are compared by identity
+		assertEquals(null, engines.poll(key2));
+		assertSame(e1, engines.poll(key1));
+		assertEquals(null, engines.poll(key1));
+		assertTrue(evicted.isEmpty());
+
+		// engines of the previous key are evicted once another key is used
+		engines.offer(key1, e1);
+		engines.offer(key2, e2);
+		assertEquals(Arrays.asList(e1), evicted);
+		assertEquals(1, engines.getIdleCount());
+
+		// surplus engines are evicted
+		evicted.clear();
+		for (int i = 0; i < CryptoEnginePool.MAX_IDLE_ENGINES; i++) {
+			engines.offer(key2, new Object());
+		}
+		assertEquals(CryptoEnginePool.MAX_IDLE_ENGINES, engines.getIdleCount());
+		assertEquals(1, evicted.size());
+
+		// all engines are evicted upon clear(), including ones returned
+		// afterwards
+		evicted.clear();
+		engines.clear();
+		assertEquals(0, engines.getIdleCount());
+		assertEquals(CryptoEnginePool.MAX_IDLE_ENGINES, evicted.size());
+		engines.offer(key2, e2);
+		assertEquals(0, engines.getIdleCount());
+		assertEquals(CryptoEnginePool.MAX_IDLE_ENGINES + 1, evicted.size());
+		assertEquals(null, engines.poll(key2));
+	}
+
+	@Test
+	public void testKeyedEnginesPerFile() throws Exception {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		SecretKey testKey = new SecretKeySpec(tmp, "AES");
+		String gcmKey = "GCMBlockCipher/"
+				+ AESGCMRandomAccessFileHW.class.getName();
+
+		File f = new File(tmpTestDir.getRoot(), "file");
+		EncRandomAccessFile file = AESGCMRandomAccessFileHW.create(0, testKey,
+				f);
+		int chunks = 10;
+		byte[] data = new byte[chunks * file.getVirtualChunkSize()];
+		new Random().nextBytes(data);
+		file.write(data);
+		file.close();
+		// the pooled engine has been wiped after the file has been closed
+		assertEquals(1, CryptoEnginePool.getIdleCount(gcmKey));
+
+		file = AESGCMRandomAccessFileHW.open(f, false);
+		file.initWithShareKey(testKey);
+		long borrowed = CryptoEnginePool.getBorrowCount(gcmKey);
+		byte[] buf = new byte[data.length];
+		assertEquals(data.length, file.read(buf));
+		assertArrayEquals(data, buf);
+		// all chunks have been decrypted with an engine kept by the file
+		assertEquals(borrowed + 1, CryptoEnginePool.getBorrowCount(gcmKey));
+		assertEquals(0, CryptoEnginePool.getIdleCount(gcmKey));
+		file.close();
+		assertEquals(1, CryptoEnginePool.getIdleCount(gcmKey));
+		assertEquals(1, CryptoEnginePool.getCreateCount(gcmKey));
+	}
+}
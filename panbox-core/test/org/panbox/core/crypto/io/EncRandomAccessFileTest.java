@@ -39,6 +39,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -46,6 +47,10 @@ import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -441,6 +446,376 @@ public abstract class EncRandomAccessFileTest {
 		aesTestFile.close();
 	}
 
+	/**
+	 * tests positional reads via {@link EncRandomAccessFile#read(long, ByteBuffer)}
+	 * from multiple threads in parallel, which must neither interfere with
+	 * each other nor modify the file pointer
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testByteBufferReadWrite() throws Exception {
+		File testFile = tmpTestDir.newFile("bytebufferTest");
+		aesTestFile = createEncRAFInstance(testKey, testFile);
+		int chunkSize = aesTestFile.CHUNK_DATA_SIZE;
+
+		// reference content of the file, which also grows beyond its initial
+		// length
+		byte[] ref = new byte[(chunkSize * 5) + 321];
+		Random r = new Random();
+		r.nextBytes(ref);
+		aesTestFile.write(ByteBuffer.wrap(ref));
+		assertEquals(ref.length, aesTestFile.length());
+
+		for (int i = 0; i < 100; i++) {
+			int pos = r.nextInt(ref.length + chunkSize);
+			int len = 1 + r.nextInt(3 * chunkSize);
+			// alternate between heap buffers with an array offset and direct
+			// buffers
+			ByteBuffer buf;
+			if ((i % 2) == 0) {
+				buf = ByteBuffer.allocate(len + 7);
+				buf.position(7);
+				buf = buf.slice();
+			} else {
+				buf = ByteBuffer.allocateDirect(len);
+			}
+
+			if ((i % 3) == 0) {
+				byte[] data = new byte[len];
+				r.nextBytes(data);
+				buf.put(data);
+				buf.flip();
+				aesTestFile.seek(pos);
+				assertEquals(len, aesTestFile.write(buf));
+				assertFalse(buf.hasRemaining());
+				if ((pos + len) > ref.length) {
+					// any gap is filled with null bytes
+					ref = Arrays.copyOf(ref, pos + len);
+				}
+				System.arraycopy(data, 0, ref, pos, len);
+				assertEquals(ref.length, aesTestFile.length());
+				assertEquals(pos + len, aesTestFile.getFilePointer());
+			} else {
+				aesTestFile.seek(Math.min(pos, ref.length));
+				int expected = Math.min(len, ref.length - Math.min(pos, ref.length));
+				int n = aesTestFile.read(buf);
+				assertEquals((expected == 0) ? -1 : expected, n);
+				if (n > 0) {
+					buf.flip();
+					byte[] data = new byte[n];
+					buf.get(data);
+					assertArrayEquals(Arrays.copyOfRange(ref, pos, pos + n),
+							data);
+				}
+			}
+		}
+		aesTestFile.flush();
+		aesTestFile.close();
+
+		aesTestFile = openEncRAFInstance(testFile, false);
+		aesTestFile.initWithShareKey(testKey);
+		assertEquals(ref.length, aesTestFile.length());
+		ByteBuffer dst = ByteBuffer.allocateDirect(ref.length + 100);
+		assertEquals(ref.length, aesTestFile.read(dst));
+		assertEquals(-1, aesTestFile.read(dst));
+		dst.flip();
+		byte[] data = new byte[ref.length];
+		dst.get(data);
+		assertArrayEquals(ref, data);
+		aesTestFile.close();
+	}
+
+	@Test
+	public void testReencryptFile() throws Exception {
+		File testFile = tmpTestDir.newFile("reencryptTest");
+		aesTestFile = createEncRAFInstance(testKey, testFile);
+		byte[] ref = new byte[(aesTestFile.CHUNK_DATA_SIZE * 2) + 123];
+		new Random().nextBytes(ref);
+		// leave data in the cache, which has to be written back before
+		// switching keys
+		aesTestFile.write(ref);
+
+		byte[] tmp = new byte[getBlockSize()];
+		wrapper.nextBytes(tmp);
+		SecretKey newKey = new SecretKeySpec(tmp, "AES");
+		aesTestFile.reencryptFile(1, newKey);
+		assertEquals(1, aesTestFile.getShareKeyVersion());
+		aesTestFile.close();
+
+		// previous share key must not be accepted anymore
+		aesTestFile = openEncRAFInstance(testFile, false);
+		assertEquals(1, aesTestFile.getShareKeyVersion());
+		try {
+			aesTestFile.initWithShareKey(testKey);
+			fail("exception expected!");
+		} catch (FileIntegrityException | FileEncryptionException e) {
+		} finally {
+			aesTestFile.close();
+		}
+
+		aesTestFile = openEncRAFInstance(testFile, true);
+		aesTestFile.initWithShareKey(newKey);
+		if (aesTestFile.implementsAuthentication()) {
+			assertTrue(aesTestFile.checkFileAuthenticationTag());
+		}
+		byte[] data = new byte[ref.length];
+		assertEquals(ref.length, aesTestFile.read(data));
+		assertArrayEquals(ref, data);
+
+		// instance must remain usable after rotating a second time
+		wrapper.nextBytes(tmp);
+		SecretKey newKey2 = new SecretKeySpec(tmp, "AES");
+		aesTestFile.reencryptFile(2, newKey2);
+		aesTestFile.seek(0);
+		aesTestFile.write(ref, 0, 10);
+		aesTestFile.flush();
+		aesTestFile.close();
+
+		aesTestFile = openEncRAFInstance(testFile, false);
+		aesTestFile.initWithShareKey(newKey2);
+		assertEquals(2, aesTestFile.getShareKeyVersion());
+		if (aesTestFile.implementsAuthentication()) {
+			assertTrue(aesTestFile.checkFileAuthenticationTag());
+		}
+		assertEquals(ref.length, aesTestFile.read(data));
+		assertArrayEquals(ref, data);
+		aesTestFile.close();
+
+		// empty files
+		File emptyFile = tmpTestDir.newFile("reencryptEmptyTest");
+		aesTestFile = createEncRAFInstance(testKey, emptyFile);
+		aesTestFile.reencryptFile(1, newKey);
+		aesTestFile.close();
+		aesTestFile = openEncRAFInstance(emptyFile, false);
+		try {
+			aesTestFile.initWithShareKey(testKey);
+			fail("exception expected!");
+		} catch (FileIntegrityException | FileEncryptionException e) {
+		} finally {
+			aesTestFile.close();
+		}
+		aesTestFile = openEncRAFInstance(emptyFile, false);
+		aesTestFile.initWithShareKey(newKey);
+		assertEquals(0, aesTestFile.length());
+		aesTestFile.close();
+	}
+
+	@Test
+	public void testPositionalRead() throws Exception {
+		File testFile = tmpTestDir.newFile("positionalreadTest");
+		aesTestFile = createEncRAFInstance(testKey, testFile);
+
+		final byte[] ref = new byte[(aesTestFile.CHUNK_DATA_SIZE * 9) + 1234];
+		new Random().nextBytes(ref);
+		aesTestFile.write(ref);
+
+		// writable instances fall back to the synchronized read path
+		aesTestFile.seek(17);
+		ByteBuffer dst = ByteBuffer.allocate(aesTestFile.CHUNK_DATA_SIZE + 100);
+		assertEquals(dst.capacity(),
+				aesTestFile.read(aesTestFile.CHUNK_DATA_SIZE - 50, dst));
+		assertArrayEquals(Arrays.copyOfRange(ref,
+				aesTestFile.CHUNK_DATA_SIZE - 50,
+				(aesTestFile.CHUNK_DATA_SIZE * 2) + 50), dst.array());
+		assertEquals(17, aesTestFile.getFilePointer());
+		aesTestFile.flush();
+		aesTestFile.close();
+
+		aesTestFile = openEncRAFInstance(testFile, false);
+		aesTestFile.initWithShareKey(testKey);
+		final EncRandomAccessFile file = aesTestFile;
+		final int chunkSize = file.CHUNK_DATA_SIZE;
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] results = new Future<?>[8];
+			for (int i = 0; i < results.length; i++) {
+				final long seed = i;
+				results[i] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Random r = new Random(seed);
+						for (int j = 0; j < 50; j++) {
+							int pos = r.nextInt(ref.length);
+							int len = r.nextInt(3 * chunkSize);
+							ByteBuffer buf = ByteBuffer.allocate(len);
+							int n = file.read(pos, buf);
+							int expected = Math.min(len, ref.length - pos);
+							assertEquals(expected, n);
+							assertArrayEquals(
+									Arrays.copyOfRange(ref, pos, pos + n),
+									Arrays.copyOf(buf.array(), n));
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> f : results) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// file pointer remains unchanged, reads at or beyond EOF return -1
+		assertEquals(0, aesTestFile.getFilePointer());
+		assertEquals(-1, aesTestFile.read(ref.length, ByteBuffer.allocate(1)));
+		assertEquals(-1,
+				aesTestFile.read(ref.length + 4711, ByteBuffer.allocate(1)));
+		assertEquals(0, aesTestFile.read(0, ByteBuffer.allocate(0)));
+
+		// sequential reads are not affected
+		byte[] buf = new byte[ref.length];
+		assertEquals(ref.length, aesTestFile.read(buf));
+		assertArrayEquals(ref, buf);
+		aesTestFile.close();
+	}
+
+	/**
+	 * tests that files written and read with parallel chunk en- and
+	 * decryption are identical to files processed serially, see
+	 * {@link EncRandomAccessFile#setCryptoParallelism(int)}
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelCrypto() throws Exception {
+		int oldParallelism = EncRandomAccessFile.getCryptoParallelism();
+		try {
+			byte[] ref = new byte[(EncRandomAccessFile.getChunkCacheSize() * 2) + 4321];
+			new Random().nextBytes(ref);
+
+			int[][] modes = { { 4, 1 }, { 1, 4 }, { 4, 4 } };
+			for (int[] mode : modes) {
+				File testFile = tmpTestDir.newFile("parallelcryptoTest"
+						+ mode[0] + mode[1]);
+				EncRandomAccessFile.setCryptoParallelism(mode[0]);
+				aesTestFile = createEncRAFInstance(testKey, testFile);
+				aesTestFile.write(ref);
+				// overwrite a range spanning multiple chunks at a misaligned
+				// offset
+				int off = aesTestFile.CHUNK_DATA_SIZE + 17;
+				int len = aesTestFile.CHUNK_DATA_SIZE * 6;
+				Arrays.fill(ref, off, off + len, (byte) 0x42);
+				aesTestFile.seek(off);
+				aesTestFile.write(ref, off, len);
+				aesTestFile.flush();
+				aesTestFile.close();
+
+				EncRandomAccessFile.setCryptoParallelism(mode[1]);
+				aesTestFile = openEncRAFInstance(testFile, false);
+				aesTestFile.initWithShareKey(testKey);
+				assertEquals(ref.length, aesTestFile.length());
+
+				byte[] buf = new byte[ref.length + 100];
+				assertEquals(ref.length, aesTestFile.read(buf));
+				assertArrayEquals(ref, Arrays.copyOf(buf, ref.length));
+				assertEquals(-1, aesTestFile.read(buf));
+
+				// misaligned read ending within the last chunk
+				aesTestFile.seek(off);
+				assertEquals(ref.length - off, aesTestFile.read(buf));
+				assertArrayEquals(Arrays.copyOfRange(ref, off, ref.length),
+						Arrays.copyOf(buf, ref.length - off));
+				aesTestFile.close();
+			}
+		} finally {
+			EncRandomAccessFile.setCryptoParallelism(oldParallelism);
+		}
+	}
+
+	/**
+	 * tests random access across more chunks than the chunk cache may hold,
+	 * i.e. modified chunks need to be written back upon eviction, and checks
+	 * that alternating reads between two chunks are served from the cache
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testChunkCacheEviction() throws Exception {
+		int oldCacheSize = EncRandomAccessFile.getChunkCacheSize();
+		try {
+			File testFile = tmpTestDir.newFile("chunkcacheevictionTest");
+			aesTestFile = createEncRAFInstance(testKey, testFile);
+			EncRandomAccessFile.setChunkCacheSize(3 * aesTestFile.CHUNK_DATA_SIZE);
+			aesTestFile.close();
+			aesTestFile = openEncRAFInstance(testFile, true);
+			aesTestFile.initWithShareKey(testKey);
+
+			int nchunks = 10;
+			byte[] ref = new byte[nchunks * aesTestFile.CHUNK_DATA_SIZE];
+			Arrays.fill(ref, (byte) 0x41);
+			aesTestFile.write(ref);
+
+			// modify single bytes in arbitrary chunk order
+			Random rnd = new Random(System.nanoTime());
+			for (int i = 0; i < 200; i++) {
+				int pos = rnd.nextInt(ref.length);
+				byte b = (byte) rnd.nextInt();
+				ref[pos] = b;
+				aesTestFile.seek(pos);
+				aesTestFile.write(b);
+			}
+
+			// alternate between two chunks
+			byte[] buf = new byte[16];
+			aesTestFile.readAt(0, buf);
+			aesTestFile.readAt(aesTestFile.CHUNK_DATA_SIZE * 5, buf);
+			String before = aesTestFile.cache.toString();
+			for (int i = 0; i < 10; i++) {
+				aesTestFile.readAt(0, buf);
+				aesTestFile.readAt(aesTestFile.CHUNK_DATA_SIZE * 5, buf);
+			}
+			String after = aesTestFile.cache.toString();
+			assertEquals(before.substring(before.indexOf("misses=")),
+					after.substring(after.indexOf("misses=")));
+
+			aesTestFile.close();
+
+			aesTestFile = openEncRAFInstance(testFile, false);
+			aesTestFile.initWithShareKey(testKey);
+			buf = new byte[ref.length];
+			assertEquals(ref.length, aesTestFile.read(buf));
+			assertArrayEquals(ref, buf);
+			assertEquals(-1, aesTestFile.read());
+			aesTestFile.close();
+		} finally {
+			EncRandomAccessFile.setChunkCacheSize(oldCacheSize);
+		}
+	}
+
+	/**
+	 * tests truncation of a file while chunks beyond its new length are still
+	 * being held in the chunk cache
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTruncateCachedChunks() throws Exception {
+		File testFile = tmpTestDir.newFile("truncatecachedchunksTest");
+		aesTestFile = createEncRAFInstance(testKey, testFile);
+
+		byte[] buf = new byte[aesTestFile.CHUNK_DATA_SIZE * 4 + 100];
+		Arrays.fill(buf, (byte) 0x42);
+		aesTestFile.write(buf);
+
+		// truncate within the second chunk without flushing first
+		long newLength = aesTestFile.CHUNK_DATA_SIZE + 10;
+		aesTestFile.setLength(newLength);
+		assertEquals(newLength, aesTestFile.length());
+		aesTestFile.close();
+
+		aesTestFile = openEncRAFInstance(testFile, false);
+		aesTestFile.initWithShareKey(testKey);
+		assertEquals(newLength, aesTestFile.length());
+		byte[] res = new byte[(int) newLength];
+		assertEquals(newLength, aesTestFile.read(res));
+		assertArrayEquals(Arrays.copyOf(buf, (int) newLength), res);
+		assertEquals(-1, aesTestFile.read());
+		aesTestFile.close();
+	}
+
 	/**
 	 * test case for iterative writing of multiple partial chunks not aligned
 	 * with the respective chunk offsets. only half a chunk is written in each
@@ -0,0 +1,215 @@
+/*
+ *
+ *               Panbox - encryption for cloud storage
+ *      Copyright (C) 2014-2015 by Fraunhofer SIT and Sirrix AG
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Additonally, third party code may be provided with notices and open source
+ * licenses from communities and third parties that govern the use of those
+ * portions, and any licenses granted hereunder do not alter any rights and
+ * obligations you may have under such open source licenses, however, the
+ * disclaimer of warranty and limitation of liability provisions of the GPLv3
+ * will apply to all the product.
+ *
+ */
+package org.panbox.core.crypto.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panbox.core.crypto.io.GCMImplementationSelector.Implementation;
+
+/**
+ * @author palige
+ *
+ *         Tests for {@link GCMImplementationSelector}
+ */
+public class GCMImplementationSelectorTest {
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	@Rule
+	public TemporaryFolder tmpTestDir = new TemporaryFolder();
+
+	@Before
+	public void setUp() throws Exception {
+		GCMImplementationSelector.reset();
+		GCMImplementationSelector.setCalibrationFile(null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		GCMImplementationSelector.reset();
+		GCMImplementationSelector.setCalibrationFile(null);
+	}
+
+	@Test
+	public void testForName() {
+		assertNull(Implementation.forName(null));
+		assertNull(Implementation.forName(""));
+		assertNull(Implementation.forName(GCMImplementationSelector.AUTO));
+		assertEquals(Implementation.HW, Implementation.forName(" hw"));
+		assertEquals(Implementation.COMPAT, Implementation.forName("Compat"));
+		try {
+			Implementation.forName("foo");
+			throw new AssertionError("unknown name has been accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOverride() throws Exception {
+		GCMImplementationSelector.setOverride("jce");
+		assertEquals(Implementation.JCE,
+				GCMImplementationSelector.getImplementation());
+		assertEquals(-1,
+				GCMImplementationSelector.getThroughput(Implementation.JCE), 0);
+
+		File f = new File(tmpTestDir.getRoot(), "override");
+		assertTrue(GCMImplementationSelector.getInstance(f, true)
+				instanceof AESGCMRandomAccessFile);
+
+		// selection is fixed once made
+		GCMImplementationSelector.setOverride("hw");
+		assertEquals(Implementation.JCE,
+				GCMImplementationSelector.getImplementation());
+	}
+
+	@Test
+	public void testCalibration() throws Exception {
+		File cache = new File(tmpTestDir.getRoot(), "calibration.properties");
+		GCMImplementationSelector.setCalibrationFile(cache);
+
+		GCMImplementationSelector.startCalibration();
+		GCMImplementationSelector.awaitCalibration();
+		Implementation impl = GCMImplementationSelector.getImplementation();
+		for (Implementation i : Implementation.values()) {
+			double mbs = GCMImplementationSelector.getThroughput(i);
+			assertTrue(mbs > 0);
+			assertTrue(mbs <= GCMImplementationSelector.getThroughput(impl));
+		}
+		assertTrue(cache.isFile());
+		// no temporary file is left next to the cache
+		assertEquals(1, tmpTestDir.getRoot().list().length);
+
+		// cached result is used by the next selection
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(cache)) {
+			props.load(in);
+		}
+		props.setProperty("selected", Implementation.HW.name());
+		props.setProperty("throughput.HW", "1234.5");
+		try (OutputStream out = new FileOutputStream(cache)) {
+			props.store(out, null);
+		}
+		GCMImplementationSelector.reset();
+		assertEquals(Implementation.HW,
+				GCMImplementationSelector.getImplementation());
+		assertEquals(1234.5,
+				GCMImplementationSelector.getThroughput(Implementation.HW), 0);
+
+		// ... unless JVM or CPU have changed
+		props.setProperty("fingerprint", "other");
+		try (OutputStream out = new FileOutputStream(cache)) {
+			props.store(out, null);
+		}
+		GCMImplementationSelector.reset();
+		GCMImplementationSelector.startCalibration();
+		GCMImplementationSelector.awaitCalibration();
+		assertTrue(GCMImplementationSelector
+				.getThroughput(Implementation.HW) != 1234.5);
+	}
+
+	@Test
+	public void testDefaultWhileCalibrating() throws Exception {
+		File cache = new File(tmpTestDir.getRoot(), "calibration.properties");
+		GCMImplementationSelector.setCalibrationFile(cache);
+		File sidecars = tmpTestDir.newFolder("authtags");
+		File previous = AuthTagVerifier.getSidecarDirectory();
+		boolean hashTree = AuthTagVerifier.isHashTreeEnabled();
+		AuthTagVerifier.setSidecarDirectory(sidecars);
+		AuthTagVerifier.setHashTreeEnabled(true);
+		try {
+			// the calibration does not block the caller, which gets the
+			// default implementation for the lifetime of the JVM
+			assertEquals(GCMImplementationSelector.DEFAULT_IMPLEMENTATION,
+					GCMImplementationSelector.getImplementation());
+			GCMImplementationSelector.awaitCalibration();
+			assertEquals(GCMImplementationSelector.DEFAULT_IMPLEMENTATION,
+					GCMImplementationSelector.getImplementation());
+
+			// ... while the result is used after a restart
+			for (Implementation i : Implementation.values()) {
+				assertTrue(GCMImplementationSelector.getThroughput(i) > 0);
+			}
+			assertTrue(cache.isFile());
+			// calibration files do not leave sidecar files behind
+			assertEquals(0, sidecars.list().length);
+		} finally {
+			AuthTagVerifier.setSidecarDirectory(previous);
+			AuthTagVerifier.setHashTreeEnabled(hashTree);
+		}
+	}
+
+	@Test
+	public void testSelectedImplementationReadsAllFormats() throws Exception {
+		byte[] tmp = new byte[16];
+		new Random().nextBytes(tmp);
+		SecretKey testKey = new SecretKeySpec(tmp, "AES");
+		byte[] data = new byte[100000];
+		new Random().nextBytes(data);
+
+		File f = new File(tmpTestDir.getRoot(), "compat");
+		EncRandomAccessFile file = AESGCMRandomAccessFileCompat.create(0,
+				testKey, f);
+		file.write(data);
+		file.close();
+
+		for (Implementation impl : Implementation.values()) {
+			GCMImplementationSelector.reset();
+			GCMImplementationSelector.setOverride(impl.name());
+			file = GCMImplementationSelector.open(f, false);
+			file.initWithShareKey(testKey);
+			byte[] buf = new byte[data.length];
+			assertEquals(data.length, file.read(buf));
+			assertArrayEquals(data, buf);
+			assertTrue(file.checkFileAuthenticationTag());
+			file.close();
+		}
+	}
+}
@@ -51,9 +51,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.panbox.PanboxConstants;
-import org.panbox.core.LimitedHashMap;
 import org.panbox.core.crypto.AbstractObfuscatorFactory;
 import org.panbox.core.crypto.AbstractObfuscatorIVPool;
+import org.panbox.core.crypto.IVPoolMap;
 import org.panbox.core.crypto.Obfuscator;
 import org.panbox.core.exception.FileEncryptionException;
 import org.panbox.core.exception.FileIntegrityException;
@@ -99,8 +99,7 @@ public class TestCreateCryptFile extends AbstractTest {
 			File path = new File(absolutePath + File.separator
 					+ Obfuscator.IV_POOL_PATH);
 
-			LimitedHashMap<String, byte[]> ivs = new LimitedHashMap<String, byte[]>(
-					PanboxConstants.OBFUSCATOR_IV_POOL_SIZE);
+			IVPoolMap ivs = new IVPoolMap();
 
 			for (File f : path.listFiles()) {
 				if (!f.isDirectory()) {
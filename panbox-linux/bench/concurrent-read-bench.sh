@@ -0,0 +1,69 @@
+#!/bin/sh
+#
+# Measures the read throughput of a file within a share mounted by Panbox for
+# an increasing number of concurrent readers, each reading the whole file
+# with its own file descriptor, i.e. its own handle within PanboxFSLinux.
+#
+# usage: concurrent-read-bench.sh <directory> [max readers] [size in MiB] [runs]
+#
+# The file is created within the directory upon the first run. If run as
+# root, the page cache is dropped before each run, otherwise repeated runs
+# may be served by the kernel without calling Panbox.
+
+if [ $# -lt 1 ]; then
+	echo "usage: $0 <directory> [max readers] [size in MiB] [runs]"
+	exit 1
+fi
+
+dir=$1
+readers=${2:-8}
+size=${3:-64}
+runs=${4:-5}
+file="$dir/concurrent-read-bench.bin"
+
+if [ ! -f "$file" ]; then
+	echo "Creating $size MiB file $file ..."
+	mkdir -p "$dir" || exit 1
+	dd if=/dev/urandom of="$file" bs=1M count=$size 2> /dev/null || exit 1
+	sync
+fi
+
+drop_caches() {
+	if [ -w /proc/sys/vm/drop_caches ]; then
+		sync
+		echo 3 > /proc/sys/vm/drop_caches
+	fi
+}
+
+# prints the wall clock time in milliseconds of the given number of readers
+measure() {
+	start=$(date +%s%N)
+	i=0
+	while [ $i -lt $1 ]; do
+		dd if="$file" of=/dev/null bs=128k 2> /dev/null &
+		i=$((i + 1))
+	done
+	wait
+	end=$(date +%s%N)
+	echo $(( (end - start) / 1000000 ))
+}
+
+# prints the median of the given numbers
+median() {
+	printf '%s\n' "$@" | sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+grep " $(df -P "$dir" | awk 'NR == 2 { print $6 }') " /proc/mounts
+n=1
+while [ $n -le $readers ]; do
+	times=""
+	r=0
+	while [ $r -lt $runs ]; do
+		drop_caches
+		times="$times $(measure $n)"
+		r=$((r + 1))
+	done
+	ms=$(median $times)
+	echo "$n readers: $ms ms, $(awk "BEGIN { printf \"%.1f\", $n * $size * 1000 / ($ms > 0 ? $ms : 1) }") MiB/s (median of $runs runs)"
+	n=$((n * 2))
+done
@@ -0,0 +1,78 @@
+#!/bin/sh
+#
+# Measures metadata-heavy workloads (find, git status) upon a directory
+# within a share mounted by Panbox. In order to compare FUSE options, run it
+# once with Panbox started using the options to compare against, e.g. the
+# defaults of previous releases
+#
+#   ./start.sh -o big_writes -o max_write=4194304
+#
+# and once with Panbox started without any options, i.e. with the current
+# defaults of FuseUserFS.
+#
+# usage: mount-metadata-bench.sh <directory> [dirs] [files per dir] [runs]
+#
+# The directory is populated with a git repository of the given number of
+# files upon the first run. "cold" runs wait until all attribute and entry
+# timeouts have expired, "warm" runs are started immediately one after
+# another.
+
+if [ $# -lt 1 ]; then
+	echo "usage: $0 <directory> [dirs] [files per dir] [runs]"
+	exit 1
+fi
+
+dir=$1
+dirs=${2:-20}
+files=${3:-50}
+runs=${4:-5}
+settle=3
+
+if [ ! -d "$dir/.git" ]; then
+	echo "Creating $dirs x $files files in $dir ..."
+	mkdir -p "$dir" || exit 1
+	i=0
+	while [ $i -lt $dirs ]; do
+		mkdir -p "$dir/dir$i"
+		j=0
+		while [ $j -lt $files ]; do
+			echo "file $i/$j" > "$dir/dir$i/file$j.txt"
+			j=$((j + 1))
+		done
+		i=$((i + 1))
+	done
+	(cd "$dir" && git init -q && git add -A &&
+		git -c user.name=bench -c user.email=bench@localhost commit -q -m bench) || exit 1
+fi
+
+# prints the wall clock time of the given command in milliseconds
+measure() {
+	start=$(date +%s%N)
+	"$@" > /dev/null 2>&1
+	end=$(date +%s%N)
+	echo $(( (end - start) / 1000000 ))
+}
+
+# prints the median of the given numbers
+median() {
+	printf '%s\n' "$@" | sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+run() {
+	name=$1
+	shift
+	cold=""
+	warm=""
+	n=0
+	while [ $n -lt $runs ]; do
+		sleep $settle
+		cold="$cold $(measure "$@")"
+		warm="$warm $(measure "$@")"
+		n=$((n + 1))
+	done
+	echo "$name: cold $(median $cold) ms, warm $(median $warm) ms (median of $runs runs)"
+}
+
+grep " $(df -P "$dir" | awk 'NR == 2 { print $6 }') " /proc/mounts
+run "find" find "$dir" -printf '%s %T@\n'
+run "git status" git -C "$dir" status --porcelain
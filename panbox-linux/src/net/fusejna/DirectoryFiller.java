@@ -22,4 +22,18 @@ public interface DirectoryFiller
 	 * @return true if the operation succeeds, false if a problem happens when passing any of the files to FUSE.
 	 */
 	public boolean add(String... files);
+
+	/**
+	 * Pass a single file to the FUSE interfaces along with the offset at which
+	 * the listing continues after it, so that the directory can be listed in
+	 * several readdir() calls. If used, all entries including "." and ".."
+	 * have to be passed with non-zero offsets by this method.
+	 * 
+	 * @param file
+	 *            A filename without directory.
+	 * @param nextOffset
+	 *            The offset passed to the subsequent readdir() call, if the listing is to be continued after this file.
+	 * @return true if the file has been passed, false if the buffer of this readdir() call is full.
+	 */
+	public boolean add(String file, long nextOffset);
 }
@@ -20,12 +20,24 @@ public final class DirectoryFillerImpl implements DirectoryFiller
 	private final Pointer buf;
 	private final Function nativeFunction;
 	private final Set<String> addedFiles = new HashSet<String>();
+	private boolean addedDirectories = false;
 
 	DirectoryFillerImpl(final Pointer buf, final Function nativeFunction)
 	{
 		this.buf = buf;
 		this.nativeFunction = nativeFunction;
-		add(currentDirectory, parentDirectory);
+	}
+
+	/**
+	 * Passes "." and "..", unless files are passed with offsets.
+	 */
+	final boolean addDirectories()
+	{
+		if (addedDirectories) {
+			return true;
+		}
+		addedDirectories = true;
+		return add(currentDirectory, parentDirectory);
 	}
 
 	/**
@@ -34,6 +46,9 @@ public final class DirectoryFillerImpl implements DirectoryFiller
 	@Override
 	public final boolean add(final Iterable<String> files)
 	{
+		if (!addedDirectories && !addDirectories()) {
+			return false;
+		}
 		int result;
 		for (String file : files) {
 			if (file == null) {
@@ -62,6 +77,18 @@ public final class DirectoryFillerImpl implements DirectoryFiller
 		return add(Arrays.asList(files));
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final boolean add(final String file, final long nextOffset)
+	{
+		// added files are not recorded, as there may be arbitrarily many
+		addedDirectories = true;
+		final Object[] args = { buf, file, null, new TypeOff(nextOffset) };
+		return nativeFunction.invokeInt(args) == 0;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
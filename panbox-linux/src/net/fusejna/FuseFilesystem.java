@@ -235,9 +235,17 @@ public abstract class FuseFilesystem {
 	final int _readdir(final String path, final Pointer buf,
 			final Pointer fillFunction, final TypeOff offset,
 			final StructFuseFileInfo info) {
-		return readdir(
-				path,
-				new DirectoryFillerImpl(buf, Function.getFunction(fillFunction)));
+		final FileInfoWrapper wrapper = new FileInfoWrapper(path, info);
+		final DirectoryFillerImpl filler = new DirectoryFillerImpl(buf,
+				Function.getFunction(fillFunction));
+		final long readOffset = offset.longValue();
+		final int result = readdir(path, filler, readOffset, wrapper);
+		if ((result == 0) && (readOffset == 0)) {
+			// listings without offsets always contain "." and "..". Listings
+			// with offsets are only continued with non-zero offsets.
+			filler.addDirectories();
+		}
+		return result;
 	}
 
 	@FuseMethod
@@ -575,6 +583,19 @@ public abstract class FuseFilesystem {
 	@UserMethod
 	public abstract int readdir(final String path, final DirectoryFiller filler);
 
+	/**
+	 * Lists the given directory starting at the given offset. Implementations
+	 * which list directories in several calls pass entries by
+	 * {@link DirectoryFiller#add(String, long)} until the buffer is full. The
+	 * default implementation passes all entries at once by
+	 * {@link #readdir(String, DirectoryFiller)}.
+	 */
+	@UserMethod
+	public int readdir(final String path, final DirectoryFiller filler,
+			final long offset, final FileInfoWrapper info) {
+		return readdir(path, filler);
+	}
+
 	@UserMethod
 	public abstract int readlink(final String path, final ByteBuffer buffer,
 			final long size);
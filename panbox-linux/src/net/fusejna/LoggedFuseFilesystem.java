@@ -379,6 +379,17 @@ final class LoggedFuseFilesystem extends FuseFilesystem {
 		}, path, filler);
 	}
 
+	@Override
+	public int readdir(final String path, final DirectoryFiller filler,
+			final long offset, final FileInfoWrapper info) {
+		return log("readdir", 0, new LoggedMethod<Integer>() {
+			@Override
+			public Integer invoke() {
+				return filesystem.readdir(path, filler, offset, info);
+			}
+		}, path, filler, offset, info);
+	}
+
 	@Override
 	public int readlink(final String path, final ByteBuffer buffer,
 			final long size) {
@@ -75,6 +75,36 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 					.getLocale());
 
 	private static final long fakeBlockSize = 4096L;
+
+	/**
+	 * size of the plaintext chunks of encrypted files, which are decrypted as
+	 * a whole upon each read
+	 */
+	private static final int CHUNK_DATA_SIZE = 64 * 1024;
+
+	/**
+	 * FUSE options used unless options are given on the command line:
+	 * <ul>
+	 * <li>big_writes and max_write to deviate from the default write buffer
+	 * size of 4096 bytes</li>
+	 * <li>max_read and max_readahead as multiples of the chunk size, so that
+	 * reads do not decrypt chunks twice</li>
+	 * <li>entry_timeout, attr_timeout and negative_timeout to let the kernel
+	 * answer lookups and getattr for the same time {@link PanboxFSLinux}
+	 * caches them. Changes of the CSP client become visible after these
+	 * timeouts.</li>
+	 * <li>auto_cache to keep the cached contents of a file upon open, unless
+	 * its size or modification time have changed, e.g. as it has been
+	 * replaced by the CSP client</li>
+	 * </ul>
+	 */
+	public static final String[] DEFAULT_OPTIONS = new String[] { "-o",
+			"big_writes", "-o", "max_write=4194304", "-o",
+			"max_read=" + (2 * CHUNK_DATA_SIZE), "-o",
+			"max_readahead=" + (16 * CHUNK_DATA_SIZE), "-o", "entry_timeout=2",
+			"-o", "attr_timeout=2", "-o", "negative_timeout=1", "-o",
+			"auto_cache" };
+
 	private PanboxFSLinux panboxFS = null;
 
 	public FuseUserFS() {
@@ -88,20 +118,60 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 
 	@Override
 	protected String[] getOptions() {
-		// per default, set some extra fuse mount options to allow to deviate
-		// from the default write-buffersize of 4096 bytes for increasing
-		// performance
-		String[] ret = null;
+		// per default, set some extra fuse mount options for increasing
+		// performance, see DEFAULT_OPTIONS. Options given on the command line
+		// replace all of them.
+		String[] ret = getMountOptions();
 		if ((vfsoptions == null) || (vfsoptions.length == 0)) {
-			ret = new String[] { "-o", "big_writes", "-o", "max_write=4194304" };
 			logger.info("Using default FUSE options: " + Arrays.toString(ret));
 		} else {
-			ret = vfsoptions;
 			logger.info("FUSE options: " + Arrays.toString(ret));
 		}
 		return ret;
 	}
 
+	private String[] getMountOptions() {
+		if ((vfsoptions == null) || (vfsoptions.length == 0)) {
+			return DEFAULT_OPTIONS.clone();
+		} else {
+			return vfsoptions;
+		}
+	}
+
+	/**
+	 * @param options
+	 *            FUSE options
+	 * @param name
+	 *            name of a timeout option, e.g. attr_timeout
+	 * @param def
+	 *            default value of libfuse in seconds
+	 * @return the value of the given timeout option in milliseconds
+	 */
+	static long getTimeoutOption(String[] options, String name, double def) {
+		double ret = def;
+		for (int i = 0; i < options.length; i++) {
+			String opts = null;
+			if (options[i].equals("-o") && (i + 1 < options.length)) {
+				opts = options[++i];
+			} else if (options[i].startsWith("-o")) {
+				opts = options[i].substring(2);
+			}
+			if (opts == null) {
+				continue;
+			}
+			for (String opt : opts.split(",")) {
+				if (opt.startsWith(name + "=")) {
+					try {
+						ret = Double.parseDouble(opt.substring(name.length() + 1));
+					} catch (NumberFormatException e) {
+						logger.warn("Ignoring invalid FUSE option " + opt);
+					}
+				}
+			}
+		}
+		return Math.max(0, (long) (ret * 1000));
+	}
+
 	/**
 	 * {@link AtomicLong} instance for file handle generation.
 	 */
@@ -239,22 +309,7 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 			if (!UnconsequentialFiles.isUnconsequential(path)) {
 
 				FileInfo info = (FileInfo) panboxFS.getattr(path, false, false);
-				if (info.isSymbolic()) {
-					stat.setMode(NodeType.SYMBOLIC_LINK, info.getAttr()).size(
-							info.getSize());
-				} else {
-					stat.setMode(
-							info.isDirectory() ? NodeType.DIRECTORY
-									: NodeType.FILE, info.getAttr()).size(
-							info.getSize());
-				}
-
-				// defaults to current uid/gid. on rare occasions, FuseJNA
-				// uid/gid resultion seems to fail
-				stat.uid(uid).gid(gid);
-
-				stat.setTimes(info.getLastAccessTime(), 0,
-						info.getLastWriteTime(), 0, info.getCreationTime(), 0);
+				fillStat(info, stat);
 
 			} else {
 				return -ErrorCodes.ENOENT();
@@ -278,6 +333,41 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 		return 0;
 	}
 
+	private void fillStat(FileInfo info, StatWrapper stat) {
+		if (info.isSymbolic()) {
+			stat.setMode(NodeType.SYMBOLIC_LINK, info.getAttr()).size(
+					info.getSize());
+		} else {
+			stat.setMode(
+					info.isDirectory() ? NodeType.DIRECTORY : NodeType.FILE,
+					info.getAttr()).size(info.getSize());
+		}
+
+		// defaults to current uid/gid. on rare occasions, FuseJNA
+		// uid/gid resultion seems to fail
+		stat.uid(uid).gid(gid);
+
+		stat.setTimes(info.getLastAccessTime(), 0, info.getLastWriteTime(), 0,
+				info.getCreationTime(), 0);
+	}
+
+	@Override
+	public int fgetattr(final String path, final StatWrapper stat,
+			final FileInfoWrapper info) {
+		try {
+			fillStat((FileInfo) panboxFS.fgetattr(path, info.fh()), stat);
+		} catch (PanboxHandleException e) {
+			// e.g. called by libfuse before the handle has been set
+			return getattr(path, stat);
+		} catch (FileNotFoundException e) {
+			return -ErrorCodes.ENOENT();
+		} catch (IOException e) {
+			log_error(e);
+			return -ErrorCodes.EIO();
+		}
+		return 0;
+	}
+
 	@Override
 	protected String getName() {
 		return panboxFS.getFilesystemName() + "-" + panboxFS.getVolumeName();
@@ -379,25 +469,12 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 	public int readdir(final String path, final DirectoryFiller filler) {
 		try {
 			if (!UnconsequentialFiles.isUnconsequential(path)) {
-				Collection<String> files = panboxFS.readdir(path);
-				for (Iterator<String> iterator = files.iterator(); iterator
+				Collection<AbstractFileInfo> files = panboxFS.readdir(path);
+				for (Iterator<AbstractFileInfo> iterator = files.iterator(); iterator
 						.hasNext();) {
-					String curfile = (String) iterator.next();
-					try {
-						AbstractFileInfo info = panboxFS.getattr(curfile, true,
-								false);
-						if (!filler.add(info.fileName)) {
-							return -ErrorCodes.ENOMEM();
-						}
-					} catch (SecretKeyNotFoundException e) {
-						log_error(e);
-						continue;
-					} catch (FileNotFoundException e) {
-						log_error(e);
-						continue;
-					} catch (IOException e) {
-						log_error(e);
-						continue;
+					AbstractFileInfo info = iterator.next();
+					if (!filler.add(info.fileName)) {
+						return -ErrorCodes.ENOMEM();
 					}
 				}
 			}
@@ -411,6 +488,54 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 		return 0;
 	}
 
+	@Override
+	public int opendir(final String path, final FileInfoWrapper info) {
+		long handle = handleCtr.incrementAndGet();
+		panboxFS.opendir(path, handle);
+		info.fh(handle);
+		return 0;
+	}
+
+	@Override
+	public int readdir(final String path, final DirectoryFiller filler,
+			final long offset, final FileInfoWrapper info) {
+		// "." and ".." are passed with offsets 1 and 2, the entries listed by
+		// panboxFS follow
+		if ((offset < 1) && !filler.add(".", 1)) {
+			return 0;
+		}
+		if ((offset < 2) && !filler.add("..", 2)) {
+			return 0;
+		}
+		try {
+			if (!UnconsequentialFiles.isUnconsequential(path)) {
+				panboxFS.readdir(path, info.fh(), Math.max(0, offset - 2),
+						new PanboxFSLinux.DirectoryEntryFiller() {
+							@Override
+							public boolean add(AbstractFileInfo entry,
+									long nextOffset) {
+								return filler.add(
+										FilenameUtils.getName(entry.fileName),
+										nextOffset + 2);
+							}
+						});
+			}
+		} catch (SecretKeyNotFoundException e) {
+			log_error(e);
+			return -ErrorCodes.ENOENT();
+		} catch (FileNotFoundException e) {
+			log_error(e);
+			return -ErrorCodes.ENOENT();
+		}
+		return 0;
+	}
+
+	@Override
+	public int releasedir(final String path, final FileInfoWrapper info) {
+		panboxFS.releasedir(path, info.fh());
+		return 0;
+	}
+
 	@Override
 	public int release(final String path, final FileInfoWrapper info) {
 		try {
@@ -435,9 +560,10 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 	@Override
 	public int utimens(String path, TimeBufferWrapper wrapper) {
 		try {
-			panboxFS.setLastAccessTime(path,
-					FileInfo.unixLong2JavaLong(wrapper.ac_sec()));
-			panboxFS.setModifiedTime(path,
+			// NOTE: unlike ftruncate and fgetattr, utimens is not passed the
+			// handle of open files by the FUSE 2 API
+			panboxFS.setTimes(path,
+					FileInfo.unixLong2JavaLong(wrapper.ac_sec()),
 					FileInfo.unixLong2JavaLong(wrapper.mod_sec()));
 		} catch (IOException e) {
 			log_error(e);
@@ -516,6 +642,29 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 		return 0;
 	}
 
+	@Override
+	public int ftruncate(final String path, final long offset,
+			final FileInfoWrapper info) {
+		try {
+			panboxFS.ftruncate(path, offset, info.fh());
+		} catch (PanboxHandleException e) {
+			logger.error(
+					"FuseUserFS::ftruncate : Caught exception PanboxHandleException from PanboxFS: ",
+					e);
+			return -ErrorCodes.EBADF();
+		} catch (IOException e) {
+			log_error(e);
+			return -ErrorCodes.EIO();
+		} catch (PanboxEncryptionException e) {
+			log_error(e);
+			VFSErrorMessages.showErrorMessage(MessageFormat.format(
+					bundle.getString("FuseUserFS.fileCouldNotBeEncrypted"),
+					path), bundle.getString("error"));
+			return -ErrorCodes.EIO();
+		}
+		return 0;
+	}
+
 	@Override
 	public int truncate(final String path, final long offset) {
 		try {
@@ -580,6 +729,13 @@ public final class FuseUserFS extends FuseFilesystemAdapterFull implements
 			return false;
 		} else {
 			this.panboxFS = (PanboxFSLinux) panboxFS;
+			// cache attributes no longer than the kernel does, so that
+			// changes of the CSP client become visible after the configured
+			// timeouts
+			String[] options = getMountOptions();
+			this.panboxFS.setAttributeCacheTimeouts(
+					getTimeoutOption(options, "attr_timeout", 1.0),
+					getTimeoutOption(options, "negative_timeout", 0.0));
 			try {
 				mount(mountPoint, blocking, panboxFS);
 			} catch (final FuseException e) {
@@ -30,13 +30,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.SecretKey;
 
@@ -46,6 +53,7 @@ import org.panbox.core.crypto.Obfuscator;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.keymgmt.ShareKey;
 import org.panbox.core.vfs.backend.VirtualFile;
+import org.panbox.core.vfs.backend.VirtualFileAttributes;
 import org.panbox.desktop.common.ex.PanboxCreateFailedException;
 import org.panbox.desktop.common.ex.PanboxDeleteFailedException;
 import org.panbox.desktop.common.ex.PanboxEncryptionException;
@@ -58,22 +66,90 @@ import org.panbox.desktop.common.vfs.backend.exceptions.SecretKeyNotFoundExcepti
  * @author palige
  * 
  *         Linux-specific implementation of Panbox VFS interface.
+ * 
+ *         Operations are called concurrently by the worker threads of libfuse.
+ *         Data operations upon an open file handle are guarded by the
+ *         read/write lock of its {@link VirtualFileAccessSession}, i.e. reads
+ *         are positional and run in parallel, whereas writes, truncation,
+ *         flush and release are exclusive. Namespace operations (create,
+ *         mkdir, rmdir, unlink, rename, symlink) lock the parent directories
+ *         of the affected paths. All other operations do not lock at all.
+ * 
+ *         Operations upon open file handles (read, write, flush, release,
+ *         ftruncate, fgetattr) do not resolve the path of the file, i.e. do
+ *         not obfuscate its name, but use the {@link VirtualFile} instance of
+ *         the respective {@link VirtualFileAccessSession}. Their path
+ *         argument is used for logging and cache invalidation only.
+ * 
+ *         Results of getattr, including non-existing paths, are cached for a
+ *         short time, see {@link FileAttributeCache}. Entries are
+ *         invalidated by all modifying operations of this class, whereas
+ *         changes made to the backing storage by others become visible after
+ *         the entries have expired.
+ * 
+ *         Directories are listed incrementally, i.e. entries are read and
+ *         deobfuscated in batches as libfuse consumes them, and the position
+ *         within a listing is kept per handle passed to
+ *         {@link #opendir(String, long)}.
  */
 public class PanboxFSLinux extends PanboxFS {
 
 	private static final Logger logger = Logger
 			.getLogger("org.panbox.desktop.common");
 
-	private final static HashMap<Long, VirtualFileAccessSession> fileInstanceTable = new HashMap<Long, VirtualFileAccessSession>();
+	/**
+	 * number of locks the parent directories of namespace operations are
+	 * distributed over
+	 */
+	private final static int NAMESPACE_LOCK_STRIPES = 64;
+
+	private final static int ATTRIBUTE_CACHE_SIZE = 16384;
+
+	/**
+	 * time in milliseconds file attributes remain cached
+	 */
+	private final static long ATTRIBUTE_CACHE_TTL = 2000;
+
+	/**
+	 * time in milliseconds non-existing paths remain cached
+	 */
+	private final static long NEGATIVE_CACHE_TTL = 1000;
+
+	/**
+	 * maximum number of directory entries deobfuscated at once by
+	 * {@link #readdir(String, long, long, DirectoryEntryFiller)}
+	 */
+	private final static int READDIR_BATCH_SIZE = 256;
+
+	private final ConcurrentHashMap<Long, VirtualFileAccessSession> fileInstanceTable = new ConcurrentHashMap<Long, VirtualFileAccessSession>();
+
+	private final ReentrantLock[] namespaceLocks = new ReentrantLock[NAMESPACE_LOCK_STRIPES];
+
+	private final FileAttributeCache attributeCache = new FileAttributeCache(
+			ATTRIBUTE_CACHE_SIZE, ATTRIBUTE_CACHE_TTL, NEGATIVE_CACHE_TTL);
+
+	private final ConcurrentHashMap<Long, DirectoryListing> directoryTable = new ConcurrentHashMap<Long, DirectoryListing>();
 
 	public PanboxFSLinux(PanboxFSAdapter backend) {
 		super(backend);
+		for (int i = 0; i < namespaceLocks.length; i++) {
+			namespaceLocks[i] = new ReentrantLock();
+		}
 	}
 
-	private class VirtualFileAccessSession {
+	private static class VirtualFileAccessSession {
 		final VirtualRandomAccessFile file;
 		final boolean readonly;
 
+		/**
+		 * shared for reads, exclusive for all other data operations upon this
+		 * handle. Handles of the same path share their backing
+		 * {@link org.panbox.core.crypto.io.EncRandomAccessFile}, whose
+		 * positional reads and writes and setLength() are atomic on their
+		 * own, so operations of different handles do not interleave either.
+		 */
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
 		/**
 		 * @param file
 		 * @param readonly
@@ -85,60 +161,276 @@ public class PanboxFSLinux extends PanboxFS {
 		}
 	}
 
-	public synchronized void create(final String path, final long handle,
+	/**
+	 * receives the entries listed by
+	 * {@link PanboxFSLinux#readdir(String, long, long, DirectoryEntryFiller)}
+	 */
+	public interface DirectoryEntryFiller {
+		/**
+		 * @param info
+		 * @param nextOffset
+		 *            offset to pass to
+		 *            {@link PanboxFSLinux#readdir(String, long, long, DirectoryEntryFiller)}
+		 *            in order to continue after this entry
+		 * @return <code>false</code>, if the entry has not been accepted
+		 */
+		boolean add(AbstractFileInfo info, long nextOffset);
+	}
+
+	private static class ListedEntry {
+		final AbstractFileInfo info;
+		final long nextOffset;
+
+		ListedEntry(AbstractFileInfo info, long nextOffset) {
+			this.info = info;
+			this.nextOffset = nextOffset;
+		}
+	}
+
+	/**
+	 * state of a directory listing between subsequent calls of
+	 * {@link PanboxFSLinux#readdir(String, long, long, DirectoryEntryFiller)}
+	 */
+	private static class DirectoryListing {
+		final String path;
+		VirtualFile dir;
+		DirectoryStream<VirtualFile> stream;
+		Iterator<VirtualFile> iterator;
+
+		/**
+		 * number of entries read from the backing directory, including hidden
+		 * ones
+		 */
+		long position;
+
+		/**
+		 * offset of the last entry accepted by the filler
+		 */
+		long consumed;
+
+		/**
+		 * entries of the current batch not yet accepted by the filler
+		 */
+		final ArrayDeque<ListedEntry> pending = new ArrayDeque<ListedEntry>();
+
+		DirectoryListing(String path) {
+			this.path = path;
+		}
+
+		void close() {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					logger.warn("Error on closing directory listing of " + path,
+							e);
+				}
+			}
+			dir = null;
+			stream = null;
+			iterator = null;
+			position = 0;
+			consumed = 0;
+			pending.clear();
+		}
+	}
+
+	private VirtualFileAccessSession getSession(long handle)
+			throws PanboxHandleException {
+		VirtualFileAccessSession session = fileInstanceTable.get(handle);
+		if (session == null) {
+			throw new PanboxHandleException(
+					"No available instance for given handle nr. " + handle);
+		}
+		return session;
+	}
+
+	private static int getNamespaceStripe(String path) {
+		String parent = FilenameUtils.getFullPathNoEndSeparator(path);
+		return (parent.hashCode() & 0x7fffffff) % NAMESPACE_LOCK_STRIPES;
+	}
+
+	/**
+	 * locks the parent directories of the given paths. Locks are acquired in
+	 * ascending order, so that concurrent renames cannot deadlock.
+	 * 
+	 * @param paths
+	 * @return the locked stripes, to be passed to
+	 *         {@link #unlockNamespace(int[])}
+	 */
+	private int[] lockNamespace(String... paths) {
+		int[] stripes = new int[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			stripes[i] = getNamespaceStripe(paths[i]);
+		}
+		Arrays.sort(stripes);
+		for (int i = 0; i < stripes.length; i++) {
+			if (i == 0 || stripes[i] != stripes[i - 1]) {
+				namespaceLocks[stripes[i]].lock();
+			}
+		}
+		return stripes;
+	}
+
+	private void unlockNamespace(int[] stripes) {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			if (i == 0 || stripes[i] != stripes[i - 1]) {
+				namespaceLocks[stripes[i]].unlock();
+			}
+		}
+	}
+
+	/**
+	 * discards the cached attributes of the given path and its parent
+	 * directory, whose modification time changes along with its entries
+	 * 
+	 * @param path
+	 */
+	private void invalidateEntry(String path) {
+		String parent = FilenameUtils.getFullPathNoEndSeparator(path);
+		attributeCache.invalidate(path, parent.isEmpty() ? File.separator
+				: parent);
+	}
+
+	/**
+	 * sets the time attributes and non-existing paths are cached, e.g. in
+	 * accordance with the respective timeouts of the kernel
+	 * 
+	 * @param ttl
+	 *            time in milliseconds attributes are cached, 0 to disable
+	 * @param negativeTtl
+	 *            time in milliseconds non-existing paths are cached, 0 to
+	 *            disable
+	 */
+	public void setAttributeCacheTimeouts(long ttl, long negativeTtl) {
+		logger.info("Caching attributes for " + ttl
+				+ " ms, non-existing paths for " + negativeTtl + " ms");
+		attributeCache.setTimeouts(ttl, negativeTtl);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.panbox.desktop.common.vfs.PanboxFS#invalidateFileInfo()
+	 */
+	@Override
+	public void invalidateFileInfo() {
+		attributeCache.invalidateAll();
+	}
+
+	public void create(final String path, final long handle,
 			final boolean readonly) throws ObfuscationException, IOException,
 			PanboxEncryptionException {
 		logger.debug("create : " + path + ", handle: " + handle);
 
-		ShareKey shareKey = backingStorage.getLatestShareKeyForFile(path);
-		VirtualRandomAccessFile virt = (VirtualRandomAccessFile) getVirtualFileForFileName(
-				path, true);
-		virt.create(shareKey.version, shareKey.key);
-		fileInstanceTable.put(handle, new VirtualFileAccessSession(virt,
-				readonly));
+		int[] stripes = lockNamespace(path);
+		try {
+			ShareKey shareKey = backingStorage.getLatestShareKeyForFile(path);
+			VirtualRandomAccessFile virt = (VirtualRandomAccessFile) getVirtualFileForFileName(
+					path, true);
+			virt.create(shareKey.version, shareKey.key);
+			fileInstanceTable.put(handle, new VirtualFileAccessSession(virt,
+					readonly));
+		} finally {
+			invalidateEntry(path);
+			unlockNamespace(stripes);
+		}
 		logger.debug("create : VirtualFile(" + path
 				+ ").create() was successful.");
 
 	}
 
-	public synchronized void flush(final String path, final long handle)
+	public void flush(final String path, final long handle)
 			throws PanboxHandleException, IOException {
 		logger.debug("flush : " + path + ", handle: " + handle);
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
-		if (session != null) {
+		VirtualFileAccessSession session = getSession(handle);
+		session.lock.writeLock().lock();
+		try {
 			// note: flush() will also be called upon readonly files
 			session.file.flush();
-			logger.debug("flush : VirtualFile(" + path
-					+ ").flush() was successful.");
-		} else {
-			throw new PanboxHandleException(
-					"No available instance for given handle nr. " + handle);
+		} finally {
+			session.lock.writeLock().unlock();
+			attributeCache.invalidate(path);
 		}
+		logger.debug("flush : VirtualFile(" + path
+				+ ").flush() was successful.");
 	}
 
-	public synchronized AbstractFileInfo getattr(final String path,
+	public AbstractFileInfo getattr(final String path,
 			boolean alreadyObfuscated, boolean outputObfuscated)
 			throws IOException {
 		logger.debug("getattr : " + path);
-		return getFileInfo(path, alreadyObfuscated, outputObfuscated);
+		if (alreadyObfuscated || outputObfuscated) {
+			return getFileInfo(path, alreadyObfuscated, outputObfuscated);
+		}
+
+		AbstractFileInfo info = attributeCache.get(path);
+		if (info == null) {
+			long generation = attributeCache.getGeneration();
+			try {
+				info = getFileInfo(path, false, false);
+			} catch (FileNotFoundException e) {
+				attributeCache.putNotFound(path, generation);
+				throw e;
+			}
+			attributeCache.put(path, info, generation);
+		}
+		return info;
 	}
 
-	public synchronized void mkdir(final String path)
+	/**
+	 * Returns the attributes of an open file. In contrast to
+	 * {@link #getattr(String, boolean, boolean)}, its name does not need to be
+	 * obfuscated.
+	 * 
+	 * @param path
+	 *            virtual path of the file, which is returned as file name
+	 * @param handle
+	 *            handle of the file
+	 * @return the attributes of the file
+	 * @throws PanboxHandleException
+	 *             if there is no open file for the given handle
+	 * @throws IOException
+	 */
+	public AbstractFileInfo fgetattr(final String path, final long handle)
+			throws PanboxHandleException, IOException {
+		logger.debug("fgetattr : " + path + ", handle: " + handle);
+		VirtualFile file = getSession(handle).file;
+		VirtualFileAttributes attributes = file.getAttributes();
+		if (attributes == null) {
+			// file has been removed while being opened
+			throw new FileNotFoundException("PanboxFS : fgetattr : " + path
+					+ " does not exist anymore");
+		}
+		return vfsAdapter.createFileInfo(path, attributes.isDirectory(),
+				attributes.isDirectory() ? 0 : attributes.getLength(),
+				attributes.getCreationTime(), attributes.getLastAccessTime(),
+				attributes.getLastWriteTime(), file.getAttr(),
+				attributes.isSymbolic());
+	}
+
+	public void mkdir(final String path)
 			throws PanboxCreateFailedException, SecretKeyNotFoundException,
 			FileNotFoundException, ObfuscationException {
 		logger.debug("mkdir : " + path);
 
-		if (!getVirtualFileForFileName(path, true).createNewDirectory()) {
-			throw new PanboxCreateFailedException(
-					"Failed to create directory '" + path + "'.");
-		} else {
-			logger.debug("mkdir : VirtualFile(" + path
-					+ ").createNewDirectory() was successful.");
+		int[] stripes = lockNamespace(path);
+		try {
+			if (!getVirtualFileForFileName(path, true).createNewDirectory()) {
+				throw new PanboxCreateFailedException(
+						"Failed to create directory '" + path + "'.");
+			} else {
+				logger.debug("mkdir : VirtualFile(" + path
+						+ ").createNewDirectory() was successful.");
+			}
+		} finally {
+			invalidateEntry(path);
+			unlockNamespace(stripes);
 		}
 
 	}
 
-	public synchronized void open(final String path, final long handle,
+	public void open(final String path, final long handle,
 			boolean readonly) throws ObfuscationException,
 			PanboxEncryptionException, IOException {
 		logger.debug("open : " + path + ", handle: " + handle + ", readonly: "
@@ -152,108 +444,293 @@ public class PanboxFSLinux extends PanboxFS {
 				readonly));
 	}
 
-	public synchronized int read(final String path, final ByteBuffer buffer,
+	public int read(final String path, final ByteBuffer buffer,
 			final long offset, final long size, final long handle)
 			throws PanboxHandleException, PanboxEncryptionException,
 			IOException {
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
-		if (session != null) {
-			logger.debug("read, File : " + path + ", Obf. path: "
-					+ session.file + ", buffersize: " + buffer.remaining()
-					+ ", offset: " + offset);
+		VirtualFileAccessSession session = getSession(handle);
+		logger.debug("read, File : " + path + ", Obf. path: " + session.file
+				+ ", buffersize: " + buffer.remaining() + ", offset: "
+				+ offset);
+		session.lock.readLock().lock();
+		try {
 			return session.file.read(offset, buffer);
-		} else {
-			throw new PanboxHandleException(
-					"No available instance for given handle nr. " + handle);
+		} finally {
+			session.lock.readLock().unlock();
 		}
 	}
 
-	public synchronized int read(final String path, final byte[] buffer,
+	public int read(final String path, final byte[] buffer,
 			final long offset, final long size, final long handle)
 			throws PanboxHandleException, PanboxEncryptionException,
 			IOException {
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
-		if (session != null) {
-			logger.debug("read, File : " + path + ", Obf. path: "
-					+ session.file + ", buffersize: " + buffer.length
-					+ ", offset: " + offset);
+		VirtualFileAccessSession session = getSession(handle);
+		logger.debug("read, File : " + path + ", Obf. path: " + session.file
+				+ ", buffersize: " + buffer.length + ", offset: " + offset);
+		session.lock.readLock().lock();
+		try {
 			return session.file.read(offset, buffer);
-		} else {
-			throw new PanboxHandleException(
-					"No available instance for given handle nr. " + handle);
+		} finally {
+			session.lock.readLock().unlock();
 		}
 	}
 
-	public synchronized Collection<String> readdir(final String path)
+	/**
+	 * Lists the given directory at once, see
+	 * {@link #readdir(String, long, long, DirectoryEntryFiller)} for listing
+	 * large directories.
+	 * 
+	 * @param path
+	 * @return the entries of the given directory
+	 * @throws FileNotFoundException
+	 */
+	public Collection<AbstractFileInfo> readdir(final String path)
 			throws FileNotFoundException {
-		logger.debug("readdir : " + path);
-		VirtualFile[] files = null;
-		try {
-			if (path.equals(File.separator)) {
-				files = backingStorage.getFile(path).list();
-			} else {
-				files = getVirtualFileForFileName(path).list();
+		final ArrayList<AbstractFileInfo> list = new ArrayList<AbstractFileInfo>();
+		readdir(path, 0, 0, new DirectoryEntryFiller() {
+			@Override
+			public boolean add(AbstractFileInfo info, long nextOffset) {
+				return list.add(info);
 			}
-		} catch (IOException | ObfuscationException e) {
-			files = new VirtualFile[0];
-		}
-
-		final ArrayList<String> list = new ArrayList<String>();
-		for (final VirtualFile s : files) {
-			// This code is for making files and folders staring with '.'
-			// invisible!
-			// This is mainly used for the .panbox Folder
-			String nameOfFile = s.getFileName().substring(
-					s.getFileName().lastIndexOf(File.separator) + 1);
-			logger.trace("listDirectory : nameOfFile: " + nameOfFile);
-			if (nameOfFile.startsWith(".")) {
-				// ignore file, it started with .
-				logger.trace("listDirectory : Ignoring file starting with '.': "
-						+ nameOfFile + " (" + path + ")");
-				continue;
+		});
+		return list;
+	}
+
+	/**
+	 * registers a directory opened for listing by
+	 * {@link #readdir(String, long, long, DirectoryEntryFiller)}
+	 * 
+	 * @param path
+	 * @param handle
+	 */
+	public void opendir(final String path, final long handle) {
+		logger.debug("opendir : " + path + ", handle: " + handle);
+		directoryTable.put(handle, new DirectoryListing(path));
+	}
+
+	/**
+	 * closes a directory opened by {@link #opendir(String, long)}
+	 * 
+	 * @param path
+	 * @param handle
+	 */
+	public void releasedir(final String path, final long handle) {
+		logger.debug("releasedir : " + path + ", handle: " + handle);
+		DirectoryListing listing = directoryTable.remove(handle);
+		if (listing != null) {
+			synchronized (listing) {
+				listing.close();
 			}
+		}
+	}
 
-			list.add(backingStorage.getRelativePathForFile(s));
+	/**
+	 * Lists the given directory starting at the given offset. Entries are
+	 * read from the backing directory and deobfuscated in batches of
+	 * {@link #READDIR_BATCH_SIZE} and passed to the given filler until it
+	 * does not accept any more entries. If the directory has been opened by
+	 * {@link #opendir(String, long)}, a subsequent call with the offset of
+	 * the last accepted entry continues where the listing stopped.
+	 * Otherwise, and if an earlier offset is requested, the backing directory
+	 * is read again from its beginning.
+	 * 
+	 * @param path
+	 * @param handle
+	 *            handle passed to {@link #opendir(String, long)}, or 0
+	 * @param offset
+	 *            0 to start at the first entry, or the offset passed along
+	 *            with the last entry accepted by the filler
+	 * @param filler
+	 * @throws FileNotFoundException
+	 */
+	public void readdir(final String path, final long handle,
+			final long offset, final DirectoryEntryFiller filler)
+			throws FileNotFoundException {
+		logger.debug("readdir : " + path + ", handle: " + handle
+				+ ", offset: " + offset);
+		DirectoryListing listing = (handle != 0) ? directoryTable.get(handle)
+				: null;
+		boolean temporary = (listing == null);
+		if (temporary) {
+			listing = new DirectoryListing(path);
 		}
-		return list;
+		synchronized (listing) {
+			try {
+				if ((listing.stream == null) || (offset < listing.consumed)) {
+					// first call or seek backwards
+					listing.close();
+					openListing(listing);
+				}
+				// skip entries up to the requested offset
+				while (!listing.pending.isEmpty()
+						&& (listing.pending.peek().nextOffset <= offset)) {
+					listing.pending.poll();
+				}
+				while (listing.pending.isEmpty()
+						&& (listing.position < offset)
+						&& listing.iterator.hasNext()) {
+					listing.iterator.next();
+					listing.position++;
+				}
+				listing.consumed = offset;
+
+				while (!listing.pending.isEmpty() || readBatch(listing)) {
+					ListedEntry entry = listing.pending.peek();
+					if (!filler.add(entry.info, entry.nextOffset)) {
+						// buffer full, continued by the next call
+						return;
+					}
+					listing.pending.poll();
+					listing.consumed = entry.nextOffset;
+				}
+			} catch (IOException | ObfuscationException
+					| DirectoryIteratorException e) {
+				// as before, directories which cannot be read appear empty
+				logger.debug("readdir : Unable to list " + path, e);
+				listing.close();
+			} finally {
+				if (temporary) {
+					listing.close();
+				}
+			}
+		}
+	}
+
+	private void openListing(DirectoryListing listing) throws IOException,
+			ObfuscationException {
+		if (listing.path.equals(File.separator)) {
+			listing.dir = backingStorage.getFile(listing.path);
+		} else {
+			listing.dir = getVirtualFileForFileName(listing.path);
+		}
+		listing.stream = listing.dir.newDirectoryStream();
+		listing.iterator = listing.stream.iterator();
 	}
 
-	public synchronized void release(final String path, final long handle)
+	/**
+	 * reads and deobfuscates the next batch of entries of the given listing
+	 * 
+	 * @param listing
+	 * @return <code>false</code>, if there are no more entries
+	 * @throws IOException
+	 */
+	private boolean readBatch(DirectoryListing listing) throws IOException {
+		final ArrayList<VirtualFile> entries = new ArrayList<VirtualFile>(
+				READDIR_BATCH_SIZE);
+		final ArrayList<Long> positions = new ArrayList<Long>(
+				READDIR_BATCH_SIZE);
+		while (entries.isEmpty() && listing.iterator.hasNext()) {
+			while ((entries.size() < READDIR_BATCH_SIZE)
+					&& listing.iterator.hasNext()) {
+				VirtualFile s = listing.iterator.next();
+				long position = listing.position++;
+				// This code is for making files and folders staring with '.'
+				// invisible!
+				// This is mainly used for the .panbox Folder
+				String nameOfFile = s.getFileName().substring(
+						s.getFileName().lastIndexOf(File.separator) + 1);
+				logger.trace("listDirectory : nameOfFile: " + nameOfFile);
+				if (nameOfFile.startsWith(".")) {
+					// ignore file, it started with .
+					logger.trace("listDirectory : Ignoring file starting with '.': "
+							+ nameOfFile + " (" + listing.path + ")");
+					continue;
+				}
+				entries.add(s);
+				positions.add(position);
+			}
+		}
+		if (entries.isEmpty()) {
+			return false;
+		}
+
+		long generation = attributeCache.getGeneration();
+		// resolve all names of the batch at once instead of one
+		// deobfuscation per entry
+		Map<String, String> deobfPaths = deobfuscateEntries(listing.dir,
+				entries.toArray(new VirtualFile[entries.size()]));
+
+		// the attributes of all entries are likely to be requested next
+		String prefix = listing.path.endsWith(File.separator) ? listing.path
+				: listing.path + File.separator;
+		for (int i = 0; i < entries.size(); i++) {
+			String obfPath = backingStorage.getRelativePathForFile(entries
+					.get(i));
+			try {
+				AbstractFileInfo info = getFileInfo(obfPath, true, false,
+						deobfPaths.get(obfPath));
+				attributeCache.put(
+						prefix + FilenameUtils.getName(info.fileName), info,
+						generation);
+				listing.pending.add(new ListedEntry(info, positions.get(i) + 1));
+			} catch (IOException e) {
+				logger.error("readdir : Ignoring file " + obfPath, e);
+			}
+		}
+		return true;
+	}
+
+	public void release(final String path, final long handle)
 			throws PanboxHandleException, IOException {
 		logger.debug("release : " + path + ", handle: " + handle);
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
+		VirtualFileAccessSession session = fileInstanceTable.remove(handle);
 		if (session != null) {
-			session.file.close();
-			fileInstanceTable.remove(handle);
+			// wait for ongoing operations upon this handle
+			session.lock.writeLock().lock();
+			try {
+				session.file.close();
+			} finally {
+				session.lock.writeLock().unlock();
+				attributeCache.invalidate(path);
+			}
 		} else {
 			throw new PanboxHandleException(
 					"No available instance for given handle nr. " + handle);
 		}
 	}
 
-	public synchronized void setLastAccessTime(final String path,
-			final long ac_nsec) throws IOException {
-		logger.debug("setLastAccessTime : " + path);
+	/**
+	 * sets last access and modification time of the given file, resolving
+	 * its path only once
+	 * 
+	 * @param path
+	 * @param atime
+	 *            last access time in milliseconds, ignored if not positive
+	 * @param mtime
+	 *            modification time in milliseconds, ignored if not positive
+	 * @throws IOException
+	 * @throws ObfuscationException
+	 */
+	public void setTimes(final String path, final long atime,
+			final long mtime) throws IOException, ObfuscationException {
+		logger.debug("setTimes : " + path);
 		try {
 			VirtualFile backed = getVirtualFileForFileName(path);
-			backed.setLastAccessTime(ac_nsec);
-		} catch (ObfuscationException e) {
-			throw new IOException("Obfuscation failed!");
+			backed.setLastAccessTime(atime);
+			backed.setModifiedTime(mtime);
+		} finally {
+			attributeCache.invalidate(path);
 		}
 	}
 
-	public synchronized void setModifiedTime(String path, long mod_nsec)
-			throws IOException, ObfuscationException {
-		logger.debug("setModifiedTime : " + path);
-
-		VirtualFile backed = getVirtualFileForFileName(path);
-		backed.setModifiedTime(mod_nsec);
+	public void rename(final String oldpath, final String newpath)
+			throws PanboxRenameFailedException, ObfuscationException,
+			IOException {
+		logger.debug("rename : " + oldpath + " -> " + newpath);
+		int[] stripes = lockNamespace(oldpath, newpath);
+		try {
+			renameLocked(oldpath, newpath);
+		} finally {
+			invalidateEntry(oldpath);
+			invalidateEntry(newpath);
+			unlockNamespace(stripes);
+		}
 	}
 
-	public synchronized void rename(final String oldpath, final String newpath)
+	private void renameLocked(final String oldpath, final String newpath)
 			throws PanboxRenameFailedException, ObfuscationException,
 			IOException {
-		logger.debug("rename : " + oldpath + " -> " + newpath);
+		backingStorage.invalidatePath(oldpath);
 
 		VirtualFile newFile = getVirtualFileForFileName(newpath, true);
 		VirtualFile oldFile = getVirtualFileForFileName(oldpath);
@@ -272,10 +749,15 @@ public class PanboxFSLinux extends PanboxFS {
 		if (newFile.exists() && !newFile.canWrite()) {
 			throw new IOException("Renaming of readonly files is not allowed!");
 		} else {
+			boolean directory = oldFile.isDirectory();
 			if (!oldFile.renameTo(newFile)) {
 				throw new PanboxRenameFailedException("Operation " + oldpath
 						+ ").renameTo(" + newpath + ") was not successful");
 			} else {
+				if (directory) {
+					// the paths of all contained entries have changed
+					attributeCache.invalidateAll();
+				}
 				logger.debug("rename : VirtualFile(" + oldpath + ").renameTo("
 						+ newpath + ") was successful.");
 			}
@@ -293,14 +775,14 @@ public class PanboxFSLinux extends PanboxFS {
 	 * @throws FileNotFoundException
 	 * @throws ObfuscationException
 	 */
-	protected synchronized VirtualFile getVirtualFileForFileName(String filename)
+	protected VirtualFile getVirtualFileForFileName(String filename)
 			throws SecretKeyNotFoundException, FileNotFoundException,
 			ObfuscationException {
 		return getVirtualFileForFileName(filename, false);
 	}
 
 	@Override
-	protected synchronized VirtualFile getVirtualFileForFileName(
+	protected VirtualFile getVirtualFileForFileName(
 			String fileName, boolean createIV)
 			throws SecretKeyNotFoundException, FileNotFoundException,
 			ObfuscationException {
@@ -314,31 +796,34 @@ public class PanboxFSLinux extends PanboxFS {
 		return (session != null) ? session.file : file;
 	}
 
-	public synchronized void rmdir(final String path) throws IOException,
+	public void rmdir(final String path) throws IOException,
 			ObfuscationException {
 		logger.debug("rmdir : " + path);
+		int[] stripes = lockNamespace(path);
+		try {
+			backingStorage.invalidatePath(path);
 
-		if (!getVirtualFileForFileName(path).delete()) {
-			// TODO: Clean this up .. Current backend deletion handler
-			// throws IOexcetion anyway
-			throw new IOException("Deletion failed!");
-		} else {
-			logger.debug("deleteDirectory : VirtualFile(" + path
-					+ ").deleteDirectory() was successful.");
+			if (!getVirtualFileForFileName(path).delete()) {
+				// TODO: Clean this up .. Current backend deletion handler
+				// throws IOexcetion anyway
+				throw new IOException("Deletion failed!");
+			} else {
+				logger.debug("deleteDirectory : VirtualFile(" + path
+						+ ").deleteDirectory() was successful.");
+			}
+		} finally {
+			invalidateEntry(path);
+			unlockNamespace(stripes);
 		}
 
 	}
 
-	private synchronized VirtualFileAccessSession getSessionforVirtualFile(
+	private VirtualFileAccessSession getSessionforVirtualFile(
 			VirtualFile file) {
 		if (file instanceof VirtualRandomAccessFile) {
 			VirtualFileAccessSession session = null;
-			Collection<VirtualFileAccessSession> col = fileInstanceTable
-					.values();
-			for (Iterator<VirtualFileAccessSession> iterator = col.iterator(); iterator
-					.hasNext();) {
-				VirtualFileAccessSession virtualFileAccessSession = (VirtualFileAccessSession) iterator
-						.next();
+			for (VirtualFileAccessSession virtualFileAccessSession : fileInstanceTable
+					.values()) {
 				if (virtualFileAccessSession.file.equals(file)) {
 					session = virtualFileAccessSession;
 					break;
@@ -349,12 +834,22 @@ public class PanboxFSLinux extends PanboxFS {
 			return null;
 	}
 
-	public synchronized void truncate(final String path, final long length)
+	public void truncate(final String path, final long length)
 			throws IOException, SecretKeyNotFoundException,
 			FileNotFoundException, ObfuscationException,
 			PanboxEncryptionException {
 		logger.debug("truncate : " + path + ", length: " + length);
+		try {
+			truncateFile(path, length);
+		} finally {
+			attributeCache.invalidate(path);
+		}
+	}
 
+	private void truncateFile(final String path, final long length)
+			throws IOException, SecretKeyNotFoundException,
+			FileNotFoundException, ObfuscationException,
+			PanboxEncryptionException {
 		VirtualFile vFile = getVirtualFileForFileName(path);
 		VirtualFileAccessSession session = getSessionforVirtualFile(vFile);
 
@@ -372,16 +867,56 @@ public class PanboxFSLinux extends PanboxFS {
 				throw new IOException("Illegal operation: File " + session.file
 						+ " was opened readonly!");
 			} else {
-				session.file.setLength(length);
+				session.lock.writeLock().lock();
+				try {
+					session.file.setLength(length);
+				} finally {
+					session.lock.writeLock().unlock();
+				}
 			}
 		}
 	}
 
+	/**
+	 * Truncates an open file. In contrast to {@link #truncate(String, long)},
+	 * its name does not need to be obfuscated.
+	 * 
+	 * @param path
+	 *            virtual path of the file
+	 * @param length
+	 *            new length of the file
+	 * @param handle
+	 *            handle of the file
+	 * @throws PanboxHandleException
+	 *             if there is no open file for the given handle
+	 * @throws IOException
+	 *             if the file has been opened readonly
+	 * @throws PanboxEncryptionException
+	 */
+	public void ftruncate(final String path, final long length,
+			final long handle) throws PanboxHandleException, IOException,
+			PanboxEncryptionException {
+		logger.debug("ftruncate : " + path + ", length: " + length
+				+ ", handle: " + handle);
+		VirtualFileAccessSession session = getSession(handle);
+		if (session.readonly) {
+			throw new IOException("Illegal operation: File " + session.file
+					+ " was opened readonly!");
+		}
+		session.lock.writeLock().lock();
+		try {
+			session.file.setLength(length);
+		} finally {
+			session.lock.writeLock().unlock();
+			attributeCache.invalidate(path);
+		}
+	}
+
 	public enum AccessMode {
 		EXISTS, READ, WRITE, EXECUTE
 	};
 
-	public synchronized boolean access(final String path, final AccessMode mode)
+	public boolean access(final String path, final AccessMode mode)
 			throws SecretKeyNotFoundException, FileNotFoundException,
 			ObfuscationException {
 		logger.debug("access : " + path);
@@ -408,63 +943,68 @@ public class PanboxFSLinux extends PanboxFS {
 		}
 	}
 
-	public synchronized void unlink(final String path)
+	public void unlink(final String path)
 			throws PanboxDeleteFailedException, SecretKeyNotFoundException,
 			FileNotFoundException, ObfuscationException {
 		logger.debug("unlink : " + path);
+		int[] stripes = lockNamespace(path);
+		try {
+			backingStorage.invalidatePath(path);
 
-		if (!getVirtualFileForFileName(path).delete()) {
-			// TODO: error handling
-			throw new PanboxDeleteFailedException("Deletion failed!");
-		} else {
-			logger.debug("deleteFile : VirtualFile(" + path
-					+ ").deleteFile() was successful.");
+			if (!getVirtualFileForFileName(path).delete()) {
+				// TODO: error handling
+				throw new PanboxDeleteFailedException("Deletion failed!");
+			} else {
+				logger.debug("deleteFile : VirtualFile(" + path
+						+ ").deleteFile() was successful.");
+			}
+		} finally {
+			invalidateEntry(path);
+			unlockNamespace(stripes);
 		}
 	}
 
-	public synchronized int write(final String path, final ByteBuffer buffer,
+	public int write(final String path, final ByteBuffer buffer,
 			final long offset, final long size, final long handle)
 			throws PanboxHandleException, IOException,
 			PanboxEncryptionException {
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
-		if (session != null) {
-			if (session.readonly) {
-				throw new IOException("Illegal operation: File " + session.file
-						+ " was opened readonly!");
-			} else {
-				logger.debug("write, File : " + path + ", Obf. path: "
-						+ session.file + ", buffersize: " + buffer.remaining()
-						+ ", offset: " + offset);
-				return session.file.write(offset, buffer);
-			}
-		} else {
-			throw new PanboxHandleException(
-					"No available instance for given handle nr. " + handle);
+		VirtualFileAccessSession session = getSession(handle);
+		if (session.readonly) {
+			throw new IOException("Illegal operation: File " + session.file
+					+ " was opened readonly!");
+		}
+		logger.debug("write, File : " + path + ", Obf. path: " + session.file
+				+ ", buffersize: " + buffer.remaining() + ", offset: " + offset);
+		session.lock.writeLock().lock();
+		try {
+			return session.file.write(offset, buffer);
+		} finally {
+			session.lock.writeLock().unlock();
+			attributeCache.invalidate(path);
 		}
 	}
 
-	public synchronized int write(final String path, final byte[] buffer,
+	public int write(final String path, final byte[] buffer,
 			final long offset, final long size, final long handle)
 			throws PanboxHandleException, IOException,
 			PanboxEncryptionException {
-		VirtualFileAccessSession session = fileInstanceTable.get(handle);
-		if (session != null) {
-			if (session.readonly) {
-				throw new IOException("Illegal operation: File " + session.file
-						+ " was opened readonly!");
-			} else {
-				logger.debug("write, File : " + path + ", Obf. path: "
-						+ session.file + ", buffersize: " + buffer.length
-						+ ", offset: " + offset);
-				return session.file.write(offset, buffer);
-			}
-		} else {
-			throw new PanboxHandleException(
-					"No available instance for given handle nr. " + handle);
+		VirtualFileAccessSession session = getSession(handle);
+		if (session.readonly) {
+			throw new IOException("Illegal operation: File " + session.file
+					+ " was opened readonly!");
+		}
+		logger.debug("write, File : " + path + ", Obf. path: " + session.file
+				+ ", buffersize: " + buffer.length + ", offset: " + offset);
+		session.lock.writeLock().lock();
+		try {
+			return session.file.write(offset, buffer);
+		} finally {
+			session.lock.writeLock().unlock();
+			attributeCache.invalidate(path);
 		}
 	}
 
-	public synchronized void chmod(final String path, final long attr)
+	public void chmod(final String path, final long attr)
 			throws IOException, ObfuscationException {
 		logger.debug("chmod: path=" + path + ", attr=" + attr);
 		VirtualFile virt = getVirtualFileForFileName(path);
@@ -472,12 +1012,17 @@ public class PanboxFSLinux extends PanboxFS {
 		// being encrypted & written should not affect the corresponding file
 		// access session, but only come into effect after the fh has been close
 		// in the backend
-		virt.setAttr(attr);
+		try {
+			virt.setAttr(attr);
+		} finally {
+			attributeCache.invalidate(path);
+		}
 	}
 
-	public synchronized void symlink(final String target, final String link)
+	public void symlink(final String target, final String link)
 			throws IOException {
 
+		int[] stripes = lockNamespace(link);
 		try {
 			// TODO: Here, we parse 3 times for the Share that manages the File
 			VirtualFile vlink = getVirtualFileForFileName(link, true);
@@ -534,11 +1079,14 @@ public class PanboxFSLinux extends PanboxFS {
 		} catch (ObfuscationException e) {
 			// logger.error("Could not obfuscate symlink target!", e);
 			throw new IOException("Could not obfuscate symlink target!", e);
+		} finally {
+			invalidateEntry(link);
+			unlockNamespace(stripes);
 		}
 
 	}
 
-	public synchronized void readlink(final String path,
+	public void readlink(final String path,
 			final ByteBuffer buffer, final long size) throws IOException {
 
 		try {
@@ -607,16 +1155,13 @@ public class PanboxFSLinux extends PanboxFS {
 	 *         sessions
 	 */
 	public boolean openFileAccessSessions() {
-		return (fileInstanceTable.size() > 0);
+		return !fileInstanceTable.isEmpty();
 	}
 
 	public void beforeUnmount(File mountPoint) {
 		logger.warn("Panbox is about to shutdown - flush and close all open AES* instances...");
-		Collection<VirtualFileAccessSession> coll = fileInstanceTable.values();
-		for (Iterator<VirtualFileAccessSession> it = coll.iterator(); it
-				.hasNext();) {
-			VirtualFileAccessSession session = (VirtualFileAccessSession) it
-					.next();
+		for (VirtualFileAccessSession session : fileInstanceTable.values()) {
+			session.lock.writeLock().lock();
 			try {
 				session.file.flush();
 				session.file.close();
@@ -625,8 +1170,16 @@ public class PanboxFSLinux extends PanboxFS {
 			} catch (Exception e) {
 				logger.error("Error on closing VirtualFile instance for file "
 						+ session.file.getFileName());
+			} finally {
+				session.lock.writeLock().unlock();
+			}
+		}
+		for (DirectoryListing listing : directoryTable.values()) {
+			synchronized (listing) {
+				listing.close();
 			}
 		}
+		directoryTable.clear();
 	}
 
 }
@@ -60,11 +60,26 @@ public class LinuxPanboxService extends AbstractPanboxService {
 	@Override
 	protected void registerShare(VFSShare vfsShare, VolumeParams p) {
 		VirtualRootVolume.getInstance().registerShare(vfsShare);
+		invalidateFileInfo();
 	}
 
 	@Override
 	protected boolean unregisterShare(VolumeParams p) {
-		return VirtualRootVolume.getInstance().removeShare(p.shareName);
+		boolean removed = VirtualRootVolume.getInstance().removeShare(
+				p.shareName);
+		invalidateFileInfo();
+		return removed;
+	}
+
+	/**
+	 * discards file attributes cached by the VFS, as paths of a share which
+	 * has been added, removed or reloaded may have changed
+	 */
+	private void invalidateFileInfo() {
+		PanboxFS fs = VFSControl.getInstance().getVFS();
+		if (fs != null) {
+			fs.invalidateFileInfo();
+		}
 	}
 
 	@Override
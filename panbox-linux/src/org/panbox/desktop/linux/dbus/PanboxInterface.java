@@ -104,4 +104,10 @@ public interface PanboxInterface extends DBusInterface {
 	byte deleteContact(String[] contactIDs);
 
 	String getShareStorageBackendType(String shareName);
+
+	String getGCMImplementation();
+
+	String[][] getGCMThroughput();
+
+	String[][] getObfuscationStatistics();
 }
@@ -40,6 +40,7 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -48,7 +49,12 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.panbox.Settings;
 import org.panbox.core.Utils;
+import org.panbox.core.crypto.AbstractObfuscatorFactory;
 import org.panbox.core.crypto.CryptCore;
+import org.panbox.core.crypto.FileObfuscatorFactory;
+import org.panbox.core.crypto.Obfuscator;
+import org.panbox.core.crypto.io.GCMImplementationSelector;
+import org.panbox.core.crypto.io.GCMImplementationSelector.Implementation;
 import org.panbox.core.csp.CSPAdapterFactory;
 import org.panbox.core.csp.ICSPAPIIntegration;
 import org.panbox.core.csp.StorageBackendType;
@@ -962,4 +968,44 @@ public class PanboxInterfaceImpl implements PanboxInterface {
 		}
 	}
 
+	@Override
+	public String getGCMImplementation() {
+		logger.debug("[DBUS] getGCMImplementation()");
+		return GCMImplementationSelector.getImplementation().name();
+	}
+
+	@Override
+	public String[][] getGCMThroughput() {
+		logger.debug("[DBUS] getGCMThroughput()");
+		Implementation[] impls = Implementation.values();
+		String[][] ret = new String[impls.length][];
+		for (int i = 0; i < impls.length; i++) {
+			ret[i] = new String[] {
+					impls[i].name(),
+					String.format(Locale.ENGLISH, "%.1f",
+							GCMImplementationSelector.getThroughput(impls[i])) };
+		}
+		return ret;
+	}
+
+	@Override
+	public String[][] getObfuscationStatistics() {
+		logger.debug("[DBUS] getObfuscationStatistics()");
+		List<String[]> ret = new ArrayList<String[]>();
+		try {
+			FileObfuscatorFactory factory = (FileObfuscatorFactory) AbstractObfuscatorFactory
+					.getFactory(FileObfuscatorFactory.class);
+			for (Obfuscator ob : factory.getInstances()) {
+				for (String[] value : ob.getStatistics().toTable()) {
+					ret.add(new String[] { ob.getShareName(), value[0],
+							value[1] });
+				}
+			}
+		} catch (ClassNotFoundException | InstantiationException
+				| IllegalAccessException e) {
+			logger.error("Unable to get obfuscator factory", e);
+		}
+		return ret.toArray(new String[ret.size()][]);
+	}
+
 }
@@ -26,6 +26,7 @@
  */
 package org.panbox.linux.desktop.vfs;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -38,15 +39,22 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.SecretKey;
 
+import org.apache.commons.io.FilenameUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -56,6 +64,7 @@ import org.panbox.core.crypto.AbstractObfuscatorFactory;
 import org.panbox.core.crypto.CryptCore;
 import org.panbox.core.crypto.FileObfuscatorFactory;
 import org.panbox.core.crypto.Obfuscator;
+import org.panbox.core.crypto.ObfuscatorStatistics;
 import org.panbox.core.crypto.io.AESGCMRandomAccessFile;
 import org.panbox.core.exception.ObfuscationException;
 import org.panbox.core.exception.ShareMetaDataException;
@@ -70,6 +79,8 @@ import org.panbox.core.keymgmt.VolumeParams;
 import org.panbox.core.keymgmt.VolumeParams.VolumeParamsFactory;
 import org.panbox.desktop.common.identitymgmt.sqlightimpl.AddressbookManager;
 import org.panbox.desktop.common.identitymgmt.sqlightimpl.IdentityManager;
+import org.panbox.desktop.common.ex.PanboxHandleException;
+import org.panbox.desktop.common.vfs.AbstractFileInfo;
 import org.panbox.desktop.common.vfs.DropboxVirtualVolume;
 import org.panbox.desktop.common.vfs.FuseUserFS;
 import org.panbox.desktop.common.vfs.PanboxFSLinux;
@@ -273,15 +284,8 @@ public class TestLinuxVFS extends AbstractTest {
 
 		// mount
 		debug("mount");
-		DropboxVirtualVolume vfs;
 		try {
-			vfs = new DropboxVirtualVolume(mount);
-
-			Volume v = new Volume(metadataPath);
-			v.loadShareMetaData(mKey_pub);
-			VirtualRootVolume.getInstance().registerShare(
-					new VFSShare(TEST_SHARE_NAME, mount, vfs, v, new KeyPair(
-							devKey_pub, devKey_priv)));
+			registerShare();
 		} catch (Exception e1) {
 			e1.printStackTrace();
 			fail(e1.getMessage());
@@ -332,6 +336,444 @@ public class TestLinuxVFS extends AbstractTest {
 		debug("file moved successful");
 	}
 
+	private void registerShare() throws Exception {
+		DropboxVirtualVolume vfs = new DropboxVirtualVolume(mount);
+		Volume v = new Volume(metadataPath);
+		v.loadShareMetaData(mKey_pub);
+		VirtualRootVolume.getInstance().registerShare(
+				new VFSShare(TEST_SHARE_NAME, mount, vfs, v, new KeyPair(
+						devKey_pub, devKey_priv)));
+	}
+
+	final static int STRESS_FILE_SIZE = 4 * 1024 * 1024;
+	final static int STRESS_BLOCK_SIZE = 128 * 1024;
+	final static int STRESS_ITERATIONS = 64;
+
+	private final AtomicLong stressHandles = new AtomicLong(1000);
+
+	/**
+	 * Calls {@link PanboxFSLinux} from multiple threads in the same way as
+	 * the worker threads of libfuse do, without mounting it: readers upon a
+	 * shared and upon their own handles of the same file, writers upon their
+	 * own files and namespace operations within the same directories. Only
+	 * checks the results; how the read throughput scales with the number of
+	 * readers is measured upon a mounted share by
+	 * bench/concurrent-read-bench.sh.
+	 */
+	@Test
+	public void concurrentAccess() throws Exception {
+		registerShare();
+		final PanboxFSLinux fs = new PanboxFSLinux(new FuseUserFS());
+		final String dir = File.separator + TEST_SHARE_NAME + File.separator
+				+ "stress" + File.separator;
+		try {
+			fs.mkdir(dir);
+			final byte[] content = new byte[STRESS_FILE_SIZE];
+			new Random(42).nextBytes(content);
+			final String shared = dir + "shared.bin";
+			long handle = stressHandles.incrementAndGet();
+			fs.create(shared, handle, false);
+			assertEquals(content.length, fs.write(shared,
+					ByteBuffer.wrap(content), 0, content.length, handle));
+			fs.flush(shared, handle);
+			fs.release(shared, handle);
+
+			final long sharedHandle = stressHandles.incrementAndGet();
+			fs.open(shared, sharedHandle, true);
+			final int readers = 4;
+			final int writers = 2;
+			final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < readers; i++) {
+				final int id = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							// even readers share a handle
+							long h = sharedHandle;
+							if (id % 2 == 1) {
+								h = stressHandles.incrementAndGet();
+								fs.open(shared, h, true);
+							}
+							Random r = new Random(id);
+							for (int j = 0; j < STRESS_ITERATIONS; j++) {
+								int offset = r.nextInt(content.length);
+								verifyRead(fs, shared, h, content, offset,
+										STRESS_BLOCK_SIZE);
+							}
+							if (h != sharedHandle) {
+								fs.release(shared, h);
+							}
+						} catch (Throwable t) {
+							errors.add(t);
+						}
+					}
+				});
+			}
+			for (int i = 0; i < writers; i++) {
+				final String file = dir + "writer-" + i + ".bin";
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							// write blocks in reverse order
+							long h = stressHandles.incrementAndGet();
+							fs.create(file, h, false);
+							int blocks = content.length / STRESS_BLOCK_SIZE;
+							for (int b = blocks - 1; b >= 0; b--) {
+								fs.write(file, ByteBuffer.wrap(content, b
+										* STRESS_BLOCK_SIZE, STRESS_BLOCK_SIZE),
+										b * STRESS_BLOCK_SIZE,
+										STRESS_BLOCK_SIZE, h);
+							}
+							fs.flush(file, h);
+							fs.release(file, h);
+
+							h = stressHandles.incrementAndGet();
+							fs.open(file, h, true);
+							verifyRead(fs, file, h, content, 0, content.length);
+							fs.release(file, h);
+						} catch (Throwable t) {
+							errors.add(t);
+						}
+					}
+				});
+			}
+			fs.mkdir(dir + "sub");
+			for (int i = 0; i < 2; i++) {
+				final int id = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int j = 0; j < STRESS_ITERATIONS; j++) {
+								String tmp = dir + "tmp-" + id + "-" + j;
+								long h = stressHandles.incrementAndGet();
+								fs.create(tmp, h, false);
+								fs.write(tmp, ByteBuffer.wrap(content, 0, 16),
+										0, 16, h);
+								fs.release(tmp, h);
+								// alternate renames within and across
+								// directories
+								String renamed = ((j % 2 == 0) ? dir : dir
+										+ "sub" + File.separator)
+										+ "renamed-" + id + "-" + j;
+								fs.rename(tmp, renamed);
+								fs.unlink(renamed);
+							}
+						} catch (Throwable t) {
+							errors.add(t);
+						}
+					}
+				});
+			}
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join(600 * 1000);
+				assertFalse("Stress test timed out", t.isAlive());
+			}
+			if (!errors.isEmpty()) {
+				throw new AssertionError(errors.size() + " threads failed",
+						errors.peek());
+			}
+			fs.release(shared, sharedHandle);
+			assertFalse(fs.openFileAccessSessions());
+
+			List<String> names = new ArrayList<String>();
+			for (AbstractFileInfo info : fs.readdir(dir)) {
+				names.add(FilenameUtils.getName(info.fileName));
+			}
+			Collections.sort(names);
+			assertEquals(Arrays.asList("shared.bin", "sub", "writer-0.bin",
+					"writer-1.bin"), names);
+			assertTrue(fs.readdir(dir + "sub").isEmpty());
+		} finally {
+			VirtualRootVolume.getInstance().removeShare(TEST_SHARE_NAME);
+		}
+	}
+
+	/**
+	 * Checks that attributes and non-existing paths cached by
+	 * {@link PanboxFSLinux#getattr(String, boolean, boolean)} are invalidated
+	 * by modifications made through the VFS.
+	 */
+	@Test
+	public void cachedAttributes() throws Exception {
+		registerShare();
+		final PanboxFSLinux fs = new PanboxFSLinux(new FuseUserFS());
+		String dir = File.separator + TEST_SHARE_NAME + File.separator
+				+ "attrs";
+		String file = dir + File.separator + "file.bin";
+		String renamed = dir + File.separator + "renamed.bin";
+		try {
+			fs.mkdir(dir);
+			assertNotFound(fs, file);
+
+			long handle = stressHandles.incrementAndGet();
+			fs.create(file, handle, false);
+			assertEquals(0, fs.getattr(file, false, false).getSize());
+			fs.write(file, ByteBuffer.wrap(new byte[1000]), 0, 1000, handle);
+			assertEquals(1000, fs.getattr(file, false, false).getSize());
+			fs.truncate(file, 500);
+			assertEquals(500, fs.getattr(file, false, false).getSize());
+			fs.release(file, handle);
+
+			// entries seeded by readdir
+			assertEquals(1, fs.readdir(dir).size());
+			assertEquals(500, fs.getattr(file, false, false).getSize());
+
+			assertNotFound(fs, renamed);
+			fs.rename(file, renamed);
+			assertNotFound(fs, file);
+			assertEquals(500, fs.getattr(renamed, false, false).getSize());
+
+			// renaming a directory changes the paths of its entries
+			String movedDir = dir + "-moved";
+			fs.rename(dir, movedDir);
+			assertNotFound(fs, renamed);
+			String moved = movedDir + File.separator + "renamed.bin";
+			assertEquals(500, fs.getattr(moved, false, false).getSize());
+
+			fs.unlink(moved);
+			assertNotFound(fs, moved);
+			fs.rmdir(movedDir);
+			assertNotFound(fs, movedDir);
+		} finally {
+			VirtualRootVolume.getInstance().removeShare(TEST_SHARE_NAME);
+		}
+	}
+
+	/**
+	 * Checks that operations upon open file handles, including ftruncate and
+	 * fgetattr, do not obfuscate the name of the file.
+	 */
+	@Test
+	public void handleOperations() throws Exception {
+		registerShare();
+		final PanboxFSLinux fs = new PanboxFSLinux(new FuseUserFS());
+		String file = File.separator + TEST_SHARE_NAME + File.separator
+				+ "handles.bin";
+		try {
+			long handle = stressHandles.incrementAndGet();
+			fs.create(file, handle, false);
+			long readonly = stressHandles.incrementAndGet();
+			fs.open(file, readonly, true);
+
+			ObfuscatorStatistics stats = fs.backingStorage.getObfuscator(file)
+					.getStatistics();
+			long obfuscations = stats.getObfuscateCount();
+			long deobfuscations = stats.getDeobfuscateCount();
+
+			byte[] content = new byte[100000];
+			new Random(42).nextBytes(content);
+			fs.write(file, ByteBuffer.wrap(content), 0, content.length, handle);
+			assertEquals(content.length, fs.fgetattr(file, handle).getSize());
+			fs.ftruncate(file, 1000, handle);
+			assertEquals(1000, fs.fgetattr(file, handle).getSize());
+			fs.flush(file, handle);
+			verifyRead(fs, file, readonly,
+					Arrays.copyOf(content, 1000), 0, 1000);
+			try {
+				fs.ftruncate(file, 0, readonly);
+				fail("Truncated file opened readonly");
+			} catch (IOException e) {
+				// expected
+			}
+			fs.release(file, readonly);
+			fs.release(file, handle);
+
+			assertEquals(obfuscations, stats.getObfuscateCount());
+			assertEquals(deobfuscations, stats.getDeobfuscateCount());
+			assertEquals(1000, fs.getattr(file, false, false).getSize());
+			try {
+				fs.fgetattr(file, handle);
+				fail("Got attributes for released handle");
+			} catch (PanboxHandleException e) {
+				// expected
+			}
+		} finally {
+			VirtualRootVolume.getInstance().removeShare(TEST_SHARE_NAME);
+		}
+	}
+
+	/**
+	 * Writes interleaved blocks of the same file through several handles in
+	 * parallel. Both handles share the backing file, so each positional write
+	 * has to seek and write atomically.
+	 */
+	@Test
+	public void concurrentWritesSameFile() throws Exception {
+		registerShare();
+		final PanboxFSLinux fs = new PanboxFSLinux(new FuseUserFS());
+		final String file = File.separator + TEST_SHARE_NAME + File.separator
+				+ "shared-writes.bin";
+		try {
+			final int blockSize = 500;
+			final int blocks = 8000;
+			final byte[] content = new byte[blocks * blockSize];
+			new Random(42).nextBytes(content);
+			final long[] handles = new long[4];
+			for (int i = 0; i < handles.length; i++) {
+				handles[i] = stressHandles.incrementAndGet();
+				if (i == 0) {
+					fs.create(file, handles[i], false);
+				} else {
+					fs.open(file, handles[i], false);
+				}
+			}
+
+			final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < handles.length; i++) {
+				final int id = i;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int b = id; b < blocks; b += handles.length) {
+								fs.write(file, ByteBuffer.wrap(content, b
+										* blockSize, blockSize), b * blockSize,
+										blockSize, handles[id]);
+							}
+						} catch (Throwable t) {
+							errors.add(t);
+						}
+					}
+				});
+			}
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join(600 * 1000);
+				assertFalse("Writers timed out", t.isAlive());
+			}
+			if (!errors.isEmpty()) {
+				throw new AssertionError(errors.size() + " threads failed",
+						errors.peek());
+			}
+			for (long h : handles) {
+				fs.flush(file, h);
+				fs.release(file, h);
+			}
+
+			long handle = stressHandles.incrementAndGet();
+			fs.open(file, handle, true);
+			assertEquals(content.length, fs.fgetattr(file, handle).getSize());
+			verifyRead(fs, file, handle, content, 0, content.length);
+			fs.release(file, handle);
+		} finally {
+			VirtualRootVolume.getInstance().removeShare(TEST_SHARE_NAME);
+		}
+	}
+
+	/**
+	 * Lists a directory exceeding the batch size of
+	 * {@link PanboxFSLinux#readdir(String, long, long, PanboxFSLinux.DirectoryEntryFiller)}
+	 * in several calls, each accepting a limited number of entries, like
+	 * libfuse does once its buffer is full.
+	 */
+	@Test
+	public void streamingReaddir() throws Exception {
+		registerShare();
+		final PanboxFSLinux fs = new PanboxFSLinux(new FuseUserFS());
+		String dir = File.separator + TEST_SHARE_NAME + File.separator
+				+ "stream";
+		final int count = 600;
+		try {
+			fs.mkdir(dir);
+			List<String> expected = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				String name = "file" + i + ".txt";
+				long handle = stressHandles.incrementAndGet();
+				fs.create(dir + File.separator + name, handle, false);
+				fs.release(dir + File.separator + name, handle);
+				expected.add(name);
+			}
+			Collections.sort(expected);
+
+			long handle = stressHandles.incrementAndGet();
+			fs.opendir(dir, handle);
+			try {
+				assertEquals(expected, listInChunks(fs, dir, handle, 100));
+				// seeking backwards reads the directory again
+				assertEquals(expected, listInChunks(fs, dir, handle, 250));
+			} finally {
+				fs.releasedir(dir, handle);
+			}
+			// without handle, the directory is read again for each call
+			assertEquals(expected, listInChunks(fs, dir, 0, 300));
+			assertEquals(count, fs.readdir(dir).size());
+		} finally {
+			VirtualRootVolume.getInstance().removeShare(TEST_SHARE_NAME);
+		}
+	}
+
+	/**
+	 * lists the given directory from its beginning, accepting at most the
+	 * given number of entries per call
+	 */
+	private static List<String> listInChunks(PanboxFSLinux fs, String dir,
+			long handle, final int chunk) throws IOException {
+		final List<String> names = new ArrayList<String>();
+		final long[] offset = new long[1];
+		int calls = 0;
+		int before;
+		do {
+			before = names.size();
+			final int[] accepted = new int[1];
+			fs.readdir(dir, handle, offset[0],
+					new PanboxFSLinux.DirectoryEntryFiller() {
+						@Override
+						public boolean add(AbstractFileInfo info,
+								long nextOffset) {
+							if (accepted[0] == chunk) {
+								return false;
+							}
+							assertTrue(nextOffset > offset[0]);
+							accepted[0]++;
+							offset[0] = nextOffset;
+							names.add(FilenameUtils.getName(info.fileName));
+							return true;
+						}
+					});
+			calls++;
+		} while (names.size() > before);
+		assertTrue(calls > 1);
+		Collections.sort(names);
+		return names;
+	}
+
+	private static void assertNotFound(PanboxFSLinux fs, String path)
+			throws IOException {
+		try {
+			fs.getattr(path, false, false);
+			fail("Expected " + path + " not to exist");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * reads the given range of the given file and compares it with the
+	 * expected content
+	 */
+	private static void verifyRead(PanboxFSLinux fs, String path, long handle,
+			byte[] expected, int offset, int len) throws Exception {
+		len = Math.min(len, expected.length - offset);
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			int n = fs.read(path, buf, offset + buf.position(),
+					buf.remaining(), handle);
+			assertTrue("Unexpected end of file " + path, n > 0);
+		}
+		assertArrayEquals(path + " at " + offset,
+				Arrays.copyOfRange(expected, offset, offset + len), buf.array());
+	}
+
 	private boolean writeContent(List<String> virtualFiles) {
 		boolean res = true;
 
@@ -397,7 +839,10 @@ public class TestLinuxVFS extends AbstractTest {
 
 	@After
 	public void tearDown() throws Exception {
-		loop.unmount();
+		if (loop != null) {
+			loop.unmount();
+			loop = null;
+		}
 		// deletion of VFS + backend Folders handled by junit
 	}
 
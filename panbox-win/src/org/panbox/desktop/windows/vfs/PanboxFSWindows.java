@@ -33,8 +33,10 @@ import java.nio.ByteBuffer;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -341,6 +343,7 @@ public class PanboxFSWindows extends PanboxFS {
 			DokanFileInfo fileInfo) throws IOException,
 			PanboxDeleteFailedException {
 		logger.debug("PanboxFS : deleteDirectory : " + fileName);
+		backingStorage.invalidatePath(fileName);
 		try {
 			// there is no need to do some manual recursion anymore.
 			boolean success = getVirtualFileForFileName(fileName).delete();
@@ -361,6 +364,7 @@ public class PanboxFSWindows extends PanboxFS {
 	public synchronized void deleteFile(String fileName, DokanFileInfo fileInfo)
 			throws PanboxDeleteFailedException, IOException {
 		logger.debug("PanboxFS : deleteFile : " + fileName);
+		backingStorage.invalidatePath(fileName);
 
 		VirtualRandomAccessFile v = fileInstanceTable.get(fileInfo.handle);
 		if (v != null) {
@@ -422,18 +426,20 @@ public class PanboxFSWindows extends PanboxFS {
 			String pattern, DokanFileInfo fileInfo)
 			throws FileNotFoundException {
 		logger.debug("PanboxFS : findFiles : " + fileName);
+		VirtualFile dir = null;
 		VirtualFile[] files = null;
 		try {
 			if (fileName.equals(File.separator)) {
-				files = backingStorage.getFile(fileName).list();
+				dir = backingStorage.getFile(fileName);
 			} else {
-				files = getVirtualFileForFileName(fileName).list();
+				dir = getVirtualFileForFileName(fileName);
 			}
+			files = dir.list();
 		} catch (IOException | ObfuscationException e) {
 			files = new VirtualFile[0];
 		}
 
-		final ArrayList<String> list = new ArrayList<String>();
+		final ArrayList<VirtualFile> entries = new ArrayList<VirtualFile>();
 		for (final VirtualFile s : files) {
 			// Ignore files starts with .dropbox or are .panbox and desktop.ini
 			String nameOfFile = s.getFileName().substring(
@@ -448,13 +454,22 @@ public class PanboxFSWindows extends PanboxFS {
 				continue;
 			}
 
-			list.add(backingStorage.getRelativePathForFile(s));
+			entries.add(s);
 		}
+
+		// resolve all names at once instead of one deobfuscation per entry
+		Map<String, String> deobfPaths = new HashMap<String, String>();
+		if (!entries.isEmpty()) {
+			deobfPaths = deobfuscateEntries(dir,
+					entries.toArray(new VirtualFile[entries.size()]));
+		}
+
 		final List<Win32FindData> data = new ArrayList<Win32FindData>();
 		FileInfo info;
-		for (final String s : list) {
+		for (final VirtualFile entry : entries) {
+			String s = backingStorage.getRelativePathForFile(entry);
 			try {
-				info = getFileInformation(s, true, false, null);
+				info = (FileInfo) getFileInfo(s, true, false, deobfPaths.get(s));
 			} catch (SecretKeyNotFoundException e) {
 				logger.error(
 						"DokanUserFS::onFindFiles(_getFileInfo) : Caught exception SecretKeyNotFoundException from PanboxFS, Ignore file: ",
@@ -519,6 +534,7 @@ public class PanboxFSWindows extends PanboxFS {
 			throws IOException {
 		logger.debug("PanboxFS : moveFile : " + existingFileName + " -> "
 				+ newFileName);
+		backingStorage.invalidatePath(existingFileName);
 
 		try {
 			final VirtualFile newFile = getVirtualFileForFileName(newFileName,